@@ -0,0 +1,166 @@
+package org.fdroid.fdroid.installer;
+
+import android.content.Context;
+import android.os.Build;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.Hasher;
+import org.fdroid.fdroid.compat.FileCompat;
+import org.fdroid.fdroid.data.SanitizedFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * This needs to run on a device, since the store relies on how hard links
+ * and link counts work on Android's filesystems.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ApkStoreTest {
+
+    private Context context;
+    private File storeDir;
+    private List<String> storeBefore;
+    private final List<File> files = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        storeDir = ApkStore.getStoreDir(context);
+        storeBefore = list(storeDir);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : files) {
+            file.delete();
+        }
+        for (File file : storeDir.listFiles()) {
+            if (!storeBefore.contains(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testPutWithWrongHash() throws Exception {
+        File apk = createApk(1);
+        String wrongHash = Hasher.hashFile(createApk(2), ApkStore.HASH_TYPE);
+
+        assertNull(ApkStore.put(context, apk, wrongHash));
+        assertNull(ApkStore.get(context, wrongHash, ApkStore.HASH_TYPE));
+        assertNull(ApkStore.get(context, Hasher.hashFile(apk, ApkStore.HASH_TYPE), ApkStore.HASH_TYPE));
+        assertEquals(storeBefore, list(storeDir));
+    }
+
+    @Test
+    public void testPutIsDeduplicated() throws Exception {
+        File apk = createApk(3);
+        File sameApk = new File(apk.getParentFile(), "same-" + apk.getName());
+        files.add(sameApk);
+        FileUtils.copyFile(apk, sameApk);
+        String hash = Hasher.hashFile(apk, ApkStore.HASH_TYPE);
+
+        SanitizedFile entry = ApkStore.put(context, apk, hash);
+        assertNotNull(entry);
+        assertEquals(hash + ".apk", entry.getName());
+        assertArrayEquals(FileUtils.readFileToByteArray(apk), FileUtils.readFileToByteArray(entry));
+
+        assertEquals(entry, ApkStore.put(context, sameApk, hash));
+        assertEquals(entry, ApkStore.put(context, sameApk, null));
+        assertEquals(entry, ApkStore.get(context, hash.toUpperCase(Locale.ENGLISH), "SHA256"));
+
+        List<String> expected = new ArrayList<>(storeBefore);
+        expected.add(entry.getName());
+        assertEquals(sorted(expected), list(storeDir));
+    }
+
+    @Test
+    public void testLinkFallsBackToCopy() throws Exception {
+        // external storage is emulated or FAT, never the filesystem of the store
+        File externalDir = context.getExternalCacheDir();
+        assumeTrue(externalDir != null && externalDir.canWrite());
+
+        File apk = createApk(4);
+        SanitizedFile entry = ApkStore.put(context, apk, null);
+        assertNotNull(entry);
+        SanitizedFile dest = new SanitizedFile(externalDir, "ApkStoreTest-copy.apk");
+        files.add(dest);
+
+        assertFalse(FileCompat.link(entry, dest));
+        assertTrue(ApkStore.link(entry, dest));
+        assertArrayEquals(FileUtils.readFileToByteArray(entry), FileUtils.readFileToByteArray(dest));
+        if (Build.VERSION.SDK_INT >= 21) {
+            assertEquals(0, ApkStore.getReferenceCount(entry));
+        }
+    }
+
+    @Test
+    public void testReferenceCountFollowsLinks() throws Exception {
+        assumeTrue(Build.VERSION.SDK_INT >= 21);
+
+        File apk = createApk(5);
+        SanitizedFile entry = ApkStore.put(context, apk, null);
+        assertNotNull(entry);
+        assertEquals(0, ApkStore.getReferenceCount(entry));
+
+        SanitizedFile first = new SanitizedFile(context.getFilesDir(), "ApkStoreTest-first.apk");
+        SanitizedFile second = new SanitizedFile(context.getCacheDir(), "ApkStoreTest-second.apk");
+        files.add(first);
+        files.add(second);
+
+        assertTrue(ApkStore.link(entry, first));
+        assertEquals(FileCompat.getInode(entry), FileCompat.getInode(first));
+        assertEquals(1, ApkStore.getReferenceCount(entry));
+
+        assertTrue(ApkStore.link(entry, second));
+        assertEquals(2, ApkStore.getReferenceCount(entry));
+
+        // linking again replaces the old link rather than adding another one
+        assertTrue(ApkStore.link(entry, second));
+        assertEquals(2, ApkStore.getReferenceCount(entry));
+
+        assertTrue(first.delete());
+        assertEquals(1, ApkStore.getReferenceCount(entry));
+        assertTrue(second.delete());
+        assertEquals(0, ApkStore.getReferenceCount(entry));
+    }
+
+    private File createApk(long seed) throws Exception {
+        byte[] bytes = new byte[64 * 1024 + (int) seed];
+        new Random(seed).nextBytes(bytes);
+        File file = File.createTempFile("ApkStoreTest", ".apk", context.getCacheDir());
+        files.add(file);
+        FileUtils.writeByteArrayToFile(file, bytes);
+        return file;
+    }
+
+    private static List<String> list(File dir) {
+        String[] names = dir.list();
+        return sorted(names == null ? new ArrayList<String>() : new ArrayList<>(Arrays.asList(names)));
+    }
+
+    private static List<String> sorted(List<String> names) {
+        Collections.sort(names);
+        return names;
+    }
+}
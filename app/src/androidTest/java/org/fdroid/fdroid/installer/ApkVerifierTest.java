@@ -20,6 +20,8 @@
 package org.fdroid.fdroid.installer;
 
 import android.app.Instrumentation;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
 import android.support.annotation.NonNull;
@@ -38,17 +40,25 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 /**
  * This test checks the ApkVerifier by parsing a repo from permissionsRepo.xml
@@ -345,6 +355,65 @@ public class ApkVerifierTest {
         apkVerifier.verifyApk();
     }
 
+    /**
+     * {@link ApkManifest} has to come up with the same values as
+     * {@link PackageManager#getPackageArchiveInfo(String, int)}, and be faster at it.
+     */
+    @Test
+    public void testApkManifestMatchesPackageManager() throws IOException {
+        assumeTrue(ApkManifest.canRead());
+        PackageManager pm = instrumentation.getContext().getPackageManager();
+        for (File apkFile : new File[]{sdk14Apk, minMaxApk, extendedPermissionsApk}) {
+            PackageInfo packageInfo = pm.getPackageArchiveInfo(apkFile.getPath(), PackageManager.GET_PERMISSIONS);
+            ApkManifest manifest = ApkManifest.read(apkFile);
+            assertEquals(packageInfo.packageName, manifest.packageName);
+            assertEquals(packageInfo.versionCode, manifest.versionCode);
+            assertEquals(packageInfo.applicationInfo.targetSdkVersion, manifest.targetSdkVersion);
+            assertTrue(apkFile.getName(), ApkVerifier.requestedPermissionsEqual(
+                    packageInfo.requestedPermissions, manifest.requestedPermissions));
+
+            long packageManagerNanos = Long.MAX_VALUE;
+            long manifestNanos = Long.MAX_VALUE;
+            for (int i = 0; i < 20; i++) {
+                long start = System.nanoTime();
+                pm.getPackageArchiveInfo(apkFile.getPath(), PackageManager.GET_PERMISSIONS);
+                packageManagerNanos = Math.min(packageManagerNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                ApkManifest.read(apkFile);
+                manifestNanos = Math.min(manifestNanos, System.nanoTime() - start);
+            }
+            Log.i(TAG, String.format(Locale.ENGLISH, "%s: getPackageArchiveInfo %d us, ApkManifest %d us",
+                    manifest.packageName, packageManagerNanos / 1000, manifestNanos / 1000));
+        }
+    }
+
+    @Test
+    public void testBrokenApkManifestThrowsIOException() throws IOException {
+        ZipFile zipFile = new ZipFile(sdk14Apk);
+        byte[] bytes;
+        try {
+            ZipEntry entry = zipFile.getEntry("AndroidManifest.xml");
+            bytes = new byte[(int) entry.getSize()];
+            DataInputStream input = new DataInputStream(zipFile.getInputStream(entry));
+            input.readFully(bytes);
+            input.close();
+        } finally {
+            zipFile.close();
+        }
+        assertEquals(ApkManifest.read(sdk14Apk).packageName,
+                ApkManifest.parse(bytes, Build.VERSION.SDK_INT).packageName);
+
+        // the string pool right after the file header claims to have Integer.MAX_VALUE strings
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(16, Integer.MAX_VALUE);
+        try {
+            ApkManifest.parse(bytes, Build.VERSION.SDK_INT);
+            fail("a broken string count has to be an IOException");
+        } catch (IOException e) {
+            // PackageManager is used instead
+        }
+    }
+
     @NonNull
     private RepoDetails getFromFile(File indexFile) throws IOException {
         InputStream inputStream = null;
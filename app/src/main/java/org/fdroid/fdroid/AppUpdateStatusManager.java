@@ -7,6 +7,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
@@ -21,10 +23,11 @@ import org.fdroid.fdroid.installer.ErrorDialogActivity;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Manages the state of APKs that are being installed or that have updates available.
@@ -107,26 +110,51 @@ public final class AppUpdateStatusManager {
 
     private static AppUpdateStatusManager instance;
 
-    public static class AppUpdateStatus implements Parcelable {
+    /**
+     * A snapshot of the status of one APK.  These never change, every change
+     * puts a new one in place, so a status can be handed to any number of
+     * receivers and threads without copying it.
+     */
+    public static final class AppUpdateStatus implements Parcelable {
         public final App app;
         public final Apk apk;
-        public Status status;
-        public PendingIntent intent;
-        public int progressCurrent;
-        public int progressMax;
-        public String errorText;
+        public final Status status;
+        public final PendingIntent intent;
+        public final int progressCurrent;
+        public final int progressMax;
+        public final String errorText;
 
         AppUpdateStatus(App app, Apk apk, Status status, PendingIntent intent) {
+            this(app, apk, status, intent, 0, 0, null);
+        }
+
+        private AppUpdateStatus(App app, Apk apk, Status status, PendingIntent intent,
+                                int progressCurrent, int progressMax, String errorText) {
             this.app = app;
             this.apk = apk;
             this.status = status;
             this.intent = intent;
+            this.progressCurrent = progressCurrent;
+            this.progressMax = progressMax;
+            this.errorText = errorText;
         }
 
         public String getUniqueKey() {
             return apk.getUrl();
         }
 
+        private AppUpdateStatus withStatus(Status status, PendingIntent intent) {
+            return new AppUpdateStatus(app, apk, status, intent, progressCurrent, progressMax, errorText);
+        }
+
+        private AppUpdateStatus withProgress(int progressMax, int progressCurrent) {
+            return new AppUpdateStatus(app, apk, status, intent, progressCurrent, progressMax, errorText);
+        }
+
+        private AppUpdateStatus withError(Status status, String errorText, PendingIntent intent) {
+            return new AppUpdateStatus(app, apk, status, intent, progressCurrent, progressMax, errorText);
+        }
+
         /**
          * Dumps some information about the status for debugging purposes.
          */
@@ -135,7 +163,7 @@ public final class AppUpdateStatusManager {
                     + ", Progress: " + progressCurrent + " / " + progressMax + "]";
         }
 
-        protected AppUpdateStatus(Parcel in) {
+        AppUpdateStatus(Parcel in) {
             app = in.readParcelable(getClass().getClassLoader());
             apk = in.readParcelable(getClass().getClassLoader());
             intent = in.readParcelable(getClass().getClassLoader());
@@ -172,66 +200,105 @@ public final class AppUpdateStatusManager {
                 return new AppUpdateStatus[size];
             }
         };
-
-        /**
-         * When passing to the broadcast manager, it is important to pass a copy rather than the original object.
-         * This is because if two status changes are noticed in the same event loop, than they will both refer
-         * to the same status object. The objects are not parceled until the end of the event loop, and so the first
-         * parceled event will refer to the updated object (with a different status) rather than the intended
-         * status (i.e. the one in existence when talking to the broadcast manager).
-         */
-        public AppUpdateStatus copy() {
-            AppUpdateStatus copy = new AppUpdateStatus(app, apk, status, intent);
-            copy.errorText = errorText;
-            copy.progressCurrent = progressCurrent;
-            copy.progressMax = progressMax;
-            return copy;
-        }
     }
 
+    /**
+     * Download progress is broadcast at most this often per APK, about once
+     * per frame, no matter how often it is reported.
+     */
+    private static final long PROGRESS_BROADCAST_MILLIS = 16;
+
+    /**
+     * Changes to the status of one APK are made while holding one of these,
+     * picked by its key, so that changes to different APKs do not wait on
+     * each other.  Reading needs no lock at all.
+     */
+    private final Object[] locks = new Object[16];
+
     private final Context context;
     private final LocalBroadcastManager localBroadcastManager;
-    private final HashMap<String, AppUpdateStatus> appMapping = new HashMap<>();
-    private boolean isBatchUpdating;
+    private final ConcurrentHashMap<String, AppUpdateStatus> appMapping = new ConcurrentHashMap<>();
+    private volatile boolean isBatchUpdating;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Set<String> pendingProgress = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicBoolean progressBroadcastPosted = new AtomicBoolean();
+    private final Runnable broadcastProgress = new Runnable() {
+        @Override
+        public void run() {
+            progressBroadcastPosted.set(false);
+            for (String key : pendingProgress) {
+                pendingProgress.remove(key);
+                AppUpdateStatus entry = appMapping.get(key);
+                if (entry != null) {
+                    notifyChange(entry, false);
+                }
+            }
+        }
+    };
 
     /**
      * @see #isPendingInstall(String)
      */
     private final SharedPreferences apksPendingInstall;
 
-    private AppUpdateStatusManager(Context context) {
+    AppUpdateStatusManager(Context context) {
         this.context = context;
         localBroadcastManager = LocalBroadcastManager.getInstance(context.getApplicationContext());
         apksPendingInstall = context.getSharedPreferences("apks-pending-install", Context.MODE_PRIVATE);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
     }
 
-    public void removeAllByRepo(Repo repo) {
-        boolean hasRemovedSome = false;
-        Iterator<AppUpdateStatus> it = getAll().iterator();
-        while (it.hasNext()) {
-            AppUpdateStatus status = it.next();
-            if (status.apk.repoId == repo.getId()) {
-                it.remove();
-                hasRemovedSome = true;
+    Object getLock(String key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    public void removeAllByRepo(final Repo repo) {
+        boolean hasRemovedSome = removeAll(new EntryFilter() {
+            @Override
+            public boolean matches(AppUpdateStatus entry) {
+                return entry.apk.repoId == repo.getId();
             }
-        }
+        });
 
         if (hasRemovedSome) {
             notifyChange(REASON_REPO_DISABLED);
         }
     }
 
+    private interface EntryFilter {
+        boolean matches(AppUpdateStatus entry);
+    }
+
+    /**
+     * Remove each entry that {@code filter} matches, holding its lock, so it
+     * cannot be put back by a change to it that is being made at the same time.
+     *
+     * @return whether any entry was removed
+     */
+    private boolean removeAll(EntryFilter filter) {
+        boolean hasRemovedSome = false;
+        for (String key : appMapping.keySet()) {
+            synchronized (getLock(key)) {
+                AppUpdateStatus entry = appMapping.get(key);
+                if (entry != null && filter.matches(entry)) {
+                    appMapping.remove(key);
+                    hasRemovedSome = true;
+                }
+            }
+        }
+        return hasRemovedSome;
+    }
+
     @Nullable
     public AppUpdateStatus get(String key) {
-        synchronized (appMapping) {
-            return appMapping.get(key);
-        }
+        return appMapping.get(key);
     }
 
     public Collection<AppUpdateStatus> getAll() {
-        synchronized (appMapping) {
-            return appMapping.values();
-        }
+        return appMapping.values();
     }
 
     /**
@@ -242,11 +309,9 @@ public final class AppUpdateStatusManager {
      */
     public Collection<AppUpdateStatus> getByPackageName(String packageName) {
         ArrayList<AppUpdateStatus> returnValues = new ArrayList<>();
-        synchronized (appMapping) {
-            for (AppUpdateStatus entry : appMapping.values()) {
-                if (entry.apk.packageName.equalsIgnoreCase(packageName)) {
-                    returnValues.add(entry);
-                }
+        for (AppUpdateStatus entry : appMapping.values()) {
+            if (entry.apk.packageName.equalsIgnoreCase(packageName)) {
+                returnValues.add(entry);
             }
         }
         return returnValues;
@@ -255,13 +320,13 @@ public final class AppUpdateStatusManager {
     private void updateApkInternal(@NonNull AppUpdateStatus entry, @NonNull Status status, PendingIntent intent) {
         Utils.debugLog(LOGTAG, "Update APK " + entry.apk.apkName + " state to " + status.name());
         boolean isStatusUpdate = entry.status != status;
-        entry.status = status;
-        entry.intent = intent;
+        AppUpdateStatus updated = entry.withStatus(status, intent);
         // If intent not set, see if we need to create a default intent
-        if (entry.intent == null) {
-            entry.intent = getContentIntent(entry);
+        if (updated.intent == null) {
+            updated = updated.withStatus(status, getContentIntent(updated));
         }
-        notifyChange(entry, isStatusUpdate);
+        appMapping.put(updated.getUniqueKey(), updated);
+        notifyChange(updated, isStatusUpdate);
     }
 
     private void addApkInternal(@NonNull Apk apk, @NonNull Status status, PendingIntent intent) {
@@ -269,7 +334,7 @@ public final class AppUpdateStatusManager {
         AppUpdateStatus entry = createAppEntry(apk, status, intent);
         // If intent not set, see if we need to create a default intent
         if (entry.intent == null) {
-            entry.intent = getContentIntent(entry);
+            entry = entry.withStatus(status, getContentIntent(entry));
         }
         appMapping.put(entry.getUniqueKey(), entry);
         notifyAdd(entry);
@@ -285,40 +350,54 @@ public final class AppUpdateStatusManager {
 
     private void notifyAdd(AppUpdateStatus entry) {
         if (!isBatchUpdating) {
+            pendingProgress.remove(entry.getUniqueKey());
             Intent broadcastIntent = new Intent(BROADCAST_APPSTATUS_ADDED);
             broadcastIntent.putExtra(EXTRA_APK_URL, entry.getUniqueKey());
-            broadcastIntent.putExtra(EXTRA_STATUS, entry.copy());
+            broadcastIntent.putExtra(EXTRA_STATUS, entry);
             localBroadcastManager.sendBroadcast(broadcastIntent);
         }
     }
 
     private void notifyChange(AppUpdateStatus entry, boolean isStatusUpdate) {
         if (!isBatchUpdating) {
+            pendingProgress.remove(entry.getUniqueKey());
             Intent broadcastIntent = new Intent(BROADCAST_APPSTATUS_CHANGED);
             broadcastIntent.putExtra(EXTRA_APK_URL, entry.getUniqueKey());
-            broadcastIntent.putExtra(EXTRA_STATUS, entry.copy());
+            broadcastIntent.putExtra(EXTRA_STATUS, entry);
             broadcastIntent.putExtra(EXTRA_IS_STATUS_UPDATE, isStatusUpdate);
             localBroadcastManager.sendBroadcast(broadcastIntent);
         }
     }
 
+    /**
+     * Progress for {@code entry} is sent with the next batch, as a
+     * {@link #BROADCAST_APPSTATUS_CHANGED} with the latest progress at that time.
+     * A batch is only posted when none is waiting already, so a steady stream
+     * of progress cannot keep pushing it back.
+     */
+    private void notifyProgress(AppUpdateStatus entry) {
+        if (!isBatchUpdating && pendingProgress.add(entry.getUniqueKey())
+                && progressBroadcastPosted.compareAndSet(false, true)) {
+            handler.postDelayed(broadcastProgress, PROGRESS_BROADCAST_MILLIS);
+        }
+    }
+
     private void notifyRemove(AppUpdateStatus entry) {
         if (!isBatchUpdating) {
+            pendingProgress.remove(entry.getUniqueKey());
             Intent broadcastIntent = new Intent(BROADCAST_APPSTATUS_REMOVED);
             broadcastIntent.putExtra(EXTRA_APK_URL, entry.getUniqueKey());
-            broadcastIntent.putExtra(EXTRA_STATUS, entry.copy());
+            broadcastIntent.putExtra(EXTRA_STATUS, entry);
             localBroadcastManager.sendBroadcast(broadcastIntent);
         }
     }
 
     private AppUpdateStatus createAppEntry(Apk apk, Status status, PendingIntent intent) {
-        synchronized (appMapping) {
-            ContentResolver resolver = context.getContentResolver();
-            App app = AppProvider.Helper.findSpecificApp(resolver, apk.packageName, apk.repoId);
-            AppUpdateStatus ret = new AppUpdateStatus(app, apk, status, intent);
-            appMapping.put(apk.getUrl(), ret);
-            return ret;
-        }
+        ContentResolver resolver = context.getContentResolver();
+        App app = AppProvider.Helper.findSpecificApp(resolver, apk.packageName, apk.repoId);
+        AppUpdateStatus ret = new AppUpdateStatus(app, apk, status, intent);
+        appMapping.put(apk.getUrl(), ret);
+        return ret;
     }
 
     public void addApks(List<Apk> apksToUpdate, Status status) {
@@ -341,8 +420,9 @@ public final class AppUpdateStatusManager {
             return;
         }
 
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.get(apk.getUrl());
+        String key = apk.getUrl();
+        synchronized (getLock(key)) {
+            AppUpdateStatus entry = appMapping.get(key);
             if (entry != null) {
                 updateApkInternal(entry, status, pendingIntent);
             } else {
@@ -355,7 +435,7 @@ public final class AppUpdateStatusManager {
      * @param pendingIntent Action when notification is clicked. Can be null for default action(s)
      */
     public void updateApk(String key, @NonNull Status status, @Nullable PendingIntent pendingIntent) {
-        synchronized (appMapping) {
+        synchronized (getLock(key)) {
             AppUpdateStatus entry = appMapping.get(key);
             if (entry != null) {
                 updateApkInternal(entry, status, pendingIntent);
@@ -365,117 +445,114 @@ public final class AppUpdateStatusManager {
 
     @Nullable
     public Apk getApk(String key) {
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.get(key);
-            if (entry != null) {
-                return entry.apk;
-            }
-            return null;
+        AppUpdateStatus entry = appMapping.get(key);
+        if (entry != null) {
+            return entry.apk;
         }
+        return null;
     }
 
     public void removeApk(String key) {
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.get(key);
-            if (entry != null) {
-                Utils.debugLog(LOGTAG, "Remove APK " + entry.apk.apkName);
-                appMapping.remove(entry.apk.getUrl());
-                notifyRemove(entry);
-            }
+        AppUpdateStatus entry;
+        synchronized (getLock(key)) {
+            entry = appMapping.remove(key);
+        }
+        if (entry != null) {
+            Utils.debugLog(LOGTAG, "Remove APK " + entry.apk.apkName);
+            notifyRemove(entry);
         }
     }
 
     public void refreshApk(String key) {
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.get(key);
-            if (entry != null) {
-                Utils.debugLog(LOGTAG, "Refresh APK " + entry.apk.apkName);
-                notifyChange(entry, true);
-            }
+        AppUpdateStatus entry = appMapping.get(key);
+        if (entry != null) {
+            Utils.debugLog(LOGTAG, "Refresh APK " + entry.apk.apkName);
+            notifyChange(entry, true);
         }
     }
 
+    /**
+     * This is called for every bit of progress of every download, so the
+     * broadcasts for it are batched up, see {@link #PROGRESS_BROADCAST_MILLIS}.
+     */
     public void updateApkProgress(String key, int max, int current) {
-        synchronized (appMapping) {
+        AppUpdateStatus updated;
+        synchronized (getLock(key)) {
             AppUpdateStatus entry = appMapping.get(key);
-            if (entry != null) {
-                entry.progressMax = max;
-                entry.progressCurrent = current;
-                notifyChange(entry, false);
+            if (entry == null) {
+                return;
             }
+            updated = entry.withProgress(max, current);
+            appMapping.put(key, updated);
         }
+        notifyProgress(updated);
     }
 
     /**
      * @param errorText If null, then it is likely because the user cancelled the download.
      */
     public void setDownloadError(String url, @Nullable String errorText) {
-        synchronized (appMapping) {
+        AppUpdateStatus updated;
+        synchronized (getLock(url)) {
             AppUpdateStatus entry = appMapping.get(url);
-            if (entry != null) {
-                entry.status = Status.DownloadInterrupted;
-                entry.errorText = errorText;
-                entry.intent = null;
-                notifyChange(entry, true);
+            if (entry == null) {
+                return;
             }
+            updated = entry.withError(Status.DownloadInterrupted, errorText, null);
+            appMapping.put(url, updated);
         }
+        notifyChange(updated, true);
     }
 
     public void setApkError(Apk apk, String errorText) {
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.get(apk.getUrl());
+        String key = apk.getUrl();
+        AppUpdateStatus updated;
+        synchronized (getLock(key)) {
+            AppUpdateStatus entry = appMapping.get(key);
             if (entry == null) {
                 entry = createAppEntry(apk, Status.InstallError, null);
             }
-            entry.status = Status.InstallError;
-            entry.errorText = errorText;
-            entry.intent = getAppErrorIntent(entry);
-            notifyChange(entry, false);
+            updated = entry.withError(Status.InstallError, errorText, null);
+            updated = updated.withError(Status.InstallError, errorText, getAppErrorIntent(updated));
+            appMapping.put(key, updated);
         }
+        notifyChange(updated, false);
     }
 
     private void startBatchUpdates() {
-        synchronized (appMapping) {
-            isBatchUpdating = true;
-        }
+        isBatchUpdating = true;
     }
 
     private void endBatchUpdates(Status status) {
-        synchronized (appMapping) {
-            isBatchUpdating = false;
-
-            String reason = null;
-            if (status == Status.ReadyToInstall) {
-                reason = REASON_READY_TO_INSTALL;
-            } else if (status == Status.UpdateAvailable) {
-                reason = REASON_UPDATES_AVAILABLE;
-            }
-            notifyChange(reason);
+        isBatchUpdating = false;
+
+        String reason = null;
+        if (status == Status.ReadyToInstall) {
+            reason = REASON_READY_TO_INSTALL;
+        } else if (status == Status.UpdateAvailable) {
+            reason = REASON_UPDATES_AVAILABLE;
         }
+        notifyChange(reason);
     }
 
     void clearAllUpdates() {
-        synchronized (appMapping) {
-            for (Iterator<Map.Entry<String, AppUpdateStatus>> it = appMapping.entrySet().iterator(); it.hasNext(); ) { // NOCHECKSTYLE EmptyForIteratorPad
-                Map.Entry<String, AppUpdateStatus> entry = it.next();
-                if (entry.getValue().status != Status.Installed) {
-                    it.remove();
-                }
+        removeAll(new EntryFilter() {
+            @Override
+            public boolean matches(AppUpdateStatus entry) {
+                return entry.status != Status.Installed;
             }
-            notifyChange(REASON_CLEAR_ALL_UPDATES);
-        }
+        });
+        notifyChange(REASON_CLEAR_ALL_UPDATES);
     }
 
     void clearAllInstalled() {
-        synchronized (appMapping) {
-            for (Iterator<Map.Entry<String, AppUpdateStatus>> it = appMapping.entrySet().iterator(); it.hasNext(); ) { // NOCHECKSTYLE EmptyForIteratorPad
-                Map.Entry<String, AppUpdateStatus> entry = it.next();
-                if (entry.getValue().status == Status.Installed) {
-                    it.remove();
-                }
+        removeAll(new EntryFilter() {
+            @Override
+            public boolean matches(AppUpdateStatus entry) {
+                return entry.status == Status.Installed;
             }
-            notifyChange(REASON_CLEAR_ALL_INSTALLED);
-        }
+        });
+        notifyChange(REASON_CLEAR_ALL_INSTALLED);
     }
 
     private PendingIntent getContentIntent(AppUpdateStatus entry) {
@@ -11,6 +11,8 @@ import android.os.SystemClock;
 
 import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.installer.ApkCache;
+import org.fdroid.fdroid.installer.ApkCacheIndex;
+import org.fdroid.fdroid.installer.ApkStore;
 
 import java.io.File;
 import java.util.concurrent.TimeUnit;
@@ -62,24 +64,35 @@ public class CleanCacheService extends IntentService {
         }
         Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
         deleteExpiredApksFromCache();
-        deleteStrayIndexFiles();
         deleteOldInstallerFiles();
+        deleteUnusedApksFromStore();
+        deleteStrayIndexFiles();
         deleteOldIcons();
     }
 
     /**
      * All downloaded APKs will be cached for a certain amount of time, which is
      * specified by the user in the "Keep Cache Time" preference.  This removes
-     * any APK in the cache that is older than that preference specifies.
+     * any APK in the cache that was not used for longer than that preference
+     * specifies, along with the copies {@link org.fdroid.fdroid.installer.Installer}
+     * instances made to install from, based on {@link ApkCacheIndex} instead of
+     * going through the directories.
+     * <p>
+     * Downloads that never finished, or failed, are not in the index, so any
+     * other file in the cache is deleted based on its age.
      */
     private void deleteExpiredApksFromCache() {
-        File cacheDir = ApkCache.getApkCacheDir(getBaseContext());
-        clearOldFiles(cacheDir, Preferences.get().getKeepCacheTime());
+        ApkCacheIndex index = ApkCacheIndex.getInstance(this);
+        long keepCacheTime = Preferences.get().getKeepCacheTime();
+        index.sweep(keepCacheTime);
+        clearOldUnindexedFiles(index, ApkCache.getApkCacheDir(getBaseContext()), keepCacheTime);
     }
 
     /**
      * {@link org.fdroid.fdroid.installer.Installer} instances copy the APK into
-     * a safe place before installing.  It doesn't clean up them reliably yet.
+     * a safe place before installing.  Those copies are deleted when they are
+     * due by {@link ApkCacheIndex}, this only catches the ones that did not
+     * make it into the index.
      */
     private void deleteOldInstallerFiles() {
         File filesDir = getFilesDir();
@@ -92,13 +105,34 @@ public class CleanCacheService extends IntentService {
             return;
         }
 
+        ApkCacheIndex index = ApkCacheIndex.getInstance(this);
         for (File f : files) {
-            if (f.getName().endsWith(".apk")) {
+            if (f.getName().endsWith(".apk") && !index.contains(f)) {
                 clearOldFiles(f, TimeUnit.HOURS.toMillis(1));
             }
         }
     }
 
+    /**
+     * {@link ApkStore} entries that nothing links to anymore are kept for as
+     * long as the downloaded APKs, in case the same APK is needed again.  The
+     * ones that are still linked to are in use, e.g. in the swap repo or for
+     * an install, so those are left alone.  {@link ApkCacheIndex} also deletes
+     * unused entries when they do not fit in the APK cache size anymore.  On
+     * devices that cannot tell how many links there are, only the age counts.
+     */
+    private void deleteUnusedApksFromStore() {
+        File[] files = ApkStore.getStoreDir(this).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (ApkStore.getReferenceCount(f) <= 0) {
+                clearOldFiles(f, Preferences.get().getKeepCacheTime());
+            }
+        }
+    }
+
     /**
      * Delete index files which were downloaded, but not removed (e.g. due to F-Droid being
      * force closed during processing of the file, before getting a chance to delete). This
@@ -139,6 +173,28 @@ public class CleanCacheService extends IntentService {
         clearOldFiles(Utils.getImageCacheDir(this), TimeUnit.DAYS.toMillis(365));
     }
 
+    /**
+     * Like {@link #clearOldFiles(File, long)}, but leaves the files that
+     * {@link ApkCacheIndex} keeps track of to it.
+     */
+    private static void clearOldUnindexedFiles(ApkCacheIndex index, File f, long millisAgo) {
+        if (f == null) {
+            return;
+        }
+        if (f.isDirectory()) {
+            File[] files = f.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                clearOldUnindexedFiles(index, file, millisAgo);
+            }
+            f.delete();
+        } else if (!index.contains(f)) {
+            clearOldFiles(f, millisAgo);
+        }
+    }
+
     /**
      * Recursively delete files in {@code f} that were last used
      * {@code millisAgo} milliseconds ago.  On {@code android-21} and newer, this
@@ -58,7 +58,7 @@ import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.SanitizedFile;
 import org.fdroid.fdroid.installer.ApkFileProvider;
-import org.fdroid.fdroid.installer.InstallHistoryService;
+import org.fdroid.fdroid.installer.InstallHistory;
 import org.fdroid.fdroid.net.ImageLoaderForUIL;
 import org.fdroid.fdroid.net.WifiStateChangeService;
 
@@ -387,7 +387,7 @@ public class FDroidApp extends Application {
         configureTor(Preferences.get().isTorEnabled());
 
         if (Preferences.get().isKeepingInstallHistory()) {
-            InstallHistoryService.register(this);
+            InstallHistory.register(this);
         }
 
         String packageName = getString(R.string.install_history_reader_packageName);
@@ -398,7 +398,7 @@ public class FDroidApp extends Application {
             if (Build.VERSION.SDK_INT >= 19) {
                 modeFlags |= Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION;
             }
-            grantUriPermission(packageName, InstallHistoryService.LOG_URI, modeFlags);
+            grantUriPermission(packageName, InstallHistory.LOG_URI, modeFlags);
         }
     }
 
@@ -20,29 +20,79 @@
 
 package org.fdroid.fdroid;
 
-import java.io.BufferedInputStream;
+import android.os.Process;
+
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.InputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * All hashing of files goes through {@link #hashFile(File, String)}, or
+ * {@link #copyAndHashFile(File, File, String)} when the file is copied too,
+ * which read them straight from their {@link FileChannel} into a direct buffer.
+ * Each thread keeps its buffer and its {@link MessageDigest}s, so hashing
+ * many APKs one after the other does not allocate anything per file.  Files
+ * can be hashed at the same time on {@link #getExecutor()}.
+ */
 public class Hasher {
 
+    private static final String TAG = "Hasher";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Hashing is mostly reading files, so more threads than this would only
+     * have them wait on each other for the storage.
+     */
+    private static final int MAX_THREADS = 4;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS =
+            new ThreadLocal<Map<String, MessageDigest>>() {
+                @Override
+                protected Map<String, MessageDigest> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    private static ExecutorService executor;
+
+    private final String type;
     private MessageDigest digest;
     private File file;
     private byte[] array;
     private String hashCache;
 
     public Hasher(String type, File f) throws NoSuchAlgorithmException {
+        this.type = type;
         init(type);
         this.file = f;
     }
 
     public Hasher(String type, byte[] a) throws NoSuchAlgorithmException {
+        this.type = type;
         init(type);
         this.array = a;
     }
@@ -63,27 +113,107 @@ public class Hasher {
             return hashCache;
         }
         if (file != null) {
-            byte[] buffer = new byte[1024];
-            int read;
-            InputStream input = null;
             try {
-                input = new BufferedInputStream(new FileInputStream(file));
-                while ((read = input.read(buffer)) > 0) {
-                    digest.update(buffer, 0, read);
-                }
+                hashCache = hashFile(file, type);
             } catch (Exception e) {
                 hashCache = "";
-                return hashCache;
-            } finally {
-                Utils.closeQuietly(input);
             }
-        } else {
-            digest.update(array);
+            return hashCache;
         }
+        digest.update(array);
         hashCache = hex(digest.digest());
         return hashCache;
     }
 
+    /**
+     * @return the hash of {@code file} as lowercase hexadecimal
+     */
+    public static String hashFile(File file, String type) throws IOException, NoSuchAlgorithmException {
+        return hashFile(file, type, null);
+    }
+
+    /**
+     * Copy {@code source} to {@code dest}, hashing it on the way, so it does
+     * not have to be read a second time to check the copy.
+     *
+     * @return the hash of {@code source} as lowercase hexadecimal
+     */
+    public static String copyAndHashFile(File source, File dest, String type)
+            throws IOException, NoSuchAlgorithmException {
+        FileOutputStream output = new FileOutputStream(dest);
+        try {
+            return hashFile(source, type, output.getChannel());
+        } finally {
+            Utils.closeQuietly(output);
+        }
+    }
+
+    private static String hashFile(File file, String type, FileChannel copy)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = getDigest(type);
+        ByteBuffer buffer = BUFFERS.get();
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            FileChannel channel = input.getChannel();
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                if (copy != null) {
+                    buffer.rewind();
+                    while (buffer.hasRemaining()) {
+                        copy.write(buffer);
+                    }
+                }
+                buffer.clear();
+            }
+            return hex(digest.digest());
+        } finally {
+            digest.reset();
+            Utils.closeQuietly(input);
+        }
+    }
+
+    private static MessageDigest getDigest(String type) throws NoSuchAlgorithmException {
+        Map<String, MessageDigest> digests = DIGESTS.get();
+        MessageDigest digest = digests.get(type);
+        if (digest == null) {
+            digest = MessageDigest.getInstance(type);
+            digests.put(type, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * A few low priority threads, shared by everything that hashes or parses
+     * many APKs at once, so that all of them together do not have more
+     * files open than the storage can keep up with.  Idle threads go away.
+     */
+    public static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger threadCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                                    runnable.run();
+                                }
+                            }, TAG + " #" + threadCount.incrementAndGet());
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+
     // Compare the calculated hash to another string, ignoring case,
     // returning true if they are equal. The empty string and null are
     // considered non-matching.
@@ -122,7 +252,7 @@ public class Hasher {
         return hex(encoded);
     }
 
-    private static String hex(byte[] sig) {
+    public static String hex(byte[] sig) {
         byte[] csig = new byte[sig.length * 2];
         for (int j = 0; j < sig.length; j++) {
             byte v = sig[j];
@@ -17,6 +17,7 @@ import com.fasterxml.jackson.databind.InjectableValues;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.Repo;
@@ -27,6 +28,7 @@ import org.fdroid.fdroid.net.Downloader;
 import org.fdroid.fdroid.net.DownloaderFactory;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ConnectException;
@@ -40,6 +42,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipException;
 
 /**
  * Receives the index data about all available apps and packages via the V1
@@ -59,7 +63,7 @@ import java.util.jar.JarFile;
 public class IndexV1Updater extends RepoUpdater {
     public static final String TAG = "IndexV1Updater";
 
-    private static final String SIGNED_FILE_NAME = "index-v1.jar";
+    public static final String SIGNED_FILE_NAME = "index-v1.jar";
     public static final String DATA_FILE_NAME = "index-v1.json";
 
     public IndexV1Updater(@NonNull Context context, @NonNull Repo repo) {
@@ -77,11 +81,10 @@ public class IndexV1Updater extends RepoUpdater {
      */
     @Override
     public boolean update() throws RepoUpdater.UpdateException {
-
         if (repo.isSwap) {
-            // swap repos do not support index-v1
-            return false;
+            return updateFromStream();
         }
+
         Downloader downloader = null;
         try {
             // read file name from file
@@ -152,13 +155,62 @@ public class IndexV1Updater extends RepoUpdater {
         return true;
     }
 
+    /**
+     * Parse {@link #SIGNED_FILE_NAME} from a swap peer while it downloads, like
+     * {@link RepoUpdater} does with {@code index.jar}.  Nothing is committed
+     * before the signature was checked in
+     * {@link #processIndexV1(InputStream, JarEntry, String)}.
+     */
+    private boolean updateFromStream() throws RepoUpdater.UpdateException {
+        Downloader downloader = null;
+        JarInputStream jarInputStream = null;
+        InputStream indexInputStream = null;
+        try {
+            downloader = DownloaderFactory.create(context, indexUrl);
+            InputStream downloadStream = downloader.getInputStream();
+            if (downloader.isNotFound()) {
+                Utils.closeQuietly(downloadStream);
+                return false;
+            }
+            jarInputStream = new JarInputStream(downloadStream, true);
+            JarEntry indexEntry = findJarEntry(jarInputStream, DATA_FILE_NAME);
+            if (indexEntry == null) {
+                // older swap peers over Bluetooth send their error page with a 200 status
+                Utils.debugLog(TAG, "Swap peer sent no " + SIGNED_FILE_NAME + ", falling back to index.jar");
+                return false;
+            }
+            hasChanged = true;
+            indexInputStream = new ProgressBufferedInputStream(jarInputStream, processIndexListener,
+                    new URL(repo.address), (int) indexEntry.getSize());
+            processIndexV1(indexInputStream, indexEntry, null);
+        } catch (FileNotFoundException | ZipException e) {
+            Utils.debugLog(TAG, "Swap peer has no " + SIGNED_FILE_NAME + ", falling back to index.jar");
+            return false;
+        } catch (IOException e) {
+            throw new RepoUpdater.UpdateException(repo, "Error getting index file", e);
+        } catch (SecurityException e) {
+            throw new SigningException(repo, e.getMessage());
+        } finally {
+            Utils.closeQuietly(indexInputStream);
+            Utils.closeQuietly(jarInputStream);
+            if (downloader != null) {
+                FileUtils.deleteQuietly(downloader.outputFile);
+            }
+        }
+        return true;
+    }
+
     private void processDownloadedIndex(File outputFile, String cacheTag)
             throws IOException, RepoUpdater.UpdateException {
         JarFile jarFile = new JarFile(outputFile, true);
         JarEntry indexEntry = (JarEntry) jarFile.getEntry(DATA_FILE_NAME);
         InputStream indexInputStream = new ProgressBufferedInputStream(jarFile.getInputStream(indexEntry),
                 processIndexListener, new URL(repo.address), (int) indexEntry.getSize());
-        processIndexV1(indexInputStream, indexEntry, cacheTag);
+        try {
+            processIndexV1(indexInputStream, indexEntry, cacheTag);
+        } finally {
+            Utils.closeQuietly(indexInputStream);
+        }
     }
 
     /**
@@ -200,6 +252,7 @@ public class IndexV1Updater extends RepoUpdater {
         ObjectMapper mapper = getObjectMapperInstance(repo.getId());
         JsonFactory f = mapper.getFactory();
         JsonParser parser = f.createParser(indexInputStream);
+        parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
         HashMap<String, Object> repoMap = null;
         App[] apps = null;
         Map<String, String[]> requests = null;
@@ -227,6 +280,8 @@ public class IndexV1Updater extends RepoUpdater {
             }
         }
         parser.close(); // ensure resources get cleaned up timely and properly
+        // the signature is only known once the whole entry was read, even past the JSON
+        IOUtils.skip(indexInputStream, Long.MAX_VALUE);
         profiler.log("Finished processing index-v1.json. Now verifying certificate...");
 
         if (repoMap == null) {
@@ -12,10 +12,13 @@ import android.graphics.Point;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.content.LocalBroadcastManager;
+import android.support.v4.util.LruCache;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextUtils;
@@ -32,7 +35,19 @@ import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.views.main.MainActivity;
 
 import java.util.ArrayList;
-
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shows the {@link AppUpdateStatusManager} entries as notifications.  Each
+ * broadcast about a single APK only touches that APK's entry in
+ * {@link #updates} or {@link #installed}, and its notification is only posted
+ * again if it would look different: a new status, or download progress that
+ * is at least {@link #PROGRESS_NOTIFICATION_MILLIS} newer than what is shown.
+ * The summaries are only rebuilt when which apps they list, or their status,
+ * changed.  Large icons are kept in {@link #iconCache} once they are loaded.
+ */
 @SuppressWarnings("LineLength")
 class NotificationHelper {
 
@@ -51,12 +66,38 @@ class NotificationHelper {
     private static final String GROUP_UPDATES = "updates";
     private static final String GROUP_INSTALLED = "installed";
 
+    /**
+     * Download progress is shown at most this often per app.  The system drops
+     * most of the updates to notifications that come faster than that anyway.
+     */
+    private static final long PROGRESS_NOTIFICATION_MILLIS = 1000;
+
+    private static final int ICON_CACHE_BYTES = 2 * 1024 * 1024;
+
     private final Context context;
     private final NotificationManagerCompat notificationManager;
     private final AppUpdateStatusManager appUpdateStatusManager;
     private final DisplayImageOptions displayImageOptions;
-    private final ArrayList<AppUpdateStatusManager.AppUpdateStatus> updates = new ArrayList<>();
-    private final ArrayList<AppUpdateStatusManager.AppUpdateStatus> installed = new ArrayList<>();
+    private final LinkedHashMap<String, AppUpdateStatusManager.AppUpdateStatus> updates = new LinkedHashMap<>();
+    private final LinkedHashMap<String, AppUpdateStatusManager.AppUpdateStatus> installed = new LinkedHashMap<>();
+
+    /**
+     * What the notification for each APK was last posted with, and when.
+     */
+    private final HashMap<String, AppUpdateStatusManager.AppUpdateStatus> shown = new HashMap<>();
+    private final HashMap<String, Long> shownAt = new HashMap<>();
+
+    /**
+     * Large icons by package name, so that they are not looked up in
+     * {@link ImageLoader}'s disk cache and decoded for every notification.
+     */
+    private final LruCache<String, Bitmap> iconCache = new LruCache<String, Bitmap>(ICON_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String packageName, Bitmap bitmap) {
+            return bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    };
+    private Bitmap downloadingIcon;
 
     NotificationHelper(Context context) {
         this.context = context;
@@ -83,6 +124,8 @@ class NotificationHelper {
                 switch (intent.getAction()) {
                     case AppUpdateStatusManager.BROADCAST_APPSTATUS_LIST_CHANGED:
                         notificationManager.cancelAll();
+                        shown.clear();
+                        shownAt.clear();
                         updateStatusLists();
                         createSummaryNotifications();
                         for (AppUpdateStatusManager.AppUpdateStatus appUpdateStatus : appUpdateStatusManager.getAll()) {
@@ -90,10 +133,11 @@ class NotificationHelper {
                         }
                         break;
                     case AppUpdateStatusManager.BROADCAST_APPSTATUS_ADDED:
-                        updateStatusLists();
-                        createSummaryNotifications();
                         url = intent.getStringExtra(AppUpdateStatusManager.EXTRA_APK_URL);
                         entry = appUpdateStatusManager.get(url);
+                        if (updateStatusLists(url, entry)) {
+                            createSummaryNotifications();
+                        }
                         if (entry != null) {
                             createNotification(entry);
                         }
@@ -101,11 +145,11 @@ class NotificationHelper {
                     case AppUpdateStatusManager.BROADCAST_APPSTATUS_CHANGED:
                         url = intent.getStringExtra(AppUpdateStatusManager.EXTRA_APK_URL);
                         entry = appUpdateStatusManager.get(url);
-                        updateStatusLists();
+                        boolean listsChanged = updateStatusLists(url, entry);
                         if (entry != null) {
                             createNotification(entry);
                         }
-                        if (intent.getBooleanExtra(AppUpdateStatusManager.EXTRA_IS_STATUS_UPDATE, false)) {
+                        if (listsChanged || intent.getBooleanExtra(AppUpdateStatusManager.EXTRA_IS_STATUS_UPDATE, false)) {
                             createSummaryNotifications();
                         }
                         break;
@@ -113,8 +157,10 @@ class NotificationHelper {
                         url = intent.getStringExtra(AppUpdateStatusManager.EXTRA_APK_URL);
                         notificationManager.cancel(url, NOTIFY_ID_INSTALLED);
                         notificationManager.cancel(url, NOTIFY_ID_UPDATES);
-                        updateStatusLists();
-                        createSummaryNotifications();
+                        forgetNotification(url);
+                        if (updateStatusLists(url, null)) {
+                            createSummaryNotifications();
+                        }
                         break;
                 }
             }
@@ -140,13 +186,52 @@ class NotificationHelper {
 
         for (AppUpdateStatusManager.AppUpdateStatus entry : appUpdateStatusManager.getAll()) {
             if (entry.status == AppUpdateStatusManager.Status.Installed) {
-                installed.add(entry);
+                installed.put(entry.getUniqueKey(), entry);
             } else if (!shouldIgnoreEntry(entry)) {
-                updates.add(entry);
+                updates.put(entry.getUniqueKey(), entry);
             }
         }
     }
 
+    /**
+     * Put the latest status for {@code url} in {@link NotificationHelper#updates} or
+     * {@link NotificationHelper#installed}, where it keeps its place if it was already
+     * in there, or take it out of both when it is gone.
+     *
+     * @return whether the summaries have to be updated, because an app was added
+     * to or removed from the lists, or its status changed
+     */
+    private boolean updateStatusLists(String url, @Nullable AppUpdateStatusManager.AppUpdateStatus entry) {
+        if (!notificationManager.areNotificationsEnabled()) {
+            return false;
+        }
+
+        Map<String, AppUpdateStatusManager.AppUpdateStatus> list = null;
+        if (entry != null) {
+            if (entry.status == AppUpdateStatusManager.Status.Installed) {
+                list = installed;
+            } else if (!shouldIgnoreEntry(entry)) {
+                list = updates;
+            }
+        }
+
+        AppUpdateStatusManager.AppUpdateStatus previous = null;
+        if (list != updates) {
+            previous = updates.remove(url);
+        }
+        if (list != installed && previous == null) {
+            previous = installed.remove(url);
+        }
+        if (list == null) {
+            return previous != null;
+        }
+        AppUpdateStatusManager.AppUpdateStatus replaced = list.put(url, entry);
+        if (replaced != null) {
+            previous = replaced;
+        }
+        return previous == null || previous.status != entry.status;
+    }
+
     private boolean shouldIgnoreEntry(AppUpdateStatusManager.AppUpdateStatus entry) {
         // Ignore unknown status
         if (entry.status == AppUpdateStatusManager.Status.DownloadInterrupted) {
@@ -161,14 +246,46 @@ class NotificationHelper {
         return false;
     }
 
+    /**
+     * @return whether the notification for {@code entry} would look different
+     * from how it was last posted
+     */
+    private boolean needsNotification(AppUpdateStatusManager.AppUpdateStatus entry) {
+        AppUpdateStatusManager.AppUpdateStatus previous = shown.get(entry.getUniqueKey());
+        if (previous == null) {
+            return true;
+        } else if (previous == entry) {
+            return false;
+        } else if (previous.status != entry.status
+                || previous.app != entry.app
+                || previous.intent != entry.intent
+                || !TextUtils.equals(previous.errorText, entry.errorText)) {
+            return true;
+        } else if (previous.progressCurrent == entry.progressCurrent && previous.progressMax == entry.progressMax) {
+            return false;
+        }
+        return SystemClock.elapsedRealtime() - shownAt.get(entry.getUniqueKey()) >= PROGRESS_NOTIFICATION_MILLIS;
+    }
+
+    private void rememberNotification(AppUpdateStatusManager.AppUpdateStatus entry) {
+        shown.put(entry.getUniqueKey(), entry);
+        shownAt.put(entry.getUniqueKey(), SystemClock.elapsedRealtime());
+    }
+
+    private void forgetNotification(String url) {
+        shown.remove(url);
+        shownAt.remove(url);
+    }
+
     private void createNotification(AppUpdateStatusManager.AppUpdateStatus entry) {
         if (shouldIgnoreEntry(entry)) {
             notificationManager.cancel(entry.getUniqueKey(), NOTIFY_ID_UPDATES);
             notificationManager.cancel(entry.getUniqueKey(), NOTIFY_ID_INSTALLED);
+            forgetNotification(entry.getUniqueKey());
             return;
         }
 
-        if (!notificationManager.areNotificationsEnabled()) {
+        if (!notificationManager.areNotificationsEnabled() || !needsNotification(entry)) {
             return;
         }
 
@@ -178,22 +295,26 @@ class NotificationHelper {
                 notification = createInstalledNotification(entry);
                 notificationManager.cancel(entry.getUniqueKey(), NOTIFY_ID_UPDATES);
                 notificationManager.notify(entry.getUniqueKey(), NOTIFY_ID_INSTALLED, notification);
+                rememberNotification(entry);
             } else if (installed.size() == 1) {
                 notification = createInstalledNotification(entry);
                 notificationManager.cancel(entry.getUniqueKey(), NOTIFY_ID_UPDATES);
                 notificationManager.cancel(entry.getUniqueKey(), NOTIFY_ID_INSTALLED);
                 notificationManager.notify(GROUP_INSTALLED, NOTIFY_ID_INSTALLED, notification);
+                rememberNotification(entry);
             }
         } else {
             if (useStackedNotifications()) {
                 notification = createUpdateNotification(entry);
                 notificationManager.cancel(entry.getUniqueKey(), NOTIFY_ID_INSTALLED);
                 notificationManager.notify(entry.getUniqueKey(), NOTIFY_ID_UPDATES, notification);
+                rememberNotification(entry);
             } else if (updates.size() == 1) {
                 notification = createUpdateNotification(entry);
                 notificationManager.cancel(entry.getUniqueKey(), NOTIFY_ID_UPDATES);
                 notificationManager.cancel(entry.getUniqueKey(), NOTIFY_ID_INSTALLED);
                 notificationManager.notify(GROUP_UPDATES, NOTIFY_ID_UPDATES, notification);
+                rememberNotification(entry);
             }
         }
     }
@@ -209,8 +330,11 @@ class NotificationHelper {
                 // No updates, remove summary
                 notificationManager.cancel(GROUP_UPDATES, NOTIFY_ID_UPDATES);
             } else {
-                notification = createUpdateSummaryNotification(updates);
+                notification = createUpdateSummaryNotification(new ArrayList<>(updates.values()));
                 notificationManager.notify(GROUP_UPDATES, NOTIFY_ID_UPDATES, notification);
+                if (!useStackedNotifications()) {
+                    forgetNotifications(updates);
+                }
             }
         }
         if (installed.size() != 1 || useStackedNotifications()) {
@@ -218,12 +342,26 @@ class NotificationHelper {
                 // No installed, remove summary
                 notificationManager.cancel(GROUP_INSTALLED, NOTIFY_ID_INSTALLED);
             } else {
-                notification = createInstalledSummaryNotification(installed);
+                notification = createInstalledSummaryNotification(new ArrayList<>(installed.values()));
                 notificationManager.notify(GROUP_INSTALLED, NOTIFY_ID_INSTALLED, notification);
+                if (!useStackedNotifications()) {
+                    forgetNotifications(installed);
+                }
             }
         }
     }
 
+    /**
+     * Without stacked notifications, the summary takes the place of the
+     * notification for the single app, so that one has to be posted again
+     * when it is the only one left.
+     */
+    private void forgetNotifications(Map<String, AppUpdateStatusManager.AppUpdateStatus> list) {
+        for (String url : list.keySet()) {
+            forgetNotification(url);
+        }
+    }
+
     private NotificationCompat.Action getAction(AppUpdateStatusManager.AppUpdateStatus entry) {
         if (entry.intent != null) {
             switch (entry.status) {
@@ -497,22 +635,39 @@ class NotificationHelper {
         return new Point(w, h);
     }
 
-    private Bitmap getLargeIconForEntry(AppUpdateStatusManager.AppUpdateStatus entry) {
-        final Point largeIconSize = getLargeIconSize();
-        Bitmap iconLarge = null;
-        if (TextUtils.isEmpty(entry.app.iconUrl)) {
-            return null;
-        } else if (entry.status == AppUpdateStatusManager.Status.Downloading || entry.status == AppUpdateStatusManager.Status.Installing) {
-            Bitmap bitmap = Bitmap.createBitmap(largeIconSize.x, largeIconSize.y, Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(bitmap);
+    private Bitmap getDownloadingIcon() {
+        if (downloadingIcon == null) {
+            final Point largeIconSize = getLargeIconSize();
+            downloadingIcon = Bitmap.createBitmap(largeIconSize.x, largeIconSize.y, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(downloadingIcon);
             Drawable downloadIcon = ContextCompat.getDrawable(context, R.drawable.ic_notification_download);
             if (downloadIcon != null) {
                 downloadIcon.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
                 downloadIcon.draw(canvas);
             }
-            return bitmap;
-        } else if (DiskCacheUtils.findInCache(entry.app.iconUrl, ImageLoader.getInstance().getDiskCache()) != null) {
+        }
+        return downloadingIcon;
+    }
+
+    private Bitmap getLargeIconForEntry(AppUpdateStatusManager.AppUpdateStatus entry) {
+        Bitmap iconLarge = null;
+        if (TextUtils.isEmpty(entry.app.iconUrl)) {
+            return null;
+        } else if (entry.status == AppUpdateStatusManager.Status.Downloading || entry.status == AppUpdateStatusManager.Status.Installing) {
+            return getDownloadingIcon();
+        }
+
+        iconLarge = iconCache.get(entry.app.packageName);
+        if (iconLarge != null) {
+            return iconLarge;
+        }
+
+        final Point largeIconSize = getLargeIconSize();
+        if (DiskCacheUtils.findInCache(entry.app.iconUrl, ImageLoader.getInstance().getDiskCache()) != null) {
             iconLarge = ImageLoader.getInstance().loadImageSync(entry.app.iconUrl, new ImageSize(largeIconSize.x, largeIconSize.y), displayImageOptions);
+            if (iconLarge != null) {
+                iconCache.put(entry.app.packageName, iconLarge);
+            }
         } else {
             // Load it for later!
             ImageLoader.getInstance().loadImage(entry.app.iconUrl, new ImageSize(largeIconSize.x, largeIconSize.y), displayImageOptions, new ImageLoadingListener() {
@@ -543,6 +698,10 @@ class NotificationHelper {
                             && oldEntry.app != null
                             && oldEntry.app.iconUrl != null
                             && DiskCacheUtils.findInCache(oldEntry.app.iconUrl, ImageLoader.getInstance().getDiskCache()) != null) {
+                        if (loadedImage != null) {
+                            iconCache.put(oldEntry.app.packageName, loadedImage);
+                        }
+                        forgetNotification(oldEntry.getUniqueKey());
                         createNotification(oldEntry); // Update with new image!
                     }
                 }
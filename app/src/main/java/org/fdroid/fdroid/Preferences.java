@@ -43,6 +43,7 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
     public static final String PREF_UPD_INTERVAL = "updateInterval";
     public static final String PREF_UPD_WIFI_ONLY = "updateOnWifiOnly";
     public static final String PREF_AUTO_DOWNLOAD_INSTALL_UPDATES = "updateAutoDownload";
+    public static final String PREF_PREFETCH_UPDATES = "prefetchUpdates";
     public static final String PREF_UPD_NOTIFY = "updateNotify";
     public static final String PREF_ROOTED = "rooted";
     public static final String PREF_HIDE_ANTI_FEATURE_APPS = "hideAntiFeatureApps";
@@ -50,6 +51,7 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
     public static final String PREF_THEME = "theme";
     public static final String PREF_IGN_TOUCH = "ignoreTouchscreen";
     public static final String PREF_KEEP_CACHE_TIME = "keepCacheFor";
+    public static final String PREF_APK_CACHE_SIZE = "apkCacheSize";
     public static final String PREF_UNSTABLE_UPDATES = "unstableUpdates";
     public static final String PREF_KEEP_INSTALL_HISTORY = "keepInstallHistory";
     public static final String PREF_EXPERT = "expert";
@@ -72,6 +74,7 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
     private static final boolean DEFAULT_PRIVILEGED_INSTALLER = true;
     //private static final boolean DEFAULT_LOCAL_REPO_BONJOUR = true;
     private static final long DEFAULT_KEEP_CACHE_TIME = TimeUnit.DAYS.toMillis(1);
+    private static final long DEFAULT_APK_CACHE_SIZE = 1024L * 1024 * 1024;
     private static final boolean DEFAULT_UNSTABLE_UPDATES = false;
     private static final boolean DEFAULT_KEEP_INSTALL_HISTORY = false;
     //private static final boolean DEFAULT_LOCAL_REPO_HTTPS = false;
@@ -187,6 +190,19 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
         }
     }
 
+    /**
+     * How many bytes of downloaded APKs to keep at most, see
+     * {@link org.fdroid.fdroid.installer.ApkCacheIndex}
+     */
+    public long getApkCacheSize() {
+        String value = preferences.getString(PREF_APK_CACHE_SIZE, String.valueOf(DEFAULT_APK_CACHE_SIZE));
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return DEFAULT_APK_CACHE_SIZE;
+        }
+    }
+
     /**
      * Used the first time F-Droid is installed to flag whether or not we have tried to request
      * apps from the repo. This is used so that when there is no apps available, we can differentiate
@@ -266,6 +282,14 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
         return preferences.getBoolean(PREF_AUTO_DOWNLOAD_INSTALL_UPDATES, false);
     }
 
+    /**
+     * Whether to download updates ahead of time, without installing them,
+     * when on an unmetered network and charging.
+     */
+    public boolean isPrefetchUpdatesEnabled() {
+        return preferences.getBoolean(PREF_PREFETCH_UPDATES, false);
+    }
+
     public boolean isUpdateOnlyOnUnmeteredNetworks() {
         return preferences.getBoolean(PREF_UPD_WIFI_ONLY, false);
     }
@@ -7,34 +7,45 @@ import java.net.URL;
 
 class ProgressBufferedInputStream extends BufferedInputStream {
 
-    private final ProgressListener progressListener;
-    private final URL sourceUrl;
+    private final ProgressHub progressHub;
+    private final int progressSlot;
     private final int totalBytes;
 
     private int currentBytes;
 
     /**
      * Reports progress to the specified {@link ProgressListener}, with the
-     * progress based on the {@code totalBytes}.
+     * progress based on the {@code totalBytes}.  The events are coalesced by
+     * {@link ProgressHub}, so every read can report without flooding the
+     * listener.
      */
     ProgressBufferedInputStream(InputStream in, ProgressListener progressListener, URL sourceUrl, int totalBytes) {
         super(in);
-        this.progressListener = progressListener;
-        this.sourceUrl = sourceUrl;
         this.totalBytes = totalBytes;
+        if (progressListener == null) {
+            progressHub = null;
+            progressSlot = ProgressHub.NO_SLOT;
+        } else {
+            progressHub = ProgressHub.getInstance();
+            progressSlot = progressHub.register(sourceUrl, progressListener);
+        }
     }
 
     @Override
     public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
-        if (progressListener != null) {
-            currentBytes += byteCount;
-            /* don't send every change to keep things efficient.  333333 bytes to keep all
-             * the digits changing because it looks pretty, < 9000 since the reads won't
-             * line up exactly */
-            if (currentBytes % 333333 < 9000) {
-                progressListener.onProgress(sourceUrl, currentBytes, totalBytes);
-            }
+        int count = super.read(buffer, byteOffset, byteCount);
+        if (progressHub != null && count > 0) {
+            currentBytes += count;
+            progressHub.update(progressSlot, currentBytes, totalBytes);
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (progressHub != null) {
+            progressHub.unregister(progressSlot);
         }
-        return super.read(buffer, byteOffset, byteCount);
+        super.close();
     }
 }
@@ -0,0 +1,253 @@
+package org.fdroid.fdroid;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single place where all running transfers (APK downloads, index downloads,
+ * index parsing) write their progress, and where anything interested in that
+ * progress can read it from.  Writers only ever store two {@code int}s into
+ * a slot, so the hot copy loops do not allocate anything.  A single shared
+ * scheduler thread then wakes up every {@link #TICK_MS} and delivers one
+ * coalesced {@link ProgressListener#onProgress(URL, int, int)} call for each
+ * slot that actually changed since the last tick.  This replaces having a
+ * {@link java.util.Timer} thread per download plus a stream of
+ * {@link android.content.Intent}s for every tick, whether or not anything
+ * changed.
+ * <p>
+ * This is pure Java so it can be tested on the JVM, like {@link ProgressListener}.
+ * <p>
+ * Listeners are called on the hub's thread, so they should be quick and must
+ * not block.  Code that only needs the current numbers, e.g. when drawing,
+ * can poll {@link #getProgress(String, int[])} instead of subscribing.
+ */
+public final class ProgressHub {
+
+    /**
+     * How often coalesced progress events are delivered, in milliseconds.
+     */
+    public static final int TICK_MS = 100;
+
+    public static final int NO_SLOT = -1;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static ProgressHub instance;
+
+    public static synchronized ProgressHub getInstance() {
+        if (instance == null) {
+            instance = new ProgressHub();
+        }
+        return instance;
+    }
+
+    private URL[] urls = new URL[INITIAL_CAPACITY];
+    private String[] urlStrings = new String[INITIAL_CAPACITY];
+    private ProgressListener[] listeners = new ProgressListener[INITIAL_CAPACITY];
+    private int[] bytesRead = new int[INITIAL_CAPACITY];
+    private int[] totalBytes = new int[INITIAL_CAPACITY];
+    private boolean[] dirty = new boolean[INITIAL_CAPACITY];
+    private boolean[] used = new boolean[INITIAL_CAPACITY];
+    private int activeSlots;
+
+    /**
+     * Only touched by whichever thread is running {@link #dispatch()}, they
+     * are reused between ticks so that delivering events does not allocate.
+     */
+    private URL[] dispatchUrls = new URL[INITIAL_CAPACITY];
+    private ProgressListener[] dispatchListeners = new ProgressListener[INITIAL_CAPACITY];
+    private int[] dispatchBytesRead = new int[INITIAL_CAPACITY];
+    private int[] dispatchTotalBytes = new int[INITIAL_CAPACITY];
+
+    private final List<ProgressListener> subscribers = new CopyOnWriteArrayList<>();
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> ticker;
+
+    private final Runnable tickTask = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    ProgressHub() {
+    }
+
+    /**
+     * Start tracking a new transfer.
+     *
+     * @param sourceUrl the unique ID of this transfer, as per {@link ProgressListener}
+     * @param listener  receives coalesced updates for only this transfer, can be {@code null}
+     * @return the slot to pass to {@link #update(int, int, int)} and {@link #unregister(int)}
+     */
+    public synchronized int register(URL sourceUrl, ProgressListener listener) {
+        int slot = 0;
+        while (slot < used.length && used[slot]) {
+            slot++;
+        }
+        if (slot == used.length) {
+            grow(used.length * 2);
+        }
+        used[slot] = true;
+        urls[slot] = sourceUrl;
+        urlStrings[slot] = sourceUrl == null ? null : sourceUrl.toString();
+        listeners[slot] = listener;
+        bytesRead[slot] = 0;
+        totalBytes[slot] = 0;
+        dirty[slot] = false;
+        activeSlots++;
+        startTicking();
+        return slot;
+    }
+
+    /**
+     * Record the latest progress for a transfer.  This is meant to be called
+     * from the tightest copy loops, so it only stores the numbers and marks the
+     * slot as changed; the actual events are sent on the next tick.
+     */
+    public synchronized void update(int slot, int currentBytes, int total) {
+        if (slot < 0 || slot >= used.length || !used[slot]) {
+            return;
+        }
+        if (bytesRead[slot] != currentBytes || totalBytes[slot] != total) {
+            bytesRead[slot] = currentBytes;
+            totalBytes[slot] = total;
+            dirty[slot] = true;
+        }
+    }
+
+    /**
+     * Stop tracking a transfer.  Any progress that was recorded but not yet
+     * delivered is dropped, the transfer's own completion events take over
+     * from here.
+     */
+    public synchronized void unregister(int slot) {
+        if (slot < 0 || slot >= used.length || !used[slot]) {
+            return;
+        }
+        used[slot] = false;
+        urls[slot] = null;
+        urlStrings[slot] = null;
+        listeners[slot] = null;
+        dirty[slot] = false;
+        activeSlots--;
+        if (activeSlots == 0) {
+            stopTicking();
+        }
+    }
+
+    /**
+     * Receive coalesced progress events for every transfer tracked by this hub.
+     */
+    public void subscribe(ProgressListener listener) {
+        subscribers.add(listener);
+    }
+
+    public void unsubscribe(ProgressListener listener) {
+        subscribers.remove(listener);
+    }
+
+    /**
+     * Poll the latest progress without waiting for the next tick.
+     *
+     * @param urlString the full URL of the transfer
+     * @param out       an array of at least two elements, which receives
+     *                  {@code bytesRead} and {@code totalBytes}
+     * @return whether the transfer is currently tracked by the hub
+     */
+    public synchronized boolean getProgress(String urlString, int[] out) {
+        for (int slot = 0; slot < used.length; slot++) {
+            if (used[slot] && urlString.equals(urlStrings[slot])) {
+                out[0] = bytesRead[slot];
+                out[1] = totalBytes[slot];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int getActiveCount() {
+        return activeSlots;
+    }
+
+    /**
+     * Deliver one event for each transfer that changed since the last call.
+     * Listeners are called without holding the lock so that they can never
+     * stall the copy loops that are writing progress.
+     */
+    void dispatch() {
+        int count = 0;
+        synchronized (this) {
+            if (dispatchUrls.length < used.length) {
+                dispatchUrls = new URL[used.length];
+                dispatchListeners = new ProgressListener[used.length];
+                dispatchBytesRead = new int[used.length];
+                dispatchTotalBytes = new int[used.length];
+            }
+            for (int slot = 0; slot < used.length; slot++) {
+                if (used[slot] && dirty[slot]) {
+                    dirty[slot] = false;
+                    dispatchUrls[count] = urls[slot];
+                    dispatchListeners[count] = listeners[slot];
+                    dispatchBytesRead[count] = bytesRead[slot];
+                    dispatchTotalBytes[count] = totalBytes[slot];
+                    count++;
+                }
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            URL url = dispatchUrls[i];
+            if (dispatchListeners[i] != null) {
+                dispatchListeners[i].onProgress(url, dispatchBytesRead[i], dispatchTotalBytes[i]);
+            }
+            for (ProgressListener subscriber : subscribers) {
+                subscriber.onProgress(url, dispatchBytesRead[i], dispatchTotalBytes[i]);
+            }
+            dispatchUrls[i] = null;
+            dispatchListeners[i] = null;
+        }
+    }
+
+    private void grow(int capacity) {
+        urls = Arrays.copyOf(urls, capacity);
+        urlStrings = Arrays.copyOf(urlStrings, capacity);
+        listeners = Arrays.copyOf(listeners, capacity);
+        bytesRead = Arrays.copyOf(bytesRead, capacity);
+        totalBytes = Arrays.copyOf(totalBytes, capacity);
+        dirty = Arrays.copyOf(dirty, capacity);
+        used = Arrays.copyOf(used, capacity);
+    }
+
+    private void startTicking() {
+        if (ticker != null) {
+            return;
+        }
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ProgressHub");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        ticker = scheduler.scheduleAtFixedRate(tickTask, 0, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopTicking() {
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+    }
+}
@@ -30,6 +30,8 @@ import android.content.pm.PackageManager;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.ApkProvider;
 import org.fdroid.fdroid.data.App;
@@ -63,6 +65,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
 
 // TODO move to org.fdroid.fdroid.updater
 // TODO reduce visibility of methods once in .updater package (.e.g tests need it public now)
@@ -156,6 +159,10 @@ public class RepoUpdater {
      * @throws UpdateException All error states will come from here.
      */
     public boolean update() throws UpdateException {
+        if (repo.isSwap) {
+            return updateFromStream();
+        }
+
         final Downloader downloader = downloadIndex();
         hasChanged = downloader.hasChanged();
 
@@ -198,6 +205,63 @@ public class RepoUpdater {
         };
     }
 
+    /**
+     * Swap peers are slow to download from, especially over Bluetooth, so
+     * their {@code index.jar} is parsed while it arrives instead of after it
+     * was saved to a file.  The apps only go into {@link RepoPersister}'s
+     * temporary tables while parsing, and are only committed once the
+     * signature was checked at the end of {@code index.xml}.  The signature
+     * files have to come first in the jar for that, which is where
+     * {@code jarsigner} and the swap repo's own signing put them.
+     */
+    private boolean updateFromStream() throws UpdateException {
+        Downloader downloader = null;
+        JarInputStream jarInputStream = null;
+        InputStream indexInputStream = null;
+        try {
+            FDroidApp.disableSpongyCastleOnLollipop();
+            downloader = DownloaderFactory.create(context, indexUrl);
+            jarInputStream = new JarInputStream(downloader.getInputStream(), true);
+            JarEntry indexEntry = findJarEntry(jarInputStream, "index.xml");
+            if (indexEntry == null) {
+                throw new UpdateException(repo, "No index.xml in " + indexUrl);
+            }
+            hasChanged = true;
+            indexInputStream = new ProgressBufferedInputStream(jarInputStream, processIndexListener,
+                    new URL(repo.address), (int) indexEntry.getSize());
+            processIndex(indexInputStream, indexEntry);
+            processRepoPushRequests();
+            return true;
+        } catch (SAXException | ParserConfigurationException | IOException e) {
+            throw new UpdateException(repo, "Error getting index file", e);
+        } catch (SecurityException e) {
+            throw new SigningException(repo, e.getMessage());
+        } finally {
+            FDroidApp.enableSpongyCastleOnLollipop();
+            Utils.closeQuietly(indexInputStream);
+            Utils.closeQuietly(jarInputStream);
+            if (downloader != null && downloader.outputFile != null) {
+                downloader.outputFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Skip ahead in {@code jarInputStream} to the entry called {@code name},
+     * reading the signature files that come before it on the way.
+     *
+     * @return the entry, or {@code null} if there is none with that name
+     */
+    static JarEntry findJarEntry(JarInputStream jarInputStream, String name) throws IOException {
+        JarEntry entry;
+        while ((entry = jarInputStream.getNextJarEntry()) != null) {
+            if (name.equals(entry.getName())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
     public void processDownloadedFile(File downloadedFile) throws UpdateException {
         InputStream indexInputStream = null;
         try {
@@ -214,28 +278,7 @@ public class RepoUpdater {
             JarEntry indexEntry = (JarEntry) jarFile.getEntry("index.xml");
             indexInputStream = new ProgressBufferedInputStream(jarFile.getInputStream(indexEntry),
                     processIndexListener, new URL(repo.address), (int) indexEntry.getSize());
-
-            // Process the index...
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            factory.setNamespaceAware(true);
-            final SAXParser parser = factory.newSAXParser();
-            final XMLReader reader = parser.getXMLReader();
-            final RepoXMLHandler repoXMLHandler = new RepoXMLHandler(repo, createIndexReceiver());
-            reader.setContentHandler(repoXMLHandler);
-            reader.parse(new InputSource(indexInputStream));
-
-            long timestamp = repoDetailsToSave.getAsLong(RepoTable.Cols.TIMESTAMP);
-            if (timestamp < repo.timestamp) {
-                throw new UpdateException(repo, "index.jar is older that current index! "
-                        + timestamp + " < " + repo.timestamp);
-            }
-
-            signingCertFromJar = getSigningCertFromJar(indexEntry);
-
-            // JarEntry can only read certificates after the file represented by that JarEntry
-            // has been read completely, so verification cannot run until now...
-            assertSigningCertFromXmlCorrect();
-            commitToDb();
+            processIndex(indexInputStream, indexEntry);
         } catch (SAXException | ParserConfigurationException | IOException e) {
             throw new UpdateException(repo, "Error parsing index", e);
         } finally {
@@ -249,6 +292,31 @@ public class RepoUpdater {
         }
     }
 
+    private void processIndex(InputStream indexInputStream, JarEntry indexEntry)
+            throws IOException, SAXException, ParserConfigurationException, UpdateException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final SAXParser parser = factory.newSAXParser();
+        final XMLReader reader = parser.getXMLReader();
+        final RepoXMLHandler repoXMLHandler = new RepoXMLHandler(repo, createIndexReceiver());
+        reader.setContentHandler(repoXMLHandler);
+        reader.parse(new InputSource(new CloseShieldInputStream(indexInputStream)));
+
+        // JarEntry can only read certificates after the file represented by that JarEntry
+        // has been read completely, so verification cannot run until now...
+        IOUtils.skip(indexInputStream, Long.MAX_VALUE);
+
+        long timestamp = repoDetailsToSave.getAsLong(RepoTable.Cols.TIMESTAMP);
+        if (timestamp < repo.timestamp) {
+            throw new UpdateException(repo, "index.jar is older that current index! "
+                    + timestamp + " < " + repo.timestamp);
+        }
+
+        signingCertFromJar = getSigningCertFromJar(indexEntry);
+        assertSigningCertFromXmlCorrect();
+        commitToDb();
+    }
+
     protected final ProgressListener downloadListener = new ProgressListener() {
         @Override
         public void onProgress(URL sourceUrl, int bytesRead, int totalBytes) {
@@ -29,6 +29,8 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
@@ -48,9 +50,13 @@ import org.fdroid.fdroid.data.AppProvider;
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.Schema;
+import org.fdroid.fdroid.installer.ApkCache;
+import org.fdroid.fdroid.installer.ApkCacheIndex;
 import org.fdroid.fdroid.installer.InstallManagerService;
+import org.fdroid.fdroid.net.DownloaderService;
 import org.fdroid.fdroid.views.main.MainActivity;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -79,9 +85,9 @@ public class UpdateService extends IntentService {
 
     private static final int NOTIFY_ID_UPDATING = 0;
 
-    private static final int FLAG_NET_UNAVAILABLE = 0;
-    private static final int FLAG_NET_METERED = 1;
-    private static final int FLAG_NET_NO_LIMIT = 2;
+    public static final int FLAG_NET_UNAVAILABLE = 0;
+    public static final int FLAG_NET_METERED = 1;
+    public static final int FLAG_NET_NO_LIMIT = 2;
 
     private static Handler toastHandler;
 
@@ -305,7 +311,7 @@ public class UpdateService extends IntentService {
      * whether the connection has no usage limit (like most WiFi), or whether this is
      * a metered connection like most cellular plans or hotspot WiFi connections.
      */
-    private static int getNetworkState(Context context) {
+    public static int getNetworkState(Context context) {
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
 
         NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
@@ -423,11 +429,16 @@ public class UpdateService extends IntentService {
                     repoErrors.add(e.getMessage());
                     Log.e(TAG, "Error updating repository " + repo.address, e);
                 }
+            }
 
-                // now that downloading the index is done, start downloading updates
-                if (changes && fdroidPrefs.isAutoDownloadEnabled()) {
-                    autoDownloadUpdates(this);
+            // now that downloading all the indexes is done, queue up the updates once
+            List<Apk> notDownloaded = setPendingUpdates(this);
+            if (fdroidPrefs.isAutoDownloadEnabled()) {
+                if (changes) {
+                    autoDownloadUpdates(this, true);
                 }
+            } else {
+                prefetchUpdates(this, notDownloaded);
             }
 
             if (!changes) {
@@ -482,11 +493,81 @@ public class UpdateService extends IntentService {
     }
 
     public static void autoDownloadUpdates(Context context) {
+        autoDownloadUpdates(context, false);
+    }
+
+    /**
+     * @param background whether these downloads were started without the user
+     *                   asking, in which case they are throttled and paused
+     *                   according to {@link org.fdroid.fdroid.net.RateLimiter#BACKGROUND}
+     */
+    public static void autoDownloadUpdates(Context context, boolean background) {
+        List<App> canUpdate = AppProvider.Helper.findCanUpdate(context, Schema.AppMetadataTable.Cols.ALL);
+        for (App app : canUpdate) {
+            Apk apk = ApkProvider.Helper.findSuggestedApk(context, app);
+            if (background) {
+                InstallManagerService.queueInBackground(context, app, apk);
+            } else {
+                InstallManagerService.queue(context, app, apk);
+            }
+        }
+    }
+
+    /**
+     * Tell {@link ApkCacheIndex} which downloads are updates for installed
+     * apps, so they are kept until they are installed.
+     *
+     * @return the updates that are not downloaded yet
+     */
+    private static List<Apk> setPendingUpdates(Context context) {
         List<App> canUpdate = AppProvider.Helper.findCanUpdate(context, Schema.AppMetadataTable.Cols.ALL);
+        List<File> updateFiles = new ArrayList<>(canUpdate.size());
+        List<Apk> notDownloaded = new ArrayList<>();
         for (App app : canUpdate) {
             Apk apk = ApkProvider.Helper.findSuggestedApk(context, app);
-            InstallManagerService.queue(context, app, apk);
+            if (apk == null) {
+                continue;
+            }
+            File apkFile = ApkCache.getApkDownloadPath(context, Uri.parse(apk.getUrl()));
+            updateFiles.add(apkFile);
+            if (apkFile.length() != apk.size) {
+                notDownloaded.add(apk);
+            }
         }
+        ApkCacheIndex.getInstance(context).setPendingUpdates(updateFiles);
+        return notDownloaded;
+    }
+
+    /**
+     * If {@link Preferences#isPrefetchUpdatesEnabled()}, put the updates in
+     * {@code toDownload} in the background download queue, as long as there
+     * is room for them in the cache, and the device is on an unmetered
+     * network and charging.  They are only downloaded, once the user installs
+     * them, {@link InstallManagerService} finds them in the cache.
+     */
+    private static void prefetchUpdates(Context context, List<Apk> toDownload) {
+        if (!Preferences.get().isPrefetchUpdatesEnabled() || toDownload.isEmpty()) {
+            return;
+        }
+        if (getNetworkState(context) != FLAG_NET_NO_LIMIT || !isCharging(context)) {
+            Utils.debugLog(TAG, "Not prefetching " + toDownload.size() + " updates, not on Wi-Fi and charging");
+            return;
+        }
+        ApkCacheIndex apkCacheIndex = ApkCacheIndex.getInstance(context);
+        long room = apkCacheIndex.getMaxBytes() - apkCacheIndex.getTotalBytes();
+        for (Apk apk : toDownload) {
+            if (apk.size > room) {
+                Utils.debugLog(TAG, "No room in the cache to prefetch " + apk.packageName + " and what comes after it");
+                break;
+            }
+            room -= apk.size;
+            DownloaderService.queueBackground(context, apk.getUrl(), apk.repoId, apk.getUrl());
+        }
+    }
+
+    private static boolean isCharging(Context context) {
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
     }
 
     private void showAppUpdatesNotification(List<App> canUpdate) {
@@ -49,7 +49,6 @@ import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.SanitizedFile;
 import org.xml.sax.XMLReader;
 
-import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
@@ -57,7 +56,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.math.BigInteger;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -403,34 +401,20 @@ public final class Utils {
      * by this device, otherwise an {@link IllegalArgumentException} is thrown.
      */
     public static String getBinaryHash(File apk, String algo) {
-        FileInputStream fis = null;
         try {
-            MessageDigest md = MessageDigest.getInstance(algo);
-            fis = new FileInputStream(apk);
-            BufferedInputStream bis = new BufferedInputStream(fis);
-
-            byte[] dataBytes = new byte[524288];
-            int nread;
-            while ((nread = bis.read(dataBytes)) != -1) {
-                md.update(dataBytes, 0, nread);
-            }
-
-            byte[] mdbytes = md.digest();
-            return toHexString(mdbytes).toLowerCase(Locale.ENGLISH);
+            return Hasher.hashFile(apk, algo);
         } catch (IOException e) {
             // The annoyance (potentially) caused by miscellaneous filesystem corruption results in
             // F-Droid constantly popping up crash reports when F-Droid isn't even open. As such this
             // exception-message-parsing-and-throwing-a-new-ignorable-exception-hackery is probably
             // warranted. See https://www.gitlab.com/fdroid/fdroidclient/issues/855 for more detail.
-            if (e.getMessage().contains("read failed: EIO (I/O error)")) {
+            if (e.getMessage() != null && e.getMessage().contains("read failed: EIO (I/O error)")) {
                 throw new PotentialFilesystemCorruptionException(e);
             }
 
             throw new IllegalArgumentException(e);
         } catch (NoSuchAlgorithmException e) {
             throw new IllegalArgumentException(e);
-        } finally {
-            closeQuietly(fis);
         }
     }
 
@@ -447,8 +431,7 @@ public final class Utils {
      * @return the bytes represented as a string of hexadecimal digits.
      */
     private static String toHexString(byte[] bytes) {
-        BigInteger bi = new BigInteger(1, bytes);
-        return String.format("%0" + (bytes.length << 1) + "X", bi);
+        return Hasher.hex(bytes).toUpperCase(Locale.ENGLISH);
     }
 
     public static int parseInt(String str, int fallback) {
@@ -9,6 +9,7 @@ import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.SanitizedFile;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
 
@@ -76,6 +77,85 @@ public class FileCompat {
         }
     }
 
+    /**
+     * Make {@code dest} another name for the same file as {@code source}, so
+     * that both share the disk space.  This only works within one filesystem.
+     */
+    public static boolean link(SanitizedFile source, SanitizedFile dest) {
+
+        if (Build.VERSION.SDK_INT >= 21) {
+            new Link21().link(source, dest);
+        } else if (Build.VERSION.SDK_INT >= 15) {
+            linkLibcore(source, dest);
+        }
+
+        return dest.exists();
+    }
+
+    /**
+     * @return how many names the file has, see {@link #link(SanitizedFile, SanitizedFile)},
+     * or {@code -1} if that cannot be found out on this device
+     */
+    public static int getLinkCount(File file) {
+        if (Build.VERSION.SDK_INT >= 21) {
+            return new Link21().getLinkCount(file);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the inode number of {@code file}, or {@code -1} if that cannot
+     * be found out on this device
+     */
+    public static long getInode(File file) {
+        if (Build.VERSION.SDK_INT >= 21) {
+            return new Link21().getInode(file);
+        }
+        return -1;
+    }
+
+    /**
+     * Same as {@link Symlink21}, keeps {@link android.system.Os} out of this class.
+     */
+    @TargetApi(21)
+    private static class Link21 {
+
+        void link(SanitizedFile source, SanitizedFile dest) {
+            try {
+                android.system.Os.link(source.getAbsolutePath(), dest.getAbsolutePath());
+            } catch (ErrnoException e) {
+                // Do nothing...
+            }
+        }
+
+        int getLinkCount(File file) {
+            try {
+                return (int) android.system.Os.stat(file.getAbsolutePath()).st_nlink;
+            } catch (ErrnoException e) {
+                return -1;
+            }
+        }
+
+        long getInode(File file) {
+            try {
+                return android.system.Os.stat(file.getAbsolutePath()).st_ino;
+            } catch (ErrnoException e) {
+                return -1;
+            }
+        }
+    }
+
+    static void linkLibcore(SanitizedFile source, SanitizedFile dest) {
+        try {
+            Object os = Class.forName("libcore.io.Libcore").getField("os").get(null);
+            Method link = os.getClass().getMethod("link", String.class, String.class);
+            link.invoke(os, source.getAbsolutePath(), dest.getAbsolutePath());
+        } catch (Exception e) {
+            // see symlinkLibcore()
+            Log.e(TAG, "Could not link " + source.getAbsolutePath() + " to " + dest.getAbsolutePath(), e);
+        }
+    }
+
     static void symlinkLibcore(SanitizedFile source, SanitizedFile dest) {
         try {
             Object os = Class.forName("libcore.io.Libcore").getField("os").get(null);
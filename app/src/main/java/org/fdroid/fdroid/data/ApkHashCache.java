@@ -0,0 +1,170 @@
+package org.fdroid.fdroid.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.compat.FileCompat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Remembers the hashes of installed APKs, so that they only have to be read
+ * again when they changed.  {@link InstalledAppProviderService} hashes every
+ * package that might have changed, which includes most of {@code /system} each
+ * time, since their {@link android.content.pm.PackageInfo#lastUpdateTime} says
+ * nothing about OTA updates.  A saved hash is used as long as the file has the
+ * same path, size, modification time and, where that can be found out, inode.
+ * An OTA update writes new files, so those do not match even if the timestamps
+ * in {@code /system} are all zeroed out.
+ * <p>
+ * The hashes are kept in memory, and written to {@link #CACHE_FILE_NAME} by
+ * {@link #save()} once the current batch of work is done.
+ */
+public final class ApkHashCache {
+    private static final String TAG = "ApkHashCache";
+
+    static final String CACHE_FILE_NAME = "installed-apk-hashes.json";
+
+    private static ApkHashCache instance;
+
+    private final File cacheFile;
+    private final Map<String, Entry> entries;
+    private boolean dirty;
+
+    private int hits;
+    private int misses;
+    private long bytesHashed;
+
+    ApkHashCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+        this.entries = read(cacheFile);
+    }
+
+    public static synchronized ApkHashCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ApkHashCache(new File(context.getApplicationContext().getFilesDir(), CACHE_FILE_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * Same as {@link Utils#getBinaryHash(File, String)}, but only reads
+     * {@code apk} if it is not the same file that was hashed before.
+     */
+    public String getHash(File apk, String hashType) {
+        String path = apk.getAbsolutePath();
+        long size = apk.length();
+        long lastModified = apk.lastModified();
+        long inode = FileCompat.getInode(apk);
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.matches(size, lastModified, inode, hashType)) {
+                hits++;
+                return entry.hash;
+            }
+        }
+
+        String hash = Utils.getBinaryHash(apk, hashType);
+        synchronized (this) {
+            misses++;
+            bytesHashed += size;
+            entries.put(path, new Entry(size, lastModified, inode, hashType, hash));
+            dirty = true;
+        }
+        return hash;
+    }
+
+    /**
+     * Write out the hashes that were added since the last save, leaving out
+     * the APKs that are gone, and log how much hashing the cache saved.
+     */
+    public synchronized void save() {
+        if (hits > 0 || misses > 0) {
+            Utils.debugLog(TAG, hits + " of " + (hits + misses) + " APK hashes came from the cache, "
+                    + bytesHashed + " bytes were hashed");
+            hits = 0;
+            misses = 0;
+            bytesHashed = 0;
+        }
+
+        Iterator<String> paths = entries.keySet().iterator();
+        while (paths.hasNext()) {
+            if (!new File(paths.next()).exists()) {
+                paths.remove();
+                dirty = true;
+            }
+        }
+        if (!dirty) {
+            return;
+        }
+
+        File tmp = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+        try {
+            getObjectMapper().writeValue(tmp, entries);
+            if (!tmp.renameTo(cacheFile)) {
+                throw new IOException("Could not rename " + tmp + " to " + cacheFile);
+            }
+            dirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save APK hashes", e);
+            tmp.delete();
+        }
+    }
+
+    private static Map<String, Entry> read(File cacheFile) {
+        if (cacheFile.exists()) {
+            try {
+                return getObjectMapper().readValue(cacheFile, new TypeReference<HashMap<String, Entry>>() {
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read " + cacheFile + ", hashing all APKs again", e);
+            }
+        }
+        return new HashMap<>();
+    }
+
+    private static ObjectMapper getObjectMapper() {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return mapper;
+    }
+
+    static final class Entry {
+        public long size;
+        public long lastModified;
+        public long inode;
+        public String hashType;
+        public String hash;
+
+        /**
+         * For Jackson.
+         */
+        public Entry() {
+        }
+
+        Entry(long size, long lastModified, long inode, String hashType, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.inode = inode;
+            this.hashType = hashType;
+            this.hash = hash;
+        }
+
+        boolean matches(long size, long lastModified, long inode, String hashType) {
+            return this.size == size
+                    && this.lastModified == lastModified
+                    && this.inode == inode
+                    && hash != null
+                    && hashType.equals(this.hashType);
+        }
+    }
+}
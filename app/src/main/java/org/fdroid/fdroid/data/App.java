@@ -382,6 +382,27 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
         initApkFromApkFile(context, this.installedApk, packageInfo, apkFile);
     }
 
+    /**
+     * Instantiate from a locally installed package, taking everything that
+     * has to be read out of the APK file itself from {@code parsedApk}, which
+     * came from an earlier {@link #App(Context, PackageManager, String)} for
+     * the very same APK file.  Only the {@link PackageInfo} is read again.
+     */
+    public App(PackageManager pm, PackageInfo packageInfo, Apk parsedApk) {
+        setFromPackageInfo(pm, packageInfo);
+        this.installedApk = new Apk();
+        SanitizedFile apkFile = SanitizedFile.knownSanitized(packageInfo.applicationInfo.publicSourceDir);
+        initInstalledApkFromPackageInfo(this.installedApk, packageInfo, apkFile);
+        installedApk.hashType = parsedApk.hashType;
+        installedApk.hash = parsedApk.hash;
+        installedApk.sig = parsedApk.sig;
+        installedApk.nativecode = parsedApk.nativecode;
+        installedApk.minSdkVersion = parsedApk.minSdkVersion;
+        installedApk.targetSdkVersion = parsedApk.targetSdkVersion;
+        installedApk.maxSdkVersion = parsedApk.maxSdkVersion;
+        initInstalledObbFiles(installedApk);
+    }
+
     /**
      * Parses the {@code localized} block in the incoming index metadata,
      * choosing the best match in terms of locale/language while filling as
@@ -693,7 +714,7 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
             throws IOException, CertificateEncodingException {
         // TODO include signature hash calculation here
         apk.hashType = "sha256";
-        apk.hash = Utils.getBinaryHash(apkFile, apk.hashType);
+        apk.hash = ApkHashCache.getInstance(context).getHash(apkFile, apk.hashType);
         initInstalledApk(context, apk, packageInfo, apkFile);
     }
 
@@ -720,21 +741,37 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
         }
     }
 
-    private void initInstalledApk(Context context, Apk apk, PackageInfo packageInfo, SanitizedFile apkFile)
-            throws IOException, CertificateEncodingException {
+    /**
+     * Set the fields of {@code apk} that come straight from {@link PackageInfo}
+     * without reading the APK file.
+     */
+    private void initInstalledApkFromPackageInfo(Apk apk, PackageInfo packageInfo, SanitizedFile apkFile) {
         apk.compatible = true;
         apk.versionName = packageInfo.versionName;
         apk.versionCode = packageInfo.versionCode;
         apk.added = this.added;
-        int[] minTargetMax = getMinTargetMaxSdkVersions(context, packageName);
-        apk.minSdkVersion = minTargetMax[0];
-        apk.targetSdkVersion = minTargetMax[1];
-        apk.maxSdkVersion = minTargetMax[2];
         apk.packageName = this.packageName;
         apk.requestedPermissions = packageInfo.requestedPermissions;
         apk.apkName = apk.packageName + "_" + apk.versionCode + ".apk";
         apk.installedFile = apkFile;
 
+        final FeatureInfo[] features = packageInfo.reqFeatures;
+        if (features != null && features.length > 0) {
+            apk.features = new String[features.length];
+            for (int i = 0; i < features.length; i++) {
+                apk.features[i] = features[i].name;
+            }
+        }
+    }
+
+    private void initInstalledApk(Context context, Apk apk, PackageInfo packageInfo, SanitizedFile apkFile)
+            throws IOException, CertificateEncodingException {
+        initInstalledApkFromPackageInfo(apk, packageInfo, apkFile);
+        int[] minTargetMax = getMinTargetMaxSdkVersions(context, packageName);
+        apk.minSdkVersion = minTargetMax[0];
+        apk.targetSdkVersion = minTargetMax[1];
+        apk.maxSdkVersion = minTargetMax[2];
+
         initInstalledObbFiles(apk);
 
         JarFile apkJar = new JarFile(apkFile);
@@ -749,14 +786,6 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
         }
         apk.nativecode = abis.toArray(new String[abis.size()]);
 
-        final FeatureInfo[] features = packageInfo.reqFeatures;
-        if (features != null && features.length > 0) {
-            apk.features = new String[features.length];
-            for (int i = 0; i < features.length; i++) {
-                apk.features[i] = features[i].name;
-            }
-        }
-
         final JarEntry aSignedEntry = (JarEntry) apkJar.getEntry("AndroidManifest.xml");
 
         if (aSignedEntry == null) {
@@ -54,6 +54,25 @@ public class InstalledAppProvider extends FDroidProvider {
             return cachedInfo;
         }
 
+        /**
+         * @return everything in the installed app cache, by package name
+         */
+        public static Map<String, InstalledApp> findAll(Context context) {
+            Map<String, InstalledApp> installedApps = new HashMap<>();
+            Cursor cursor = context.getContentResolver().query(getContentUri(), Cols.ALL, null, null, null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        InstalledApp installedApp = new InstalledApp(cursor);
+                        installedApps.put(installedApp.getPackageName(), installedApp);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            return installedApps;
+        }
+
         @Nullable
         public static InstalledApp findByPackageName(Context context, String packageName) {
             Cursor cursor = context.getContentResolver().query(getAppUri(packageName), Cols.ALL, null, null, null);
@@ -1,14 +1,17 @@
 package org.fdroid.fdroid.data;
 
 import android.app.IntentService;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.Signature;
 import android.net.Uri;
 import android.os.Process;
+import android.os.RemoteException;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.widget.Toast;
@@ -25,8 +28,15 @@ import rx.subjects.PublishSubject;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -48,6 +58,9 @@ public class InstalledAppProviderService extends IntentService {
 
     private static final String ACTION_INSERT = "org.fdroid.fdroid.data.action.INSERT";
     private static final String ACTION_DELETE = "org.fdroid.fdroid.data.action.DELETE";
+    private static final String ACTION_COMPARE = "org.fdroid.fdroid.data.action.COMPARE";
+
+    private static final String HASH_TYPE = "sha256";
 
     private static final String EXTRA_PACKAGE_INFO = "org.fdroid.fdroid.data.extra.PACKAGE_INFO";
 
@@ -101,6 +114,12 @@ public class InstalledAppProviderService extends IntentService {
                 });
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        ApkHashCache.getInstance(this).save();
+    }
+
     /**
      * Inserts an app into {@link InstalledAppProvider} based on a {@code package:} {@link Uri}.
      * This has no checks for whether it is inserting an exact duplicate, whatever is provided
@@ -155,7 +174,8 @@ public class InstalledAppProviderService extends IntentService {
      * This method returns immediately, and will continue to work in an
      * {@link IntentService}.  It doesn't really matter where we put this in the
      * bootstrap process, because it runs in its own thread, at the lowest priority:
-     * {@link Process#THREAD_PRIORITY_LOWEST}.
+     * {@link Process#THREAD_PRIORITY_LOWEST}.  Whatever is found to be out of
+     * sync is written in one go by {@link #reconcile(Context, List)}.
      * <p>
      * APKs installed in {@code /system} will often have zeroed out timestamps, like
      * 2008-01-01 (ziptime) or 2009-01-01.  So instead anything older than 2010 every
@@ -166,26 +186,126 @@ public class InstalledAppProviderService extends IntentService {
      * @see <a href="https://gitlab.com/fdroid/fdroidclient/issues/819>issue #819</a>
      */
     public static void compareToPackageManager(Context context) {
-        Utils.debugLog(TAG, "Comparing package manager to our installed app cache.");
-        Map<String, Long> cachedInfo = InstalledAppProvider.Helper.all(context);
+        Intent intent = new Intent(context, InstalledAppProviderService.class);
+        intent.setAction(ACTION_COMPARE);
+        context.startService(intent);
+    }
+
+    /**
+     * Bring {@link InstalledAppProvider} in line with {@code packageInfoList}
+     * all at once.  The changed APKs are hashed on a few threads, then all of
+     * the inserts and deletes go into a single batch, which is one database
+     * transaction.  Packages which are only checked again because of their
+     * zeroed out timestamps are left alone if their APK is the same as before.
+     *
+     * @return whether anything in {@link InstalledAppProvider} changed
+     */
+    static boolean reconcile(Context context, List<PackageInfo> packageInfoList) {
+        Utils.Profiler profiler = new Utils.Profiler(TAG);
+        Map<String, InstalledApp> cachedApps = InstalledAppProvider.Helper.findAll(context);
+        Set<String> uninstalled = new HashSet<>(cachedApps.keySet());
 
-        List<PackageInfo> packageInfoList = context.getPackageManager()
-                .getInstalledPackages(PackageManager.GET_SIGNATURES);
+        List<PackageInfo> toHash = new ArrayList<>();
+        Set<String> updated = new HashSet<>();
         for (PackageInfo packageInfo : packageInfoList) {
-            if (cachedInfo.containsKey(packageInfo.packageName)) {
-                if (packageInfo.lastUpdateTime < 1262300400000L // 2010-01-01 00:00
-                        || packageInfo.lastUpdateTime > cachedInfo.get(packageInfo.packageName)) {
-                    insert(context, packageInfo);
+            InstalledApp cached = cachedApps.get(packageInfo.packageName);
+            uninstalled.remove(packageInfo.packageName);
+            if (cached == null || packageInfo.lastUpdateTime > cached.getLastUpdateTime()) {
+                toHash.add(packageInfo);
+                updated.add(packageInfo.packageName);
+            } else if (packageInfo.lastUpdateTime < 1262300400000L) { // 2010-01-01 00:00
+                toHash.add(packageInfo);
+            }
+        }
+        Map<String, String> hashes = hashInstalledApks(context, toHash);
+        profiler.log("Hashed " + hashes.size() + " of " + packageInfoList.size() + " installed APKs");
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (String packageName : uninstalled) {
+            Log.i(TAG, "Marking " + packageName + " as no longer installed");
+            operations.add(ContentProviderOperation.newDelete(InstalledAppProvider.getAppUri(packageName)).build());
+        }
+        List<String> inserted = new ArrayList<>();
+        for (PackageInfo packageInfo : toHash) {
+            String packageName = packageInfo.packageName;
+            String hash = hashes.get(packageName);
+            if (hash == null) {
+                continue;
+            }
+            if (!updated.contains(packageName)) {
+                InstalledApp cached = cachedApps.get(packageName);
+                if (HASH_TYPE.equals(cached.getHashType()) && hash.equals(cached.getHash())) {
+                    continue;
                 }
-                cachedInfo.remove(packageInfo.packageName);
-            } else {
-                insert(context, packageInfo);
             }
+            Log.i(TAG, "Marking " + packageName + " as installed");
+            operations.add(ContentProviderOperation.newInsert(InstalledAppProvider.getContentUri())
+                    .withValues(getContentValues(context, packageInfo, HASH_TYPE, hash))
+                    .build());
+            inserted.add(packageName);
+        }
+        if (operations.isEmpty()) {
+            profiler.log("Installed app cache is up to date");
+            return false;
+        }
+
+        try {
+            context.getContentResolver().applyBatch(InstalledAppProvider.getAuthority(), operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Could not update the installed app cache", e);
+            return false;
         }
+        profiler.log("Inserted " + inserted.size() + " and deleted " + uninstalled.size() + " installed apps");
 
-        for (String packageName : cachedInfo.keySet()) {
-            delete(context, packageName);
+        for (String packageName : inserted) {
+            if (updated.contains(packageName)) {
+                markAsNoLongerPendingInstall(context, hashes.get(packageName));
+            }
         }
+        return true;
+    }
+
+    /**
+     * Hash the APKs of {@code packageInfoList} on {@link Hasher#getExecutor()}.
+     *
+     * @return the hashes by package name, leaving out the APKs that could not be read
+     */
+    private static Map<String, String> hashInstalledApks(final Context context, List<PackageInfo> packageInfoList) {
+        final Map<String, String> hashes = new ConcurrentHashMap<>();
+        if (packageInfoList.isEmpty()) {
+            return hashes;
+        }
+
+        ExecutorService executor = Hasher.getExecutor();
+        List<Future<?>> results = new ArrayList<>();
+        for (final PackageInfo packageInfo : packageInfoList) {
+            results.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    File apk = getPathToInstalledApk(packageInfo);
+                    if (apk == null || !apk.exists() || !apk.canRead()) {
+                        return;
+                    }
+                    try {
+                        hashes.put(packageInfo.packageName, ApkHashCache.getInstance(context).getHash(apk, HASH_TYPE));
+                    } catch (Utils.PotentialFilesystemCorruptionException e) {
+                        Log.e(TAG, "Encountered potential filesystem corruption, or other unknown " +
+                                "problem when calculating hash of " + apk.getAbsolutePath(), e);
+                    } catch (IllegalArgumentException e) {
+                        Utils.debugLog(TAG, e.getMessage());
+                        ACRA.getErrorReporter().handleException(e, false);
+                    }
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.e(TAG, "Error while hashing installed apps", e);
+            }
+        }
+        return hashes;
     }
 
     @Nullable
@@ -218,8 +338,19 @@ public class InstalledAppProviderService extends IntentService {
             return;
         }
 
-        String packageName = intent.getData().getSchemeSpecificPart();
         final String action = intent.getAction();
+        if (ACTION_COMPARE.equals(action)) {
+            Utils.debugLog(TAG, "Comparing package manager to our installed app cache.");
+            List<PackageInfo> packageInfoList = getPackageManager().getInstalledPackages(PackageManager.GET_SIGNATURES);
+            if (reconcile(this, packageInfoList)) {
+                Utils.debugLog(TAG, "Notifying content providers (so they can update the relevant views).");
+                getContentResolver().notifyChange(AppProvider.getContentUri(), null);
+                getContentResolver().notifyChange(ApkProvider.getContentUri(), null);
+            }
+            return;
+        }
+
+        String packageName = intent.getData().getSchemeSpecificPart();
         if (ACTION_INSERT.equals(action)) {
             PackageInfo packageInfo = getPackageInfo(intent, packageName);
             if (packageInfo != null) {
@@ -230,25 +361,9 @@ public class InstalledAppProviderService extends IntentService {
                 }
                 if (apk.exists() && apk.canRead()) {
                     try {
-                        String hashType = "sha256";
-                        String hash = Utils.getBinaryHash(apk, hashType);
-
-                        // Ensure that we no longer notify the user that this apk successfully
-                        // downloaded and is now ready to be installed. Used to be handled only
-                        // by InstallManagerService after receiving ACTION_INSTALL_COMPLETE, but
-                        // that doesn't work for F-Droid itself, which never receives that action.
-                        for (Apk apkInRepo : ApkProvider.Helper.findApksByHash(this, hash)) {
-
-                            Utils.debugLog(TAG, "Noticed that " + apkInRepo.apkName +
-                                    " version " + apkInRepo.versionName + " was installed," +
-                                    " so marking as no longer pending install");
-
-                            AppUpdateStatusManager.getInstance(this)
-                                    .markAsNoLongerPendingInstall(apkInRepo.getUrl());
-
-                        }
-
-                        insertAppIntoDb(this, packageInfo, hashType, hash);
+                        String hash = ApkHashCache.getInstance(this).getHash(apk, HASH_TYPE);
+                        markAsNoLongerPendingInstall(this, hash);
+                        insertAppIntoDb(this, packageInfo, HASH_TYPE, hash);
                     } catch (Utils.PotentialFilesystemCorruptionException e) {
                         String msg = getString(R.string.installed_app__file_corrupt, apk.getAbsolutePath());
                         Toast.makeText(this, msg, Toast.LENGTH_LONG).show();
@@ -305,6 +420,11 @@ public class InstalledAppProviderService extends IntentService {
      */
     static void insertAppIntoDb(Context context, PackageInfo packageInfo, String hashType, String hash) {
         Uri uri = InstalledAppProvider.getContentUri();
+        context.getContentResolver().insert(uri, getContentValues(context, packageInfo, hashType, hash));
+    }
+
+    private static ContentValues getContentValues(Context context, PackageInfo packageInfo,
+                                                  String hashType, String hash) {
         ContentValues contentValues = new ContentValues();
         contentValues.put(InstalledAppTable.Cols.Package.NAME, packageInfo.packageName);
         contentValues.put(InstalledAppTable.Cols.VERSION_CODE, packageInfo.versionCode);
@@ -316,8 +436,26 @@ public class InstalledAppProviderService extends IntentService {
 
         contentValues.put(InstalledAppTable.Cols.HASH_TYPE, hashType);
         contentValues.put(InstalledAppTable.Cols.HASH, hash);
+        return contentValues;
+    }
+
+    /**
+     * Ensure that we no longer notify the user that this apk successfully
+     * downloaded and is now ready to be installed. Used to be handled only
+     * by InstallManagerService after receiving ACTION_INSTALL_COMPLETE, but
+     * that doesn't work for F-Droid itself, which never receives that action.
+     */
+    private static void markAsNoLongerPendingInstall(Context context, String hash) {
+        for (Apk apkInRepo : ApkProvider.Helper.findApksByHash(context, hash)) {
 
-        context.getContentResolver().insert(uri, contentValues);
+            Utils.debugLog(TAG, "Noticed that " + apkInRepo.apkName +
+                    " version " + apkInRepo.versionName + " was installed," +
+                    " so marking as no longer pending install");
+
+            AppUpdateStatusManager.getInstance(context)
+                    .markAsNoLongerPendingInstall(apkInRepo.getUrl());
+
+        }
     }
 
     static void deleteAppFromDb(Context context, String packageName) {
@@ -33,11 +33,17 @@ import org.fdroid.fdroid.data.SanitizedFile;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 public class ApkCache {
 
     private static final String CACHE_DIR = "apks";
 
+    /**
+     * How long the copy of an APK to install from is kept.
+     */
+    private static final long INSTALL_COPY_KEEP_MILLIS = TimeUnit.MINUTES.toMillis(20);
+
     /**
      * Same as {@link #copyApkFromCacheToFiles(Context, File, Apk)}, except it does not need to
      * verify the hash after copying. This is because we are copying from an installed apk, which
@@ -67,7 +73,10 @@ public class ApkCache {
     }
 
     /**
-     * Copy an APK from {@param apkFile} to our internal files directory for 20 minutes.
+     * Copy an APK from {@param apkFile} to our internal files directory for
+     * {@link #INSTALL_COPY_KEEP_MILLIS}, after which {@link ApkCacheIndex} deletes it.
+     * When possible, this is a link to the {@link ApkStore} entry, which is only
+     * copied and checked if the same APK was not stored before.
      *
      * @param verifyHash If the file was just downloaded, then you should mark this as true and
      *                   request the file to be verified once it has finished copying. Otherwise,
@@ -86,28 +95,26 @@ public class ApkCache {
             sanitizedApkFile.delete();
         }
 
-        FileUtils.copyFile(apkFile, sanitizedApkFile);
+        if (!verifyHash || ApkStore.HASH_TYPE.equalsIgnoreCase(hashType)) {
+            SanitizedFile entry = ApkStore.put(context, apkFile, verifyHash ? hash : null);
+            if (entry == null) {
+                FileUtils.deleteQuietly(apkFile);
+                throw new IOException(apkFile + " failed to verify!");
+            }
+            if (!ApkStore.link(entry, sanitizedApkFile)) {
+                throw new IOException("Could not copy " + entry + " to " + sanitizedApkFile);
+            }
+        } else {
+            FileUtils.copyFile(apkFile, sanitizedApkFile);
 
-        // verify copied file's hash with expected hash from Apk class
-        if (verifyHash && !Hasher.isFileMatchingHash(sanitizedApkFile, hash, hashType)) {
-            FileUtils.deleteQuietly(apkFile);
-            throw new IOException(apkFile + " failed to verify!");
+            // verify copied file's hash with expected hash from Apk class
+            if (!Hasher.isFileMatchingHash(sanitizedApkFile, hash, hashType)) {
+                FileUtils.deleteQuietly(apkFile);
+                throw new IOException(apkFile + " failed to verify!");
+            }
         }
 
-        // 20 minutes the start of the install process, delete the file
-        final File apkToDelete = sanitizedApkFile;
-        new Thread() {
-            @Override
-            public void run() {
-                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
-                try {
-                    Thread.sleep(1200000);
-                } catch (InterruptedException ignored) {
-                } finally {
-                    FileUtils.deleteQuietly(apkToDelete);
-                }
-            }
-        }.start();
+        ApkCacheIndex.getInstance(context).addCopy(sanitizedApkFile, INSTALL_COPY_KEEP_MILLIS);
 
         return sanitizedApkFile;
     }
@@ -123,6 +130,18 @@ public class ApkCache {
         return new SanitizedFile(dir, uri.getLastPathSegment());
     }
 
+    /**
+     * If an APK with the same hash was stored before, e.g. from another mirror
+     * or repo, or from a swap, put it where {@code apk} would be downloaded to
+     * instead of downloading it again.
+     *
+     * @return whether {@code apkFile} is now there
+     */
+    public static boolean linkFromStore(Context context, File apkFile, Apk apk) {
+        SanitizedFile entry = ApkStore.get(context, apk.hash, apk.hashType);
+        return entry != null && ApkStore.link(entry, SanitizedFile.knownSanitized(apkFile));
+    }
+
     /**
      * Verifies the size of the file on disk matches, and then hashes the file to compare with what
      * we received from the signed repo (i.e. {@link Apk#hash} and {@link Apk#hashType}).
@@ -0,0 +1,497 @@
+package org.fdroid.fdroid.installer;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the APK files F-Droid keeps around for a while: downloaded
+ * APKs in {@link ApkCache#getApkCacheDir(Context)}, and the copies made to
+ * install from, see {@link ApkCache#copyApkFromCacheToFiles}.
+ * Each file has its size, when it was last used, and, for the copies, when it
+ * has to be deleted.  Deleting files is then a matter of going through this
+ * list instead of listing directories, and one scheduled thread takes care of
+ * all copies, instead of one sleeping thread per install.
+ * <p>
+ * Downloaded APKs are deleted once they have not been used for
+ * {@link Preferences#getKeepCacheTime()}, or, the least recently used first,
+ * when together they are bigger than {@link Preferences#getApkCacheSize()}.
+ * {@link ApkStore} entries that nothing links to anymore count towards that
+ * size as well, and are evicted in the same order, by when they were last
+ * linked to.  Otherwise, an APK that was installed from a cache on external
+ * storage would be kept twice, and the second copy only ever deleted by age.
+ * Updates for installed apps, see {@link #setPendingUpdates(Collection)}, are
+ * kept until they are installed or replaced, and are evicted as if they were
+ * used {@link #PENDING_UPDATE_WEIGHT_MILLIS} later than they were.  The list is
+ * saved to {@link #INDEX_FILE_NAME}, so copies that were due while F-Droid was
+ * not running are deleted the next time it starts.
+ */
+public class ApkCacheIndex {
+    private static final String TAG = "ApkCacheIndex";
+
+    static final String INDEX_FILE_NAME = "apk-cache-index.json";
+
+    /**
+     * How much longer a pending update is kept around when making room,
+     * compared to other downloads that were last used at the same time.
+     */
+    static final long PENDING_UPDATE_WEIGHT_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Files used less than this long ago are never evicted to make room,
+     * since they are likely about to be installed.
+     */
+    static final long EVICTION_GRACE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final long SAVE_DELAY_SECONDS = 5;
+
+    private static ApkCacheIndex instance;
+
+    private final File indexFile;
+    private final File storeDir;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Entry> entries;
+    private final Set<String> pendingUpdates = new HashSet<>();
+    private long maxBytes = Long.MAX_VALUE;
+    private long totalBytes;
+
+    private ScheduledFuture<?> nextSweep;
+    private long nextSweepAt = Long.MAX_VALUE;
+    private boolean dirty;
+    private boolean saveScheduled;
+
+    ApkCacheIndex(File indexFile, ScheduledExecutorService scheduler) {
+        this(indexFile, null, scheduler);
+    }
+
+    /**
+     * @param storeDir the {@link ApkStore} directory, or {@code null} to only
+     *                 keep track of the download cache
+     */
+    ApkCacheIndex(File indexFile, File storeDir, ScheduledExecutorService scheduler) {
+        this.indexFile = indexFile;
+        this.storeDir = storeDir;
+        this.scheduler = scheduler;
+        this.entries = read(indexFile);
+        for (Entry entry : entries.values()) {
+            totalBytes += entry.size;
+        }
+    }
+
+    public static synchronized ApkCacheIndex getInstance(final Context context) {
+        if (instance == null) {
+            File indexFile = new File(context.getFilesDir(), INDEX_FILE_NAME);
+            final boolean isNew = !indexFile.exists();
+            instance = new ApkCacheIndex(indexFile, ApkStore.getStoreDir(context),
+                    Executors.newSingleThreadScheduledExecutor());
+            instance.maxBytes = Preferences.get().getApkCacheSize();
+            instance.scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (isNew) {
+                        instance.addExisting(ApkCache.getApkCacheDir(context), context.getFilesDir());
+                    }
+                    instance.scheduleSweep(System.currentTimeMillis());
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Add an APK that was just downloaded into the cache.
+     */
+    public synchronized void addDownload(File apkFile) {
+        put(apkFile, 0);
+        evict(System.currentTimeMillis());
+        scheduleSave();
+    }
+
+    /**
+     * Add a file which has to be deleted {@code keepMillis} from now.
+     */
+    public synchronized void addCopy(File file, long keepMillis) {
+        long expiresAt = System.currentTimeMillis() + keepMillis;
+        put(file, expiresAt);
+        scheduleSweep(expiresAt);
+        scheduleSave();
+    }
+
+    /**
+     * Note that a cached APK is used again, so it is kept longer.
+     */
+    public synchronized void markUsed(File apkFile) {
+        Entry entry = entries.get(apkFile.getAbsolutePath());
+        if (entry == null) {
+            addDownload(apkFile);
+        } else {
+            entry.lastUsed = System.currentTimeMillis();
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Whether {@code file} is one of the files this keeps track of.
+     */
+    public synchronized boolean contains(File file) {
+        return entries.containsKey(file.getAbsolutePath());
+    }
+
+    public synchronized int getFileCount() {
+        return entries.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Set the budget for downloads, and make room if they do not fit anymore.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ApkCacheIndex.this) {
+                    if (evict(System.currentTimeMillis()) > 0) {
+                        scheduleSave();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Set which downloads are updates for installed apps, whether they are
+     * already downloaded or not.  These are not deleted because they were not
+     * used for a while, and are the last to go when making room.
+     */
+    public synchronized void setPendingUpdates(Collection<File> apkFiles) {
+        pendingUpdates.clear();
+        for (File apkFile : apkFiles) {
+            pendingUpdates.add(apkFile.getAbsolutePath());
+        }
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            boolean pendingUpdate = entry.expiresAt == 0 && pendingUpdates.contains(mapEntry.getKey());
+            if (entry.pendingUpdate != pendingUpdate) {
+                entry.pendingUpdate = pendingUpdate;
+                scheduleSave();
+            }
+        }
+    }
+
+    /**
+     * Delete the copies that are due, the downloads that were not used for
+     * {@code keepCacheMillis}, and the least recently used downloads and
+     * unused {@link ApkStore} entries until they fit in {@link #getMaxBytes()}.
+     */
+    public void sweep(long keepCacheMillis) {
+        sweep(keepCacheMillis, System.currentTimeMillis());
+    }
+
+    synchronized void sweep(long keepCacheMillis, long now) {
+        int deleted = 0;
+        long nextExpiry = Long.MAX_VALUE;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> mapEntry = it.next();
+            Entry entry = mapEntry.getValue();
+            File file = new File(mapEntry.getKey());
+            boolean expired;
+            if (entry.expiresAt > 0) {
+                expired = now >= entry.expiresAt;
+            } else {
+                expired = !entry.pendingUpdate && now - entry.lastUsed >= keepCacheMillis;
+            }
+            if (expired || !file.exists()) {
+                if (file.delete()) {
+                    deleted++;
+                }
+                totalBytes -= entry.size;
+                it.remove();
+                dirty = true;
+            } else if (entry.expiresAt > 0) {
+                nextExpiry = Math.min(nextExpiry, entry.expiresAt);
+            }
+        }
+        deleted += evict(now);
+
+        Utils.debugLog(TAG, "Deleted " + deleted + " files, " + entries.size() + " files left using "
+                + totalBytes + " of " + maxBytes + " bytes");
+        nextSweepAt = Long.MAX_VALUE;
+        scheduleSweep(nextExpiry);
+        save();
+    }
+
+    /**
+     * Delete downloads and unused {@link ApkStore} entries, the least recently
+     * used first, until they fit in {@link #maxBytes}, leaving those used in
+     * the last {@link #EVICTION_GRACE_MILLIS}.  Pending updates count as used
+     * {@link #PENDING_UPDATE_WEIGHT_MILLIS} later.
+     *
+     * @return how many files were deleted
+     */
+    private int evict(long now) {
+        List<Candidate> unusedStoreEntries = listUnusedStoreEntries();
+        long storeBytes = 0;
+        for (Candidate candidate : unusedStoreEntries) {
+            storeBytes += candidate.size;
+        }
+        if (totalBytes + storeBytes <= maxBytes) {
+            return 0;
+        }
+        List<Candidate> candidates = new ArrayList<>();
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (entry.expiresAt == 0 && now - entry.lastUsed >= EVICTION_GRACE_MILLIS) {
+                candidates.add(new Candidate(mapEntry.getKey(), entry.size, entry.getEvictionTime()));
+            }
+        }
+        for (Candidate candidate : unusedStoreEntries) {
+            if (now - candidate.evictionTime >= EVICTION_GRACE_MILLIS) {
+                candidates.add(candidate);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return a.evictionTime < b.evictionTime ? -1 : (a.evictionTime == b.evictionTime ? 0 : 1);
+            }
+        });
+
+        int deleted = 0;
+        for (Candidate candidate : candidates) {
+            if (totalBytes + storeBytes <= maxBytes) {
+                break;
+            }
+            new File(candidate.path).delete();
+            if (entries.remove(candidate.path) != null) {
+                totalBytes -= candidate.size;
+                dirty = true;
+            } else {
+                storeBytes -= candidate.size;
+            }
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * The {@link ApkStore} entries that nothing links to anymore, with when
+     * they were last linked to, see {@link ApkStore#link}.  Where the links
+     * cannot be counted, there are none, those entries are only deleted by
+     * age in {@link org.fdroid.fdroid.CleanCacheService}.
+     */
+    private List<Candidate> listUnusedStoreEntries() {
+        List<Candidate> unused = new ArrayList<>();
+        File[] files = storeDir == null ? null : storeDir.listFiles();
+        if (files == null) {
+            return unused;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(".apk") && getReferenceCount(file) == 0) {
+                unused.add(new Candidate(file.getAbsolutePath(), file.length(), file.lastModified()));
+            }
+        }
+        return unused;
+    }
+
+    /**
+     * Only here to be replaced in tests, which cannot count links.
+     */
+    int getReferenceCount(File storeEntry) {
+        return ApkStore.getReferenceCount(storeEntry);
+    }
+
+    private void put(File file, long expiresAt) {
+        Entry entry = new Entry(file.length(), System.currentTimeMillis(), expiresAt);
+        entry.pendingUpdate = expiresAt == 0 && pendingUpdates.contains(file.getAbsolutePath());
+        Entry old = entries.put(file.getAbsolutePath(), entry);
+        if (old != null) {
+            totalBytes -= old.size;
+        }
+        totalBytes += entry.size;
+    }
+
+    /**
+     * Put the APKs that were there before there was an index into it, with
+     * their last modification time as their last use.  Copies to install from
+     * are kept for another hour, like they were before.
+     */
+    private synchronized void addExisting(File apkCacheDir, File filesDir) {
+        List<File> downloads = new ArrayList<>();
+        listApks(apkCacheDir, downloads);
+        for (File file : downloads) {
+            entries.put(file.getAbsolutePath(), new Entry(file.length(), file.lastModified(), 0));
+            totalBytes += file.length();
+        }
+        File[] copies = filesDir.listFiles();
+        if (copies != null) {
+            long expiresAt = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+            for (File file : copies) {
+                if (file.isFile() && file.getName().endsWith(".apk")) {
+                    entries.put(file.getAbsolutePath(), new Entry(file.length(), file.lastModified(), expiresAt));
+                    totalBytes += file.length();
+                }
+            }
+        }
+        Utils.debugLog(TAG, "Indexed " + entries.size() + " existing files");
+        save();
+    }
+
+    private static void listApks(File dir, List<File> apks) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                listApks(file, apks);
+            } else {
+                apks.add(file);
+            }
+        }
+    }
+
+    private void scheduleSweep(long at) {
+        if (at == Long.MAX_VALUE || at >= nextSweepAt) {
+            return;
+        }
+        if (nextSweep != null) {
+            nextSweep.cancel(false);
+        }
+        nextSweepAt = at;
+        nextSweep = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sweep(Preferences.get().getKeepCacheTime());
+            }
+        }, Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Changes are written out a little later, so that a batch of them is
+     * written in one go.
+     */
+    private void scheduleSave() {
+        dirty = true;
+        if (saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ApkCacheIndex.this) {
+                    saveScheduled = false;
+                    save();
+                }
+            }
+        }, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        File tmp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try {
+            getObjectMapper().writeValue(tmp, entries);
+            if (!tmp.renameTo(indexFile)) {
+                throw new IOException("Could not rename " + tmp + " to " + indexFile);
+            }
+            dirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save the APK cache index", e);
+            tmp.delete();
+        }
+    }
+
+    private static Map<String, Entry> read(File indexFile) {
+        if (indexFile.exists()) {
+            try {
+                return getObjectMapper().readValue(indexFile, new TypeReference<HashMap<String, Entry>>() {
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read " + indexFile, e);
+            }
+        }
+        return new HashMap<>();
+    }
+
+    private static ObjectMapper getObjectMapper() {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return mapper;
+    }
+
+    private static final class Candidate {
+        final String path;
+        final long size;
+        final long evictionTime;
+
+        Candidate(String path, long size, long evictionTime) {
+            this.path = path;
+            this.size = size;
+            this.evictionTime = evictionTime;
+        }
+    }
+
+    static final class Entry {
+        public long size;
+        public long lastUsed;
+
+        /**
+         * When this has to be deleted, or {@code 0} for downloads, which are
+         * deleted based on {@link #lastUsed}.
+         */
+        public long expiresAt;
+
+        public boolean pendingUpdate;
+
+        /**
+         * For Jackson.
+         */
+        public Entry() {
+        }
+
+        Entry(long size, long lastUsed, long expiresAt) {
+            this.size = size;
+            this.lastUsed = lastUsed;
+            this.expiresAt = expiresAt;
+        }
+
+        long getEvictionTime() {
+            return pendingUpdate ? lastUsed + PENDING_UPDATE_WEIGHT_MILLIS : lastUsed;
+        }
+    }
+}
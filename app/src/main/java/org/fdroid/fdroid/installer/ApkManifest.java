@@ -0,0 +1,427 @@
+package org.fdroid.fdroid.installer;
+
+import android.content.pm.PackageInfo;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The parts of an APK's {@code AndroidManifest.xml} that {@link ApkVerifier}
+ * checks.  {@link #read(File)} only reads the binary manifest out of the APK
+ * and walks its chunks, instead of having
+ * {@link android.content.pm.PackageManager#getPackageArchiveInfo(String, int)}
+ * open the whole APK, parse all of the resources and build a full {@link PackageInfo}.
+ * <p>
+ * The permissions are worked out the way Android's {@code PackageParser} does
+ * it on this device: {@code maxSdkVersion} is honored, {@code uses-permission-sdk-23}
+ * only counts on {@code android-23} and newer, and the permissions implied by
+ * a low {@code targetSdkVersion} are added.  Newer Android versions than
+ * {@link #MAX_KNOWN_SDK} imply more permissions, so there {@link #canRead()}
+ * is {@code false} and {@link PackageInfo} has to be used.
+ */
+final class ApkManifest {
+
+    /**
+     * The newest Android version that does not imply any other permissions
+     * than the ones in {@link #addImpliedPermissions(List, int, int)}.  This
+     * is the {@code compileSdkVersion}, since {@code PackageParser} of any
+     * newer release could not be checked against.
+     */
+    static final int MAX_KNOWN_SDK = 24;
+
+    private static final String MANIFEST_FILE_NAME = "AndroidManifest.xml";
+    private static final int MAX_MANIFEST_BYTES = 4 * 1024 * 1024;
+
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+    private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+
+    private static final int UTF8_FLAG = 1 << 8;
+
+    private static final int TYPE_STRING = 0x03;
+    private static final int TYPE_FIRST_INT = 0x10;
+    private static final int TYPE_LAST_INT = 0x1f;
+
+    private static final int ATTR_NAME = 0x01010003;
+    private static final int ATTR_MIN_SDK_VERSION = 0x0101020c;
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+    private static final int ATTR_TARGET_SDK_VERSION = 0x01010270;
+    private static final int ATTR_MAX_SDK_VERSION = 0x01010271;
+
+    private static final String READ_CALL_LOG = "android.permission.READ_CALL_LOG";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String READ_EXTERNAL_STORAGE = "android.permission.READ_EXTERNAL_STORAGE";
+    private static final String READ_PHONE_STATE = "android.permission.READ_PHONE_STATE";
+    private static final String WRITE_CALL_LOG = "android.permission.WRITE_CALL_LOG";
+    private static final String WRITE_CONTACTS = "android.permission.WRITE_CONTACTS";
+    private static final String WRITE_EXTERNAL_STORAGE = "android.permission.WRITE_EXTERNAL_STORAGE";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
+    final String packageName;
+    final int versionCode;
+    final int minSdkVersion;
+    final int targetSdkVersion;
+
+    /**
+     * In the same format as {@link PackageInfo#requestedPermissions}, so
+     * {@code null} if there are none.
+     */
+    final String[] requestedPermissions;
+
+    private ApkManifest(String packageName, int versionCode, int minSdkVersion, int targetSdkVersion,
+                        String[] requestedPermissions) {
+        this.packageName = packageName;
+        this.versionCode = versionCode;
+        this.minSdkVersion = minSdkVersion;
+        this.targetSdkVersion = targetSdkVersion;
+        this.requestedPermissions = requestedPermissions;
+    }
+
+    static ApkManifest fromPackageInfo(PackageInfo packageInfo) {
+        return new ApkManifest(packageInfo.packageName, packageInfo.versionCode, 0,
+                packageInfo.applicationInfo.targetSdkVersion, packageInfo.requestedPermissions);
+    }
+
+    /**
+     * Whether {@link #read(File)} gives the same permissions as {@link PackageInfo}
+     * would on this device.
+     */
+    static boolean canRead() {
+        return Build.VERSION.SDK_INT <= MAX_KNOWN_SDK;
+    }
+
+    /**
+     * @throws IOException if the APK or its manifest could not be read, or
+     *                     if the manifest uses something this does not support,
+     *                     like a resource reference for the {@code versionCode}
+     */
+    static ApkManifest read(File apk) throws IOException {
+        return read(apk, Build.VERSION.SDK_INT);
+    }
+
+    static ApkManifest read(File apk, int sdkInt) throws IOException {
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            ZipEntry entry = zipFile.getEntry(MANIFEST_FILE_NAME);
+            if (entry == null) {
+                throw new IOException("No " + MANIFEST_FILE_NAME + " in " + apk);
+            }
+            return parse(readEntry(zipFile, entry), sdkInt);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static byte[] readEntry(ZipFile zipFile, ZipEntry entry) throws IOException {
+        long size = entry.getSize();
+        if (size < 0 || size > MAX_MANIFEST_BYTES) {
+            throw new IOException("Unexpected size of " + MANIFEST_FILE_NAME + ": " + size);
+        }
+        byte[] bytes = new byte[(int) size];
+        InputStream input = zipFile.getInputStream(entry);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = input.read(bytes, offset, bytes.length - offset);
+                if (read == -1) {
+                    throw new IOException(MANIFEST_FILE_NAME + " is shorter than expected");
+                }
+                offset += read;
+            }
+        } finally {
+            input.close();
+        }
+        return bytes;
+    }
+
+    static ApkManifest parse(byte[] bytes, int sdkInt) throws IOException {
+        try {
+            return new Parser(bytes, sdkInt).parse();
+        } catch (RuntimeException e) {
+            // any broken offset or length, so the caller falls back to PackageManager
+            throw new IOException("Invalid " + MANIFEST_FILE_NAME, e);
+        }
+    }
+
+    /**
+     * Adds the permissions that {@code PackageParser} grants to apps built
+     * for older Android versions.
+     */
+    private static void addImpliedPermissions(List<String> permissions, int targetSdkVersion, int sdkInt) {
+        if (targetSdkVersion < 4) {
+            addPermission(permissions, WRITE_EXTERNAL_STORAGE);
+            addPermission(permissions, READ_PHONE_STATE);
+        }
+        if (sdkInt < 16) {
+            return;
+        }
+        if (permissions.contains(WRITE_EXTERNAL_STORAGE)) {
+            addPermission(permissions, READ_EXTERNAL_STORAGE);
+        }
+        if (targetSdkVersion < 16) {
+            if (permissions.contains(READ_CONTACTS)) {
+                addPermission(permissions, READ_CALL_LOG);
+            }
+            if (permissions.contains(WRITE_CONTACTS)) {
+                addPermission(permissions, WRITE_CALL_LOG);
+            }
+        }
+    }
+
+    private static void addPermission(List<String> permissions, String permission) {
+        if (!permissions.contains(permission)) {
+            permissions.add(permission);
+        }
+    }
+
+    /**
+     * Walks the chunks of a binary XML file, only looking at the elements
+     * directly inside {@code <manifest>}.
+     */
+    private static final class Parser {
+        private final ByteBuffer buffer;
+        private final int sdkInt;
+
+        private String[] strings = new String[0];
+        private int[] resourceIds = new int[0];
+
+        private String packageName;
+        private int versionCode;
+        private int minSdkVersion = 1;
+        private int targetSdkVersion;
+        private final List<String> permissions = new ArrayList<>();
+
+        Parser(byte[] bytes, int sdkInt) {
+            this.buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            this.sdkInt = sdkInt;
+        }
+
+        ApkManifest parse() throws IOException {
+            if (buffer.getShort(0) != RES_XML_TYPE) {
+                throw new IOException("Not a binary XML file");
+            }
+            int end = Math.min(buffer.getInt(4), buffer.limit());
+            int depth = 0;
+            boolean sawManifest = false;
+            int position = buffer.getShort(2) & 0xffff;
+            while (position + 8 <= end) {
+                int type = buffer.getShort(position) & 0xffff;
+                int headerSize = buffer.getShort(position + 2) & 0xffff;
+                int size = buffer.getInt(position + 4);
+                if (size < 8 || position + size > end) {
+                    throw new IOException("Invalid chunk size " + size + " at " + position);
+                }
+                if (headerSize < 8 || headerSize > size) {
+                    throw new IOException("Invalid chunk header size " + headerSize + " at " + position);
+                }
+                switch (type) {
+                    case RES_STRING_POOL_TYPE:
+                        readStringPool(position, headerSize, size);
+                        break;
+                    case RES_XML_RESOURCE_MAP_TYPE:
+                        readResourceMap(position, headerSize, size);
+                        break;
+                    case RES_XML_START_ELEMENT_TYPE:
+                        depth++;
+                        if (depth == 1) {
+                            sawManifest = true;
+                            readManifest(position + headerSize);
+                        } else if (depth == 2) {
+                            readElement(position + headerSize);
+                        }
+                        break;
+                    case RES_XML_END_ELEMENT_TYPE:
+                        depth--;
+                        break;
+                    default:
+                        break;
+                }
+                position += size;
+            }
+            if (!sawManifest || packageName == null) {
+                throw new IOException("No package name in " + MANIFEST_FILE_NAME);
+            }
+            addImpliedPermissions(permissions, targetSdkVersion, sdkInt);
+            String[] requestedPermissions = permissions.isEmpty()
+                    ? null : permissions.toArray(new String[permissions.size()]);
+            return new ApkManifest(packageName, versionCode, minSdkVersion, targetSdkVersion, requestedPermissions);
+        }
+
+        private void readStringPool(int position, int headerSize, int size) throws IOException {
+            int count = buffer.getInt(position + 8);
+            // each string needs an offset in this chunk, so a broken count cannot allocate a huge array
+            if (headerSize < 28 || count < 0 || count > (size - headerSize) / 4) {
+                throw new IOException("Invalid string count " + count + " at " + position);
+            }
+            boolean utf8 = (buffer.getInt(position + 16) & UTF8_FLAG) != 0;
+            int stringsStart = position + buffer.getInt(position + 20);
+            strings = new String[count];
+            for (int i = 0; i < count; i++) {
+                int offset = stringsStart + buffer.getInt(position + headerSize + i * 4);
+                strings[i] = utf8 ? readUtf8(offset) : readUtf16(offset);
+            }
+        }
+
+        private String readUtf8(int offset) {
+            // the length in UTF-16 code units comes first, then the length in bytes
+            offset += (buffer.get(offset) & 0x80) == 0 ? 1 : 2;
+            int length = buffer.get(offset) & 0xff;
+            if ((length & 0x80) != 0) {
+                length = ((length & 0x7f) << 8) | (buffer.get(offset + 1) & 0xff);
+                offset += 2;
+            } else {
+                offset += 1;
+            }
+            return new String(buffer.array(), offset, length, UTF_8);
+        }
+
+        private String readUtf16(int offset) {
+            int length = buffer.getShort(offset) & 0xffff;
+            if ((length & 0x8000) != 0) {
+                length = ((length & 0x7fff) << 16) | (buffer.getShort(offset + 2) & 0xffff);
+                offset += 4;
+            } else {
+                offset += 2;
+            }
+            return new String(buffer.array(), offset, length * 2, UTF_16LE);
+        }
+
+        private void readResourceMap(int position, int headerSize, int size) {
+            resourceIds = new int[(size - headerSize) / 4];
+            for (int i = 0; i < resourceIds.length; i++) {
+                resourceIds[i] = buffer.getInt(position + headerSize + i * 4);
+            }
+        }
+
+        private void readManifest(int element) throws IOException {
+            if (!"manifest".equals(getString(buffer.getInt(element + 4)))) {
+                throw new IOException("Root element is not <manifest>");
+            }
+            int attribute = firstAttribute(element);
+            int count = attributeCount(element);
+            int attributeSize = attributeSize(element);
+            for (int i = 0; i < count; i++, attribute += attributeSize) {
+                int name = buffer.getInt(attribute + 4);
+                int resourceId = getResourceId(name);
+                if (resourceId == ATTR_VERSION_CODE) {
+                    versionCode = getInt(attribute);
+                } else if (resourceId == 0 && buffer.getInt(attribute) == -1 && "package".equals(getString(name))) {
+                    packageName = getStringValue(attribute);
+                }
+            }
+        }
+
+        private void readElement(int element) throws IOException {
+            String name = getString(buffer.getInt(element + 4));
+            if ("uses-sdk".equals(name)) {
+                readUsesSdk(element);
+            } else if ("uses-permission".equals(name)) {
+                readUsesPermission(element);
+            } else if (sdkInt >= 23
+                    && ("uses-permission-sdk-23".equals(name) || "uses-permission-sdk-m".equals(name))) {
+                readUsesPermission(element);
+            }
+        }
+
+        private void readUsesSdk(int element) throws IOException {
+            boolean hasTarget = false;
+            int target = 0;
+            int attribute = firstAttribute(element);
+            int count = attributeCount(element);
+            int attributeSize = attributeSize(element);
+            for (int i = 0; i < count; i++, attribute += attributeSize) {
+                int resourceId = getResourceId(buffer.getInt(attribute + 4));
+                if (resourceId == ATTR_MIN_SDK_VERSION) {
+                    minSdkVersion = getInt(attribute);
+                } else if (resourceId == ATTR_TARGET_SDK_VERSION) {
+                    target = getInt(attribute);
+                    hasTarget = true;
+                }
+            }
+            targetSdkVersion = hasTarget ? target : minSdkVersion;
+            if (minSdkVersion > sdkInt) {
+                throw new IOException("Requires newer sdk version #" + minSdkVersion);
+            }
+        }
+
+        private void readUsesPermission(int element) throws IOException {
+            String permission = null;
+            int maxSdkVersion = 0;
+            int attribute = firstAttribute(element);
+            int count = attributeCount(element);
+            int attributeSize = attributeSize(element);
+            for (int i = 0; i < count; i++, attribute += attributeSize) {
+                int resourceId = getResourceId(buffer.getInt(attribute + 4));
+                if (resourceId == ATTR_NAME) {
+                    permission = getStringValue(attribute);
+                } else if (resourceId == ATTR_MAX_SDK_VERSION && isInt(attribute)) {
+                    maxSdkVersion = buffer.getInt(attribute + 16);
+                }
+            }
+            // maxSdkVersion was added in android-19, older versions ignore it
+            if (permission != null && (sdkInt < 19 || maxSdkVersion == 0 || maxSdkVersion >= sdkInt)) {
+                addPermission(permissions, permission);
+            }
+        }
+
+        private int firstAttribute(int element) {
+            return element + (buffer.getShort(element + 8) & 0xffff);
+        }
+
+        private int attributeSize(int element) {
+            return buffer.getShort(element + 10) & 0xffff;
+        }
+
+        private int attributeCount(int element) {
+            return buffer.getShort(element + 12) & 0xffff;
+        }
+
+        private int getResourceId(int nameIndex) {
+            return nameIndex >= 0 && nameIndex < resourceIds.length ? resourceIds[nameIndex] : 0;
+        }
+
+        private String getString(int index) {
+            return index >= 0 && index < strings.length ? strings[index] : null;
+        }
+
+        private boolean isInt(int attribute) {
+            int dataType = buffer.get(attribute + 15) & 0xff;
+            return dataType >= TYPE_FIRST_INT && dataType <= TYPE_LAST_INT;
+        }
+
+        private int getInt(int attribute) throws IOException {
+            if (!isInt(attribute)) {
+                throw new IOException("Unsupported attribute value type " + (buffer.get(attribute + 15) & 0xff));
+            }
+            return buffer.getInt(attribute + 16);
+        }
+
+        /**
+         * Reads the raw string value of an attribute, falling back to typed
+         * string data when the raw value was stripped.
+         */
+        private String getStringValue(int attribute) throws IOException {
+            int raw = buffer.getInt(attribute + 8);
+            if (raw != -1) {
+                return getString(raw);
+            }
+            if ((buffer.get(attribute + 15) & 0xff) != TYPE_STRING) {
+                throw new IOException("Unsupported attribute value type " + (buffer.get(attribute + 15) & 0xff));
+            }
+            return getString(buffer.getInt(attribute + 16));
+        }
+    }
+}
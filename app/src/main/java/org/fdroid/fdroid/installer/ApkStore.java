@@ -0,0 +1,137 @@
+package org.fdroid.fdroid.installer;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+
+import org.fdroid.fdroid.Hasher;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.compat.FileCompat;
+import org.fdroid.fdroid.data.SanitizedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * APKs in F-Droid's internal storage, each kept only once, in a file named
+ * after its SHA-256.  Everything that needs an APK as a file of its own, like
+ * the copy that is installed from or the swap repo, gets a hard link to the
+ * entry here, so the same APK from two mirrors, two repos or two installs
+ * takes up space once, and is only copied and checked the first time.
+ * <p>
+ * The links are the reference count: an entry that has no names besides its
+ * own is not used anywhere, and {@link org.fdroid.fdroid.CleanCacheService}
+ * can delete it once it has not been used for a while, or {@link ApkCacheIndex}
+ * once the downloaded APKs and the unused entries take up too much space.
+ * Where hard links do not work, {@link #link(SanitizedFile, SanitizedFile)}
+ * copies instead, like it was done before there was a store.
+ */
+public final class ApkStore {
+
+    private static final String TAG = "ApkStore";
+
+    private static final String STORE_DIR = "apk-store";
+
+    /**
+     * Only APKs with this kind of {@link org.fdroid.fdroid.data.Apk#hashType} can be stored.
+     */
+    public static final String HASH_TYPE = "sha256";
+
+    private static final Object LOCK = new Object();
+
+    private ApkStore() {
+    }
+
+    public static File getStoreDir(Context context) {
+        File dir = new File(context.getFilesDir(), STORE_DIR);
+        if (!dir.exists()) {
+            dir.mkdir();
+        }
+        return dir;
+    }
+
+    /**
+     * @return the stored APK with this hash, or {@code null} if there is none
+     */
+    @Nullable
+    public static SanitizedFile get(Context context, @Nullable String hash, @Nullable String hashType) {
+        if (hash == null || !HASH_TYPE.equalsIgnoreCase(hashType) || !hash.matches("[0-9a-fA-F]{64}")) {
+            return null;
+        }
+        SanitizedFile entry = getEntry(getStoreDir(context), hash.toLowerCase(Locale.ENGLISH));
+        return entry.exists() ? entry : null;
+    }
+
+    /**
+     * Add {@code apkFile} to the store, unless an APK with the same hash is
+     * already in there.  The copy is hashed while it is made, so that it does
+     * not have to be read again to be checked.
+     *
+     * @param sha256 what the hash of {@code apkFile} has to be, or {@code null}
+     *               for APKs that cannot have been tampered with, like installed ones
+     * @return the entry, or {@code null} if {@code apkFile} did not match {@code sha256}
+     */
+    @Nullable
+    public static SanitizedFile put(Context context, File apkFile, @Nullable String sha256) throws IOException {
+        SanitizedFile entry = get(context, sha256, HASH_TYPE);
+        if (entry != null) {
+            return entry;
+        }
+
+        File dir = getStoreDir(context);
+        File tmp = File.createTempFile("put-", ".tmp", dir);
+        try {
+            String hash = copyAndHash(apkFile, tmp);
+            if (sha256 != null && !sha256.equalsIgnoreCase(hash)) {
+                return null;
+            }
+            entry = getEntry(dir, hash);
+            synchronized (LOCK) {
+                // renaming over an entry would leave its links with a file of their own
+                if (!entry.exists() && !tmp.renameTo(entry)) {
+                    throw new IOException("Could not add " + apkFile + " to " + dir);
+                }
+            }
+            Utils.debugLog(TAG, "Stored " + apkFile + " as " + entry.getName());
+            return entry;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Make {@code dest} refer to {@code entry}, as a hard link where that
+     * works, otherwise as a copy.  The last modification time of {@code entry}
+     * is when it was last linked to, so {@link ApkCacheIndex} can evict the
+     * least recently used entries first.
+     */
+    public static boolean link(SanitizedFile entry, SanitizedFile dest) {
+        if (dest.exists()) {
+            dest.delete();
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        return FileCompat.link(entry, dest) || Utils.copyQuietly(entry, dest);
+    }
+
+    /**
+     * @return how many other places use {@code entry}, or {@code -1} if that
+     * cannot be found out on this device
+     */
+    public static int getReferenceCount(File entry) {
+        int links = FileCompat.getLinkCount(entry);
+        return links < 1 ? -1 : links - 1;
+    }
+
+    private static SanitizedFile getEntry(File dir, String hash) {
+        return new SanitizedFile(dir, hash + ".apk");
+    }
+
+    private static String copyAndHash(File source, File dest) throws IOException {
+        try {
+            return Hasher.copyAndHashFile(source, dest, HASH_TYPE);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
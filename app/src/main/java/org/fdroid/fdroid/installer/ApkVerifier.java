@@ -27,11 +27,13 @@ import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Apk;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashSet;
 
 /**
  * This ApkVerifier verifies that the downloaded apk corresponds to the Apk information
@@ -59,16 +61,19 @@ class ApkVerifier {
     public void verifyApk() throws ApkVerificationException, ApkPermissionUnequalException {
         Utils.debugLog(TAG, "localApkUri.getPath: " + localApkUri.getPath());
 
-        // parse downloaded apk file locally
-        PackageInfo localApkInfo = pm.getPackageArchiveInfo(
-                localApkUri.getPath(), PackageManager.GET_PERMISSIONS);
+        // parse downloaded apk file locally, only reading its AndroidManifest.xml if possible
+        ApkManifest localApkInfo = null;
+        boolean fromManifest = false;
+        if (ApkManifest.canRead()) {
+            try {
+                localApkInfo = ApkManifest.read(new File(localApkUri.getPath()));
+                fromManifest = true;
+            } catch (IOException e) {
+                Utils.debugLog(TAG, "Could not read AndroidManifest.xml, using PackageManager: " + e.getMessage());
+            }
+        }
         if (localApkInfo == null) {
-            // Unfortunately, more specific errors are not forwarded to us
-            // but the internal PackageParser sometimes shows warnings in logcat such as
-            // "Requires newer sdk version #14 (current version is #11)"
-            throw new ApkVerificationException("Parsing apk file failed!" +
-                    "Maybe minSdk of apk is lower than current Sdk?" +
-                    "Look into logcat for more specific warnings of Android's PackageParser");
+            localApkInfo = getPackageArchiveInfo();
         }
 
         // check if the apk has the expected packageName
@@ -82,10 +87,15 @@ class ApkVerifier {
 
         // verify permissions, important for unattended installer
         if (!requestedPermissionsEqual(expectedApk.requestedPermissions, localApkInfo.requestedPermissions)) {
-            throw new ApkPermissionUnequalException("Permissions in APK and index.xml do not match!");
+            // PackageManager has the final say before the user is asked about the permissions
+            if (!fromManifest || !requestedPermissionsEqual(expectedApk.requestedPermissions,
+                    getPackageArchiveInfo().requestedPermissions)) {
+                throw new ApkPermissionUnequalException("Permissions in APK and index.xml do not match!");
+            }
+            Log.w(TAG, "AndroidManifest.xml and PackageManager differ in permissions for " + localApkUri);
         }
 
-        int localTargetSdkVersion = localApkInfo.applicationInfo.targetSdkVersion;
+        int localTargetSdkVersion = localApkInfo.targetSdkVersion;
         int expectedTargetSdkVersion = expectedApk.targetSdkVersion;
         Utils.debugLog(TAG, "localTargetSdkVersion: " + localTargetSdkVersion);
         Utils.debugLog(TAG, "expectedTargetSdkVersion: " + expectedTargetSdkVersion);
@@ -97,15 +107,31 @@ class ApkVerifier {
         }
     }
 
+    private ApkManifest getPackageArchiveInfo() throws ApkVerificationException {
+        PackageInfo localApkInfo = pm.getPackageArchiveInfo(
+                localApkUri.getPath(), PackageManager.GET_PERMISSIONS);
+        if (localApkInfo == null) {
+            // Unfortunately, more specific errors are not forwarded to us
+            // but the internal PackageParser sometimes shows warnings in logcat such as
+            // "Requires newer sdk version #14 (current version is #11)"
+            throw new ApkVerificationException("Parsing apk file failed!" +
+                    "Maybe minSdk of apk is lower than current Sdk?" +
+                    "Look into logcat for more specific warnings of Android's PackageParser");
+        }
+        return ApkManifest.fromPackageInfo(localApkInfo);
+    }
+
     /**
      * Compares to sets of APK permissions to see if they are an exact match.  The
      * data format is {@link String} arrays but they are in effect sets. This is the
      * same data format as {@link android.content.pm.PackageInfo#requestedPermissions}
      */
     public static boolean requestedPermissionsEqual(@Nullable String[] expected, @Nullable String[] actual) {
-        Utils.debugLog(TAG, "Checking permissions");
-        Utils.debugLog(TAG, "Actual:\n  " + (actual == null ? "None" : TextUtils.join("\n  ", actual)));
-        Utils.debugLog(TAG, "Expected:\n  " + (expected == null ? "None" : TextUtils.join("\n  ", expected)));
+        if (BuildConfig.DEBUG) {
+            Utils.debugLog(TAG, "Checking permissions");
+            Utils.debugLog(TAG, "Actual:\n  " + (actual == null ? "None" : TextUtils.join("\n  ", actual)));
+            Utils.debugLog(TAG, "Expected:\n  " + (expected == null ? "None" : TextUtils.join("\n  ", expected)));
+        }
 
         if (expected == null && actual == null) {
             return true;
@@ -116,9 +142,26 @@ class ApkVerifier {
         if (expected.length != actual.length) {
             return false;
         }
-        HashSet<String> expectedSet = new HashSet<>(Arrays.asList(expected));
-        HashSet<String> actualSet = new HashSet<>(Arrays.asList(actual));
-        return expectedSet.equals(actualSet);
+        // the lists are short, sorted copies are cheaper than two HashSets
+        String[] expectedSorted = expected.clone();
+        String[] actualSorted = actual.clone();
+        Arrays.sort(expectedSorted);
+        Arrays.sort(actualSorted);
+        int e = 0;
+        int a = 0;
+        while (e < expectedSorted.length && a < actualSorted.length) {
+            if (!expectedSorted[e].equals(actualSorted[a])) {
+                return false;
+            }
+            String permission = expectedSorted[e];
+            while (e < expectedSorted.length && permission.equals(expectedSorted[e])) {
+                e++;
+            }
+            while (a < actualSorted.length && permission.equals(actualSorted[a])) {
+                a++;
+            }
+        }
+        return e == expectedSorted.length && a == actualSorted.length;
     }
 
     public static class ApkVerificationException extends Exception {
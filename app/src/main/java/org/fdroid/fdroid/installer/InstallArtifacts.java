@@ -0,0 +1,118 @@
+package org.fdroid.fdroid.installer;
+
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Everything that has to be downloaded for a single install: the APK itself
+ * plus any OBB expansion files.  These are downloaded at the same time, so
+ * this adds up their progress into the one number shown for the install, and
+ * holds back the install until every file has finished and been verified.
+ * <p>
+ * This is only used from the main thread, where {@link InstallManagerService}
+ * gets its broadcasts, so it does not need any locking.
+ */
+class InstallArtifacts {
+
+    private final Map<String, long[]> progress = new HashMap<>();
+    private final Set<String> finished = new HashSet<>();
+    private Uri downloadedApk;
+    private boolean background;
+    private boolean failed;
+
+    /**
+     * Start tracking a file which needs to be downloaded before installing.
+     */
+    void add(String urlString) {
+        if (!progress.containsKey(urlString)) {
+            progress.put(urlString, new long[]{0, 0});
+        }
+    }
+
+    void setProgress(String urlString, int bytesRead, int totalBytes) {
+        long[] artifactProgress = progress.get(urlString);
+        if (artifactProgress != null) {
+            artifactProgress[0] = bytesRead;
+            artifactProgress[1] = totalBytes;
+        }
+    }
+
+    /**
+     * @return the bytes downloaded so far and the total size of the files
+     * whose size is known, or all bytes downloaded so far and {@code -1} if
+     * no size is known yet.  A file without a size yet only counts once it
+     * has one, so the progress never goes past the total.
+     */
+    long[] getProgress() {
+        long bytesRead = 0;
+        long knownBytesRead = 0;
+        long totalBytes = 0;
+        for (long[] artifactProgress : progress.values()) {
+            bytesRead += artifactProgress[0];
+            if (artifactProgress[1] > 0) {
+                knownBytesRead += artifactProgress[0];
+                totalBytes += artifactProgress[1];
+            }
+        }
+        if (totalBytes == 0) {
+            return new long[]{bytesRead, -1};
+        }
+        return new long[]{knownBytesRead, totalBytes};
+    }
+
+    /**
+     * Mark a file as done and verified.
+     *
+     * @return whether all the files are now done
+     */
+    boolean finish(String urlString) {
+        long[] artifactProgress = progress.get(urlString);
+        if (artifactProgress != null && finished.add(urlString) && artifactProgress[1] > 0) {
+            artifactProgress[0] = artifactProgress[1];
+        }
+        return isFinished();
+    }
+
+    boolean isFinished() {
+        return finished.size() >= progress.size();
+    }
+
+    /**
+     * Whether these files are downloaded in the background, i.e. nobody is
+     * waiting on them, so they should not get in the way of other downloads.
+     */
+    void setBackground(boolean background) {
+        this.background = background;
+    }
+
+    boolean isBackground() {
+        return background;
+    }
+
+    /**
+     * One of the files could not be downloaded or did not match its hash, so
+     * this install must not go ahead, no matter what happens with the others.
+     */
+    void setFailed() {
+        failed = true;
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+
+    void setDownloadedApk(Uri localApkUri) {
+        downloadedApk = localApkUri;
+    }
+
+    /**
+     * @return the downloaded APK, once it is ready to install
+     */
+    Uri getDownloadedApk() {
+        return downloadedApk;
+    }
+}
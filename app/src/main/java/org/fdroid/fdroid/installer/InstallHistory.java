@@ -0,0 +1,580 @@
+/*
+ * Copyright (C) 2016 Blue Jay Wireless
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+
+package org.fdroid.fdroid.installer;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Apk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps all activity of installs and uninstalls for later use, like displaying
+ * in some kind of history viewer or reporting to a "popularity contest" app
+ * tracker.
+ * <p>
+ * Events are kept in memory for {@link #FLUSH_DELAY_SECONDS} and then appended
+ * together to {@link #EVENTS_FILE_NAME}, where each one takes {@link #RECORD_SIZE}
+ * bytes.  Each record points to the one before it for the same package, and
+ * {@link #PACKAGES_FILE_NAME} has the newest record of each package, so
+ * {@link #getEvents(String, int)} only reads the records it returns.  Records
+ * are in time order, so {@link #getEvents(long, long)} finds where to start
+ * with a binary search.  Neither has to read the whole history.
+ * <p>
+ * For apps that used to read the text log through {@link #LOG_URI}, each
+ * flush also appends the same events there as
+ * {@code timestamp,packageName,versionCode,action} lines.  When there is no
+ * log yet, the events already in that text log are copied into it once.
+ * <p>
+ * The pending events have their own lock, and storage is only used while
+ * holding the lock of this instance, so {@link #add(long, String, int, String)}
+ * never waits for a flush or a query.  The log is first read on the
+ * background thread that also does the flushes.
+ */
+public final class InstallHistory {
+    public static final String TAG = "InstallHistory";
+
+    public static final Uri LOG_URI = Uri.parse("content://org.fdroid.fdroid.installer/install_history/all");
+
+    static final String EVENTS_FILE_NAME = "events";
+    static final String PACKAGES_FILE_NAME = "packages";
+
+    /**
+     * The timestamp, package ID, versionCode, action and the number of the
+     * record before this one for the same package.
+     */
+    static final int RECORD_SIZE = 8 + 4 + 4 + 1 + 4;
+
+    private static final int MAGIC = 0x46444948; // FDIH
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int NO_RECORD = -1;
+
+    private static final long FLUSH_DELAY_SECONDS = 5;
+
+    /**
+     * The index in this list is what is stored for each action, so only add to the end.
+     */
+    private static final List<String> ACTIONS = Arrays.asList(
+            Installer.ACTION_INSTALL_STARTED,
+            Installer.ACTION_INSTALL_COMPLETE,
+            Installer.ACTION_INSTALL_INTERRUPTED,
+            Installer.ACTION_INSTALL_USER_INTERACTION,
+            Installer.ACTION_UNINSTALL_STARTED,
+            Installer.ACTION_UNINSTALL_COMPLETE,
+            Installer.ACTION_UNINSTALL_INTERRUPTED,
+            Installer.ACTION_UNINSTALL_USER_INTERACTION
+    );
+
+    private static InstallHistory instance;
+    private static BroadcastReceiver broadcastReceiver;
+
+    private final File eventsFile;
+    private final File packagesFile;
+    private final File exportFile;
+    private final ScheduledExecutorService scheduler;
+
+    private final List<String> packageNames = new ArrayList<>();
+    private final Map<String, PackageEntry> packages = new HashMap<>();
+    private final Object pendingLock = new Object();
+    private final List<Event> pending = new ArrayList<>();
+    private boolean flushScheduled;
+
+    private boolean loaded;
+    private int recordCount;
+    private long lastTimestamp;
+
+    /**
+     * One thing that happened to one package, as returned by the queries.
+     */
+    public static final class Event {
+        public final long timestamp;
+        public final String packageName;
+        public final int versionCode;
+
+        /**
+         * One of the {@code ACTION_} constants of {@link Installer}.
+         */
+        public final String action;
+
+        Event(long timestamp, String packageName, int versionCode, String action) {
+            this.timestamp = timestamp;
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+            this.action = action;
+        }
+
+        @Override
+        public String toString() {
+            return timestamp + "," + packageName + "," + versionCode + "," + action;
+        }
+    }
+
+    private static final class PackageEntry {
+        final int id;
+        int lastRecord = NO_RECORD;
+        int count;
+
+        PackageEntry(int id) {
+            this.id = id;
+        }
+    }
+
+    InstallHistory(File dir, File exportFile, ScheduledExecutorService scheduler) {
+        this.eventsFile = new File(dir, EVENTS_FILE_NAME);
+        this.packagesFile = new File(dir, PACKAGES_FILE_NAME);
+        this.exportFile = exportFile;
+        this.scheduler = scheduler;
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    public static synchronized InstallHistory getInstance(Context context) {
+        if (instance == null) {
+            instance = new InstallHistory(new File(context.getFilesDir(), "install_history"),
+                    new File(new File(context.getCacheDir(), "install_history"), "all"),
+                    Executors.newSingleThreadScheduledExecutor());
+        }
+        return instance;
+    }
+
+    public static void register(Context context) {
+        if (broadcastReceiver != null) {
+            return;  // already registered
+        }
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addDataScheme("http");
+        intentFilter.addDataScheme("https");
+        intentFilter.addDataScheme("package");
+        for (String action : ACTIONS) {
+            intentFilter.addAction(action);
+        }
+
+        broadcastReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Apk apk = intent.getParcelableExtra(Installer.EXTRA_APK);
+                if (apk == null) {
+                    return;
+                }
+                getInstance(context).add(System.currentTimeMillis(), apk.packageName, apk.versionCode,
+                        intent.getAction());
+            }
+        };
+        LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(context);
+        localBroadcastManager.registerReceiver(broadcastReceiver, intentFilter);
+    }
+
+    public static void unregister(Context context) {
+        LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(context);
+        localBroadcastManager.unregisterReceiver(broadcastReceiver);
+        broadcastReceiver = null;
+    }
+
+    /**
+     * Keep an event, to be written with the next batch.  This never waits for
+     * storage, so it is fine to call on the UI thread.
+     */
+    void add(long timestamp, String packageName, int versionCode, String action) {
+        if (!ACTIONS.contains(action)) {
+            Log.w(TAG, "Not keeping unknown action " + action);
+            return;
+        }
+        Event event = new Event(timestamp, packageName, versionCode, action);
+        Utils.debugLog(TAG, "add " + event);
+        synchronized (pendingLock) {
+            pending.add(event);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (pendingLock) {
+                    flushScheduled = false;
+                }
+                flush();
+            }
+        }, FLUSH_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The newest {@code limit} events for {@code packageName}, newest first.
+     * This reads from storage, so call it from a background thread.
+     */
+    public synchronized List<Event> getEvents(String packageName, int limit) throws IOException {
+        flush();
+        List<Event> events = new ArrayList<>();
+        PackageEntry entry = packages.get(packageName);
+        if (entry == null || recordCount == 0) {
+            return events;
+        }
+        RandomAccessFile file = new RandomAccessFile(eventsFile, "r");
+        try {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            int number = entry.lastRecord;
+            while (number >= 0 && number < recordCount && events.size() < limit) {
+                readRecord(file, number, record);
+                events.add(toEvent(record));
+                number = record.getInt(17);
+            }
+        } finally {
+            file.close();
+        }
+        return events;
+    }
+
+    /**
+     * All events from {@code fromMillis} up to, but not including,
+     * {@code toMillis}, oldest first.  This reads from storage, so call it
+     * from a background thread.
+     */
+    public synchronized List<Event> getEvents(long fromMillis, long toMillis) throws IOException {
+        flush();
+        List<Event> events = new ArrayList<>();
+        if (recordCount == 0) {
+            return events;
+        }
+        RandomAccessFile file = new RandomAccessFile(eventsFile, "r");
+        try {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            int low = 0;
+            int high = recordCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                readRecord(file, middle, record);
+                if (record.getLong(0) < fromMillis) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            for (int number = low; number < recordCount; number++) {
+                readRecord(file, number, record);
+                if (record.getLong(0) >= toMillis) {
+                    break;
+                }
+                events.add(toEvent(record));
+            }
+        } finally {
+            file.close();
+        }
+        return events;
+    }
+
+    /**
+     * How many events there are for {@code packageName}, without reading any
+     * of them.  The package list might still have to be read, so call it from
+     * a background thread.
+     */
+    public synchronized int getEventCount(String packageName) {
+        load();
+        int count = 0;
+        PackageEntry entry = packages.get(packageName);
+        if (entry != null) {
+            count = entry.count;
+        }
+        synchronized (pendingLock) {
+            for (Event event : pending) {
+                if (event.packageName.equals(packageName)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public synchronized int getEventCount() {
+        load();
+        synchronized (pendingLock) {
+            return recordCount + pending.size();
+        }
+    }
+
+    /**
+     * Append all pending events to the log, update the package list, and add
+     * the events to the text export.  Events added meanwhile wait for the
+     * next flush.
+     */
+    synchronized void flush() {
+        load();
+        List<Event> events;
+        synchronized (pendingLock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            events = new ArrayList<>(pending);
+        }
+
+        try {
+            events = append(events);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write the install history, trying again with the next flush", e);
+            // the package list on storage was not changed, read it back to match the log again
+            try {
+                read();
+            } catch (IOException e2) {
+                Log.e(TAG, "Could not read the install history back", e2);
+            }
+            return;
+        }
+        synchronized (pendingLock) {
+            pending.subList(0, events.size()).clear();
+        }
+
+        StringBuilder export = new StringBuilder();
+        for (Event event : events) {
+            export.append(event).append('\n');
+        }
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(exportFile, true);
+            writer.write(export.toString());
+        } catch (IOException e) {
+            Utils.debugLog(TAG, e.getMessage());
+        } finally {
+            Utils.closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Write {@code events} to the end of the log and update the package list.
+     *
+     * @return the events as they were written, with the timestamps moved
+     * forward where the clock was turned back
+     */
+    private List<Event> append(List<Event> events) throws IOException {
+        List<Event> written = new ArrayList<>(events.size());
+        ByteBuffer records = ByteBuffer.allocate(events.size() * RECORD_SIZE);
+        long timestamp = lastTimestamp;
+        int number = recordCount;
+        for (Event event : events) {
+            PackageEntry entry = packages.get(event.packageName);
+            if (entry == null) {
+                entry = new PackageEntry(packageNames.size());
+                packageNames.add(event.packageName);
+                packages.put(event.packageName, entry);
+            }
+            // keep the records in time order, even if the clock was turned back
+            timestamp = Math.max(timestamp, event.timestamp);
+            records.putLong(timestamp);
+            records.putInt(entry.id);
+            records.putInt(event.versionCode);
+            records.put((byte) ACTIONS.indexOf(event.action));
+            records.putInt(entry.lastRecord);
+            entry.lastRecord = number++;
+            entry.count++;
+            written.add(new Event(timestamp, event.packageName, event.versionCode, event.action));
+        }
+
+        RandomAccessFile file = new RandomAccessFile(eventsFile, "rw");
+        try {
+            if (recordCount == 0) {
+                file.setLength(0);
+                file.writeInt(MAGIC);
+                file.writeInt(FORMAT_VERSION);
+            }
+            file.seek(HEADER_SIZE + (long) recordCount * RECORD_SIZE);
+            file.write(records.array());
+        } finally {
+            file.close();
+        }
+        recordCount = number;
+        lastTimestamp = timestamp;
+        writePackages();
+        return written;
+    }
+
+    /**
+     * The package list is rewritten as a whole, it only grows with the number
+     * of packages, not the number of events.  Writing to a temporary file first
+     * means it always matches a complete log, records appended after it are
+     * dropped by {@link #read()}.
+     */
+    private void writePackages() throws IOException {
+        File tmp = new File(packagesFile.getParentFile(), packagesFile.getName() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(tmp));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(recordCount);
+            output.writeLong(lastTimestamp);
+            output.writeInt(packageNames.size());
+            for (String packageName : packageNames) {
+                PackageEntry entry = packages.get(packageName);
+                output.writeUTF(packageName);
+                output.writeInt(entry.lastRecord);
+                output.writeInt(entry.count);
+            }
+        } finally {
+            output.close();
+        }
+        if (!tmp.renameTo(packagesFile)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + packagesFile);
+        }
+    }
+
+    /**
+     * Read the log the first time it is needed.  If there is no log yet, the
+     * events in the text export of an older version are copied into it.
+     */
+    private synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        eventsFile.getParentFile().mkdirs();
+        exportFile.getParentFile().mkdirs();
+        try {
+            boolean isNew = !packagesFile.exists();
+            read();
+            if (isNew) {
+                migrateExport();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read the install history, starting a new one", e);
+            packageNames.clear();
+            packages.clear();
+            recordCount = 0;
+            lastTimestamp = 0;
+            eventsFile.delete();
+        }
+    }
+
+    private void migrateExport() throws IOException {
+        if (!exportFile.exists()) {
+            return;
+        }
+        List<Event> events = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(exportFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] values = line.split(",");
+                if (values.length != 4 || !ACTIONS.contains(values[3])) {
+                    Utils.debugLog(TAG, "Skipping invalid line " + line);
+                    continue;
+                }
+                try {
+                    events.add(new Event(Long.parseLong(values[0]), values[1], Integer.parseInt(values[2]),
+                            values[3]));
+                } catch (NumberFormatException e) {
+                    Utils.debugLog(TAG, "Skipping invalid line " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (!events.isEmpty()) {
+            append(events);
+            Utils.debugLog(TAG, "Copied " + events.size() + " events from " + exportFile);
+        }
+    }
+
+    private void read() throws IOException {
+        packageNames.clear();
+        packages.clear();
+        recordCount = 0;
+        lastTimestamp = 0;
+        if (!packagesFile.exists()) {
+            eventsFile.delete();
+            return;
+        }
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(packagesFile)));
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown format of " + packagesFile);
+            }
+            recordCount = input.readInt();
+            lastTimestamp = input.readLong();
+            int count = input.readInt();
+            for (int id = 0; id < count; id++) {
+                String packageName = input.readUTF();
+                PackageEntry entry = new PackageEntry(id);
+                entry.lastRecord = input.readInt();
+                entry.count = input.readInt();
+                packageNames.add(packageName);
+                packages.put(packageName, entry);
+            }
+        } finally {
+            input.close();
+        }
+
+        long length = HEADER_SIZE + (long) recordCount * RECORD_SIZE;
+        if (eventsFile.length() < length) {
+            throw new IOException(eventsFile + " is shorter than " + packagesFile + " says");
+        } else if (eventsFile.length() > length) {
+            // left over from a flush that did not finish
+            RandomAccessFile file = new RandomAccessFile(eventsFile, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    private static void readRecord(RandomAccessFile file, int number, ByteBuffer record) throws IOException {
+        file.seek(HEADER_SIZE + (long) number * RECORD_SIZE);
+        file.readFully(record.array());
+    }
+
+    private Event toEvent(ByteBuffer record) throws IOException {
+        int id = record.getInt(8);
+        int action = record.get(16);
+        if (id < 0 || id >= packageNames.size() || action < 0 || action >= ACTIONS.size()) {
+            throw new IOException("Invalid record in " + eventsFile);
+        }
+        return new Event(record.getLong(0), packageNames.get(id), record.getInt(12), ACTIONS.get(action));
+    }
+}
@@ -11,6 +11,7 @@ import android.net.Uri;
 import android.os.IBinder;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
+import android.util.Log;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
@@ -27,6 +28,7 @@ import org.fdroid.fdroid.net.DownloaderService;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.util.HashMap;
 
 /**
  * Manages the whole process when a background update triggers an install or the user
@@ -58,8 +60,15 @@ import java.io.IOException;
  * include caching of the generated {@code String}, so it should be plenty fast.
  * <p>
  * This also handles downloading OBB "APK Extension" files for any APK that has one
- * assigned to it.  OBB files are queued up for download before the APK so that they
- * are hopefully in place before the APK starts.  That is not guaranteed though.
+ * assigned to it.  OBB files are downloaded alongside the APK using
+ * {@link DownloaderService#queueParallel(Context, String, long, String)}, each one
+ * is verified as soon as it completes, and the install only starts once the APK
+ * and all of its OBB files are done.  Their progress is added up into the single
+ * {@link AppUpdateStatusManager} entry for the APK, see {@link InstallArtifacts}.
+ * <p>
+ * Installs started with {@link #queueInBackground(Context, App, Apk)} send the
+ * APK and its OBB files to the background download queue instead, see
+ * {@link DownloaderService#queueBackground(Context, String, long, String)}.
  *
  * @see <a href="https://developer.android.com/google/play/expansion-files.html">APK Expansion Files</a>
  */
@@ -82,10 +91,16 @@ public class InstallManagerService extends Service {
 
     private static final String EXTRA_APP = "org.fdroid.fdroid.installer.extra.APP";
     private static final String EXTRA_APK = "org.fdroid.fdroid.installer.extra.APK";
+    private static final String EXTRA_BACKGROUND = "org.fdroid.fdroid.installer.extra.BACKGROUND";
 
     private LocalBroadcastManager localBroadcastManager;
     private AppUpdateStatusManager appUpdateStatusManager;
 
+    /**
+     * The files being downloaded for each install, keyed by the APK's {@code urlString}.
+     */
+    private final HashMap<String, InstallArtifacts> installArtifacts = new HashMap<>();
+
     /**
      * This service does not use binding, so no need to implement this method
      */
@@ -140,6 +155,7 @@ public class InstallManagerService extends Service {
                 DownloaderService.cancel(this, apk.getPatchObbUrl());
                 DownloaderService.cancel(this, apk.getMainObbUrl());
             }
+            installArtifacts.remove(urlString);
             appUpdateStatusManager.markAsNoLongerPendingInstall(urlString);
             appUpdateStatusManager.removeApk(urlString);
             return START_NOT_STICKY;
@@ -174,23 +190,35 @@ public class InstallManagerService extends Service {
         appUpdateStatusManager.addApk(apk, AppUpdateStatusManager.Status.Downloading, null);
         appUpdateStatusManager.markAsPendingInstall(urlString);
 
+        InstallArtifacts artifacts = new InstallArtifacts();
+        artifacts.add(urlString);
+        artifacts.setBackground(intent.getBooleanExtra(EXTRA_BACKGROUND, false));
+        installArtifacts.put(urlString, artifacts);
+
         registerApkDownloaderReceivers(urlString);
-        getObb(urlString, apk.getMainObbUrl(), apk.getMainObbFile(), apk.obbMainFileSha256);
-        getObb(urlString, apk.getPatchObbUrl(), apk.getPatchObbFile(), apk.obbPatchFileSha256);
+        getObb(urlString, apk.repoId, apk.getMainObbUrl(), apk.getMainObbFile(), apk.obbMainFileSha256);
+        getObb(urlString, apk.repoId, apk.getPatchObbUrl(), apk.getPatchObbFile(), apk.obbPatchFileSha256);
 
         File apkFilePath = ApkCache.getApkDownloadPath(this, intent.getData());
         long apkFileSize = apkFilePath.length();
-        if (!apkFilePath.exists() || apkFileSize < apk.size) {
+        boolean downloaded = apkFilePath.exists() && apkFileSize >= apk.size;
+        if (!downloaded && ApkCache.linkFromStore(this, apkFilePath, apk)) {
+            Utils.debugLog(TAG, "skip download, already stored, straight to install " + urlString + " " + apkFilePath);
+            ApkCacheIndex.getInstance(this).markUsed(apkFilePath);
+            sendBroadcast(intent.getData(), Downloader.ACTION_STARTED, apkFilePath);
+            sendBroadcast(intent.getData(), Downloader.ACTION_COMPLETE, apkFilePath);
+        } else if (!downloaded) {
             Utils.debugLog(TAG, "download " + urlString + " " + apkFilePath);
-            DownloaderService.queue(this, urlString, apk.repoId, urlString);
+            queueApkDownload(this, urlString, apk.repoId, urlString);
         } else if (ApkCache.apkIsCached(apkFilePath, apk)) {
             Utils.debugLog(TAG, "skip download, we have it, straight to install " + urlString + " " + apkFilePath);
+            ApkCacheIndex.getInstance(this).markUsed(apkFilePath);
             sendBroadcast(intent.getData(), Downloader.ACTION_STARTED, apkFilePath);
             sendBroadcast(intent.getData(), Downloader.ACTION_COMPLETE, apkFilePath);
         } else {
             Utils.debugLog(TAG, "delete and download again " + urlString + " " + apkFilePath);
             apkFilePath.delete();
-            DownloaderService.queue(this, urlString, apk.repoId, urlString);
+            queueApkDownload(this, urlString, apk.repoId, urlString);
         }
 
         return START_REDELIVER_INTENT; // if killed before completion, retry Intent
@@ -210,11 +238,12 @@ public class InstallManagerService extends Service {
      *
      * @see <a href="https://developer.android.com/google/play/expansion-files.html">APK Expansion Files</a>
      */
-    private void getObb(final String urlString, String obbUrlString,
+    private void getObb(final String urlString, final long repoId, final String obbUrlString,
                         final File obbDestFile, final String sha256) {
         if (obbDestFile == null || obbDestFile.exists() || TextUtils.isEmpty(obbUrlString)) {
             return;
         }
+        getInstallArtifacts(urlString).add(obbUrlString);
         final BroadcastReceiver downloadReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -225,7 +254,7 @@ public class InstallManagerService extends Service {
 
                     int bytesRead = intent.getIntExtra(Downloader.EXTRA_BYTES_READ, 0);
                     int totalBytes = intent.getIntExtra(Downloader.EXTRA_TOTAL_BYTES, 0);
-                    appUpdateStatusManager.updateApkProgress(urlString, totalBytes, bytesRead);
+                    updateProgress(urlString, obbUrlString, bytesRead, totalBytes);
                 } else if (Downloader.ACTION_COMPLETE.equals(action)) {
                     localBroadcastManager.unregisterReceiver(this);
                     File localFile = new File(intent.getStringExtra(Downloader.EXTRA_DOWNLOAD_PATH));
@@ -233,6 +262,7 @@ public class InstallManagerService extends Service {
                     Utils.debugLog(TAG, "OBB download completed " + intent.getDataString()
                             + " to " + localApkUri);
 
+                    boolean installed = false;
                     try {
                         if (Hasher.isFileMatchingHash(localFile, sha256, "SHA-256")) {
                             Utils.debugLog(TAG, "Installing OBB " + localFile + " to " + obbDestFile);
@@ -246,28 +276,144 @@ public class InstallManagerService extends Service {
                                     FileUtils.deleteQuietly(f);
                                 }
                             }
+                            installed = true;
                         } else {
                             Utils.debugLog(TAG, localFile + " deleted, did not match hash: " + sha256);
                         }
                     } catch (IOException e) {
-                        e.printStackTrace();
+                        Log.e(TAG, "Could not install OBB " + obbDestFile, e);
                     } finally {
                         FileUtils.deleteQuietly(localFile);
                     }
+                    if (installed) {
+                        finishArtifact(context, urlString, obbUrlString);
+                    } else {
+                        failInstall(context, urlString, "Could not verify " + obbUrlString);
+                    }
                 } else if (Downloader.ACTION_INTERRUPTED.equals(action)) {
                     localBroadcastManager.unregisterReceiver(this);
+                    failInstall(context, urlString, intent.getStringExtra(Downloader.EXTRA_ERROR_MESSAGE));
                 } else if (Downloader.ACTION_CONNECTION_FAILED.equals(action)) {
-                    DownloaderService.queue(context, urlString, 0, urlString);
+                    // the same mirrors and retries as for the APK, then the whole install fails
+                    try {
+                        String mirrorUrlString = intent.getStringExtra(Downloader.EXTRA_MIRROR_URL);
+                        queueObbDownload(context, urlString, FDroidApp.getMirror(mirrorUrlString, repoId), repoId,
+                                obbUrlString);
+                        DownloaderService.setTimeout(FDroidApp.getTimeout());
+                    } catch (IOException e) {
+                        localBroadcastManager.unregisterReceiver(this);
+                        failInstall(context, urlString, intent.getStringExtra(Downloader.EXTRA_ERROR_MESSAGE));
+                    }
                 } else {
                     throw new RuntimeException("intent action not handled!");
                 }
             }
         };
-        DownloaderService.queue(this, obbUrlString, 0, obbUrlString);
+        queueObbDownload(this, urlString, obbUrlString, repoId, obbUrlString);
         localBroadcastManager.registerReceiver(downloadReceiver,
                 DownloaderService.getIntentFilter(obbUrlString));
     }
 
+    private void queueApkDownload(Context context, String downloadUrlString, long repoId, String urlString) {
+        if (getInstallArtifacts(urlString).isBackground()) {
+            DownloaderService.queueBackground(context, downloadUrlString, repoId, urlString);
+        } else {
+            DownloaderService.queue(context, downloadUrlString, repoId, urlString);
+        }
+    }
+
+    /**
+     * Background OBB files share the one background worker with their APK,
+     * since there is no hurry and they should not compete with each other.
+     */
+    private void queueObbDownload(Context context, String urlString, String downloadUrlString, long repoId,
+                                  String obbUrlString) {
+        if (getInstallArtifacts(urlString).isBackground()) {
+            DownloaderService.queueBackground(context, downloadUrlString, repoId, obbUrlString);
+        } else {
+            DownloaderService.queueParallel(context, downloadUrlString, repoId, obbUrlString);
+        }
+    }
+
+    /**
+     * Get the {@link InstallArtifacts} for an APK, this creates it if the
+     * install was started before this instance of the service existed.
+     */
+    private InstallArtifacts getInstallArtifacts(String urlString) {
+        InstallArtifacts artifacts = installArtifacts.get(urlString);
+        if (artifacts == null) {
+            artifacts = new InstallArtifacts();
+            artifacts.add(urlString);
+            installArtifacts.put(urlString, artifacts);
+        }
+        return artifacts;
+    }
+
+    private void updateProgress(String urlString, String artifactUrlString, int bytesRead, int totalBytes) {
+        InstallArtifacts artifacts = getInstallArtifacts(urlString);
+        artifacts.setProgress(artifactUrlString, bytesRead, totalBytes);
+        long[] progress = artifacts.getProgress();
+        appUpdateStatusManager.updateApkProgress(urlString,
+                (int) Math.min(Integer.MAX_VALUE, progress[1]), (int) Math.min(Integer.MAX_VALUE, progress[0]));
+    }
+
+    private void finishArtifact(Context context, String urlString, String artifactUrlString) {
+        getInstallArtifacts(urlString).finish(artifactUrlString);
+        installWhenReady(context, urlString);
+    }
+
+    /**
+     * One of the OBB files for an APK could not be downloaded or verified, so
+     * stop the rest of the downloads and do not install the APK.  Once the APK
+     * download is stopped or done, the {@link InstallArtifacts} are removed.
+     */
+    private void failInstall(Context context, String urlString, String errorMessage) {
+        InstallArtifacts artifacts = getInstallArtifacts(urlString);
+        if (artifacts.isFailed()) {
+            return;
+        }
+        artifacts.setFailed();
+        Apk apk = appUpdateStatusManager.getApk(urlString);
+        if (apk != null) {
+            DownloaderService.cancel(context, apk.getPatchObbUrl());
+            DownloaderService.cancel(context, apk.getMainObbUrl());
+        }
+        if (artifacts.getDownloadedApk() == null) {
+            DownloaderService.cancel(context, urlString);
+        } else {
+            installArtifacts.remove(urlString);
+        }
+        appUpdateStatusManager.markAsNoLongerPendingInstall(urlString);
+        appUpdateStatusManager.setDownloadError(urlString, errorMessage);
+    }
+
+    /**
+     * Start the install once the APK and all of its OBB files have finished downloading.
+     */
+    private void installWhenReady(Context context, String urlString) {
+        InstallArtifacts artifacts = installArtifacts.get(urlString);
+        if (artifacts == null || artifacts.getDownloadedApk() == null) {
+            return;
+        }
+        if (artifacts.isFailed()) {
+            installArtifacts.remove(urlString);
+            return;
+        }
+        if (!artifacts.isFinished()) {
+            return;
+        }
+        installArtifacts.remove(urlString);
+
+        Uri downloadUri = Uri.parse(urlString);
+        appUpdateStatusManager.updateApk(urlString, AppUpdateStatusManager.Status.ReadyToInstall, null);
+        registerInstallerReceivers(downloadUri);
+
+        Apk apk = appUpdateStatusManager.getApk(urlString);
+        if (apk != null) {
+            InstallerService.install(context, artifacts.getDownloadedApk(), downloadUri, apk);
+        }
+    }
+
     private void registerApkDownloaderReceivers(String urlString) {
 
         BroadcastReceiver downloadReceiver = new BroadcastReceiver() {
@@ -290,31 +436,30 @@ public class InstallManagerService extends Service {
                     case Downloader.ACTION_PROGRESS:
                         int bytesRead = intent.getIntExtra(Downloader.EXTRA_BYTES_READ, 0);
                         int totalBytes = intent.getIntExtra(Downloader.EXTRA_TOTAL_BYTES, 0);
-                        appUpdateStatusManager.updateApkProgress(urlString, totalBytes, bytesRead);
+                        updateProgress(urlString, urlString, bytesRead, totalBytes);
                         break;
                     case Downloader.ACTION_COMPLETE:
                         File localFile = new File(intent.getStringExtra(Downloader.EXTRA_DOWNLOAD_PATH));
                         Uri localApkUri = Uri.fromFile(localFile);
 
                         Utils.debugLog(TAG, "download completed of " + mirrorUrlString + " to " + localApkUri);
-                        appUpdateStatusManager.updateApk(urlString, AppUpdateStatusManager.Status.ReadyToInstall, null);
-
                         localBroadcastManager.unregisterReceiver(this);
-                        registerInstallerReceivers(downloadUri);
 
-                        Apk apk = appUpdateStatusManager.getApk(urlString);
-                        if (apk != null) {
-                            InstallerService.install(context, localApkUri, downloadUri, apk);
-                        }
+                        getInstallArtifacts(urlString).setDownloadedApk(localApkUri);
+                        finishArtifact(context, urlString, urlString);
                         break;
                     case Downloader.ACTION_INTERRUPTED:
+                        InstallArtifacts artifacts = installArtifacts.remove(urlString);
+                        localBroadcastManager.unregisterReceiver(this);
+                        if (artifacts != null && artifacts.isFailed()) {
+                            break; // stopped because of an OBB file, which already set the error
+                        }
                         appUpdateStatusManager.markAsNoLongerPendingInstall(urlString);
                         appUpdateStatusManager.setDownloadError(urlString, intent.getStringExtra(Downloader.EXTRA_ERROR_MESSAGE));
-                        localBroadcastManager.unregisterReceiver(this);
                         break;
                     case Downloader.ACTION_CONNECTION_FAILED:
                         try {
-                            DownloaderService.queue(context, FDroidApp.getMirror(mirrorUrlString, repoId), repoId, urlString);
+                            queueApkDownload(context, FDroidApp.getMirror(mirrorUrlString, repoId), repoId, urlString);
                             DownloaderService.setTimeout(FDroidApp.getTimeout());
                         } catch (IOException e) {
                             appUpdateStatusManager.markAsNoLongerPendingInstall(urlString);
@@ -405,6 +550,20 @@ public class InstallManagerService extends Service {
      * @param context this app's {@link Context}
      */
     public static void queue(Context context, App app, Apk apk) {
+        queue(context, app, apk, false);
+    }
+
+    /**
+     * Like {@link #queue(Context, App, Apk)}, but for downloads that the user
+     * did not ask for and is not waiting on, like automatically downloading
+     * updates.  These are throttled while anything else is downloading, and
+     * wait while the network is not one that updates should use.
+     */
+    public static void queueInBackground(Context context, App app, Apk apk) {
+        queue(context, app, apk, true);
+    }
+
+    private static void queue(Context context, App app, Apk apk, boolean background) {
         String urlString = apk.getUrl();
         Uri downloadUri = Uri.parse(urlString);
         Installer.sendBroadcastInstall(context, downloadUri, Installer.ACTION_INSTALL_STARTED, apk,
@@ -415,6 +574,7 @@ public class InstallManagerService extends Service {
         intent.setData(downloadUri);
         intent.putExtra(EXTRA_APP, app);
         intent.putExtra(EXTRA_APK, apk);
+        intent.putExtra(EXTRA_BACKGROUND, background);
         context.startService(intent);
     }
 
@@ -0,0 +1,206 @@
+package org.fdroid.fdroid.installer;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import org.fdroid.fdroid.Hasher;
+import org.fdroid.fdroid.Utils;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Installs a batch of APKs with {@link PrivilegedInstaller}, like when all
+ * updates are installed at once, without each APK waiting on all of the
+ * ones before it.  Copying, hash checking and permission checking, as done by
+ * {@link Installer#prepareInstall(Uri, Uri)}, runs for several APKs at the
+ * same time on {@link Hasher#getExecutor()}, while the APKs are handed to the
+ * privileged extension one at a time, in the order they were added.  Each
+ * install waits until the one before it is done, so a failed install only
+ * interrupts the APK it was for.
+ * <p>
+ * How long each stage took for how many APKs and bytes is logged once the
+ * batch is done.
+ * <p>
+ * {@link InstallerService} hands each install to this and then waits in
+ * {@link #awaitIdle()}, so that the service, and with it the process, keeps
+ * running until the whole batch is installed.  Any other request waits in
+ * {@link #awaitDone()} before it is handled, so it stays in order.
+ */
+class InstallPipeline {
+    private static final String TAG = "InstallPipeline";
+
+    /**
+     * How long to wait for the privileged extension to report back before
+     * going on with the next APK anyway.
+     */
+    private static final long INSTALL_TIMEOUT_MINUTES = 2;
+
+    private static InstallPipeline instance;
+
+    private final Context context;
+    private final ExecutorService prepareExecutor;
+    private final ExecutorService installExecutor = Executors.newSingleThreadExecutor();
+
+    private int pending;
+    private int queuedRequests;
+    private long batchStart;
+    private int prepared;
+    private long preparedBytes;
+    private long prepareMillis;
+    private int installed;
+    private long installMillis;
+
+    InstallPipeline(Context context, ExecutorService prepareExecutor) {
+        this.context = context;
+        this.prepareExecutor = prepareExecutor;
+    }
+
+    static synchronized InstallPipeline getInstance(Context context) {
+        if (instance == null) {
+            instance = new InstallPipeline(context.getApplicationContext(), Hasher.getExecutor());
+        }
+        return instance;
+    }
+
+    void install(final Installer installer, final Uri localApkUri, final Uri downloadUri) {
+        startedOne();
+        final Future<Runnable> preparation = prepareExecutor.submit(new Callable<Runnable>() {
+            @Override
+            public Runnable call() {
+                long start = SystemClock.elapsedRealtime();
+                Runnable install = installer.prepareInstall(localApkUri, downloadUri);
+                preparedOne(new File(localApkUri.getPath()).length(), SystemClock.elapsedRealtime() - start);
+                return install;
+            }
+        });
+        installExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Runnable install = preparation.get();
+                    if (install != null) {
+                        long start = SystemClock.elapsedRealtime();
+                        runAndWait(install, downloadUri);
+                        installedOne(SystemClock.elapsedRealtime() - start);
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e(TAG, "Could not install " + downloadUri, e);
+                    installer.sendBroadcastInstall(downloadUri, Installer.ACTION_INSTALL_INTERRUPTED, e.getMessage());
+                } finally {
+                    finishedOne();
+                }
+            }
+        });
+    }
+
+    /**
+     * Run {@code install} and wait until the result for {@code downloadUri}
+     * is broadcast.  A request for user interaction also ends the wait, the
+     * next install should not wait on the user.
+     */
+    void runAndWait(Runnable install, Uri downloadUri) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (!Installer.ACTION_INSTALL_STARTED.equals(intent.getAction())) {
+                    done.countDown();
+                }
+            }
+        };
+        LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(context);
+        localBroadcastManager.registerReceiver(receiver, Installer.getInstallIntentFilter(downloadUri));
+        try {
+            install.run();
+            if (!done.await(INSTALL_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                Log.w(TAG, "No result for " + downloadUri + ", going on with the next install");
+            }
+        } finally {
+            localBroadcastManager.unregisterReceiver(receiver);
+        }
+    }
+
+    /**
+     * Called for each request {@link InstallerService} gets, before it is
+     * handled, so that {@link #awaitIdle()} returns to let it be handled.
+     */
+    synchronized void requestQueued() {
+        queuedRequests++;
+        notifyAll();
+    }
+
+    synchronized void requestStarted() {
+        queuedRequests--;
+    }
+
+    /**
+     * Block until all APKs handed to {@link #install(Installer, Uri, Uri)}
+     * are done, or until another request is waiting to be handled.
+     */
+    synchronized void awaitIdle() throws InterruptedException {
+        while (pending > 0 && queuedRequests <= 0) {
+            wait();
+        }
+    }
+
+    /**
+     * Block until all APKs handed to {@link #install(Installer, Uri, Uri)}
+     * are done, so that an uninstall or an install that does not go through
+     * here cannot overtake them.
+     */
+    synchronized void awaitDone() throws InterruptedException {
+        while (pending > 0) {
+            wait();
+        }
+    }
+
+    private synchronized void startedOne() {
+        if (pending == 0) {
+            batchStart = SystemClock.elapsedRealtime();
+        }
+        pending++;
+    }
+
+    private synchronized void preparedOne(long bytes, long millis) {
+        prepared++;
+        preparedBytes += bytes;
+        prepareMillis += millis;
+    }
+
+    private synchronized void installedOne(long millis) {
+        installed++;
+        installMillis += millis;
+    }
+
+    private synchronized void finishedOne() {
+        pending--;
+        if (pending > 0) {
+            return;
+        }
+        notifyAll();
+        long millis = SystemClock.elapsedRealtime() - batchStart;
+        Utils.debugLog(TAG, String.format(Locale.ENGLISH,
+                "%d APKs done in %d ms: prepared %d (%d KiB) in %d ms total at %d KiB/s, installed %d in %d ms total",
+                prepared, millis, prepared, preparedBytes / 1024, prepareMillis,
+                prepareMillis == 0 ? 0 : preparedBytes * 1000 / 1024 / prepareMillis,
+                installed, installMillis));
+        prepared = 0;
+        preparedBytes = 0;
+        prepareMillis = 0;
+        installed = 0;
+        installMillis = 0;
+    }
+}
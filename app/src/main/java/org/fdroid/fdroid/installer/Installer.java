@@ -243,7 +243,23 @@ public abstract class Installer {
      *                    installation of that specific APK
      */
     public void installPackage(Uri localApkUri, Uri downloadUri) {
-        Uri sanitizedUri;
+        Runnable install = prepareInstall(localApkUri, downloadUri);
+        if (install != null) {
+            install.run();
+        }
+    }
+
+    /**
+     * Everything {@link #installPackage(Uri, Uri)} does before the actual
+     * install: copying the APK to a safe place, checking its hash, and
+     * checking its permissions.  None of that depends on other installs, so
+     * {@link InstallPipeline} does it for several APKs at the same time.
+     *
+     * @return what is left to do to install the APK, or {@code null} if the
+     * install was interrupted, which was already broadcast
+     */
+    Runnable prepareInstall(final Uri localApkUri, final Uri downloadUri) {
+        final Uri sanitizedUri;
 
         try {
             // move apk file to private directory for installation and check hash
@@ -251,7 +267,7 @@ public abstract class Installer {
         } catch (IOException e) {
             Log.e(TAG, e.getMessage(), e);
             sendBroadcastInstall(downloadUri, Installer.ACTION_INSTALL_INTERRUPTED, e.getMessage());
-            return;
+            return null;
         }
 
         try {
@@ -261,7 +277,7 @@ public abstract class Installer {
         } catch (ApkVerifier.ApkVerificationException e) {
             Log.e(TAG, e.getMessage(), e);
             sendBroadcastInstall(downloadUri, Installer.ACTION_INSTALL_INTERRUPTED, e.getMessage());
-            return;
+            return null;
         } catch (ApkVerifier.ApkPermissionUnequalException e) {
             // if permissions of apk are not the ones listed in the repo
             // and an unattended installer is used, a wrong permission screen
@@ -269,20 +285,29 @@ public abstract class Installer {
             if (isUnattended()) {
                 Log.e(TAG, e.getMessage(), e);
                 Log.e(TAG, "Falling back to AOSP DefaultInstaller!");
-                DefaultInstaller defaultInstaller = new DefaultInstaller(context, apk);
-                // https://code.google.com/p/android/issues/detail?id=205827
-                if (Build.VERSION.SDK_INT >= 24) {
-                    // content scheme for N and above
-                    defaultInstaller.installPackageInternal(sanitizedUri, downloadUri);
-                } else {
-                    // file scheme for below N
-                    defaultInstaller.installPackageInternal(localApkUri, downloadUri);
-                }
-                return;
+                final DefaultInstaller defaultInstaller = new DefaultInstaller(context, apk);
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        // https://code.google.com/p/android/issues/detail?id=205827
+                        if (Build.VERSION.SDK_INT >= 24) {
+                            // content scheme for N and above
+                            defaultInstaller.installPackageInternal(sanitizedUri, downloadUri);
+                        } else {
+                            // file scheme for below N
+                            defaultInstaller.installPackageInternal(localApkUri, downloadUri);
+                        }
+                    }
+                };
             }
         }
 
-        installPackageInternal(sanitizedUri, downloadUri);
+        return new Runnable() {
+            @Override
+            public void run() {
+                installPackageInternal(sanitizedUri, downloadUri);
+            }
+        };
     }
 
     protected abstract void installPackageInternal(Uri localApkUri, Uri downloadUri);
@@ -24,6 +24,7 @@ import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.util.Log;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
@@ -43,6 +44,13 @@ import java.io.FileFilter;
  * - no cancel operation is needed. Cancelling an installation
  * would be the same as starting uninstall afterwards
  * <p>
+ * Installs with {@link PrivilegedInstaller} are handed on to
+ * {@link InstallPipeline}, which still installs them one after the other,
+ * but gets the next ones ready in the meantime.  This service keeps running
+ * until that batch is installed, so the process is not stopped halfway.
+ * Uninstalls and other installs wait until the pipeline is empty, so they
+ * still run in the order they were requested.
+ * <p>
  * The download URL is only used as the unique ID that represents this
  * particular apk throughout the whole install process in
  * {@link InstallManagerService}.
@@ -62,8 +70,16 @@ public class InstallerService extends IntentService {
         super("InstallerService");
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        InstallPipeline.getInstance(this).requestQueued();
+        return super.onStartCommand(intent, flags, startId);
+    }
+
     @Override
     protected void onHandleIntent(Intent intent) {
+        InstallPipeline pipeline = InstallPipeline.getInstance(this);
+        pipeline.requestStarted();
         final Apk apk = intent.getParcelableExtra(Installer.EXTRA_APK);
         if (apk == null) {
             Utils.debugLog(TAG, "ignoring intent with null EXTRA_APK: " + intent);
@@ -71,10 +87,31 @@ public class InstallerService extends IntentService {
         }
         Installer installer = InstallerFactory.create(this, apk);
 
+        boolean pipelined = ACTION_INSTALL.equals(intent.getAction()) && installer instanceof PrivilegedInstaller;
+        if (!pipelined) {
+            try {
+                // installs still in the pipeline have to finish first, or this could overtake them
+                pipeline.awaitDone();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while waiting for earlier installs", e);
+            }
+        }
+
         if (ACTION_INSTALL.equals(intent.getAction())) {
             Uri uri = intent.getData();
             Uri downloadUri = intent.getParcelableExtra(Installer.EXTRA_DOWNLOAD_URI);
-            installer.installPackage(uri, downloadUri);
+            if (pipelined) {
+                pipeline.install(installer, uri, downloadUri);
+                try {
+                    // the service has to keep running until the batch is installed,
+                    // but the next queued APK is handed over as soon as it is there
+                    pipeline.awaitIdle();
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Interrupted while installing " + downloadUri, e);
+                }
+            } else {
+                installer.installPackage(uri, downloadUri);
+            }
         } else if (ACTION_UNINSTALL.equals(intent.getAction())) {
             installer.uninstallPackage();
             new Thread() {
@@ -4,22 +4,48 @@ import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.util.Log;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
-import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Hasher;
 import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.ApkHashCache;
 import org.fdroid.fdroid.data.App;
 
 import java.io.File;
 import java.io.IOException;
 import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An {@link IntentService} subclass for generating cached info about the installed APKs
  * which are available for swapping.  It does not cache system apps, since those are
  * rarely swapped.  This is meant to start running when {@link SwapService} starts.
  * <p>
+ * Building an {@link App} from an installed package means hashing the whole APK and
+ * reading its signature and manifest, so the packages are parsed on the threads of
+ * {@link Hasher#getExecutor()}, and what was read from each APK file is saved to
+ * {@link #CACHE_FILE_NAME}.
+ * An entry there is only used while the package's {@link PackageInfo#lastUpdateTime}
+ * and APK path are the same, so the next swap only has to parse the packages that
+ * were installed or updated in the meantime.
+ * <p>
  * This could probably be replaced by {@link org.fdroid.fdroid.data.InstalledAppProvider}
  * if that contained all of the info to generate complete {@link App} and
  * {@link org.fdroid.fdroid.data.Apk} instances.
@@ -27,58 +53,164 @@ import java.security.cert.CertificateEncodingException;
 public class CacheSwapAppsService extends IntentService {
     private static final String TAG = "CacheSwapAppsService";
 
-    private static final String ACTION_PARSE_APP = "org.fdroid.fdroid.localrepo.action.PARSE_APP";
+    private static final String ACTION_CACHE_APPS = "org.fdroid.fdroid.localrepo.action.CACHE_APPS";
+
+    static final String CACHE_FILE_NAME = "swap-apps.json";
 
     public CacheSwapAppsService() {
         super("CacheSwapAppsService");
     }
 
     /**
-     * Parse the locally installed APK for {@code packageName} and save its XML
-     * to the APK XML cache.
+     * Parse all of the locally installed APKs into a memory cache, reusing
+     * what was saved from an earlier run for the APKs that did not change.
      */
-    private static void parseApp(Context context, String packageName) {
-        Intent intent = new Intent();
-        intent.setData(Utils.getPackageUri(packageName));
-        intent.setClass(context, CacheSwapAppsService.class);
-        intent.setAction(ACTION_PARSE_APP);
+    public static void startCaching(Context context) {
+        Intent intent = new Intent(context, CacheSwapAppsService.class);
+        intent.setAction(ACTION_CACHE_APPS);
         context.startService(intent);
     }
 
-    /**
-     * Parse all of the locally installed APKs into a memory cache, starting
-     * with the currently selected apps.  APKs that are already parsed in the
-     * {@code index.jar} file will be read from that file.
-     */
-    public static void startCaching(Context context) {
-        File indexJarFile = LocalRepoManager.get(context).getIndexJar();
-        PackageManager pm = context.getPackageManager();
-        for (ApplicationInfo applicationInfo : pm.getInstalledApplications(0)) {
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
+        if (intent == null || !ACTION_CACHE_APPS.equals(intent.getAction())) {
+            Utils.debugLog(TAG, "received bad Intent: " + intent);
+            return;
+        }
+
+        Utils.Profiler profiler = new Utils.Profiler(TAG);
+        final PackageManager pm = getPackageManager();
+        File cacheFile = new File(getCacheDir(), CACHE_FILE_NAME);
+        final Map<String, ParsedApk> savedApks = readCache(cacheFile);
+        final Map<String, ParsedApk> parsedApks = new ConcurrentHashMap<>();
+        final AtomicInteger newlyParsed = new AtomicInteger();
+
+        ExecutorService executor = Hasher.getExecutor();
+        List<Future<Void>> results = new ArrayList<>();
+        for (final ApplicationInfo applicationInfo : pm.getInstalledApplications(0)) {
             if (applicationInfo.publicSourceDir.startsWith(FDroidApp.SYSTEM_DIR_NAME)) {
                 continue;
             }
-            if (!indexJarFile.exists()
-                    || FileUtils.isFileNewer(new File(applicationInfo.sourceDir), indexJarFile)) {
-                parseApp(context, applicationInfo.packageName);
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    String packageName = applicationInfo.packageName;
+                    try {
+                        PackageInfo packageInfo = pm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
+                        ParsedApk saved = savedApks.get(packageName);
+                        App app;
+                        if (saved != null && saved.isFrom(packageInfo)) {
+                            app = new App(pm, packageInfo, saved.toApk());
+                            parsedApks.put(packageName, saved);
+                        } else {
+                            app = new App(CacheSwapAppsService.this, pm, packageName);
+                            parsedApks.put(packageName, new ParsedApk(packageInfo, app.installedApk));
+                            newlyParsed.incrementAndGet();
+                        }
+                        SwapService.putAppInCache(packageName, app);
+                    } catch (CertificateEncodingException | IOException | PackageManager.NameNotFoundException e) {
+                        Log.e(TAG, "Could not parse " + packageName, e);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.e(TAG, "Error while parsing installed apps", e);
             }
         }
+        profiler.log("Cached " + parsedApks.size() + " apps, " + newlyParsed.get() + " had to be parsed");
+
+        if (newlyParsed.get() > 0 || parsedApks.size() != savedApks.size()) {
+            writeCache(cacheFile, parsedApks);
+        }
+        ApkHashCache.getInstance(this).save();
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
-        if (intent == null || !ACTION_PARSE_APP.equals(intent.getAction())) {
-            Utils.debugLog(TAG, "received bad Intent: " + intent);
-            return;
+    private static Map<String, ParsedApk> readCache(File cacheFile) {
+        if (cacheFile.exists()) {
+            try {
+                return getObjectMapper().readValue(cacheFile, new TypeReference<HashMap<String, ParsedApk>>() {
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read " + cacheFile + ", parsing all apps again", e);
+            }
         }
+        return new HashMap<>();
+    }
 
+    private static void writeCache(File cacheFile, Map<String, ParsedApk> parsedApks) {
+        File tmp = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
         try {
-            PackageManager pm = getPackageManager();
-            String packageName = intent.getData().getSchemeSpecificPart();
-            App app = new App(this, pm, packageName);
-            SwapService.putAppInCache(packageName, app);
-        } catch (CertificateEncodingException | IOException | PackageManager.NameNotFoundException e) {
-            e.printStackTrace();
+            getObjectMapper().writeValue(tmp, parsedApks);
+            if (!tmp.renameTo(cacheFile)) {
+                throw new IOException("Could not rename " + tmp + " to " + cacheFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save parsed apps", e);
+            tmp.delete();
+        }
+    }
+
+    private static ObjectMapper getObjectMapper() {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return mapper;
+    }
+
+    /**
+     * What {@link App#App(Context, PackageManager, String)} reads out of the APK
+     * file itself, which stays the same as long as the package was not updated
+     * or moved.
+     */
+    static final class ParsedApk {
+        public long lastUpdateTime;
+        public String sourceDir;
+        public String hash;
+        public String hashType;
+        public String sig;
+        public String[] nativecode;
+        public int minSdkVersion;
+        public int targetSdkVersion;
+        public int maxSdkVersion;
+
+        /**
+         * For Jackson.
+         */
+        public ParsedApk() {
+        }
+
+        ParsedApk(PackageInfo packageInfo, Apk apk) {
+            lastUpdateTime = packageInfo.lastUpdateTime;
+            sourceDir = packageInfo.applicationInfo.publicSourceDir;
+            hash = apk.hash;
+            hashType = apk.hashType;
+            sig = apk.sig;
+            nativecode = apk.nativecode;
+            minSdkVersion = apk.minSdkVersion;
+            targetSdkVersion = apk.targetSdkVersion;
+            maxSdkVersion = apk.maxSdkVersion;
+        }
+
+        boolean isFrom(PackageInfo packageInfo) {
+            return lastUpdateTime == packageInfo.lastUpdateTime
+                    && sourceDir != null && sourceDir.equals(packageInfo.applicationInfo.publicSourceDir);
+        }
+
+        Apk toApk() {
+            Apk apk = new Apk();
+            apk.hash = hash;
+            apk.hashType = hashType;
+            apk.sig = sig;
+            apk.nativecode = nativecode;
+            apk.minSdkVersion = minSdkVersion;
+            apk.targetSdkVersion = targetSdkVersion;
+            apk.maxSdkVersion = maxSdkVersion;
+            return apk;
         }
     }
 }
@@ -2,6 +2,7 @@ package org.fdroid.fdroid.localrepo;
 
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
@@ -15,13 +16,20 @@ import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Hasher;
+import org.fdroid.fdroid.IndexV1Updater;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.compat.FileCompat;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.SanitizedFile;
+import org.fdroid.fdroid.installer.ApkStore;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 import org.xmlpull.v1.XmlSerializer;
@@ -36,15 +44,17 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.security.cert.CertificateEncodingException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 
@@ -52,7 +62,12 @@ import java.util.jar.JarOutputStream;
  * The {@link SwapService} deals with managing the entire workflow from selecting apps to
  * swap, to invoking this class to prepare the webroot, to enabling various communication protocols.
  * This class deals specifically with the webroot side of things, ensuring we have a valid index.jar
- * and the relevant .apk and icon files available.
+ * and index-v1.jar, and the relevant .apk and icon files available.
+ * <p>
+ * The repo is kept up to date incrementally: when the selection of apps changes, only the apps
+ * that were added, removed or updated are looked at again.  The other apps keep their APK link,
+ * their icon, and their already written part of the index in {@link IndexFragments}, so that
+ * writing the index only means putting those together and signing the result.
  */
 @SuppressWarnings("LineLength")
 public final class LocalRepoManager {
@@ -63,16 +78,29 @@ public final class LocalRepoManager {
     private final AssetManager assetManager;
     private final String fdroidPackageName;
 
+    /**
+     * The index format version that both {@code index.xml} and {@code index-v1.json} claim.
+     */
+    private static final int REPO_VERSION = 10;
+
     private static final String[] WEB_ROOT_ASSET_FILES = {
             "swap-icon.png",
             "swap-tick-done.png",
             "swap-tick-not-done.png",
     };
 
-    private final Map<String, App> apps = new HashMap<>();
+    private final Map<String, App> apps = new ConcurrentHashMap<>();
+    private final Map<String, IndexFragments> indexFragments = new ConcurrentHashMap<>();
+
+    /**
+     * The {@link IndexFragments} include the local repo name in each app's categories.
+     */
+    private String indexFragmentsRepoName;
 
     private final SanitizedFile xmlIndexJar;
     private final SanitizedFile xmlIndexJarUnsigned;
+    private final SanitizedFile indexV1Jar;
+    private final SanitizedFile indexV1JarUnsigned;
     private final SanitizedFile webRoot;
     private final SanitizedFile fdroidDir;
     private final SanitizedFile fdroidDirCaps;
@@ -106,6 +134,8 @@ public final class LocalRepoManager {
         iconsDir = new SanitizedFile(repoDir, "icons");
         xmlIndexJar = new SanitizedFile(repoDir, "index.jar");
         xmlIndexJarUnsigned = new SanitizedFile(repoDir, "index.unsigned.jar");
+        indexV1Jar = new SanitizedFile(repoDir, IndexV1Updater.SIGNED_FILE_NAME);
+        indexV1JarUnsigned = new SanitizedFile(repoDir, "index-v1.unsigned.jar");
 
         if (!fdroidDir.exists() && !fdroidDir.mkdir()) {
             Log.e(TAG, "Unable to create empty base: " + fdroidDir);
@@ -246,7 +276,12 @@ public final class LocalRepoManager {
 
             if (app.installedApk != null) {
                 SanitizedFile outFile = new SanitizedFile(repoDir, app.installedApk.apkName);
-                if (Utils.symlinkOrCopyFileQuietly(app.installedApk.installedFile, outFile)) {
+                if (outFile.exists()) {
+                    continue;
+                }
+                // a symlink to an APK that was updated since is dangling, exists() is false for it
+                outFile.delete();
+                if (linkApkToRepo(app.installedApk, outFile)) {
                     continue;
                 }
             }
@@ -255,11 +290,85 @@ public final class LocalRepoManager {
         }
     }
 
+    /**
+     * Link to the {@link ApkStore} entry if the APK is in there already,
+     * e.g. because it was installed with F-Droid, otherwise symlink to the
+     * installed APK.  Only if that does not work either, the APK is copied
+     * into the store, so that the next swap can link to it.
+     */
+    private boolean linkApkToRepo(Apk apk, SanitizedFile outFile) {
+        SanitizedFile entry = ApkStore.get(context, apk.hash, apk.hashType);
+        if (entry != null && ApkStore.link(entry, outFile)) {
+            return true;
+        }
+        if (FileCompat.symlink(apk.installedFile, outFile)) {
+            return true;
+        }
+        try {
+            entry = ApkStore.put(context, apk.installedFile, null);
+            return entry != null && ApkStore.link(entry, outFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not store " + apk.installedFile, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return whether no apps are in the repo, e.g. because nothing was added since F-Droid started
+     */
+    public boolean isEmpty() {
+        return apps.isEmpty();
+    }
+
+    /**
+     * Remove all apps that are not in {@code packageNames} from the repo.
+     */
+    public void retainApps(Set<String> packageNames) {
+        for (String packageName : new ArrayList<>(apps.keySet())) {
+            if (!packageNames.contains(packageName)) {
+                removeApp(packageName);
+            }
+        }
+    }
+
+    public void removeApp(String packageName) {
+        App app = apps.remove(packageName);
+        indexFragments.remove(packageName);
+        if (app != null && app.installedApk != null) {
+            // not checking exists() first, it is false for a symlink that is dangling
+            new SanitizedFile(repoDir, app.installedApk.apkName).delete();
+            File icon = getIconFile(packageName, app.installedApk.versionCode);
+            if (icon.exists()) {
+                attemptToDelete(icon);
+            }
+        }
+    }
+
+    /**
+     * Add an installed app to the repo.  This does nothing if the same install
+     * of it is already there, so it is cheap to call for every selected app.
+     */
     public void addApp(Context context, String packageName) {
+        PackageInfo packageInfo;
+        try {
+            packageInfo = pm.getPackageInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            Utils.debugLog(TAG, packageName + " is no longer installed");
+            removeApp(packageName);
+            return;
+        }
+        App existing = apps.get(packageName);
+        if (existing != null) {
+            if (isCurrentInstall(existing, packageInfo)) {
+                return;
+            }
+            removeApp(packageName);
+        }
+
         App app;
         try {
             app = SwapService.getAppFromCache(packageName);
-            if (app == null) {
+            if (app == null || !isCurrentInstall(app, packageInfo)) {
                 app = new App(context.getApplicationContext(), pm, packageName);
             }
             if (!app.isValid()) {
@@ -273,10 +382,23 @@ public final class LocalRepoManager {
         apps.put(packageName, app);
     }
 
+    /**
+     * Whether {@code app} was made from the APK that is installed now.  An
+     * update or reinstalling the same version moves the APK to a new path and
+     * changes {@link PackageInfo#lastUpdateTime}, the versionCode does not
+     * have to change.
+     */
+    private static boolean isCurrentInstall(App app, PackageInfo packageInfo) {
+        return app.installedApk != null && app.installedApk.installedFile != null && app.lastUpdated != null
+                && app.lastUpdated.getTime() == packageInfo.lastUpdateTime
+                && app.installedApk.installedFile.getAbsolutePath()
+                .equals(packageInfo.applicationInfo.publicSourceDir);
+    }
+
     public void copyIconsToRepo() {
         ApplicationInfo appInfo;
         for (final App app : apps.values()) {
-            if (app.installedApk != null) {
+            if (app.installedApk != null && !getIconFile(app.packageName, app.installedApk.versionCode).exists()) {
                 try {
                     appInfo = pm.getApplicationInfo(app.packageName, PackageManager.GET_META_DATA);
                     copyIconToRepo(appInfo.loadIcon(pm), app.packageName, app.installedApk.versionCode);
@@ -316,6 +438,44 @@ public final class LocalRepoManager {
         return new File(iconsDir, App.getIconName(packageName, versionCode));
     }
 
+    /**
+     * The parts of {@code index.xml} and {@code index-v1.json} that describe a single
+     * version of an app, so they only have to be written again when that app changes.
+     */
+    static final class IndexFragments {
+        final int versionCode;
+        final String applicationXml;
+        final String appJson;
+        final String packagesJson;
+
+        IndexFragments(App app) throws IOException, XmlPullParserException {
+            versionCode = app.installedApk.versionCode;
+            applicationXml = IndexXmlBuilder.buildApplication(app);
+            appJson = IndexV1Builder.buildApp(app);
+            packagesJson = IndexV1Builder.buildPackages(app);
+        }
+    }
+
+    /**
+     * Get the {@link IndexFragments} for every app in the repo, only writing
+     * them for apps that were added or updated since the last time.
+     */
+    private Map<String, IndexFragments> getIndexFragments() throws IOException, XmlPullParserException {
+        String repoName = Preferences.get().getLocalRepoName();
+        if (!TextUtils.equals(repoName, indexFragmentsRepoName)) {
+            indexFragments.clear();
+            indexFragmentsRepoName = repoName;
+        }
+        for (App app : apps.values()) {
+            IndexFragments fragments = indexFragments.get(app.packageName);
+            if (fragments == null || fragments.versionCode != app.installedApk.versionCode) {
+                indexFragments.put(app.packageName, new IndexFragments(app));
+            }
+        }
+        indexFragments.keySet().retainAll(apps.keySet());
+        return indexFragments;
+    }
+
     /**
      * Helper class to aid in constructing index.xml file.
      */
@@ -330,7 +490,20 @@ public final class LocalRepoManager {
             serializer = XmlPullParserFactory.newInstance().newSerializer();
         }
 
-        public void build(Context context, Map<String, App> apps, OutputStream output) throws IOException, LocalRepoKeyStore.InitException {
+        /**
+         * Write a single {@code <application>} element, to be put into
+         * {@code index.xml} by {@link #build(Context, Map, OutputStream)}.
+         */
+        static String buildApplication(App app) throws IOException, XmlPullParserException {
+            IndexXmlBuilder builder = new IndexXmlBuilder();
+            StringWriter writer = new StringWriter();
+            builder.serializer.setOutput(writer);
+            builder.tagApplication(app);
+            builder.serializer.flush();
+            return writer.toString();
+        }
+
+        public void build(Context context, Map<String, IndexFragments> apps, OutputStream output) throws IOException, LocalRepoKeyStore.InitException {
             serializer.setOutput(output, "UTF-8");
             serializer.startDocument(null, null);
             serializer.startTag("", "fdroid");
@@ -342,13 +515,14 @@ public final class LocalRepoManager {
             serializer.attribute("", "pubkey", Hasher.hex(LocalRepoKeyStore.get(context).getCertificate()));
             long timestamp = System.currentTimeMillis() / 1000L;
             serializer.attribute("", "timestamp", String.valueOf(timestamp));
-            serializer.attribute("", "version", "10");
+            serializer.attribute("", "version", String.valueOf(REPO_VERSION));
             tag("description", "A local FDroid repo generated from apps installed on " + Preferences.get().getLocalRepoName());
             serializer.endTag("", "repo");
 
-            // <application> blocks
-            for (Map.Entry<String, App> entry : apps.entrySet()) {
-                tagApplication(entry.getValue());
+            // <application> blocks, already written out
+            serializer.flush();
+            for (IndexFragments fragments : apps.values()) {
+                output.write(fragments.applicationXml.getBytes("UTF-8"));
             }
 
             serializer.endTag("", "fdroid");
@@ -476,23 +650,191 @@ public final class LocalRepoManager {
         }
     }
 
+    /**
+     * Helper class to write {@code index-v1.json}, in the same format that
+     * {@link IndexV1Updater} reads.  Like {@link IndexXmlBuilder}, this writes
+     * straight to the output with Jackson's {@link JsonGenerator} rather than
+     * building the whole tree in memory first, putting in each app's
+     * {@link IndexFragments} as they are.
+     */
+    public static final class IndexV1Builder {
+        private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+        @NonNull
+        private final JsonGenerator generator;
+
+        IndexV1Builder(OutputStream output) throws IOException {
+            this(JSON_FACTORY.createGenerator(output, JsonEncoding.UTF8));
+        }
+
+        private IndexV1Builder(@NonNull JsonGenerator generator) {
+            this.generator = generator;
+            // the jar entry still needs to be closed after this is done
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        }
+
+        /**
+         * Write a single entry of the {@code apps} list.
+         */
+        static String buildApp(App app) throws IOException {
+            StringWriter writer = new StringWriter();
+            IndexV1Builder builder = new IndexV1Builder(JSON_FACTORY.createGenerator(writer));
+            builder.writeApp(app);
+            builder.generator.close();
+            return writer.toString();
+        }
+
+        /**
+         * Write the list of packages of a single app in the {@code packages} map.
+         */
+        static String buildPackages(App app) throws IOException {
+            StringWriter writer = new StringWriter();
+            IndexV1Builder builder = new IndexV1Builder(JSON_FACTORY.createGenerator(writer));
+            builder.generator.writeStartArray();
+            builder.writePackage(app.packageName, app.installedApk);
+            builder.generator.writeEndArray();
+            builder.generator.close();
+            return writer.toString();
+        }
+
+        public void build(Map<String, IndexFragments> apps) throws IOException {
+            generator.writeStartObject();
+
+            generator.writeObjectFieldStart("repo");
+            generator.writeNumberField("timestamp", System.currentTimeMillis());
+            generator.writeNumberField("version", REPO_VERSION);
+            generator.writeStringField("name", Preferences.get().getLocalRepoName() + " on " + FDroidApp.ipAddressString);
+            generator.writeStringField("icon", "blah.png");
+            generator.writeStringField("description", "A local FDroid repo generated from apps installed on " + Preferences.get().getLocalRepoName());
+            generator.writeEndObject();
+
+            generator.writeObjectFieldStart("requests");
+            generator.writeArrayFieldStart("install");
+            generator.writeEndArray();
+            generator.writeArrayFieldStart("uninstall");
+            generator.writeEndArray();
+            generator.writeEndObject();
+
+            generator.writeArrayFieldStart("apps");
+            for (IndexFragments fragments : apps.values()) {
+                generator.writeRawValue(fragments.appJson);
+            }
+            generator.writeEndArray();
+
+            generator.writeObjectFieldStart("packages");
+            for (Map.Entry<String, IndexFragments> entry : apps.entrySet()) {
+                generator.writeFieldName(entry.getKey());
+                generator.writeRawValue(entry.getValue().packagesJson);
+            }
+            generator.writeEndObject();
+
+            generator.writeEndObject();
+            generator.close();
+        }
+
+        private void writeApp(App app) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("packageName", app.packageName);
+            generator.writeStringField("name", app.name);
+            generator.writeStringField("summary", app.summary);
+            generator.writeStringField("icon", app.icon);
+            generator.writeStringField("description", app.description);
+            generator.writeStringField("license", "Unknown");
+            generator.writeArrayFieldStart("categories");
+            generator.writeString("LocalRepo");
+            generator.writeString(Preferences.get().getLocalRepoName());
+            generator.writeEndArray();
+            writeDateField("added", app.added);
+            writeDateField("lastUpdated", app.lastUpdated);
+            generator.writeNumberField("suggestedVersionCode", app.installedApk.versionCode);
+            generator.writeEndObject();
+        }
+
+        private void writePackage(String packageName, Apk apk) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("packageName", packageName);
+            generator.writeStringField("versionName", apk.versionName);
+            generator.writeNumberField("versionCode", apk.versionCode);
+            generator.writeStringField("apkName", apk.apkName);
+            generator.writeStringField("hash", apk.hash);
+            generator.writeStringField("hashType", apk.hashType);
+            generator.writeStringField("sig", apk.sig.toLowerCase(Locale.US));
+            generator.writeNumberField("size", apk.installedFile.length());
+            writeDateField("added", apk.added);
+            if (apk.minSdkVersion > Apk.SDK_VERSION_MIN_VALUE) {
+                generator.writeNumberField("minSdkVersion", apk.minSdkVersion);
+            }
+            if (apk.targetSdkVersion > apk.minSdkVersion) {
+                generator.writeNumberField("targetSdkVersion", apk.targetSdkVersion);
+            }
+            if (apk.maxSdkVersion < Apk.SDK_VERSION_MAX_VALUE) {
+                generator.writeNumberField("maxSdkVersion", apk.maxSdkVersion);
+            }
+            writeStringArrayField("features", apk.features);
+            writeStringArrayField("nativecode", apk.nativecode);
+            if (apk.requestedPermissions != null) {
+                // each entry is [name, maxSdkVersion], and these have no maxSdkVersion
+                generator.writeArrayFieldStart("uses-permission");
+                for (String permission : apk.requestedPermissions) {
+                    generator.writeStartArray();
+                    generator.writeString(permission);
+                    generator.writeNull();
+                    generator.writeEndArray();
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+        }
+
+        /**
+         * {@code index-v1.json} has dates as milliseconds since the epoch.
+         */
+        private void writeDateField(String name, Date date) throws IOException {
+            if (date != null) {
+                generator.writeNumberField(name, date.getTime());
+            }
+        }
+
+        private void writeStringArrayField(String name, String[] values) throws IOException {
+            if (values != null) {
+                generator.writeArrayFieldStart(name);
+                for (String value : values) {
+                    generator.writeString(value);
+                }
+                generator.writeEndArray();
+            }
+        }
+    }
+
     public void writeIndexJar() throws IOException, XmlPullParserException, LocalRepoKeyStore.InitException {
+        Map<String, IndexFragments> fragments = getIndexFragments();
+
         BufferedOutputStream bo = new BufferedOutputStream(new FileOutputStream(xmlIndexJarUnsigned));
         JarOutputStream jo = new JarOutputStream(bo);
         JarEntry je = new JarEntry("index.xml");
         jo.putNextEntry(je);
-        new IndexXmlBuilder().build(context, apps, jo);
+        new IndexXmlBuilder().build(context, fragments, jo);
+        jo.close();
+        bo.close();
+        signIndexJar(xmlIndexJarUnsigned, xmlIndexJar);
+
+        bo = new BufferedOutputStream(new FileOutputStream(indexV1JarUnsigned));
+        jo = new JarOutputStream(bo);
+        jo.putNextEntry(new JarEntry(IndexV1Updater.DATA_FILE_NAME));
+        new IndexV1Builder(jo).build(fragments);
         jo.close();
         bo.close();
+        signIndexJar(indexV1JarUnsigned, indexV1Jar);
+    }
 
+    private void signIndexJar(File unsigned, File signed) throws IOException {
         try {
-            LocalRepoKeyStore.get(context).signZip(xmlIndexJarUnsigned, xmlIndexJar);
+            LocalRepoKeyStore.get(context).signZip(unsigned, signed);
         } catch (LocalRepoKeyStore.InitException e) {
             throw new IOException("Could not sign index - keystore failed to initialize");
         } finally {
-            attemptToDelete(xmlIndexJarUnsigned);
+            attemptToDelete(unsigned);
         }
-
     }
 
 }
@@ -41,6 +41,7 @@ import org.fdroid.fdroid.localrepo.type.BluetoothSwap;
 import org.fdroid.fdroid.localrepo.type.SwapType;
 import org.fdroid.fdroid.localrepo.type.WifiSwap;
 import org.fdroid.fdroid.net.WifiStateChangeService;
+import org.fdroid.fdroid.net.bluetooth.httpish.StreamSession;
 import org.fdroid.fdroid.views.swap.SwapWorkflowActivity;
 
 import java.io.IOException;
@@ -551,6 +552,7 @@ public class SwapService extends Service {
 
         //TODO getBluetoothSwap().stopInBackground();
         getWifiSwap().stopInBackground();
+        StreamSession.closeAll();
 
         if (timer != null) {
             timer.cancel();
@@ -10,31 +10,56 @@ import org.fdroid.fdroid.net.bluetooth.BluetoothConnection;
 import org.fdroid.fdroid.net.bluetooth.FileDetails;
 import org.fdroid.fdroid.net.bluetooth.httpish.Request;
 import org.fdroid.fdroid.net.bluetooth.httpish.Response;
+import org.fdroid.fdroid.net.bluetooth.httpish.StreamSession;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 
+/**
+ * Downloads from a Bluetooth swap peer.  If the peer supports it, this is a
+ * {@link StreamSession.Stream} on the one connection that all downloads from
+ * that peer share, otherwise it gets a {@link BluetoothConnection} of its own.
+ */
 public class BluetoothDownloader extends Downloader {
 
     private static final String TAG = "BluetoothDownloader";
 
+    private final StreamSession session;
     private final BluetoothConnection connection;
+    private volatile StreamSession.Stream stream;
     private FileDetails fileDetails;
     private final String sourcePath;
 
     public BluetoothDownloader(String macAddress, URL sourceUrl, File destFile) throws IOException {
         super(sourceUrl, destFile);
-        this.connection = new BluetoothClient(macAddress).openConnection();
+        this.session = StreamSession.get(macAddress);
+        if (session == null) {
+            this.connection = new BluetoothClient(macAddress).openConnection();
+            try {
+                Request.upgrade(connection);
+            } catch (IOException e) {
+                connection.closeQuietly();
+                throw e;
+            }
+        } else {
+            this.connection = null;
+        }
         this.sourcePath = sourceUrl.getPath();
     }
 
     @Override
     protected InputStream getDownloadersInputStream() throws IOException {
-        Request request = Request.createGET(sourcePath, connection);
-        Response response = request.send();
+        Response response;
+        if (session != null) {
+            stream = session.open(Request.Methods.GET, sourcePath);
+            response = stream.getResponse();
+        } else {
+            response = Request.createGET(sourcePath, connection).send();
+        }
         fileDetails = response.toFileDetails();
+        notFound = response.getStatusCode() == 404;
 
         // TODO: Manage the dependency which includes this class better?
         // Right now, I only needed the one class from apache commons.
@@ -58,7 +83,10 @@ public class BluetoothDownloader extends Downloader {
         if (fileDetails == null) {
             Utils.debugLog(TAG, "Going to Bluetooth \"server\" to get file details.");
             try {
-                fileDetails = Request.createHEAD(sourceUrl.getPath(), connection).send().toFileDetails();
+                Response response = session != null
+                        ? session.open(Request.Methods.HEAD, sourcePath).getResponse()
+                        : Request.createHEAD(sourcePath, connection).send();
+                fileDetails = response.toFileDetails();
             } catch (IOException e) {
                 Log.e(TAG, "Error getting file details from Bluetooth \"server\"", e);
             }
@@ -78,14 +106,27 @@ public class BluetoothDownloader extends Downloader {
         return details != null ? details.getFileSize() : -1;
     }
 
+    /**
+     * With a {@link StreamSession}, this is measured as the pieces of the
+     * body arrive, so it shows this download's share of the connection.
+     */
+    @Override
+    public long getBytesPerSecond() {
+        StreamSession.Stream current = stream;
+        return current != null ? current.getBytesPerSecond() : super.getBytesPerSecond();
+    }
+
     @Override
     public void download() throws IOException, InterruptedException {
         downloadFromStream(1024, false);
-        connection.closeQuietly();
+        close();
     }
 
     @Override
     protected void close() {
+        if (stream != null) {
+            stream.close();
+        }
         if (connection != null) {
             connection.closeQuietly();
         }
@@ -0,0 +1,121 @@
+package org.fdroid.fdroid.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Parses the HTTP {@code Range} request header for {@link LocalHTTPD}, as in
+ * <a href="https://tools.ietf.org/html/rfc7233#section-2.1">RFC 7233</a>:
+ * <ul>
+ * <li>{@code bytes=500-999}, an explicit range
+ * <li>{@code bytes=500-}, from an offset to the end, which is how
+ * {@link HttpDownloader} resumes a download
+ * <li>{@code bytes=-500}, the last 500 bytes
+ * <li>{@code bytes=0-99,500-599}, several of the above, which are sent back as
+ * {@code multipart/byteranges}
+ * </ul>
+ * Ranges that overlap or touch are merged, so no byte is sent twice.
+ * <p>
+ * This is pure Java so it can be tested on the JVM.
+ */
+final class ByteRanges {
+
+    /**
+     * More ranges than this is more likely to be abuse than a real client, so
+     * then the whole file is sent instead.
+     */
+    static final int MAX_RANGES = 32;
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    private ByteRanges() {
+    }
+
+    /**
+     * @param header the value of the {@code Range} header
+     * @param length the size of the file being requested
+     * @return the satisfiable ranges as {@code {first, last}} byte positions,
+     * both inclusive, sorted and merged; an empty list if none of them can be
+     * satisfied, which means {@code 416 Range Not Satisfiable}; or
+     * {@code null} if the header is not valid, in which case it should be
+     * ignored and the whole file sent
+     */
+    static List<long[]> parse(String header, long length) {
+        if (header == null || !header.trim().startsWith(BYTES_UNIT)) {
+            return null;
+        }
+        String[] specs = header.trim().substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int minus = spec.indexOf('-');
+            if (minus < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (minus == 0) {
+                    long suffixLength = Long.parseLong(spec.substring(1));
+                    if (suffixLength < 0) {
+                        return null;
+                    } else if (suffixLength == 0) {
+                        continue; // valid, but can never be satisfied
+                    }
+                    first = Math.max(0, length - suffixLength);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, minus));
+                    if (minus == spec.length() - 1) {
+                        last = length - 1;
+                    } else {
+                        last = Long.parseLong(spec.substring(minus + 1));
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, length - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < 0) {
+                return null;
+            }
+            if (first < length) {
+                ranges.add(new long[]{first, last});
+            }
+        }
+        return merge(ranges);
+    }
+
+    private static List<long[]> merge(List<long[]> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        List<long[]> merged = new ArrayList<>(ranges.size());
+        long[] current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            long[] next = ranges.get(i);
+            if (next[0] <= current[1] + 1) {
+                current[1] = Math.max(current[1], next[1]);
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
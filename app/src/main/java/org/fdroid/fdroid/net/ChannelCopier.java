@@ -0,0 +1,192 @@
+package org.fdroid.fdroid.net;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Copies a download into its {@link FileChannel} one chunk at a time, so that
+ * {@link Downloader} can report progress and check for cancellation between
+ * chunks.  There are two ways the data moves:
+ * <ul>
+ * <li>when the source is a local file, the kernel copies straight from one
+ * {@link FileChannel} to the other using {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)}, without any buffer in between
+ * <li>for everything else, i.e. HTTP and Bluetooth, the source is only
+ * available as an {@link InputStream}, so the data is read into a pooled,
+ * array-backed {@link ByteBuffer} and then written to the channel
+ * </ul>
+ * Either way, the chunk size adapts to the observed throughput: a slow
+ * Bluetooth link ends up with small chunks, so progress keeps moving, while
+ * a fast LAN or local copy ends up with large chunks, so there are fewer
+ * system calls per megabyte.
+ * <p>
+ * A direct {@link ByteBuffer} would not save anything on the stream path,
+ * since {@link InputStream#read(byte[], int, int)} needs a {@code byte[]} and
+ * would force an extra copy into the direct buffer.
+ */
+final class ChannelCopier implements Closeable {
+
+    static final int MIN_CHUNK_SIZE = 8 * 1024;
+    static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * How long to measure throughput before resizing the chunks.  Fast
+     * transfers are resized sooner, after {@link #SAMPLE_WINDOW_CHUNKS}.
+     */
+    private static final long SAMPLE_WINDOW_NANOS = 250L * 1000 * 1000;
+    private static final int SAMPLE_WINDOW_CHUNKS = 8;
+
+    /**
+     * Aim for each chunk to hold about this fraction of a second's worth of data.
+     */
+    private static final int CHUNKS_PER_SECOND = 64;
+
+    /**
+     * Buffers are recycled between downloads, indexed by {@link #sizeClass(int)}.
+     */
+    @SuppressWarnings("unchecked")
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] POOL =
+            new ConcurrentLinkedQueue[sizeClass(MAX_CHUNK_SIZE) + 1];
+
+    static {
+        for (int i = 0; i < POOL.length; i++) {
+            POOL[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    private final InputStream input;
+    private final FileChannel inputChannel;
+    private final FileChannel output;
+
+    private ByteBuffer buffer;
+    private int chunkSize;
+    private long inputPosition;
+    private long inputSize;
+
+    private long windowStart;
+    private long windowBytes;
+    private int windowChunks;
+
+    /**
+     * @param input            the raw stream from the {@link Downloader}, if this
+     *                         is a {@link FileInputStream}, the data is copied
+     *                         channel to channel.
+     * @param output           where the data is written, at its current position
+     * @param initialChunkSize the first guess for the chunk size, the
+     *                         {@link Downloader} knows roughly how fast its
+     *                         transport is
+     */
+    ChannelCopier(InputStream input, FileChannel output, int initialChunkSize) throws IOException {
+        this.input = input;
+        this.output = output;
+        this.chunkSize = clamp(Integer.highestOneBit(Math.max(1, initialChunkSize)));
+        if (input instanceof FileInputStream) {
+            inputChannel = ((FileInputStream) input).getChannel();
+            inputPosition = inputChannel.position();
+            inputSize = inputChannel.size();
+        } else {
+            inputChannel = null;
+        }
+        windowStart = System.nanoTime();
+    }
+
+    /**
+     * Copy the next chunk.
+     *
+     * @return the number of bytes copied, or {@code -1} at the end of the input
+     */
+    int copyChunk() throws IOException {
+        int count = inputChannel != null ? transferChunk() : readAndWriteChunk();
+        if (count > 0) {
+            adaptChunkSize(count);
+        }
+        return count;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    private int transferChunk() throws IOException {
+        if (inputPosition >= inputSize) {
+            return -1;
+        }
+        long count = inputChannel.transferTo(inputPosition, Math.min(chunkSize, inputSize - inputPosition), output);
+        if (count <= 0) {
+            return -1;
+        }
+        inputPosition += count;
+        return (int) count;
+    }
+
+    private int readAndWriteChunk() throws IOException {
+        if (buffer == null || buffer.capacity() != chunkSize) {
+            release(buffer);
+            buffer = acquire(chunkSize);
+        }
+        int count = input.read(buffer.array(), 0, chunkSize);
+        if (count == -1) {
+            return -1;
+        }
+        buffer.clear();
+        buffer.limit(count);
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+        return count;
+    }
+
+    private void adaptChunkSize(int count) {
+        windowBytes += count;
+        windowChunks++;
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed < SAMPLE_WINDOW_NANOS && windowChunks < SAMPLE_WINDOW_CHUNKS) {
+            return;
+        }
+        long bytesPerSecond = windowBytes * 1000L * 1000 * 1000 / Math.max(1, elapsed);
+        long target = bytesPerSecond / CHUNKS_PER_SECOND;
+        chunkSize = clamp(Integer.highestOneBit((int) Math.min(MAX_CHUNK_SIZE, Math.max(1, target))));
+        windowStart = now;
+        windowBytes = 0;
+        windowChunks = 0;
+    }
+
+    @Override
+    public void close() {
+        release(buffer);
+        buffer = null;
+    }
+
+    private static int clamp(int size) {
+        return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, size));
+    }
+
+    /**
+     * Chunk sizes are always powers of two between {@link #MIN_CHUNK_SIZE}
+     * and {@link #MAX_CHUNK_SIZE}, so this gives a small index for each.
+     */
+    private static int sizeClass(int size) {
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+    }
+
+    static ByteBuffer acquire(int size) {
+        ByteBuffer pooled = POOL[sizeClass(size)].poll();
+        if (pooled == null) {
+            return ByteBuffer.allocate(size);
+        }
+        pooled.clear();
+        return pooled;
+    }
+
+    static void release(ByteBuffer buffer) {
+        if (buffer != null) {
+            POOL[sizeClass(buffer.capacity())].offer(buffer);
+        }
+    }
+}
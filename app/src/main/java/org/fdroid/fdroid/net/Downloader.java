@@ -1,5 +1,6 @@
 package org.fdroid.fdroid.net;
 
+import org.fdroid.fdroid.ProgressHub;
 import org.fdroid.fdroid.ProgressListener;
 import org.fdroid.fdroid.Utils;
 
@@ -7,11 +8,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.URL;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.channels.FileChannel;
 
 public abstract class Downloader {
 
@@ -26,14 +25,23 @@ public abstract class Downloader {
     public static final String EXTRA_DOWNLOAD_PATH = "org.fdroid.fdroid.net.Downloader.extra.DOWNLOAD_PATH";
     public static final String EXTRA_BYTES_READ = "org.fdroid.fdroid.net.Downloader.extra.BYTES_READ";
     public static final String EXTRA_TOTAL_BYTES = "org.fdroid.fdroid.net.Downloader.extra.TOTAL_BYTES";
+    public static final String EXTRA_BYTES_PER_SECOND = "org.fdroid.fdroid.net.Downloader.extra.BYTES_PER_SECOND";
     public static final String EXTRA_ERROR_MESSAGE = "org.fdroid.fdroid.net.Downloader.extra.ERROR_MESSAGE";
     public static final String EXTRA_REPO_ID = "org.fdroid.fdroid.net.Downloader.extra.ERROR_REPO_ID";
     public static final String EXTRA_CANONICAL_URL = "org.fdroid.fdroid.net.Downloader.extra.ERROR_CANONICAL_URL";
     public static final String EXTRA_MIRROR_URL = "org.fdroid.fdroid.net.Downloader.extra.ERROR_MIRROR_URL";
 
     private volatile boolean cancelled = false;
-    private volatile int bytesRead;
-    private volatile int totalBytes;
+
+    /**
+     * The longest time to sleep in one go while waiting on the {@link RateLimiter},
+     * so that cancelling a throttled or paused download still happens quickly.
+     */
+    private static final long MAX_THROTTLE_SLEEP_MILLIS = 100;
+
+    private volatile RateLimiter rateLimiter = RateLimiter.FOREGROUND;
+    private volatile long copyStartNanos;
+    private volatile long bytesCopied;
 
     public final File outputFile;
 
@@ -44,7 +52,8 @@ public abstract class Downloader {
     private volatile int timeout = 10000;
 
     /**
-     * For sending download progress, should only be called in {@link #progressTask}
+     * For sending download progress, this is handed to {@link ProgressHub}
+     * which takes care of calling it at a sensible rate.
      */
     private volatile ProgressListener downloaderProgressListener;
 
@@ -73,6 +82,26 @@ public abstract class Downloader {
         return timeout;
     }
 
+    /**
+     * Set which bandwidth budget this download counts against, the default
+     * is {@link RateLimiter#FOREGROUND}.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @return the average speed of this download since it started copying
+     * data, including any time it was held back by its {@link RateLimiter}
+     */
+    public long getBytesPerSecond() {
+        long elapsed = System.nanoTime() - copyStartNanos;
+        if (copyStartNanos == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return (long) (bytesCopied * 1e9 / elapsed);
+    }
+
     /**
      * If you ask for the cacheTag before calling download(), you will get the
      * same one you passed in (if any). If you call it after download(), you
@@ -103,18 +132,22 @@ public abstract class Downloader {
         return notFound;
     }
 
+    /**
+     * @param bufferSize the initial chunk size, this is adjusted to the
+     *                   observed throughput by {@link ChannelCopier}
+     */
     void downloadFromStream(int bufferSize, boolean resumable) throws IOException, InterruptedException {
         Utils.debugLog(TAG, "Downloading from stream");
-        InputStream input = null;
-        OutputStream outputStream = new FileOutputStream(outputFile, resumable);
+        WrappedInputStream input = null;
+        FileOutputStream outputStream = new FileOutputStream(outputFile, resumable);
         try {
-            input = getInputStream();
+            input = new WrappedInputStream(getDownloadersInputStream());
 
             // Getting the input stream is slow(ish) for HTTP downloads, so we'll check if
             // we were interrupted before proceeding to the download.
             throwExceptionIfInterrupted();
 
-            copyInputToOutputStream(input, bufferSize, outputStream);
+            copyInputToOutputStream(input.toWrap, bufferSize, outputStream.getChannel());
         } finally {
             Utils.closeQuietly(outputStream);
             Utils.closeQuietly(input);
@@ -140,6 +173,31 @@ public abstract class Downloader {
         }
     }
 
+    /**
+     * Wait as long as the {@link RateLimiter} requires after copying {@code count}
+     * bytes, in short sleeps so that a cancel is noticed quickly.
+     */
+    private void throttle(int count) throws InterruptedException {
+        long waitMillis = rateLimiter.take(count);
+        while (waitMillis > 0) {
+            long sleep = Math.min(waitMillis, MAX_THROTTLE_SLEEP_MILLIS);
+            Thread.sleep(sleep);
+            waitMillis -= sleep;
+            throwExceptionIfInterrupted();
+        }
+    }
+
+    private void waitWhilePaused() throws InterruptedException {
+        if (rateLimiter.isPaused()) {
+            Utils.debugLog(TAG, "Pausing download of " + sourceUrl);
+            while (rateLimiter.isPaused()) {
+                Thread.sleep(MAX_THROTTLE_SLEEP_MILLIS);
+                throwExceptionIfInterrupted();
+            }
+            Utils.debugLog(TAG, "Resuming download of " + sourceUrl);
+        }
+    }
+
     /**
      * Cancel a running download, triggering an {@link InterruptedException}
      */
@@ -148,64 +206,50 @@ public abstract class Downloader {
     }
 
     /**
-     * This copies the downloaded data from the InputStream to the OutputStream,
+     * This copies the downloaded data from the InputStream to the FileChannel,
      * keeping track of the number of bytes that have flowed through for the
      * progress counter.
      */
-    private void copyInputToOutputStream(InputStream input, int bufferSize, OutputStream output)
+    private void copyInputToOutputStream(InputStream input, int bufferSize, FileChannel output)
             throws IOException, InterruptedException {
-        Timer timer = new Timer();
+        ProgressHub progressHub = ProgressHub.getInstance();
+        int progressSlot = progressHub.register(sourceUrl, downloaderProgressListener);
+        ChannelCopier copier = new ChannelCopier(input, output, bufferSize);
         try {
-            bytesRead = 0;
-            totalBytes = totalDownloadSize();
-            byte[] buffer = new byte[bufferSize];
+            int bytesRead = 0;
+            int totalBytes = totalDownloadSize();
 
-            timer.scheduleAtFixedRate(progressTask, 0, 100);
+            progressHub.update(progressSlot, bytesRead, totalBytes);
 
             // Getting the total download size could potentially take time, depending on how
             // it is implemented, so we may as well check this before we proceed.
             throwExceptionIfInterrupted();
 
+            bytesCopied = 0;
+            copyStartNanos = System.nanoTime();
             while (true) {
-
-                int count;
-                if (input.available() > 0) {
-                    int readLength = Math.min(input.available(), buffer.length);
-                    count = input.read(buffer, 0, readLength);
-                } else {
-                    count = input.read(buffer);
-                }
+                waitWhilePaused();
+                int count = copier.copyChunk();
 
                 throwExceptionIfInterrupted();
 
                 if (count == -1) {
-                    Utils.debugLog(TAG, "Finished downloading from stream");
+                    Utils.debugLog(TAG, "Finished downloading from stream at " + getBytesPerSecond() + " B/s");
                     break;
                 }
                 bytesRead += count;
-                output.write(buffer, 0, count);
+                bytesCopied = bytesRead;
+                progressHub.update(progressSlot, bytesRead, totalBytes);
+                throttle(count);
             }
         } finally {
             downloaderProgressListener = null;
-            timer.cancel();
-            timer.purge();
-            output.flush();
+            progressHub.unregister(progressSlot);
+            copier.close();
             output.close();
         }
     }
 
-    /**
-     * Send progress updates on a timer to avoid flooding receivers with pointless events.
-     */
-    private final TimerTask progressTask = new TimerTask() {
-        @Override
-        public void run() {
-            if (downloaderProgressListener != null) {
-                downloaderProgressListener.onProgress(sourceUrl, bytesRead, totalBytes);
-            }
-        }
-    };
-
     /**
      * Overrides every method in {@link InputStream} and delegates to the wrapped stream.
      * The only difference is that when we call the {@link WrappedInputStream#close()} method,
@@ -18,9 +18,11 @@
 package org.fdroid.fdroid.net;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -32,17 +34,22 @@ import android.os.Process;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 
+import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.ProgressListener;
 import org.fdroid.fdroid.R;
+import org.fdroid.fdroid.UpdateService;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.SanitizedFile;
 import org.fdroid.fdroid.installer.ApkCache;
+import org.fdroid.fdroid.installer.ApkCacheIndex;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * DownloaderService is a service that handles asynchronous download requests
@@ -62,9 +69,19 @@ import java.net.URL;
  * will receive the Intents, launch a worker thread, and stop the service as
  * appropriate.
  * <p>
- * All requests are handled on a single worker thread -- they may take as
- * long as necessary (and will not block the application's main loop), but
- * only one request will be processed at a time.
+ * Requests from {@link #queue(Context, String, long, String)} are handled on a
+ * single worker thread -- they may take as long as necessary (and will not
+ * block the application's main loop), but only one of them will be processed
+ * at a time.  Files that belong to an install that is already queued, like
+ * OBB expansion files, can be sent with
+ * {@link #queueParallel(Context, String, long, String)}.  Those run on a small,
+ * fixed number of extra worker threads, so that a huge OBB neither waits for,
+ * nor holds up, the APK downloads in the main queue.  Downloads that nobody
+ * is waiting on, like automatically downloaded updates, are sent with
+ * {@link #queueBackground(Context, String, long, String)}.  They get their own
+ * worker, count against the {@link RateLimiter#BACKGROUND} budget, are slowed
+ * down while something is downloading in the foreground, and pause whenever
+ * the network changes to one they should not use.
  * <p>
  * The full URL for the file to download is also used as the unique ID to
  * represent the download itself throughout F-Droid.  This follows the model
@@ -82,24 +99,71 @@ public class DownloaderService extends Service {
     private static final String TAG = "DownloaderService";
 
     private static final String ACTION_QUEUE = "org.fdroid.fdroid.net.DownloaderService.action.QUEUE";
+    private static final String ACTION_QUEUE_PARALLEL =
+            "org.fdroid.fdroid.net.DownloaderService.action.QUEUE_PARALLEL";
+    private static final String ACTION_QUEUE_BACKGROUND =
+            "org.fdroid.fdroid.net.DownloaderService.action.QUEUE_BACKGROUND";
     private static final String ACTION_CANCEL = "org.fdroid.fdroid.net.DownloaderService.action.CANCEL";
 
-    private volatile Looper serviceLooper;
-    private static volatile ServiceHandler serviceHandler;
-    private static volatile Downloader downloader;
+    /**
+     * The main queue, plus this many workers for {@link #queueParallel(Context, String, long, String)},
+     * plus the background worker.  This is the upper bound on how many downloads run at the same time.
+     */
+    private static final int PARALLEL_WORKERS = 2;
+    private static final int BACKGROUND_WORKER = 1 + PARALLEL_WORKERS;
+
+    /**
+     * How fast background downloads may go while the user is waiting on a
+     * foreground download.  Otherwise, they are not limited.
+     */
+    private static final long BACKGROUND_BYTES_PER_SECOND_WHILE_BUSY = 64 * 1024;
+
+    private volatile Looper[] serviceLoopers;
+    private static volatile ServiceHandler[] serviceHandlers;
+    private static final AtomicReferenceArray<Downloader> DOWNLOADERS =
+            new AtomicReferenceArray<>(BACKGROUND_WORKER + 1);
     private LocalBroadcastManager localBroadcastManager;
     private static volatile int timeout;
 
+    /**
+     * Counts requests that are queued or running across all workers, the
+     * service only stops itself once every worker has run out of work.
+     */
+    private final AtomicInteger pendingRequests = new AtomicInteger();
+
+    /**
+     * {@link #stopSelf(int)} only stops the service when given the newest
+     * startId, workers finish in any order, so the newest one has to be kept.
+     */
+    private volatile int latestStartId;
+    private final AtomicInteger nextParallelWorker = new AtomicInteger();
+    private final AtomicInteger activeForegroundDownloads = new AtomicInteger();
+
+    /**
+     * Pauses the background queue when the network goes away, or when it
+     * switches to a metered network and the user only wants updates on
+     * unmetered networks, then resumes it when that changes back.
+     */
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateBackgroundPaused();
+        }
+    };
+
     private final class ServiceHandler extends Handler {
-        ServiceHandler(Looper looper) {
+        private final int worker;
+
+        ServiceHandler(Looper looper, int worker) {
             super(looper);
+            this.worker = worker;
         }
 
         @Override
         public void handleMessage(Message msg) {
-            Utils.debugLog(TAG, "Handling download message with ID of " + msg.what);
-            handleIntent((Intent) msg.obj);
-            stopSelf(msg.arg1);
+            Utils.debugLog(TAG, "Handling download message with ID of " + msg.what + " on worker " + worker);
+            handleIntent((Intent) msg.obj, worker);
+            finishRequest();
         }
     }
 
@@ -108,51 +172,115 @@ public class DownloaderService extends Service {
         super.onCreate();
         Utils.debugLog(TAG, "Creating downloader service.");
 
-        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-
-        serviceLooper = thread.getLooper();
-        serviceHandler = new ServiceHandler(serviceLooper);
+        Looper[] loopers = new Looper[DOWNLOADERS.length()];
+        ServiceHandler[] handlers = new ServiceHandler[DOWNLOADERS.length()];
+        for (int i = 0; i < DOWNLOADERS.length(); i++) {
+            HandlerThread thread = new HandlerThread(TAG + i, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            loopers[i] = thread.getLooper();
+            handlers[i] = new ServiceHandler(loopers[i], i);
+        }
+        serviceLoopers = loopers;
+        serviceHandlers = handlers;
         localBroadcastManager = LocalBroadcastManager.getInstance(this);
+
+        updateBackgroundPaused();
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    private void updateBackgroundPaused() {
+        int netState = UpdateService.getNetworkState(this);
+        boolean paused = netState == UpdateService.FLAG_NET_UNAVAILABLE
+                || (netState == UpdateService.FLAG_NET_METERED
+                && Preferences.get().isUpdateOnlyOnUnmeteredNetworks());
+        if (paused != RateLimiter.BACKGROUND.isPaused()) {
+            Utils.debugLog(TAG, (paused ? "Pausing" : "Resuming") + " background downloads");
+            RateLimiter.BACKGROUND.setPaused(paused);
+        }
+    }
+
+    /**
+     * Keep background downloads out of the way while anything the user is
+     * waiting on is being downloaded.
+     */
+    private void updateBackgroundRate() {
+        long bytesPerSecond = activeForegroundDownloads.get() > 0
+                ? BACKGROUND_BYTES_PER_SECOND_WHILE_BUSY : RateLimiter.UNLIMITED;
+        if (bytesPerSecond != RateLimiter.BACKGROUND.getBytesPerSecond()) {
+            RateLimiter.BACKGROUND.setBytesPerSecond(bytesPerSecond);
+        }
+    }
+
+    private void finishRequest() {
+        if (pendingRequests.decrementAndGet() <= 0) {
+            stopSelf(latestStartId);
+        }
+    }
+
+    private void stopIfIdle() {
+        if (pendingRequests.get() <= 0) {
+            stopSelf(latestStartId);
+        }
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Utils.debugLog(TAG, "Received Intent for downloading: " + intent + " (with a startId of " + startId + ")");
+        latestStartId = startId;
 
         if (intent == null) {
+            stopIfIdle();
             return START_NOT_STICKY;
         }
 
         String uriString = intent.getDataString();
         if (uriString == null) {
             Utils.debugLog(TAG, "Received Intent with no URI: " + intent);
+            stopIfIdle();
             return START_NOT_STICKY;
         }
 
         if (ACTION_CANCEL.equals(intent.getAction())) {
             Utils.debugLog(TAG, "Cancelling download of " + uriString);
-            Integer whatToRemove = uriString.hashCode();
-            if (serviceHandler.hasMessages(whatToRemove)) {
+            int whatToRemove = uriString.hashCode();
+            ServiceHandler handler = findHandlerWithMessage(whatToRemove);
+            Downloader activeDownloader = findActive(uriString);
+            if (handler != null) {
                 Utils.debugLog(TAG, "Removing download with ID of " + whatToRemove
                         + " from service handler, then sending interrupted event.");
-                serviceHandler.removeMessages(whatToRemove);
+                // only one message per URL is ever queued, see below, so this removes exactly one request
+                handler.removeMessages(whatToRemove);
                 sendBroadcast(intent.getData(), Downloader.ACTION_INTERRUPTED);
-            } else if (isActive(uriString)) {
-                downloader.cancelDownload();
+                finishRequest();
+            } else if (activeDownloader != null) {
+                activeDownloader.cancelDownload();
             } else {
                 Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running"
                         + " (expected to find message with ID of " + whatToRemove + " in queue).");
+                stopIfIdle();
             }
-        } else if (ACTION_QUEUE.equals(intent.getAction())) {
-            Message msg = serviceHandler.obtainMessage();
-            msg.arg1 = startId;
+        } else if (findHandlerWithMessage(uriString.hashCode()) != null) {
+            Utils.debugLog(TAG, "Already queued, not queueing again: " + uriString);
+        } else if (ACTION_QUEUE.equals(intent.getAction()) || ACTION_QUEUE_PARALLEL.equals(intent.getAction())
+                || ACTION_QUEUE_BACKGROUND.equals(intent.getAction())) {
+            ServiceHandler handler;
+            if (ACTION_QUEUE.equals(intent.getAction())) {
+                handler = serviceHandlers[0];
+            } else if (ACTION_QUEUE_BACKGROUND.equals(intent.getAction())) {
+                handler = serviceHandlers[BACKGROUND_WORKER];
+            } else {
+                int worker = 1 + Math.abs(nextParallelWorker.getAndIncrement() % PARALLEL_WORKERS);
+                handler = serviceHandlers[worker];
+            }
+            pendingRequests.incrementAndGet();
+            Message msg = handler.obtainMessage();
             msg.obj = intent;
             msg.what = uriString.hashCode();
-            serviceHandler.sendMessage(msg);
-            Utils.debugLog(TAG, "Queued download of " + uriString);
+            handler.sendMessage(msg);
+            Utils.debugLog(TAG, "Queued download of " + uriString + " on worker " + handler.worker);
         } else {
             Utils.debugLog(TAG, "Received Intent with unknown action: " + intent);
+            stopIfIdle();
         }
 
         return START_REDELIVER_INTENT; // if killed before completion, retry Intent
@@ -161,7 +289,11 @@ public class DownloaderService extends Service {
     @Override
     public void onDestroy() {
         Utils.debugLog(TAG, "Destroying downloader service. Will move to background and stop our Looper.");
-        serviceLooper.quit(); //NOPMD - this is copied from IntentService, no super call needed
+        unregisterReceiver(connectivityReceiver);
+        RateLimiter.BACKGROUND.setPaused(false);
+        for (Looper looper : serviceLoopers) {
+            looper.quit(); //NOPMD - this is copied from IntentService, no super call needed
+        }
     }
 
     /**
@@ -173,9 +305,9 @@ public class DownloaderService extends Service {
     }
 
     /**
-     * This method is invoked on the worker thread with a request to process.
-     * Only one Intent is processed at a time, but the processing happens on a
-     * worker thread that runs independently from other application logic.
+     * This method is invoked on a worker thread with a request to process.
+     * Each worker processes one Intent at a time, and the processing happens on
+     * worker threads that run independently from other application logic.
      * So, if this code takes a long time, it will hold up other requests to
      * the same DownloaderService, but it will not hold up anything else.
      * When all requests have been handled, the DownloaderService stops itself,
@@ -188,15 +320,25 @@ public class DownloaderService extends Service {
      * @param intent The {@link Intent} passed via {@link
      *               android.content.Context#startService(Intent)}.
      */
-    private void handleIntent(Intent intent) {
+    private void handleIntent(Intent intent, int worker) {
         final Uri uri = intent.getData();
         final SanitizedFile localFile = ApkCache.getApkDownloadPath(this, uri);
         long repoId = intent.getLongExtra(Downloader.EXTRA_REPO_ID, 0);
         String originalUrlString = intent.getStringExtra(Downloader.EXTRA_CANONICAL_URL);
         sendBroadcast(uri, Downloader.ACTION_STARTED, localFile, repoId, originalUrlString);
 
+        boolean background = worker == BACKGROUND_WORKER;
+        if (!background) {
+            activeForegroundDownloads.incrementAndGet();
+            updateBackgroundRate();
+        }
+
+        Downloader downloader = null;
         try {
             downloader = DownloaderFactory.create(this, uri, localFile);
+            DOWNLOADERS.set(worker, downloader);
+            final Downloader activeDownloader = downloader;
+            downloader.setRateLimiter(background ? RateLimiter.BACKGROUND : RateLimiter.FOREGROUND);
             downloader.setListener(new ProgressListener() {
                 @Override
                 public void onProgress(URL sourceUrl, int bytesRead, int totalBytes) {
@@ -204,6 +346,7 @@ public class DownloaderService extends Service {
                     intent.setData(uri);
                     intent.putExtra(Downloader.EXTRA_BYTES_READ, bytesRead);
                     intent.putExtra(Downloader.EXTRA_TOTAL_BYTES, totalBytes);
+                    intent.putExtra(Downloader.EXTRA_BYTES_PER_SECOND, activeDownloader.getBytesPerSecond());
                     localBroadcastManager.sendBroadcast(intent);
                 }
             });
@@ -213,6 +356,7 @@ public class DownloaderService extends Service {
                 sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile, getString(R.string.download_404),
                         repoId, originalUrlString);
             } else {
+                ApkCacheIndex.getInstance(this).addDownload(localFile);
                 sendBroadcast(uri, Downloader.ACTION_COMPLETE, localFile, repoId, originalUrlString);
             }
         } catch (InterruptedException e) {
@@ -227,8 +371,12 @@ public class DownloaderService extends Service {
             if (downloader != null) {
                 downloader.close();
             }
+            DOWNLOADERS.set(worker, null);
+            if (!background) {
+                activeForegroundDownloads.decrementAndGet();
+                updateBackgroundRate();
+            }
         }
-        downloader = null;
     }
 
     private void sendBroadcast(Uri uri, String action) {
@@ -280,6 +428,47 @@ public class DownloaderService extends Service {
         context.startService(intent);
     }
 
+    /**
+     * Add a URL to be downloaded alongside the main queue, e.g. the OBB files
+     * that go with an APK that is already in the main queue.  These are spread
+     * over a fixed number of extra workers, so there is an upper bound on how
+     * many downloads run at the same time.
+     *
+     * @see #queue(Context, String, long, String)
+     */
+    public static void queueParallel(Context context, String urlString, long repoId, String originalUrlString) {
+        if (TextUtils.isEmpty(urlString)) {
+            return;
+        }
+        Utils.debugLog(TAG, "Preparing " + urlString + " to go into the parallel download queue");
+        Intent intent = new Intent(context, DownloaderService.class);
+        intent.setAction(ACTION_QUEUE_PARALLEL);
+        intent.setData(Uri.parse(urlString));
+        intent.putExtra(Downloader.EXTRA_REPO_ID, repoId);
+        intent.putExtra(Downloader.EXTRA_CANONICAL_URL, originalUrlString);
+        context.startService(intent);
+    }
+
+    /**
+     * Add a URL to the background download queue, for downloads that the user
+     * is not actively waiting on.  These are throttled while there are
+     * foreground downloads, and pause while the network is unsuitable.
+     *
+     * @see #queue(Context, String, long, String)
+     */
+    public static void queueBackground(Context context, String urlString, long repoId, String originalUrlString) {
+        if (TextUtils.isEmpty(urlString)) {
+            return;
+        }
+        Utils.debugLog(TAG, "Preparing " + urlString + " to go into the background download queue");
+        Intent intent = new Intent(context, DownloaderService.class);
+        intent.setAction(ACTION_QUEUE_BACKGROUND);
+        intent.setData(Uri.parse(urlString));
+        intent.putExtra(Downloader.EXTRA_REPO_ID, repoId);
+        intent.putExtra(Downloader.EXTRA_CANONICAL_URL, originalUrlString);
+        context.startService(intent);
+    }
+
     /**
      * Remove a URL to the download queue, even if it is currently downloading.
      * <p/>
@@ -309,17 +498,35 @@ public class DownloaderService extends Service {
         if (TextUtils.isEmpty(urlString)) { //NOPMD - suggests unreadable format
             return false;
         }
-        if (serviceHandler == null) {
+        if (serviceHandlers == null) {
             return false; // this service is not even running
         }
-        return serviceHandler.hasMessages(urlString.hashCode()) || isActive(urlString);
+        return findHandlerWithMessage(urlString.hashCode()) != null || findActive(urlString) != null;
+    }
+
+    private static ServiceHandler findHandlerWithMessage(int what) {
+        ServiceHandler[] handlers = serviceHandlers;
+        if (handlers != null) {
+            for (ServiceHandler handler : handlers) {
+                if (handler.hasMessages(what)) {
+                    return handler;
+                }
+            }
+        }
+        return null;
     }
 
     /**
-     * Check if a URL is actively being downloaded.
+     * Find the {@link Downloader} if this URL is actively being downloaded.
      */
-    private static boolean isActive(String urlString) {
-        return downloader != null && TextUtils.equals(urlString, downloader.sourceUrl.toString());
+    private static Downloader findActive(String urlString) {
+        for (int i = 0; i < DOWNLOADERS.length(); i++) {
+            Downloader downloader = DOWNLOADERS.get(i);
+            if (downloader != null && TextUtils.equals(urlString, downloader.sourceUrl.toString())) {
+                return downloader;
+            }
+        }
+        return null;
     }
 
     public static void setTimeout(int ms) {
@@ -0,0 +1,261 @@
+package org.fdroid.fdroid.net;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+import android.util.MutableLong;
+
+import org.fdroid.fdroid.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import javax.net.ssl.SSLSocket;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * A {@link NanoHTTPD.Response} that sends a whole file, one range of it, or
+ * several ranges as {@code multipart/byteranges}, without copying it through
+ * a buffer in the app.  {@link NanoHTTPD.Response}
+ * only knows how to copy an {@link java.io.InputStream} through a 16 KiB
+ * {@code byte[]}, which for a 100 MB APK is thousands of trips between the
+ * kernel and the app.  This instead:
+ * <ul>
+ * <li>on plain HTTP, has the kernel send the file straight to the socket with
+ * {@code sendfile(2)}, via {@link Os#sendfile(java.io.FileDescriptor,
+ * java.io.FileDescriptor, MutableLong, long)} on Android 5.0 and newer
+ * <li>on HTTPS, where the data has to be encrypted in the app, or on older
+ * Android, uses {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+ * to the socket's stream, which starts right at the offset instead of reading
+ * through the file to skip to it
+ * </ul>
+ * The socket itself is not a {@link java.nio.channels.SocketChannel} since
+ * NanoHTTPD uses a plain {@link java.net.ServerSocket}, so
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} cannot
+ * reach {@code sendfile(2)} on its own.
+ */
+class FileResponse extends NanoHTTPD.Response {
+    private static final String TAG = "FileResponse";
+
+    /**
+     * Turned off the first time {@code sendfile(2)} is not available, e.g.
+     * when running on the JVM in tests, so it is not tried for every file.
+     */
+    private static volatile boolean sendfileAvailable = Build.VERSION.SDK_INT >= 21;
+
+    private final File file;
+    private final List<long[]> ranges;
+    private final byte[][] partHeaders;
+    private final byte[] closingDelimiter;
+    private final long contentLength;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    /**
+     * @param offset where to start sending from
+     * @param length how many bytes to send, starting at {@code offset}
+     */
+    FileResponse(IStatus status, String mimeType, File file, long offset, long length) {
+        super(status, mimeType, (InputStream) null);
+        this.file = file;
+        this.ranges = Collections.singletonList(new long[]{offset, offset + length - 1});
+        this.partHeaders = null;
+        this.closingDelimiter = null;
+        this.contentLength = length;
+    }
+
+    /**
+     * A {@code 206 Partial Content} response with each of the {@code ranges}
+     * in its own part, with its own {@code Content-Range}.
+     *
+     * @param ranges     {@code {first, last}} byte positions, as returned by
+     *                   {@link ByteRanges#parse(String, long)}
+     * @param fileLength the size of the whole file
+     */
+    FileResponse(String mimeType, File file, List<long[]> ranges, long fileLength) {
+        this(mimeType, file, ranges, fileLength, UUID.randomUUID().toString());
+    }
+
+    private FileResponse(String mimeType, File file, List<long[]> ranges, long fileLength, String boundary) {
+        super(Status.PARTIAL_CONTENT, "multipart/byteranges; boundary=" + boundary, (InputStream) null);
+        this.file = file;
+        this.ranges = ranges;
+        String partType = mimeType == null ? "application/octet-stream" : mimeType;
+        partHeaders = new byte[ranges.size()][];
+        long length = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] range = ranges.get(i);
+            partHeaders[i] = toBytes("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + partType + "\r\n"
+                    + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + fileLength + "\r\n\r\n");
+            length += partHeaders[i].length + range[1] - range[0] + 1;
+        }
+        closingDelimiter = toBytes("\r\n--" + boundary + "--\r\n");
+        contentLength = length + closingDelimiter.length;
+    }
+
+    private static byte[] toBytes(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        super.addHeader(name, value);
+        headers.put(name, value);
+    }
+
+    @Override
+    protected void send(OutputStream outputStream) {
+        try {
+            outputStream.write(getHeaderBytes());
+            outputStream.flush();
+            if (getRequestMethod() != NanoHTTPD.Method.HEAD && contentLength > 0) {
+                sendBody(outputStream);
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            // same as NanoHTTPD: the client is gone, and the next read on the connection will fail
+            Utils.debugLog(TAG, "Could not send " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The same status line and headers that {@link NanoHTTPD.Response} would
+     * send, with the {@code Content-Length} of the whole body.
+     */
+    private byte[] getHeaderBytes() {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(getStatus().getDescription()).append(" \r\n");
+        if (getMimeType() != null) {
+            head.append("Content-Type: ").append(getMimeType()).append("\r\n");
+        }
+        if (!headers.containsKey("Date")) {
+            SimpleDateFormat gmtFormat = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            gmtFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+            head.append("Date: ").append(gmtFormat.format(new Date())).append("\r\n");
+        }
+        boolean hasConnection = false;
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if ("Content-Length".equalsIgnoreCase(entry.getKey())) {
+                continue;
+            }
+            hasConnection |= "Connection".equalsIgnoreCase(entry.getKey());
+            head.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        if (!hasConnection) {
+            head.append("Connection: keep-alive\r\n");
+        }
+        head.append("Content-Length: ").append(contentLength).append("\r\n\r\n");
+        return toBytes(head.toString());
+    }
+
+    private void sendBody(OutputStream outputStream) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            Socket socket = PooledAsyncRunner.getCurrentSocket();
+            for (int i = 0; i < ranges.size(); i++) {
+                if (partHeaders != null) {
+                    outputStream.write(partHeaders[i]);
+                    outputStream.flush();
+                }
+                long[] range = ranges.get(i);
+                sendRange(socket, input, range[0], range[1] - range[0] + 1, outputStream);
+            }
+            if (closingDelimiter != null) {
+                outputStream.write(closingDelimiter);
+            }
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    private static void sendRange(Socket socket, FileInputStream input, long offset, long length,
+                                  OutputStream outputStream) throws IOException {
+        long sent = 0;
+        if (sendfileAvailable && socket != null && !(socket instanceof SSLSocket)) {
+            try {
+                sent = Sendfile.send(socket, input, offset, length);
+            } catch (LinkageError | RuntimeException e) {
+                Log.i(TAG, "sendfile(2) is not available, copying through the app instead: " + e);
+                sendfileAvailable = false;
+            }
+        }
+        if (sent < length) {
+            transferTo(input.getChannel(), offset + sent, length - sent, outputStream);
+        }
+    }
+
+    private static void transferTo(FileChannel channel, long position, long count, OutputStream outputStream)
+            throws IOException {
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        long end = position + count;
+        while (position < end) {
+            long transferred = channel.transferTo(position, end - position, target);
+            if (transferred <= 0) {
+                throw new IOException("File ended before " + end + " bytes were sent");
+            }
+            position += transferred;
+        }
+    }
+
+    /**
+     * Kept in its own class so that older Android never has to load the
+     * {@code android.system} classes.
+     */
+    @TargetApi(21)
+    private static final class Sendfile {
+
+        /**
+         * @return how many bytes were sent, this is only less than {@code count}
+         * if {@code sendfile(2)} failed before sending anything, so the caller
+         * can send it another way
+         */
+        static long send(Socket socket, FileInputStream input, long offset, long count) throws IOException {
+            ParcelFileDescriptor socketFd = ParcelFileDescriptor.fromSocket(socket);
+            MutableLong position = new MutableLong(offset);
+            try {
+                long remaining = count;
+                while (remaining > 0) {
+                    long sent = Os.sendfile(socketFd.getFileDescriptor(), input.getFD(), position, remaining);
+                    if (sent <= 0) {
+                        throw new IOException("sendfile(2) stopped with " + remaining + " bytes to go");
+                    }
+                    remaining -= sent;
+                }
+                return count;
+            } catch (ErrnoException e) {
+                if (position.value == offset) {
+                    Log.i(TAG, "sendfile(2) failed, copying through the app instead: " + e.getMessage());
+                    return 0;
+                }
+                throw new IOException(e);
+            } finally {
+                socketFd.close();
+            }
+        }
+    }
+}
@@ -116,29 +116,49 @@ public class HttpDownloader extends Downloader {
             resumable = true;
         }
         setupConnection(resumable);
+        if (resumable && connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            // the server did not send just the rest of the file, so appending would corrupt it
+            Utils.debugLog(TAG, sourceUrl + " could not be resumed: " + connection.getResponseCode());
+            resumable = false;
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                connection.disconnect();
+                connection = null;
+                setupConnection(false);
+            }
+        }
         Utils.debugLog(TAG, "downloading " + sourceUrl + " (is resumable: " + resumable + ")");
         downloadFromStream(8192, resumable);
         cacheTag = connection.getHeaderField(HEADER_FIELD_ETAG);
     }
 
-    private boolean isSwapUrl() {
-        String host = sourceUrl.getHost();
-        return sourceUrl.getPort() > 1023 // only root can use <= 1023, so never a swap repo
+    private static boolean isSwapUrl(URL url) {
+        String host = url.getHost();
+        return url.getPort() > 1023 // only root can use <= 1023, so never a swap repo
                 && host.matches("[0-9.]+") // host must be an IP address
                 && FDroidApp.subnetInfo.isInRange(host); // on the same subnet as we are
     }
 
     private HttpURLConnection getConnection() throws SocketTimeoutException, IOException {
+        return openConnection(sourceUrl, username, password, getTimeout());
+    }
+
+    /**
+     * Open a connection following the same rules as every other F-Droid
+     * download: swap repos are always connected to directly, everything else
+     * goes through {@link NetCipher} so that any configured proxy is used.
+     */
+    static HttpURLConnection openConnection(URL url, String username, String password, int timeout)
+            throws SocketTimeoutException, IOException {
         HttpURLConnection connection;
-        if (isSwapUrl()) {
+        if (isSwapUrl(url)) {
             // swap never works with a proxy, its unrouted IP on the same subnet
-            connection = (HttpURLConnection) sourceUrl.openConnection();
+            connection = (HttpURLConnection) url.openConnection();
         } else {
-            connection = NetCipher.getHttpURLConnection(sourceUrl);
+            connection = NetCipher.getHttpURLConnection(url);
         }
 
         connection.setRequestProperty("User-Agent", "F-Droid " + BuildConfig.VERSION_NAME);
-        connection.setConnectTimeout(getTimeout());
+        connection.setConnectTimeout(timeout);
 
         if (username != null && password != null) {
             // add authorization header from username / password if set
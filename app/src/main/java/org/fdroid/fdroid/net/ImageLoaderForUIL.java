@@ -9,7 +9,8 @@ import java.io.InputStream;
 
 /**
  * Class used by the Universal Image Loader library (UIL) to fetch images for displaying in F-Droid.
- * See {@link org.fdroid.fdroid.FDroidApp} for where this gets configured.
+ * See {@link org.fdroid.fdroid.FDroidApp} for where this gets configured.  Images from HTTP repos
+ * go through {@link RepoAssetFetcher}, which shares connections between them.
  */
 public class ImageLoaderForUIL implements com.nostra13.universalimageloader.core.download.ImageDownloader {
 
@@ -28,6 +29,10 @@ public class ImageLoaderForUIL implements com.nostra13.universalimageloader.core
             case DRAWABLE:
                 return new BaseImageDownloader(context).getStream(imageUri, extra);
 
+            case HTTP:
+            case HTTPS:
+                return RepoAssetFetcher.getInstance().fetch(context, imageUri);
+
             default:
                 return DownloaderFactory.create(context, imageUri).getInputStream();
         }
@@ -12,11 +12,10 @@ import org.fdroid.fdroid.localrepo.LocalRepoKeyStore;
 import org.fdroid.fdroid.views.swap.SwapWorkflowActivity;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.Socket;
 import java.net.URLEncoder;
 import java.util.Arrays;
 import java.util.Collections;
@@ -30,21 +29,77 @@ import javax.net.ssl.SSLServerSocketFactory;
 
 import fi.iki.elonen.NanoHTTPD;
 
+/**
+ * The web server that serves the local repo to swap peers.  Connections are
+ * served by a small {@link PooledAsyncRunner} and kept alive between requests,
+ * so a peer downloading the index, icons and many APKs reuses one connection
+ * rather than getting a new connection and thread for each file.
+ */
 public class LocalHTTPD extends NanoHTTPD {
     private static final String TAG = "LocalHTTPD";
 
+    /**
+     * Most swaps are between two or three phones, and each client only uses a
+     * couple of connections at a time, so this covers a busy swap event.
+     */
+    static final int WORKER_THREADS = 4;
+    static final int MAX_QUEUED_CONNECTIONS = 16;
+
+    /**
+     * The headers NanoHTTPD only sets once, when the connection is opened,
+     * with the client's address.
+     */
+    private static final List<String> CONNECTION_HEADERS = Arrays.asList("remote-addr", "http-client-ip");
+
     private final Context context;
     private final File webRoot;
+    private final PooledAsyncRunner asyncRunner;
 
     public LocalHTTPD(Context context, String hostname, int port, File webRoot, boolean useHttps) {
         super(hostname, port);
         this.webRoot = webRoot;
         this.context = context.getApplicationContext();
+        asyncRunner = new PooledAsyncRunner(WORKER_THREADS, MAX_QUEUED_CONNECTIONS);
+        setAsyncRunner(asyncRunner);
         if (useHttps) {
             enableHTTPS();
         }
     }
 
+    @Override
+    public synchronized void registerConnection(Socket socket) {
+        super.registerConnection(socket);
+        asyncRunner.setAcceptedSocket(socket);
+    }
+
+    @Override
+    public void stop() {
+        asyncRunner.shutdown();
+        super.stop();
+    }
+
+    /**
+     * @return how many connections are being served right now
+     */
+    public int getActiveConnections() {
+        return asyncRunner.getActiveConnections();
+    }
+
+    /**
+     * @return how many connections are waiting for a free worker
+     */
+    public int getQueuedConnections() {
+        return asyncRunner.getQueuedConnections();
+    }
+
+    public int getPeakActiveConnections() {
+        return asyncRunner.getPeakActiveConnections();
+    }
+
+    public long getTotalConnections() {
+        return asyncRunner.getTotalConnections();
+    }
+
     /**
      * URL-encodes everything between "/"-characters. Encodes spaces as '%20'
      * instead of '+'.
@@ -87,21 +142,41 @@ public class LocalHTTPD extends NanoHTTPD {
 
     @Override
     public Response serve(IHTTPSession session) {
-
+        Response response;
         if (session.getMethod() == Method.POST) {
             try {
                 session.parseBody(new HashMap<String, String>());
+                response = handlePost(session);
             } catch (IOException e) {
                 Log.e(TAG, "An error occured while parsing the POST body", e);
-                return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+                response = new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
                         "Internal server error, check logcat on server for details.");
             } catch (ResponseException re) {
-                return new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+                response = new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
             }
+        } else {
+            response = handleGet(session);
+        }
+        addConnectionHeaders(session, response);
+        // NanoHTTPD reuses the headers map for the next request on a kept-alive
+        // connection, so without this, e.g. a Range header would stick around
+        session.getHeaders().keySet().retainAll(CONNECTION_HEADERS);
+        return response;
+    }
 
-            return handlePost(session);
+    /**
+     * Keep the connection open for the client's next request, unless it asked
+     * to close it, or keeping it would leave no worker free, in which case the
+     * client is asked to close so this worker can move on to the next client.
+     * So at most {@link #WORKER_THREADS} - 1 idle connections are kept.
+     */
+    private void addConnectionHeaders(IHTTPSession session, Response response) {
+        if ("close".equalsIgnoreCase(session.getHeaders().get("connection")) || asyncRunner.isBusy()) {
+            response.addHeader("Connection", "close");
+        } else {
+            response.addHeader("Connection", "keep-alive");
+            response.addHeader("Keep-Alive", "timeout=" + SOCKET_READ_TIMEOUT / 1000);
         }
-        return handleGet(session);
     }
 
     private Response handlePost(IHTTPSession session) {
@@ -216,89 +291,71 @@ public class LocalHTTPD extends NanoHTTPD {
     }
 
     /**
-     * Serves file from homeDir and its' subdirectories (only). Uses only URI,
-     * ignores all headers and HTTP parameters.
+     * Serves file from homeDir and its' subdirectories (only). Supports
+     * {@code Range} requests as parsed by {@link ByteRanges}, guarded by
+     * {@code If-Range}, and {@code If-None-Match}.
      */
     private Response serveFile(Map<String, String> header, File file, String mime) {
+        if (!file.canRead()) {
+            return createResponse(Response.Status.FORBIDDEN, NanoHTTPD.MIME_PLAINTEXT,
+                    "FORBIDDEN: Reading file failed.");
+        }
+        long fileLen = file.length();
+        String etag = getETag(file, fileLen);
+
+        List<long[]> ranges = null;
+        String ifRange = header.get("if-range");
+        // only send part of the file if the client's other parts are from this same version of it
+        if (ifRange == null || ifRange.equals(etag)) {
+            ranges = ByteRanges.parse(header.get("range"), fileLen);
+        }
+
         Response res;
-        try {
-            // Calculate etag
-            String etag = Integer
-                    .toHexString((file.getAbsolutePath() + file.lastModified() + String.valueOf(file.length()))
-                            .hashCode());
-
-            // Support (simple) skipping:
-            long startFrom = 0;
-            long endAt = -1;
-            String range = header.get("range");
-            if (range != null && range.startsWith("bytes=")) {
-                range = range.substring("bytes=".length());
-                int minus = range.indexOf('-');
-                try {
-                    if (minus > 0) {
-                        startFrom = Long.parseLong(range.substring(0, minus));
-                        endAt = Long.parseLong(range.substring(minus + 1));
-                    }
-                } catch (NumberFormatException ignored) {
-                }
+        if (ranges == null) {
+            if (matchesETag(header.get("if-none-match"), etag)) {
+                res = createResponse(Response.Status.NOT_MODIFIED, mime, "");
+            } else {
+                res = createResponse(Response.Status.OK, mime, file, 0, fileLen);
             }
+        } else if (ranges.isEmpty()) {
+            res = createResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+            res.addHeader("Content-Range", "bytes */" + fileLen);
+        } else if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            res = createResponse(Response.Status.PARTIAL_CONTENT, mime, file, range[0], range[1] - range[0] + 1);
+            res.addHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + fileLen);
+        } else {
+            res = new FileResponse(mime, file, ranges, fileLen);
+            res.addHeader("Accept-Ranges", "bytes");
+        }
+        res.addHeader("ETag", etag);
+        return res;
+    }
 
-            // Change return code and add Content-Range header when skipping is
-            // requested
-            long fileLen = file.length();
-            if (range != null && startFrom >= 0) {
-                if (startFrom >= fileLen) {
-                    res = createResponse(Response.Status.RANGE_NOT_SATISFIABLE,
-                            NanoHTTPD.MIME_PLAINTEXT, "");
-                    res.addHeader("Content-Range", "bytes 0-0/" + fileLen);
-                    res.addHeader("ETag", etag);
-                } else {
-                    if (endAt < 0) {
-                        endAt = fileLen - 1;
-                    }
-                    long newLen = endAt - startFrom + 1;
-                    if (newLen < 0) {
-                        newLen = 0;
-                    }
-
-                    final long dataLen = newLen;
-                    FileInputStream fis = new FileInputStream(file) {
-                        @Override
-                        public int available() throws IOException {
-                            return (int) dataLen;
-                        }
-                    };
-                    long skipped = fis.skip(startFrom);
-                    if (skipped != startFrom) {
-                        throw new IOException("unable to skip the required " + startFrom + " bytes.");
-                    }
+    /**
+     * Get the strong {@code ETag} for a file, which only changes when the
+     * file is replaced or changes size.
+     */
+    private static String getETag(File file, long length) {
+        return '"' + Long.toHexString(length) + '-' + Long.toHexString(file.lastModified()) + '"';
+    }
 
-                    res = createResponse(Response.Status.PARTIAL_CONTENT, mime, fis);
-                    res.addHeader("Content-Length", String.valueOf(dataLen));
-                    res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/"
-                            + fileLen);
-                    res.addHeader("ETag", etag);
-                }
-            } else {
-                if (etag.equals(header.get("if-none-match"))) {
-                    res = createResponse(Response.Status.NOT_MODIFIED, mime, "");
-                } else {
-                    res = createResponse(Response.Status.OK, mime, new FileInputStream(file));
-                    res.addHeader("Content-Length", String.valueOf(fileLen));
-                    res.addHeader("ETag", etag);
-                }
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if ("*".equals(candidate) || etag.equals(candidate)) {
+                return true;
             }
-        } catch (IOException ioe) {
-            res = createResponse(Response.Status.FORBIDDEN, NanoHTTPD.MIME_PLAINTEXT,
-                    "FORBIDDEN: Reading file failed.");
         }
-
-        return res;
+        return false;
     }
 
     // Announce that the file server accepts partial content requests
-    private Response createResponse(Response.Status status, String mimeType, InputStream message) {
-        Response res = new Response(status, mimeType, message);
+    private Response createResponse(Response.Status status, String mimeType, File file, long offset, long length) {
+        Response res = new FileResponse(status, mimeType, file, offset, length);
         res.addHeader("Accept-Ranges", "bytes");
         return res;
     }
@@ -0,0 +1,180 @@
+package org.fdroid.fdroid.net;
+
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Runs {@link LocalHTTPD} connections on a fixed pool of worker threads,
+ * instead of {@link NanoHTTPD.DefaultAsyncRunner}'s new thread per connection.
+ * NanoHTTPD hands over a whole connection at a time, and the worker then
+ * serves every request that comes over it until the client closes it or it
+ * sits idle for {@link NanoHTTPD#SOCKET_READ_TIMEOUT}, i.e. HTTP/1.1 keep-alive.
+ * <p>
+ * When all workers are busy, new connections wait in a queue of limited
+ * size.  Once that is full too, {@link #exec(Runnable)} blocks NanoHTTPD's
+ * accept loop, so further clients wait in the kernel's listen backlog
+ * rather than each getting a thread.  {@link #isBusy()} lets the server tell
+ * keep-alive clients to close their connection when keeping it open would
+ * leave no worker for the next client, since an idle kept-alive connection
+ * still holds its worker until {@link NanoHTTPD#SOCKET_READ_TIMEOUT}.
+ * <p>
+ * NanoHTTPD does not give the {@link NanoHTTPD.Response} access to the
+ * connection's {@link Socket}, only to its stream, so {@link LocalHTTPD}
+ * passes each socket in via {@link #setAcceptedSocket(Socket)} just before
+ * NanoHTTPD calls {@link #exec(Runnable)} for it, and the worker serving it
+ * makes it available from {@link #getCurrentSocket()}.
+ */
+final class PooledAsyncRunner implements NanoHTTPD.AsyncRunner {
+
+    private static final long ACCEPT_POLL_MILLIS = 100;
+
+    private static final ThreadLocal<Socket> CURRENT_SOCKET = new ThreadLocal<>();
+
+    private final int workers;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore slots;
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger queuedConnections = new AtomicInteger();
+    private final AtomicInteger peakActiveConnections = new AtomicInteger();
+    private final AtomicLong totalConnections = new AtomicLong();
+
+    /**
+     * Only used on NanoHTTPD's accept thread.
+     */
+    private Socket acceptedSocket;
+
+    /**
+     * @param workers       how many connections are served at the same time
+     * @param maxQueued     how many accepted connections may wait for a worker
+     */
+    PooledAsyncRunner(int workers, int maxQueued) {
+        this.workers = workers;
+        slots = new Semaphore(workers + maxQueued);
+        executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "LocalHTTPD Worker #" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Called on the accept thread with the socket that the next call to
+     * {@link #exec(Runnable)} will serve.
+     */
+    void setAcceptedSocket(Socket socket) {
+        acceptedSocket = socket;
+    }
+
+    /**
+     * @return the socket of the connection being served on this thread, or
+     * {@code null} if this is not one of the workers
+     */
+    static Socket getCurrentSocket() {
+        return CURRENT_SOCKET.get();
+    }
+
+    @Override
+    public void exec(final Runnable code) {
+        final Socket socket = acceptedSocket;
+        acceptedSocket = null;
+        try {
+            while (!slots.tryAcquire(ACCEPT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (executor.isShutdown()) {
+                    runOnOwnThread(code);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            runOnOwnThread(code);
+            return;
+        }
+
+        queuedConnections.incrementAndGet();
+        totalConnections.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queuedConnections.decrementAndGet();
+                    int active = activeConnections.incrementAndGet();
+                    int peak;
+                    do {
+                        peak = peakActiveConnections.get();
+                    } while (active > peak && !peakActiveConnections.compareAndSet(peak, active));
+                    CURRENT_SOCKET.set(socket);
+                    try {
+                        code.run();
+                    } finally {
+                        CURRENT_SOCKET.remove();
+                        activeConnections.decrementAndGet();
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queuedConnections.decrementAndGet();
+            slots.release();
+            runOnOwnThread(code);
+        }
+    }
+
+    /**
+     * Only used while shutting down: the connection still has to be run so
+     * that NanoHTTPD closes and unregisters its socket.
+     */
+    private static void runOnOwnThread(Runnable code) {
+        Thread thread = new Thread(code, "LocalHTTPD Shutdown");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop taking new connections.  The ones being served finish once
+     * NanoHTTPD closes their sockets.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Called from a worker, so its own connection counts as active.
+     *
+     * @return whether there are connections waiting for a worker, or every
+     * worker is serving a connection
+     */
+    boolean isBusy() {
+        return queuedConnections.get() > 0 || activeConnections.get() >= workers;
+    }
+
+    int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    int getQueuedConnections() {
+        return queuedConnections.get();
+    }
+
+    int getPeakActiveConnections() {
+        return peakActiveConnections.get();
+    }
+
+    long getTotalConnections() {
+        return totalConnections.get();
+    }
+}
@@ -0,0 +1,76 @@
+package org.fdroid.fdroid.net;
+
+/**
+ * A token bucket that limits how fast a group of downloads may go.  There is
+ * one for downloads the user is waiting on, and one for downloads that were
+ * started in the background, like automatically downloading updates.  The
+ * background one can also be paused, e.g. when the only network available is
+ * one that background downloads should not use.
+ * <p>
+ * {@link Downloader} takes tokens after each chunk it copies, and then waits
+ * for as long as {@link #take(int)} says.  That way the waiting happens in the
+ * {@code Downloader}, where it can also check whether it was cancelled.
+ * <p>
+ * This is pure Java so it can be tested on the JVM.
+ */
+public final class RateLimiter {
+
+    public static final long UNLIMITED = 0;
+
+    public static final RateLimiter FOREGROUND = new RateLimiter(UNLIMITED);
+    public static final RateLimiter BACKGROUND = new RateLimiter(UNLIMITED);
+
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+    private boolean paused;
+
+    RateLimiter(long bytesPerSecond) {
+        setBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * @param bytesPerSecond the new budget, or {@link #UNLIMITED}
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        // start full, so a new limit does not stall the downloads that are already running
+        tokens = bytesPerSecond;
+        lastRefillNanos = System.nanoTime();
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public synchronized void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Take {@code bytes} worth of tokens from the bucket.  The bucket is
+     * allowed to go into debt, since the bytes have already been read by the
+     * time this is called, and then the caller has to wait until the debt is
+     * paid off.  The bucket never holds more than one second's worth of
+     * tokens, which limits how big a burst can be.
+     *
+     * @return how many milliseconds the caller should wait before reading more
+     */
+    public synchronized long take(int bytes) {
+        if (bytesPerSecond <= UNLIMITED) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+        lastRefillNanos = now;
+        tokens -= bytes;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens * 1000 / bytesPerSecond);
+    }
+}
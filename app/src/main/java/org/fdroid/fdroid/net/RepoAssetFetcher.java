@@ -0,0 +1,205 @@
+package org.fdroid.fdroid.net;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.RepoProvider;
+import org.fdroid.fdroid.data.Schema;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fetches the small graphics that repos serve (icons, feature graphics,
+ * screenshots) for {@link ImageLoaderForUIL}.  The app details and category
+ * screens ask for dozens of these from the same host at once, so unlike
+ * {@link HttpDownloader} this:
+ * <ul>
+ * <li>never calls {@link HttpURLConnection#disconnect()}, but reads each
+ * response to the end and closes it, so the platform's connection pool keeps
+ * the socket alive and the next image reuses it instead of doing another
+ * TCP and TLS handshake
+ * <li>limits how many requests go to one host at the same time, so a burst
+ * of requests is served by a few warm connections rather than many cold ones
+ * <li>only fetches a URL once when several views ask for it at the same time,
+ * the others wait for the first one and get a copy of the same bytes
+ * <li>does not create a temp file per image, and looks up repo credentials
+ * once per directory rather than walking the database for every image
+ * </ul>
+ * Connections are opened with {@link HttpDownloader#openConnection(URL, String, String, int)}
+ * so the swap and NetCipher proxy rules are exactly the same as for downloads.
+ * <p>
+ * {@link HttpURLConnection} does not support HTTP/2 or pipelining, so keep-alive
+ * is the only way to share connections without adding a new HTTP library.
+ */
+public final class RepoAssetFetcher {
+
+    private static final String TAG = "RepoAssetFetcher";
+
+    static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+    /**
+     * Credentials are only needed for the rare repo with HTTP Basic Auth, but
+     * looking them up takes several database queries, so keep them briefly.
+     */
+    private static final long CREDENTIALS_MAX_AGE_MILLIS = 60 * 1000;
+
+    private static RepoAssetFetcher instance;
+
+    public static synchronized RepoAssetFetcher getInstance() {
+        if (instance == null) {
+            instance = new RepoAssetFetcher();
+        }
+        return instance;
+    }
+
+    private static final class InFlight {
+        final CountDownLatch done = new CountDownLatch(1);
+        byte[] bytes;
+        IOException error;
+    }
+
+    private static final class Credentials {
+        final String username;
+        final String password;
+        final long fetchedAt;
+
+        Credentials(String username, String password) {
+            this.username = username;
+            this.password = password;
+            this.fetchedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final ConcurrentHashMap<String, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Credentials> credentials = new ConcurrentHashMap<>();
+
+    private RepoAssetFetcher() {
+    }
+
+    /**
+     * @return the whole asset, already in memory, so the caller does not hold
+     * a connection while decoding
+     */
+    public InputStream fetch(Context context, String urlString) throws IOException {
+        InFlight mine = new InFlight();
+        InFlight existing = inFlight.putIfAbsent(urlString, mine);
+        if (existing != null) {
+            Utils.debugLog(TAG, "Waiting for in-flight request of " + urlString);
+            return waitFor(existing, urlString);
+        }
+
+        try {
+            mine.bytes = download(context, new URL(urlString));
+        } catch (IOException e) {
+            mine.error = e;
+        } finally {
+            inFlight.remove(urlString);
+            mine.done.countDown();
+        }
+        return waitFor(mine, urlString);
+    }
+
+    private static InputStream waitFor(InFlight request, String urlString) throws IOException {
+        try {
+            request.done.await();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for " + urlString);
+        }
+        if (request.error != null) {
+            throw request.error;
+        }
+        return new ByteArrayInputStream(request.bytes);
+    }
+
+    private byte[] download(Context context, URL url) throws IOException {
+        Semaphore permits = getHostPermits(url);
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for a connection to " + url.getHost());
+        }
+        InputStream input = null;
+        try {
+            Credentials creds = getCredentials(context, url);
+            HttpURLConnection connection = HttpDownloader.openConnection(url, creds.username, creds.password,
+                    FDroidApp.getTimeout());
+            int statusCode = connection.getResponseCode();
+            if (statusCode != HttpURLConnection.HTTP_OK) {
+                // the error stream must be drained too, or the connection cannot be reused
+                drainQuietly(connection.getErrorStream());
+                throw new IOException(url + " returned " + statusCode);
+            }
+            input = connection.getInputStream();
+            int contentLength = connection.getContentLength();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(contentLength > 0 ? contentLength : 16384);
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            Utils.closeQuietly(input);
+            permits.release();
+        }
+    }
+
+    private Semaphore getHostPermits(URL url) {
+        String key = url.getProtocol() + "://" + url.getAuthority();
+        Semaphore permits = hostPermits.get(key);
+        if (permits == null) {
+            permits = new Semaphore(MAX_CONNECTIONS_PER_HOST);
+            Semaphore existing = hostPermits.putIfAbsent(key, permits);
+            if (existing != null) {
+                permits = existing;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * Repo addresses are always a directory, so every asset in the same
+     * directory belongs to the same repo and uses the same credentials.
+     */
+    private Credentials getCredentials(Context context, URL url) {
+        String urlString = url.toString();
+        String directory = urlString.substring(0, urlString.lastIndexOf('/') + 1);
+        Credentials creds = credentials.get(directory);
+        if (creds == null || SystemClock.elapsedRealtime() - creds.fetchedAt > CREDENTIALS_MAX_AGE_MILLIS) {
+            final String[] projection = {Schema.RepoTable.Cols.USERNAME, Schema.RepoTable.Cols.PASSWORD};
+            Repo repo = RepoProvider.Helper.findByUrl(context, Uri.parse(urlString), projection);
+            creds = repo == null ? new Credentials(null, null) : new Credentials(repo.username, repo.password);
+            credentials.put(directory, creds);
+        }
+        return creds;
+    }
+
+    private static void drainQuietly(InputStream input) {
+        if (input == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[1024];
+            while (input.read(buffer) != -1) { //NOPMD
+                // just discard everything
+            }
+        } catch (IOException e) {
+            // the connection will not be reused, nothing else to do
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+}
@@ -19,11 +19,39 @@ public class BluetoothConnection {
     private InputStream input;
     private OutputStream output;
     private final BluetoothSocket socket;
+    private volatile boolean framed;
+    private volatile boolean streams;
 
     public BluetoothConnection(BluetoothSocket socket) {
         this.socket = socket;
     }
 
+    /**
+     * @return whether requests and responses on this connection are sent as
+     * length-prefixed frames, after
+     * {@link org.fdroid.fdroid.net.bluetooth.httpish.Request#upgrade(BluetoothConnection)}
+     */
+    public boolean isFramed() {
+        return framed;
+    }
+
+    public void setFramed(boolean framed) {
+        this.framed = framed;
+    }
+
+    /**
+     * @return whether this connection carries several requests and responses
+     * at once, after
+     * {@link org.fdroid.fdroid.net.bluetooth.httpish.Request#upgradeToStreams(BluetoothConnection)}
+     */
+    public boolean hasStreams() {
+        return streams;
+    }
+
+    public void setStreams(boolean streams) {
+        this.streams = streams;
+    }
+
     public InputStream getInputStream() {
         return input;
     }
@@ -10,6 +10,7 @@ import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.localrepo.type.BluetoothSwap;
 import org.fdroid.fdroid.net.bluetooth.httpish.Request;
 import org.fdroid.fdroid.net.bluetooth.httpish.Response;
+import org.fdroid.fdroid.net.bluetooth.httpish.StreamScheduler;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -125,12 +126,37 @@ public class BluetoothServer extends Thread {
                 return;
             }
 
+            // only set once the client switched to streams, which then sends all of the responses
+            StreamScheduler scheduler = null;
+
             while (true) {
 
                 try {
                     Utils.debugLog(TAG, "Listening for new Bluetooth request from client.");
                     Request incomingRequest = Request.listenForRequest(connection);
-                    handleRequest(incomingRequest).send(connection);
+                    if (incomingRequest == null) {
+                        Utils.debugLog(TAG, "Bluetooth client closed the connection.");
+                        break;
+                    }
+                    if (incomingRequest.isUpgrade()) {
+                        Response.sendSwitchingProtocols(connection);
+                        continue;
+                    }
+                    if (incomingRequest.isStreamsUpgrade()) {
+                        Response.sendSwitchingToStreams(connection);
+                        scheduler = new StreamScheduler(connection);
+                        scheduler.start();
+                        continue;
+                    }
+                    if (scheduler == null) {
+                        handleRequest(incomingRequest).send(connection);
+                    } else if (incomingRequest.isCancel()) {
+                        scheduler.cancel(incomingRequest.getStreamId());
+                    } else if (incomingRequest.isWindowUpdate()) {
+                        scheduler.addWindow(incomingRequest.getStreamId(), incomingRequest.getWindowIncrement());
+                    } else {
+                        scheduler.add(incomingRequest, handleRequest(incomingRequest));
+                    }
                 } catch (IOException e) {
                     Log.e(TAG, "Error receiving incoming connection over bluetooth", e);
                     break;
@@ -141,6 +167,9 @@ public class BluetoothServer extends Thread {
                 }
             }
 
+            if (scheduler != null) {
+                scheduler.close();
+            }
             connection.closeQuietly();
 
         }
@@ -152,19 +181,17 @@ public class BluetoothServer extends Thread {
             Response.Builder builder = null;
 
             try {
-                int statusCode = 404;
-                int totalSize = -1;
-
+                HashMap<String, String> headers = new HashMap<>();
+                Response resp = respond(headers, "/" + request.getPath());
                 if (request.getMethod().equals(Request.Methods.HEAD)) {
+                    // same status and size as a GET, just without the body
+                    Utils.closeQuietly(resp.toContentStream());
                     builder = new Response.Builder();
                 } else {
-                    HashMap<String, String> headers = new HashMap<>();
-                    Response resp = respond(headers, "/" + request.getPath());
-
                     builder = new Response.Builder(resp.toContentStream());
-                    statusCode = resp.getStatusCode();
-                    totalSize = resp.getFileSize();
                 }
+                int statusCode = resp.getStatusCode();
+                int totalSize = resp.getFileSize();
 
                 // TODO: At this stage, will need to download the file to get this info.
                 // However, should be able to make totalDownloadSize and getCacheTag work without downloading.
@@ -0,0 +1,119 @@
+package org.fdroid.fdroid.net.bluetooth.httpish;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The framed format for {@link Request}s and {@link Response}s over Bluetooth.
+ * Every field says up front how long it is, so each side reads exactly as many
+ * bytes as it needs with blocking reads, instead of looking for the end of
+ * each line, and the next request can follow straight after.
+ * <pre>
+ * request:  method (UTF), path (UTF), headers
+ * response: status (short), headers, body length (long), body
+ * headers:  count (short), then name (UTF) and value (UTF) for each
+ * </pre>
+ * {@code UTF} is as in {@link DataOutputStream#writeUTF(String)}, a two byte
+ * length followed by the string.
+ * <p>
+ * A connection that was switched over to streams with {@link Request#upgradeToStreams}
+ * instead carries many requests and responses at once.  Every message there
+ * starts with its type (byte) and the id of the stream it belongs to (int):
+ * <pre>
+ * client: request   priority (byte), method (UTF), path (UTF), headers
+ *         cancel    nothing else
+ * server: response  status (short), headers, body length (long)
+ *         data      count (unsigned short), then that many bytes of the body
+ * </pre>
+ * A response's body follows in as many data messages as it takes, which can
+ * be interleaved with those of other streams.
+ */
+final class Frames {
+
+    /**
+     * More headers than this means the stream is not where it should be.
+     */
+    static final int MAX_HEADERS = 64;
+
+    static final int STREAM_REQUEST = 1;
+    static final int STREAM_CANCEL = 2;
+    static final int STREAM_RESPONSE = 3;
+    static final int STREAM_DATA = 4;
+    static final int STREAM_WINDOW_UPDATE = 5;
+
+    /**
+     * The most that is sent of a body before the next stream gets its turn.
+     */
+    static final int MAX_DATA = 16 * 1024;
+
+    /**
+     * How much of a body may be sent before the client has read any of it.
+     * After that, the client has to hand out more with a
+     * {@link #STREAM_WINDOW_UPDATE} for each part it read, so a body that is
+     * not read right away never piles up in memory.
+     */
+    static final int INITIAL_WINDOW = 256 * 1024;
+
+    private Frames() {
+    }
+
+    static void writeHeaders(DataOutputStream output, Map<String, String> headers) throws IOException {
+        output.writeShort(headers.size());
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            output.writeUTF(entry.getKey());
+            output.writeUTF(entry.getValue());
+        }
+    }
+
+    static void writeStreamRequest(DataOutputStream output, int streamId, int priority,
+                                   String method, String path, Map<String, String> headers) throws IOException {
+        output.writeByte(STREAM_REQUEST);
+        output.writeInt(streamId);
+        output.writeByte(priority);
+        output.writeUTF(method);
+        output.writeUTF(path);
+        writeHeaders(output, headers);
+    }
+
+    static void writeStreamCancel(DataOutputStream output, int streamId) throws IOException {
+        output.writeByte(STREAM_CANCEL);
+        output.writeInt(streamId);
+    }
+
+    static void writeStreamWindowUpdate(DataOutputStream output, int streamId, int bytes) throws IOException {
+        output.writeByte(STREAM_WINDOW_UPDATE);
+        output.writeInt(streamId);
+        output.writeInt(bytes);
+    }
+
+    static void writeStreamResponse(DataOutputStream output, int streamId, int statusCode,
+                                    Map<String, String> headers, long length) throws IOException {
+        output.writeByte(STREAM_RESPONSE);
+        output.writeInt(streamId);
+        output.writeShort(statusCode);
+        writeHeaders(output, headers);
+        output.writeLong(length);
+    }
+
+    static void writeStreamData(DataOutputStream output, int streamId, byte[] data, int count) throws IOException {
+        output.writeByte(STREAM_DATA);
+        output.writeInt(streamId);
+        output.writeShort(count);
+        output.write(data, 0, count);
+    }
+
+    static Map<String, String> readHeaders(DataInputStream input) throws IOException {
+        int count = input.readUnsignedShort();
+        if (count > MAX_HEADERS) {
+            throw new IOException("Invalid frame with " + count + " headers");
+        }
+        Map<String, String> headers = new HashMap<>(count);
+        for (int i = 0; i < count; i++) {
+            headers.put(input.readUTF(), input.readUTF());
+        }
+        return headers;
+    }
+}
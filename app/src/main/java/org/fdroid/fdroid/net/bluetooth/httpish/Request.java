@@ -4,6 +4,9 @@ import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.net.bluetooth.BluetoothConnection;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
@@ -12,6 +15,21 @@ import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
+/**
+ * A request over a {@link BluetoothConnection}, which is sent in one of two ways:
+ * <ul>
+ * <li>the original text format, which looks like HTTP and is read line by line
+ * <li>{@link Frames}, which is what is used once both sides agreed to it with
+ * {@link #upgrade(BluetoothConnection)}
+ * </ul>
+ * Framed requests can be pipelined: the client can {@link #write()} several of
+ * them before it reads the first {@link Response} with {@link #readResponse()}.
+ * The server answers them in the order they were sent.
+ * <p>
+ * A connection can instead be switched over to streams with
+ * {@link #upgradeToStreams(BluetoothConnection)}, where the server answers in
+ * whatever order it likes, see {@link StreamSession} and {@link StreamScheduler}.
+ */
 public final class Request {
 
     private static final String TAG = "bluetooth.Request";
@@ -21,20 +39,44 @@ public final class Request {
         String GET = "GET";
     }
 
+    /**
+     * A client that can speak {@link Frames} first sends a {@link Methods#HEAD}
+     * for this path, in the text format.  A server that knows about it answers
+     * {@link #STATUS_SWITCHING_PROTOCOLS}, and from then on both sides use
+     * frames on that connection.  Older servers do not have this file, and
+     * answer a {@code HEAD} without any headers or body, so the client can
+     * carry on in the text format with them.
+     */
+    static final String UPGRADE_PATH = "/.fdroid-swap-framed-v1";
+
+    /**
+     * Like {@link #UPGRADE_PATH}, but for switching to {@link Frames} with
+     * several streams at once.  Servers which only know about plain frames
+     * treat it as a missing file.  {@link StreamSession#get(String)} then
+     * closes that connection, and remembers not to ask that server again, so
+     * each download opens its own connection and asks for {@link #UPGRADE_PATH}.
+     */
+    static final String STREAMS_UPGRADE_PATH = "/.fdroid-swap-streams-v1";
+
+    static final int STATUS_SWITCHING_PROTOCOLS = 101;
+
     private String method;
     private String path;
     private Map<String, String> headers;
+    private int streamId;
+    private int priority;
+    private boolean cancel;
+    private int windowIncrement;
 
     private final BluetoothConnection connection;
-    private final Writer output;
     private final InputStream input;
 
     private Request(String method, String path, BluetoothConnection connection) {
         this.method = method;
         this.path = path;
         this.connection = connection;
+        this.headers = new HashMap<>();
 
-        output = new OutputStreamWriter(connection.getOutputStream());
         input = connection.getInputStream();
     }
 
@@ -46,21 +88,92 @@ public final class Request {
         return new Request(Methods.GET, path, connection);
     }
 
+    /**
+     * Ask the server to switch this connection over to {@link Frames}.
+     *
+     * @return whether the server agreed, otherwise the connection stays in the
+     * text format
+     */
+    public static boolean upgrade(BluetoothConnection connection) throws IOException {
+        boolean framed = askToSwitch(connection, UPGRADE_PATH);
+        connection.setFramed(framed);
+        Utils.debugLog(TAG, framed ? "Using framed requests" : "Server only supports text requests");
+        return framed;
+    }
+
+    /**
+     * Ask the server to switch this connection over to streams of
+     * {@link Frames}, which can only be used through a {@link StreamSession}.
+     *
+     * @return whether the server agreed, otherwise the connection stays in the
+     * text format, and can still be {@link #upgrade(BluetoothConnection)}d
+     */
+    public static boolean upgradeToStreams(BluetoothConnection connection) throws IOException {
+        boolean streams = askToSwitch(connection, STREAMS_UPGRADE_PATH);
+        if (streams) {
+            connection.setFramed(true);
+            connection.setStreams(true);
+        }
+        Utils.debugLog(TAG, streams ? "Using streams" : "Server does not support streams");
+        return streams;
+    }
+
+    private static boolean askToSwitch(BluetoothConnection connection, String path) throws IOException {
+        Request request = createHEAD(path, connection);
+        request.writeText();
+        int responseCode = request.readResponseCode();
+        request.readHeaders();
+        return responseCode == STATUS_SWITCHING_PROTOCOLS;
+    }
+
     public String getHeaderValue(String header) {
         return headers.containsKey(header) ? headers.get(header) : null;
     }
 
+    /**
+     * Send this request and wait for its response.
+     */
     public Response send() throws IOException {
+        write();
+        return readResponse();
+    }
 
+    /**
+     * Send this request without waiting for the response, which then has to
+     * be read with {@link #readResponse()}, in the same order as the requests
+     * were written.
+     */
+    public void write() throws IOException {
         Utils.debugLog(TAG, "Sending request to server (" + path + ")");
+        if (connection.isFramed()) {
+            DataOutputStream output = new DataOutputStream(connection.getOutputStream());
+            output.writeUTF(method);
+            output.writeUTF(path);
+            Frames.writeHeaders(output, headers);
+            output.flush();
+        } else {
+            writeText();
+        }
+    }
 
+    private void writeText() throws IOException {
+        Writer output = new OutputStreamWriter(connection.getOutputStream());
         output.write(method);
         output.write(' ');
         output.write(path);
-
         output.write("\n\n");
-
         output.flush();
+    }
+
+    /**
+     * Read the response to this request.  With {@link Frames}, the body of
+     * the previous response on this connection has to be read to the end
+     * before this is called.
+     */
+    public Response readResponse() throws IOException {
+        if (connection.isFramed()) {
+            return Response.readFrame(connection, method);
+        }
 
         Utils.debugLog(TAG, "Finished sending request, now attempting to read response status code...");
 
@@ -91,6 +204,22 @@ public final class Request {
      */
     private boolean listen() throws IOException {
 
+        if (connection.hasStreams()) {
+            return listenForStream();
+        }
+
+        if (connection.isFramed()) {
+            DataInputStream dataInput = new DataInputStream(input);
+            try {
+                method = dataInput.readUTF();
+            } catch (EOFException e) {
+                return false;
+            }
+            path = dataInput.readUTF();
+            headers = Frames.readHeaders(dataInput);
+            return true;
+        }
+
         String requestLine = readLine();
 
         if (requestLine == null || requestLine.trim().length() == 0) {
@@ -110,6 +239,36 @@ public final class Request {
         return true;
     }
 
+    private boolean listenForStream() throws IOException {
+        DataInputStream dataInput = new DataInputStream(input);
+        int type;
+        try {
+            type = dataInput.readUnsignedByte();
+        } catch (EOFException e) {
+            return false;
+        }
+        streamId = dataInput.readInt();
+        if (type == Frames.STREAM_CANCEL) {
+            cancel = true;
+            return true;
+        }
+        if (type == Frames.STREAM_WINDOW_UPDATE) {
+            windowIncrement = dataInput.readInt();
+            if (windowIncrement <= 0) {
+                throw new IOException("Invalid window update of " + windowIncrement + " for stream " + streamId);
+            }
+            return true;
+        }
+        if (type != Frames.STREAM_REQUEST) {
+            throw new IOException("Invalid message type " + type + " for stream " + streamId);
+        }
+        priority = dataInput.readUnsignedByte();
+        method = dataInput.readUTF();
+        path = dataInput.readUTF();
+        headers = Frames.readHeaders(dataInput);
+        return true;
+    }
+
     /**
      * This is a blocking method, which will wait until a full Request is received.
      */
@@ -118,6 +277,45 @@ public final class Request {
         return request.listen() ? request : null;
     }
 
+    /**
+     * @return whether this is a client asking to switch to {@link Frames}, see
+     * {@link #upgrade(BluetoothConnection)}
+     */
+    public boolean isUpgrade() {
+        return !connection.isFramed() && Methods.HEAD.equals(method) && UPGRADE_PATH.equals(path);
+    }
+
+    /**
+     * @return whether this is a client asking to switch to streams, see
+     * {@link #upgradeToStreams(BluetoothConnection)}
+     */
+    public boolean isStreamsUpgrade() {
+        return !connection.isFramed() && Methods.HEAD.equals(method) && STREAMS_UPGRADE_PATH.equals(path);
+    }
+
+    /**
+     * @return whether the client no longer wants the response for
+     * {@link #getStreamId()}, which is the only thing set on such a request
+     */
+    public boolean isCancel() {
+        return cancel;
+    }
+
+    /**
+     * @return whether the client read part of the body for {@link #getStreamId()},
+     * so more of it can be sent, see {@link #getWindowIncrement()}
+     */
+    public boolean isWindowUpdate() {
+        return windowIncrement > 0;
+    }
+
+    /**
+     * @return how many more bytes of the body the client is ready for
+     */
+    public int getWindowIncrement() {
+        return windowIncrement;
+    }
+
     /**
      * First line of a HTTP 1.1 response is the status line:
      * http://www.w3.org/Protocols/rfc2616/rfc2616-sec6.html#sec6.1
@@ -127,70 +325,58 @@ public final class Request {
     private int readResponseCode() throws IOException {
 
         String line = readLine();
+        if (line == null) {
+            throw new EOFException("Connection closed before the response status");
+        }
 
-        // TODO: Error handling
         int firstSpace = line.indexOf(' ');
         int secondSpace = line.indexOf(' ', firstSpace + 1);
+        if (firstSpace < 0 || secondSpace < 0) {
+            throw new IOException("Invalid status line: " + line);
+        }
 
         String status = line.substring(firstSpace + 1, secondSpace);
-        return Integer.parseInt(status);
+        try {
+            return Integer.parseInt(status);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + line, e);
+        }
     }
 
+    /**
+     * Read up to the next {@code \n}, blocking until it arrives.  The stream is
+     * buffered by {@link BluetoothConnection}, so reading a byte at a time is
+     * only a method call, not a trip to the Bluetooth stack.
+     *
+     * @return the line, or {@code null} if it is empty or the connection closed
+     */
     private String readLine() throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        String line = null;
-
-        while (line == null) {
-
-            while (input.available() > 0) {
-
-                int b = input.read();
-
-                if (((char) b) == '\n') {
-                    if (baos.size() > 0) {
-                        line = new String(baos.toByteArray());
-                    }
-
-                    return line;
-                }
-
-                baos.write(b);
-            }
-
-            try {
-                Thread.sleep(100);
-            } catch (Exception e) {
-                // ignore
-            }
+        int b;
+        while ((b = input.read()) != -1 && b != '\n') {
+            baos.write(b);
         }
-
-        return line;
+        return baos.size() > 0 ? new String(baos.toByteArray(), "UTF-8") : null;
     }
 
     /**
      * Subsequent lines (after the status line) represent the headers, which are case
      * insensitive and may be multi-line. We don't deal with multi-line headers in
-     * our HTTP-ish implementation.
+     * our HTTP-ish implementation.  They end with an empty line.
      */
     private Map<String, String> readHeaders() throws IOException {
         Map<String, String> headers = new HashMap<>();
         String responseLine = readLine();
         while (responseLine != null) {
 
-            // TODO: Error handling
-            String[] parts = responseLine.split(":");
-            if (parts.length > 1) {
-                String header = parts[0].trim();
-                String value = parts[1].trim();
+            int colon = responseLine.indexOf(':');
+            if (colon > 0) {
+                String header = responseLine.substring(0, colon).trim();
+                String value = responseLine.substring(colon + 1).trim();
                 headers.put(header, value);
             }
 
-            if (input.available() > 0) {
-                responseLine = readLine();
-            } else {
-                break;
-            }
-
+            responseLine = readLine();
         }
         return headers;
     }
@@ -203,4 +389,19 @@ public final class Request {
         return method;
     }
 
+    /**
+     * @return which stream this request came on, if the connection has streams
+     */
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * @return how urgent this request is, lower is more urgent, see
+     * {@link StreamSession#getPriority(String)}
+     */
+    public int getPriority() {
+        return priority;
+    }
+
 }
@@ -1,14 +1,19 @@
 package org.fdroid.fdroid.net.bluetooth.httpish;
 
 import android.util.Log;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.net.bluetooth.BluetoothConnection;
 import org.fdroid.fdroid.net.bluetooth.FileDetails;
 import org.fdroid.fdroid.net.bluetooth.httpish.headers.Header;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
@@ -45,7 +50,9 @@ public class Response {
         this.headers = new HashMap<>();
         this.headers.put("Content-Type", mimeType);
         try {
-            this.contentStream = new ByteArrayInputStream(content.getBytes("UTF-8"));
+            byte[] bytes = content.getBytes("UTF-8");
+            this.headers.put("Content-Length", Integer.toString(bytes.length));
+            this.contentStream = new ByteArrayInputStream(bytes);
         } catch (UnsupportedEncodingException e) {
             // Not quite sure what to do in the case of a phone not supporting UTF-8, so lets
             // throw a runtime exception and hope that we get good bug reports if this ever happens.
@@ -104,12 +111,36 @@ public class Response {
         return contentStream;
     }
 
+    /**
+     * Read a response in the {@link Frames} format.  Its content stream ends
+     * where the body ends, and the next response starts after it.
+     */
+    static Response readFrame(BluetoothConnection connection, String method) throws IOException {
+        DataInputStream input = new DataInputStream(connection.getInputStream());
+        int statusCode = input.readUnsignedShort();
+        Map<String, String> headers = Frames.readHeaders(input);
+        long length = input.readLong();
+        if (length < 0) {
+            throw new IOException("Invalid frame with a body of " + length + " bytes");
+        }
+        if (Request.Methods.HEAD.equals(method)) {
+            return new Response(statusCode, headers);
+        }
+        BoundedInputStream body = new BoundedInputStream(connection.getInputStream(), length);
+        body.setPropagateClose(false);
+        return new Response(statusCode, headers, body);
+    }
+
     public void send(BluetoothConnection connection) throws IOException {
+        if (connection.isFramed()) {
+            sendFrame(connection);
+            return;
+        }
 
         Utils.debugLog(TAG, "Sending Bluetooth HTTP-ish response...");
 
         Writer output = new OutputStreamWriter(connection.getOutputStream());
-        output.write("HTTP(ish)/0.1 200 OK\n");
+        output.write("HTTP(ish)/0.1 " + statusCode + " " + (statusCode == 200 ? "OK" : "Error") + "\n");
 
         for (Map.Entry<String, String> entry : headers.entrySet()) {
             output.write(entry.getKey());
@@ -129,6 +160,99 @@ public class Response {
 
     }
 
+    private void sendFrame(BluetoothConnection connection) throws IOException {
+        Response response = withKnownLength();
+        long length = response.getBodyLength();
+
+        DataOutputStream output = new DataOutputStream(connection.getOutputStream());
+        output.writeShort(statusCode);
+        Frames.writeHeaders(output, response.headers);
+        output.writeLong(length);
+        if (response.contentStream != null) {
+            copyFully(response.contentStream, output, length);
+        }
+        output.flush();
+    }
+
+    /**
+     * {@link Frames} have to say how long the body is before it is sent, so
+     * a body without a {@code Content-Length} is read into memory first.
+     */
+    Response withKnownLength() throws IOException {
+        if (contentStream == null || getFileSize() >= 0) {
+            return this;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Utils.copy(contentStream, buffer);
+        Utils.closeQuietly(contentStream);
+        Map<String, String> knownHeaders = new HashMap<>(headers);
+        knownHeaders.put("Content-Length", Integer.toString(buffer.size()));
+        return new Response(statusCode, knownHeaders, new ByteArrayInputStream(buffer.toByteArray()));
+    }
+
+    /**
+     * @return how many bytes {@link Frames} send as the body, which is none
+     * for a response without a content stream, like for a {@code HEAD}
+     */
+    long getBodyLength() {
+        return contentStream == null ? 0 : getFileSize();
+    }
+
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the content stream, or {@code null} if there is none
+     */
+    InputStream getBody() {
+        return contentStream;
+    }
+
+    /**
+     * Copy exactly {@code length} bytes, since anything more or less would
+     * break the framing of the next response.
+     */
+    private static void copyFully(InputStream input, OutputStream output, long length) throws IOException {
+        byte[] buffer = new byte[8192];
+        long remaining = length;
+        while (remaining > 0) {
+            int count = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (count == -1) {
+                throw new IOException("Body ended " + remaining + " bytes short of " + length);
+            }
+            output.write(buffer, 0, count);
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Tell a client that asked with {@link Request#upgrade(BluetoothConnection)}
+     * that {@link Frames} will be used from now on.  This is the last thing
+     * sent in the text format on this connection.
+     */
+    public static void sendSwitchingProtocols(BluetoothConnection connection) throws IOException {
+        writeSwitchingProtocols(connection);
+        connection.setFramed(true);
+    }
+
+    /**
+     * Tell a client that asked with {@link Request#upgradeToStreams(BluetoothConnection)}
+     * that it will get streams from now on, which a {@link StreamScheduler}
+     * then has to send.
+     */
+    public static void sendSwitchingToStreams(BluetoothConnection connection) throws IOException {
+        writeSwitchingProtocols(connection);
+        connection.setFramed(true);
+        connection.setStreams(true);
+    }
+
+    private static void writeSwitchingProtocols(BluetoothConnection connection) throws IOException {
+        Writer output = new OutputStreamWriter(connection.getOutputStream());
+        output.write("HTTP(ish)/0.1 " + Request.STATUS_SWITCHING_PROTOCOLS + " Switching Protocols\n\n");
+        output.flush();
+    }
+
     public static class Builder {
 
         private InputStream contentStream;
@@ -0,0 +1,241 @@
+package org.fdroid.fdroid.net.bluetooth.httpish;
+
+import android.util.Log;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.net.bluetooth.BluetoothConnection;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Sends the {@link Response}s on a connection that was switched over to
+ * streams with {@link Request#upgradeToStreams(BluetoothConnection)}.  The
+ * bodies are cut into pieces of up to {@link Frames#MAX_DATA} bytes, and the
+ * next piece always comes from the waiting response with the most urgent
+ * {@link Request#getPriority()}, taking turns between those with the same
+ * priority.  So the index or an icon that is asked for while a big APK is
+ * being sent only has to wait for one piece of the APK.
+ * <p>
+ * Each stream may only be {@link Frames#INITIAL_WINDOW} bytes ahead of what
+ * the client has read of it.  A stream that used up its window waits for a
+ * {@link Request#isWindowUpdate()} while the others go on.
+ */
+public final class StreamScheduler extends Thread {
+
+    private static final String TAG = "bluetooth.StreamScheduler";
+
+    private final DataOutputStream output;
+
+    /**
+     * Ordered by priority, then by how long ago each one last had its turn.
+     */
+    private final List<OutgoingStream> waiting = new LinkedList<>();
+
+    private OutgoingStream sending;
+    private boolean closed;
+
+    public StreamScheduler(BluetoothConnection connection) {
+        super(TAG);
+        output = new DataOutputStream(connection.getOutputStream());
+    }
+
+    /**
+     * Queue {@code response} to be sent on the stream {@code request} came on.
+     */
+    public synchronized void add(Request request, Response response) {
+        OutgoingStream stream = new OutgoingStream(request.getStreamId(), request.getPriority(), response);
+        if (closed) {
+            stream.close();
+            return;
+        }
+        enqueue(stream);
+        notifyAll();
+    }
+
+    /**
+     * Let the stream {@code streamId} send {@code bytes} more of its body.
+     */
+    public synchronized void addWindow(int streamId, int bytes) {
+        for (OutgoingStream stream : waiting) {
+            if (stream.id == streamId) {
+                stream.window += bytes;
+                notifyAll();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stop sending the response for {@code streamId}, if it is not already done.
+     */
+    public synchronized void cancel(int streamId) {
+        Iterator<OutgoingStream> iterator = waiting.iterator();
+        while (iterator.hasNext()) {
+            OutgoingStream stream = iterator.next();
+            if (stream.id == streamId) {
+                iterator.remove();
+                if (stream != sending) {
+                    stream.close();
+                }
+                Utils.debugLog(TAG, "Cancelled stream " + streamId);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stop sending anything, and close all of the content streams that were
+     * not sent yet.  The connection itself is left to the caller.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (OutgoingStream stream : waiting) {
+            if (stream != sending) {
+                stream.close();
+            }
+        }
+        waiting.clear();
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[Frames.MAX_DATA];
+        try {
+            OutgoingStream stream;
+            while ((stream = next()) != null) {
+                int sent = stream.sendNext(output, buffer);
+                if (finishTurn(stream, sent)) {
+                    output.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            // close() was called
+        } catch (IOException e) {
+            Log.e(TAG, "Error sending responses over Bluetooth", e);
+        } finally {
+            close();
+            if (sending != null) {
+                sending.close();
+            }
+        }
+    }
+
+    /**
+     * Wait for a stream which is allowed to send something.  It stays in
+     * {@link #waiting} while it is sent, so that it can still be cancelled.
+     *
+     * @return the stream, or {@code null} once closed
+     */
+    private synchronized OutgoingStream next() throws InterruptedException {
+        while (!closed) {
+            for (OutgoingStream stream : waiting) {
+                if (stream.canSend()) {
+                    sending = stream;
+                    return sending;
+                }
+            }
+            wait();
+        }
+        return null;
+    }
+
+    /**
+     * Put {@code stream} behind the other ones with the same priority, or
+     * let it go if it was sent completely or cancelled.
+     *
+     * @return whether there is nothing else that can be sent right now
+     */
+    private synchronized boolean finishTurn(OutgoingStream stream, int sent) {
+        sending = null;
+        stream.window -= sent;
+        if (waiting.remove(stream)) {
+            if (stream.isDone()) {
+                stream.close();
+            } else {
+                enqueue(stream);
+            }
+        } else {
+            stream.close();
+        }
+        for (OutgoingStream waitingStream : waiting) {
+            if (waitingStream.canSend()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void enqueue(OutgoingStream stream) {
+        int index = waiting.size();
+        while (index > 0 && waiting.get(index - 1).priority > stream.priority) {
+            index--;
+        }
+        waiting.add(index, stream);
+    }
+
+    private static final class OutgoingStream {
+        final int id;
+        final int priority;
+
+        private Response response;
+        private InputStream body;
+        private long remaining = -1;
+
+        /**
+         * How much more of the body the client is ready for, only changed
+         * while holding the {@link StreamScheduler}'s lock.
+         */
+        volatile int window = Frames.INITIAL_WINDOW;
+
+        OutgoingStream(int id, int priority, Response response) {
+            this.id = id;
+            this.priority = priority;
+            this.response = response;
+        }
+
+        /**
+         * The status and headers can always be sent, the body only while
+         * there is room in the window.
+         */
+        boolean canSend() {
+            return remaining < 0 || window > 0;
+        }
+
+        /**
+         * Send the status and headers the first time this is called, and
+         * after that the next piece of the body.
+         *
+         * @return how many bytes of the body were sent
+         */
+        int sendNext(DataOutputStream output, byte[] buffer) throws IOException {
+            if (remaining < 0) {
+                response = response.withKnownLength();
+                body = response.getBody();
+                remaining = response.getBodyLength();
+                Frames.writeStreamResponse(output, id, response.getStatusCode(), response.getHeaders(), remaining);
+                return 0;
+            }
+            int count = body.read(buffer, 0, (int) Math.min(Math.min(buffer.length, window), remaining));
+            if (count == -1) {
+                throw new IOException("Body of stream " + id + " ended " + remaining + " bytes short");
+            }
+            Frames.writeStreamData(output, id, buffer, count);
+            remaining -= count;
+            return count;
+        }
+
+        boolean isDone() {
+            return remaining == 0;
+        }
+
+        void close() {
+            Utils.closeQuietly(response.getBody());
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package org.fdroid.fdroid.net.bluetooth.httpish;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.net.bluetooth.BluetoothClient;
+import org.fdroid.fdroid.net.bluetooth.BluetoothConnection;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One connection to a Bluetooth swap peer, shared by all of the downloads
+ * from it.  Each download is a {@link Stream}, and they can all be running at
+ * the same time.  The peer's {@link StreamScheduler} sends the pieces of the
+ * responses by {@link #getPriority(String)}, and a thread here hands each
+ * piece to the stream it belongs to.
+ * <p>
+ * Peers with a version of F-Droid from before streams are remembered, so
+ * that {@link #get(String)} only asks them once.  Those have to be used with
+ * a {@link BluetoothConnection} per download, like before.
+ */
+public final class StreamSession {
+
+    private static final String TAG = "bluetooth.StreamSession";
+
+    /**
+     * The index and {@code HEAD} requests are small, and everything else waits for them.
+     */
+    public static final int PRIORITY_INDEX = 0;
+
+    /**
+     * Icons are small and shown on screen, so they go before the APKs.
+     */
+    public static final int PRIORITY_ICON = 1;
+
+    public static final int PRIORITY_FILE = 2;
+
+    private static final Map<String, StreamSession> SESSIONS = new HashMap<>();
+    private static final Set<String> WITHOUT_STREAMS = new HashSet<>();
+
+    /**
+     * Put in a {@link Stream}'s queue after the last piece of its body.
+     */
+    private static final byte[] END = new byte[0];
+
+    private final String macAddress;
+    private final BluetoothConnection connection;
+    private final DataOutputStream output;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger lastStreamId = new AtomicInteger();
+    private volatile IOException failure;
+
+    /**
+     * @param connection has to be {@link Request#upgradeToStreams(BluetoothConnection)}d already
+     */
+    StreamSession(String macAddress, BluetoothConnection connection) {
+        this.macAddress = macAddress;
+        this.connection = connection;
+        output = new DataOutputStream(connection.getOutputStream());
+        new Thread(TAG + " " + macAddress) {
+            @Override
+            public void run() {
+                readResponses();
+            }
+        }.start();
+    }
+
+    /**
+     * Get the session with {@code macAddress}, connecting to it if there is
+     * none yet.
+     *
+     * @return the session, or {@code null} if the peer does not support streams
+     */
+    @Nullable
+    public static StreamSession get(String macAddress) throws IOException {
+        synchronized (SESSIONS) {
+            StreamSession session = SESSIONS.get(macAddress);
+            if (session != null && session.failure == null) {
+                return session;
+            }
+            if (WITHOUT_STREAMS.contains(macAddress)) {
+                return null;
+            }
+
+            BluetoothConnection connection = new BluetoothClient(macAddress).openConnection();
+            try {
+                if (!Request.upgradeToStreams(connection)) {
+                    WITHOUT_STREAMS.add(macAddress);
+                    connection.closeQuietly();
+                    return null;
+                }
+            } catch (IOException e) {
+                connection.closeQuietly();
+                throw e;
+            }
+            session = new StreamSession(macAddress, connection);
+            SESSIONS.put(macAddress, session);
+            return session;
+        }
+    }
+
+    /**
+     * Disconnect from all peers, e.g. when swapping is over.
+     */
+    public static void closeAll() {
+        List<StreamSession> sessions;
+        synchronized (SESSIONS) {
+            sessions = new ArrayList<>(SESSIONS.values());
+            SESSIONS.clear();
+            WITHOUT_STREAMS.clear();
+        }
+        for (StreamSession session : sessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * @return how urgent it is to get {@code path}, lower is more urgent
+     */
+    public static int getPriority(String path) {
+        String fileName = path.substring(path.lastIndexOf('/') + 1);
+        if (fileName.startsWith("index")) {
+            return PRIORITY_INDEX;
+        } else if (path.contains("/icons")) {
+            return PRIORITY_ICON;
+        }
+        return PRIORITY_FILE;
+    }
+
+    /**
+     * Ask for {@code path}, without waiting for the response.
+     */
+    public Stream open(String method, String path) throws IOException {
+        int priority = Request.Methods.HEAD.equals(method) ? PRIORITY_INDEX : getPriority(path);
+        Stream stream = new Stream(lastStreamId.incrementAndGet(), method);
+        streams.put(stream.id, stream);
+        try {
+            synchronized (output) {
+                checkOpen();
+                Frames.writeStreamRequest(output, stream.id, priority, method, path, new HashMap<String, String>());
+                output.flush();
+            }
+        } catch (IOException e) {
+            streams.remove(stream.id);
+            throw e;
+        }
+        return stream;
+    }
+
+    public void close() {
+        connection.closeQuietly();
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw new IOException("Connection to " + macAddress + " is closed", failure);
+        }
+    }
+
+    private void readResponses() {
+        DataInputStream input = new DataInputStream(connection.getInputStream());
+        byte[] buffer = new byte[Frames.MAX_DATA];
+        try {
+            while (true) {
+                int type = input.readUnsignedByte();
+                int streamId = input.readInt();
+                Stream stream = streams.get(streamId);
+                if (type == Frames.STREAM_RESPONSE) {
+                    int statusCode = input.readUnsignedShort();
+                    Map<String, String> headers = Frames.readHeaders(input);
+                    long length = input.readLong();
+                    if (length < 0) {
+                        throw new IOException("Invalid response with a body of " + length + " bytes");
+                    }
+                    if (stream != null) {
+                        stream.onResponse(statusCode, headers, length);
+                    }
+                } else if (type == Frames.STREAM_DATA) {
+                    int count = input.readUnsignedShort();
+                    if (count > buffer.length) {
+                        throw new IOException("Invalid piece of " + count + " bytes for stream " + streamId);
+                    }
+                    input.readFully(buffer, 0, count);
+                    if (stream != null) {
+                        // anything else is left over from a cancelled stream
+                        stream.onData(buffer, count);
+                    }
+                } else {
+                    throw new IOException("Invalid message type " + type + " for stream " + streamId);
+                }
+            }
+        } catch (EOFException e) {
+            fail(new EOFException("Connection to " + macAddress + " closed"));
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading from " + macAddress, e);
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        failure = e;
+        synchronized (SESSIONS) {
+            if (SESSIONS.get(macAddress) == this) {
+                SESSIONS.remove(macAddress);
+            }
+        }
+        connection.closeQuietly();
+        for (Stream stream : streams.values()) {
+            stream.onFailure();
+        }
+        streams.clear();
+    }
+
+    /**
+     * The response to one request in a {@link StreamSession}.  The body is
+     * queued up in memory as it arrives, so that a stream whose body is not
+     * read right away never holds up the others.  The peer only sends up to
+     * {@link Frames#INITIAL_WINDOW} bytes more than what was read, and each
+     * time half of that was read, it is told it can send that much more.
+     */
+    public final class Stream {
+        private final int id;
+        private final String method;
+        private final CountDownLatch responded = new CountDownLatch(1);
+        private final BlockingQueue<byte[]> pieces = new LinkedBlockingQueue<>();
+        private final long startNanos = System.nanoTime();
+
+        private volatile Response response;
+        private volatile long length;
+        private volatile long received;
+        private volatile long lastReceivedNanos;
+        private volatile boolean finished;
+
+        /**
+         * How much of the body the peer was allowed to send so far.
+         */
+        private volatile long window = Frames.INITIAL_WINDOW;
+        private int readSinceWindowUpdate;
+
+        private Stream(int id, String method) {
+            this.id = id;
+            this.method = method;
+        }
+
+        /**
+         * Wait for the status and headers.  For a {@code GET}, the content
+         * stream of the response then gives the body as it arrives.
+         */
+        public Response getResponse() throws IOException {
+            try {
+                responded.await();
+            } catch (InterruptedException e) {
+                close();
+                throw new InterruptedIOException("Interrupted while waiting for a response");
+            }
+            if (response == null) {
+                checkOpen();
+                throw new IOException("Stream " + id + " was closed");
+            }
+            return response;
+        }
+
+        /**
+         * @return how much of the body arrived so far
+         */
+        public long getBytesReceived() {
+            return received;
+        }
+
+        /**
+         * @return the average speed of this stream since its request was
+         * sent, which is its share of the connection
+         */
+        public long getBytesPerSecond() {
+            long end = finished ? lastReceivedNanos : System.nanoTime();
+            long elapsed = end - startNanos;
+            return elapsed > 0 ? (long) (received * 1e9 / elapsed) : 0;
+        }
+
+        /**
+         * Tell the peer to stop sending this, if it did not already send it all.
+         */
+        public void close() {
+            if (streams.remove(id) == null) {
+                return;
+            }
+            pieces.add(END);
+            responded.countDown();
+            if (!finished && failure == null) {
+                try {
+                    synchronized (output) {
+                        Frames.writeStreamCancel(output, id);
+                        output.flush();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not cancel stream " + id, e);
+                }
+            }
+        }
+
+        private void onResponse(int statusCode, Map<String, String> headers, long length) {
+            this.length = length;
+            if (Request.Methods.HEAD.equals(method)) {
+                response = new Response(statusCode, headers);
+            } else {
+                response = new Response(statusCode, headers, new Body());
+            }
+            responded.countDown();
+            if (length == 0) {
+                finish();
+            }
+        }
+
+        private void onData(byte[] buffer, int count) throws IOException {
+            if (count > length - received) {
+                throw new IOException("Stream " + id + " got more than its " + length + " bytes");
+            }
+            if (received + count > window) {
+                throw new IOException("Stream " + id + " got more than its window of " + window + " bytes");
+            }
+            byte[] piece = new byte[count];
+            System.arraycopy(buffer, 0, piece, 0, count);
+            pieces.add(piece);
+            received += count;
+            lastReceivedNanos = System.nanoTime();
+            if (received == length) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            finished = true;
+            streams.remove(id);
+            pieces.add(END);
+            Utils.debugLog(TAG, "Stream " + id + " got " + received + " bytes at " + getBytesPerSecond() + " B/s");
+        }
+
+        private void onFailure() {
+            pieces.add(END);
+            responded.countDown();
+        }
+
+        /**
+         * Called by the reader of the body, once it took {@code count} bytes out
+         * of {@link #pieces}.
+         */
+        private void onRead(int count) throws IOException {
+            readSinceWindowUpdate += count;
+            if (readSinceWindowUpdate < Frames.INITIAL_WINDOW / 2 || window >= length) {
+                return;
+            }
+            int increment = readSinceWindowUpdate;
+            readSinceWindowUpdate = 0;
+            window += increment;
+            if (finished || streams.get(id) == null) {
+                return;
+            }
+            synchronized (output) {
+                checkOpen();
+                Frames.writeStreamWindowUpdate(output, id, increment);
+                output.flush();
+            }
+        }
+
+        private final class Body extends InputStream {
+            private byte[] piece;
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                if (count == 0) {
+                    return 0;
+                }
+                if (piece == null || position == piece.length) {
+                    if (piece == END) {
+                        return -1;
+                    }
+                    try {
+                        piece = pieces.take();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted while reading stream " + id);
+                    }
+                    position = 0;
+                    if (piece == END) {
+                        if (!finished) {
+                            checkOpen();
+                            throw new IOException("Stream " + id + " was closed");
+                        }
+                        return -1;
+                    }
+                    onRead(piece.length);
+                }
+                int copied = Math.min(count, piece.length - position);
+                System.arraycopy(piece, position, buffer, offset, copied);
+                position += copied;
+                return copied;
+            }
+
+            @Override
+            public int available() {
+                return piece == null || piece == END ? 0 : piece.length - position;
+            }
+
+            @Override
+            public void close() {
+                Stream.this.close();
+            }
+        }
+    }
+}
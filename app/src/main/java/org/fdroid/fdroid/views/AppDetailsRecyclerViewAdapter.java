@@ -317,7 +317,11 @@ public class AppDetailsRecyclerViewAdapter
         final TextView progressPercent;
         final View progressCancel;
         final DisplayImageOptions displayImageOptions;
+        final NumberFormat percentFormat;
         boolean descriptionIsExpanded;
+        int lastBytesDownloaded = Integer.MIN_VALUE;
+        int lastTotalBytes = Integer.MIN_VALUE;
+        int lastResIdString = Integer.MIN_VALUE;
 
         HeaderViewHolder(View view) {
             super(view);
@@ -335,6 +339,8 @@ public class AppDetailsRecyclerViewAdapter
             buttonPrimaryView = (Button) view.findViewById(R.id.primaryButtonView);
             buttonSecondaryView = (Button) view.findViewById(R.id.secondaryButtonView);
             progressLayout = view.findViewById(R.id.progress_layout);
+            percentFormat = NumberFormat.getPercentInstance();
+            percentFormat.setMaximumFractionDigits(0);
             progressBar = (ProgressBar) view.findViewById(R.id.progress_bar);
             progressLabel = (TextView) view.findViewById(R.id.progress_label);
             progressPercent = (TextView) view.findViewById(R.id.progress_percent);
@@ -372,6 +378,15 @@ public class AppDetailsRecyclerViewAdapter
         }
 
         public void setProgress(int bytesDownloaded, int totalBytes, int resIdString) {
+            // progress ticks often repeat the same numbers, so skip re-formatting all the labels
+            if (bytesDownloaded == lastBytesDownloaded && totalBytes == lastTotalBytes
+                    && resIdString == lastResIdString && progressLayout.getVisibility() == View.VISIBLE) {
+                return;
+            }
+            lastBytesDownloaded = bytesDownloaded;
+            lastTotalBytes = totalBytes;
+            lastResIdString = resIdString;
+
             if (bytesDownloaded == 0 && totalBytes == 0) {
                 // Remove progress bar
                 progressLayout.setVisibility(View.GONE);
@@ -389,9 +404,7 @@ public class AppDetailsRecyclerViewAdapter
                     float percent = bytesDownloaded * 100 / totalBytes;
                     progressLabel.setText(Utils.getFriendlySize(bytesDownloaded) + " / " + Utils.getFriendlySize(totalBytes));
                     progressLabel.setContentDescription(context.getString(R.string.app__tts__downloading_progress, (int) percent));
-                    NumberFormat format = NumberFormat.getPercentInstance();
-                    format.setMaximumFractionDigits(0);
-                    progressPercent.setText(format.format(percent / 100));
+                    progressPercent.setText(percentFormat.format(percent / 100));
                 } else if (bytesDownloaded >= 0) {
                     progressLabel.setText(Utils.getFriendlySize(bytesDownloaded));
                     progressLabel.setContentDescription(context.getString(R.string.downloading));
@@ -23,7 +23,8 @@ import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.UpdateService;
 import org.fdroid.fdroid.data.RepoProvider;
-import org.fdroid.fdroid.installer.InstallHistoryService;
+import org.fdroid.fdroid.installer.ApkCacheIndex;
+import org.fdroid.fdroid.installer.InstallHistory;
 import org.fdroid.fdroid.installer.PrivilegedInstaller;
 
 public class PreferencesFragment extends PreferenceFragment
@@ -41,6 +42,7 @@ public class PreferencesFragment extends PreferenceFragment
             Preferences.PREF_LOCAL_REPO_NAME,
             Preferences.PREF_LANGUAGE,
             Preferences.PREF_KEEP_CACHE_TIME,
+            Preferences.PREF_APK_CACHE_SIZE,
             Preferences.PREF_EXPERT,
             Preferences.PREF_PRIVILEGED_INSTALLER,
             Preferences.PREF_ENABLE_PROXY,
@@ -175,6 +177,13 @@ public class PreferencesFragment extends PreferenceFragment
                 }
                 break;
 
+            case Preferences.PREF_APK_CACHE_SIZE:
+                entrySummary(key);
+                if (changing) {
+                    ApkCacheIndex.getInstance(getContext()).setMaxBytes(Preferences.get().getApkCacheSize());
+                }
+                break;
+
             case Preferences.PREF_EXPERT:
                 checkSummary(key, R.string.expert_on);
                 break;
@@ -217,9 +226,9 @@ public class PreferencesFragment extends PreferenceFragment
             case Preferences.PREF_KEEP_INSTALL_HISTORY:
                 CheckBoxPreference p = (CheckBoxPreference) findPreference(key);
                 if (p.isChecked()) {
-                    InstallHistoryService.register(getContext());
+                    InstallHistory.register(getContext());
                 } else {
-                    InstallHistoryService.unregister(getContext());
+                    InstallHistory.unregister(getContext());
                 }
                 break;
         }
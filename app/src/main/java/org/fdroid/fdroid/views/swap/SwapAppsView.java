@@ -242,6 +242,7 @@ public class SwapAppsView extends ListView implements
             private Apk apk;
 
             ProgressBar progressView;
+            TextView speedView;
             TextView nameView;
             ImageView iconView;
             Button btnInstall;
@@ -269,6 +270,12 @@ public class SwapAppsView extends ListView implements
                             } else {
                                 progressView.setIndeterminate(true);
                             }
+                            long bytesPerSecond = intent.getLongExtra(Downloader.EXTRA_BYTES_PER_SECOND, 0);
+                            if (bytesPerSecond > 0) {
+                                speedView.setText(getContext().getString(R.string.swap_download_speed,
+                                        Utils.getFriendlySize(bytesPerSecond)));
+                                speedView.setVisibility(View.VISIBLE);
+                            }
                             break;
                         case Downloader.ACTION_COMPLETE:
                             resetView();
@@ -348,6 +355,7 @@ public class SwapAppsView extends ListView implements
 
                 progressView.setVisibility(View.GONE);
                 progressView.setIndeterminate(true);
+                speedView.setVisibility(View.GONE);
 
                 if (app.name != null) {
                     nameView.setText(app.name);
@@ -418,6 +426,7 @@ public class SwapAppsView extends ListView implements
             ViewHolder holder = new ViewHolder();
 
             holder.progressView = (ProgressBar) view.findViewById(R.id.progress);
+            holder.speedView = (TextView) view.findViewById(R.id.speed);
             holder.nameView = (TextView) view.findViewById(R.id.name);
             holder.iconView = (ImageView) view.findViewById(android.R.id.icon);
             holder.btnInstall = (Button) view.findViewById(R.id.btn_install);
@@ -678,8 +678,13 @@ public class SwapWorkflowActivity extends AppCompatActivity {
         protected Void doInBackground(Void... params) {
             try {
                 final LocalRepoManager lrm = LocalRepoManager.get(context);
-                broadcast(TYPE_STATUS, getString(R.string.deleting_repo));
-                lrm.deleteRepo();
+                if (lrm.isEmpty()) {
+                    // whatever is in there was left from before F-Droid was last started
+                    broadcast(TYPE_STATUS, getString(R.string.deleting_repo));
+                    lrm.deleteRepo();
+                } else {
+                    lrm.retainApps(selectedApps);
+                }
                 for (String app : selectedApps) {
                     broadcast(TYPE_STATUS, String.format(getString(R.string.adding_apks_format), app));
                     lrm.addApp(context, app);
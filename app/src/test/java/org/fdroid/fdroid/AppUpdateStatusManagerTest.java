@@ -0,0 +1,133 @@
+package org.fdroid.fdroid;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.MatrixCursor;
+import android.support.v4.content.LocalBroadcastManager;
+
+import org.fdroid.fdroid.AppUpdateStatusManager.AppUpdateStatus;
+import org.fdroid.fdroid.AppUpdateStatusManager.Status;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.FDroidProviderTest;
+import org.fdroid.fdroid.data.Schema.ApkTable.Cols;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@Config(constants = BuildConfig.class, sdk = 24)
+@RunWith(RobolectricTestRunner.class)
+public class AppUpdateStatusManagerTest extends FDroidProviderTest {
+
+    private AppUpdateStatusManager manager;
+    private final List<AppUpdateStatus> changes = new ArrayList<>();
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            changes.add((AppUpdateStatus) intent.getParcelableExtra(AppUpdateStatusManager.EXTRA_STATUS));
+        }
+    };
+
+    @Before
+    public void setUp() {
+        manager = new AppUpdateStatusManager(context);
+        LocalBroadcastManager.getInstance(context).registerReceiver(receiver,
+                new IntentFilter(AppUpdateStatusManager.BROADCAST_APPSTATUS_CHANGED));
+    }
+
+    @After
+    public void tearDown() {
+        LocalBroadcastManager.getInstance(context).unregisterReceiver(receiver);
+    }
+
+    private static Apk createApk(String packageName) {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+            Cols.Package.PACKAGE_NAME, Cols.NAME, Cols.Repo.ADDRESS,
+        });
+        cursor.addRow(new Object[]{packageName, packageName + ".apk", "https://f-droid.org/repo"});
+        cursor.moveToFirst();
+        return new Apk(cursor);
+    }
+
+    @Test
+    public void testProgressIsBroadcastInBatches() {
+        Apk first = createApk("org.example.first");
+        Apk second = createApk("org.example.second");
+        manager.addApk(first, Status.Downloading, null);
+        manager.addApk(second, Status.Downloading, null);
+        changes.clear();
+
+        for (int i = 1; i <= 10; i++) {
+            manager.updateApkProgress(first.getUrl(), 100, i);
+        }
+        Robolectric.getForegroundThreadScheduler().advanceBy(10, TimeUnit.MILLISECONDS);
+        assertEquals(0, changes.size());
+
+        // progress for another APK goes into the batch that is already waiting, it does not push it back
+        manager.updateApkProgress(second.getUrl(), 100, 50);
+        Robolectric.getForegroundThreadScheduler().advanceBy(10, TimeUnit.MILLISECONDS);
+        assertEquals(2, changes.size());
+        for (AppUpdateStatus status : changes) {
+            if (status.getUniqueKey().equals(first.getUrl())) {
+                assertEquals(10, status.progressCurrent);
+            } else {
+                assertEquals(50, status.progressCurrent);
+            }
+        }
+
+        manager.updateApkProgress(first.getUrl(), 100, 11);
+        Robolectric.getForegroundThreadScheduler().advanceBy(20, TimeUnit.MILLISECONDS);
+        assertEquals(3, changes.size());
+        assertEquals(11, changes.get(2).progressCurrent);
+    }
+
+    @Test
+    public void testRemovalWaitsForLock() throws InterruptedException {
+        final Apk downloading = createApk("org.example.downloading");
+        Apk interrupted = createApk("org.example.interrupted");
+        manager.addApk(downloading, Status.Downloading, null);
+        manager.addApk(interrupted, Status.DownloadInterrupted, null);
+
+        Thread remover = new Thread() {
+            @Override
+            public void run() {
+                manager.removeApk(downloading.getUrl());
+            }
+        };
+        synchronized (manager.getLock(downloading.getUrl())) {
+            remover.start();
+            remover.join(100);
+            assertNotNull(manager.get(downloading.getUrl()));
+        }
+        remover.join();
+        assertNull(manager.get(downloading.getUrl()));
+
+        Thread clearer = new Thread() {
+            @Override
+            public void run() {
+                manager.clearAllUpdates();
+            }
+        };
+        synchronized (manager.getLock(interrupted.getUrl())) {
+            clearer.start();
+            clearer.join(100);
+            assertNotNull(manager.get(interrupted.getUrl()));
+        }
+        clearer.join();
+        assertNull(manager.get(interrupted.getUrl()));
+    }
+}
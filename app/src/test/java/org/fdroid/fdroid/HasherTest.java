@@ -0,0 +1,177 @@
+package org.fdroid.fdroid;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HasherTest {
+
+    private static final String TAG = "HasherTest";
+
+    private final List<File> files = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(1234);
+        for (int size : new int[]{0, 1, 1000, 256 * 1024 - 1, 256 * 1024, 3 * 256 * 1024 + 7}) {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            File file = File.createTempFile("HasherTest", ".bin");
+            FileUtils.writeByteArrayToFile(file, bytes);
+            files.add(file);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testHashFile() throws IOException, NoSuchAlgorithmException {
+        for (File file : files) {
+            byte[] bytes = FileUtils.readFileToByteArray(file);
+            for (String type : new String[]{"sha256", "SHA-256", "md5"}) {
+                String expected = Hasher.hex(MessageDigest.getInstance(type).digest(bytes));
+                assertEquals(expected, Hasher.hashFile(file, type));
+                assertEquals(expected, Utils.getBinaryHash(file, type));
+                assertEquals(expected, new Hasher(type, file).getHash());
+            }
+        }
+    }
+
+    @Test
+    public void testCopyAndHashFile() throws IOException, NoSuchAlgorithmException {
+        File copy = File.createTempFile("HasherTest", ".copy");
+        try {
+            for (File file : files) {
+                assertEquals(Hasher.hashFile(file, "sha256"), Hasher.copyAndHashFile(file, copy, "sha256"));
+                assertArrayEquals(FileUtils.readFileToByteArray(file), FileUtils.readFileToByteArray(copy));
+            }
+        } finally {
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void testHashFilesAtTheSameTime() throws Exception {
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            for (final File file : files) {
+                results.add(Hasher.getExecutor().submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return Hasher.hashFile(file, "sha256");
+                    }
+                }));
+            }
+        }
+        for (int i = 0; i < results.size(); i++) {
+            File file = files.get(i % files.size());
+            assertEquals(file.getName(), hashWithStream(file, "sha256", 1024), results.get(i).get());
+        }
+    }
+
+    @Test
+    public void testHex() {
+        Random random = new Random(5678);
+        for (int i = 0; i < 100; i++) {
+            byte[] bytes = new byte[random.nextInt(64) + 1];
+            random.nextBytes(bytes);
+            String expected = String.format("%0" + (bytes.length << 1) + "x", new BigInteger(1, bytes));
+            assertEquals(expected, Hasher.hex(bytes));
+        }
+    }
+
+    /**
+     * Compares {@link Hasher#hashFile(File, String)} with how files were hashed
+     * before: a 1 KiB buffer over a {@link BufferedInputStream} in {@link Hasher},
+     * and a 512 KiB one in {@link Utils#getBinaryHash(File, String)}.
+     */
+    @Ignore("benchmark, only run by hand")
+    @Test
+    public void testBenchmark() throws IOException, NoSuchAlgorithmException, ExecutionException,
+            InterruptedException {
+        final File file = File.createTempFile("HasherTest", ".bin");
+        files.add(file);
+        byte[] bytes = new byte[32 * 1024 * 1024];
+        new Random(91011).nextBytes(bytes);
+        FileUtils.writeByteArrayToFile(file, bytes);
+
+        String expected = Hasher.hashFile(file, "sha256");
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            assertEquals(expected, hashWithStream(file, "sha256", 1024));
+            best[0] = Math.min(best[0], System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertEquals(expected, hashWithStream(file, "sha256", 512 * 1024));
+            best[1] = Math.min(best[1], System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertEquals(expected, Hasher.hashFile(file, "sha256"));
+            best[2] = Math.min(best[2], System.nanoTime() - start);
+
+            start = System.nanoTime();
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(Hasher.getExecutor().submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return Hasher.hashFile(file, "sha256");
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+            best[3] = Math.min(best[3], System.nanoTime() - start);
+        }
+
+        Utils.debugLog(TAG, String.format(Locale.ENGLISH, "Hashing 32 MiB: 1 KiB stream %d ms, "
+                        + "512 KiB stream %d ms, hashFile %d ms, 4 files on the executor %d ms",
+                best[0] / 1000000, best[1] / 1000000, best[2] / 1000000, best[3] / 1000000));
+        assertTrue("hashFile should not be slower than the old 1 KiB stream", best[2] <= best[0]);
+    }
+
+    private static String hashWithStream(File file, String type, int bufferSize)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(type);
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[bufferSize];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        return Hasher.hex(digest.digest());
+    }
+}
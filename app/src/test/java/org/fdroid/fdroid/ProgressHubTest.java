@@ -0,0 +1,101 @@
+package org.fdroid.fdroid;
+
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressHubTest {
+
+    private static class RecordingListener implements ProgressListener {
+        final List<int[]> events = new ArrayList<>();
+
+        @Override
+        public void onProgress(URL sourceUrl, int bytesRead, int totalBytes) {
+            events.add(new int[]{bytesRead, totalBytes});
+        }
+    }
+
+    @Test
+    public void testCoalescesUpdatesBetweenTicks() throws MalformedURLException {
+        ProgressHub hub = new ProgressHub();
+        RecordingListener listener = new RecordingListener();
+        int slot = hub.register(new URL("https://f-droid.org/repo/index.jar"), listener);
+
+        hub.update(slot, 10, 100);
+        hub.update(slot, 20, 100);
+        hub.update(slot, 30, 100);
+        hub.dispatch();
+        assertEquals(1, listener.events.size());
+        assertEquals(30, listener.events.get(0)[0]);
+        assertEquals(100, listener.events.get(0)[1]);
+
+        // nothing changed, so nothing should be sent
+        hub.update(slot, 30, 100);
+        hub.dispatch();
+        assertEquals(1, listener.events.size());
+
+        hub.update(slot, 100, 100);
+        hub.dispatch();
+        assertEquals(2, listener.events.size());
+
+        hub.unregister(slot);
+        assertEquals(0, hub.getActiveCount());
+    }
+
+    @Test
+    public void testSubscribersAndPolling() throws MalformedURLException {
+        ProgressHub hub = new ProgressHub();
+        RecordingListener subscriber = new RecordingListener();
+        hub.subscribe(subscriber);
+
+        String first = "https://f-droid.org/repo/first.apk";
+        String second = "https://f-droid.org/repo/second.apk";
+        int firstSlot = hub.register(new URL(first), null);
+        int secondSlot = hub.register(new URL(second), null);
+        assertEquals(2, hub.getActiveCount());
+
+        hub.update(firstSlot, 1, 2);
+        hub.update(secondSlot, 3, 4);
+        hub.dispatch();
+        assertEquals(2, subscriber.events.size());
+
+        int[] progress = new int[2];
+        assertTrue(hub.getProgress(second, progress));
+        assertEquals(3, progress[0]);
+        assertEquals(4, progress[1]);
+
+        hub.unregister(secondSlot);
+        assertFalse(hub.getProgress(second, progress));
+
+        hub.unsubscribe(subscriber);
+        hub.update(firstSlot, 2, 2);
+        hub.dispatch();
+        assertEquals(2, subscriber.events.size());
+        hub.unregister(firstSlot);
+    }
+
+    @Test
+    public void testGrowsBeyondInitialCapacity() throws MalformedURLException {
+        ProgressHub hub = new ProgressHub();
+        RecordingListener subscriber = new RecordingListener();
+        hub.subscribe(subscriber);
+        int[] slots = new int[20];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = hub.register(new URL("https://f-droid.org/repo/" + i + ".apk"), null);
+            hub.update(slots[i], i + 1, 100);
+        }
+        hub.dispatch();
+        assertEquals(slots.length, subscriber.events.size());
+        for (int slot : slots) {
+            hub.unregister(slot);
+        }
+        assertEquals(0, hub.getActiveCount());
+    }
+}
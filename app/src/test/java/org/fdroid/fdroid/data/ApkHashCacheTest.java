@@ -0,0 +1,78 @@
+package org.fdroid.fdroid.data;
+
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ApkHashCacheTest {
+
+    private File cacheFile;
+    private File apk;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheFile = File.createTempFile("ApkHashCacheTest", ".json");
+        cacheFile.delete();
+        apk = File.createTempFile("ApkHashCacheTest", ".apk");
+    }
+
+    @After
+    public void tearDown() {
+        cacheFile.delete();
+        apk.delete();
+    }
+
+    @Test
+    public void testHashIsReusedAcrossRuns() throws IOException {
+        FileUtils.writeStringToFile(apk, "first version");
+        long lastModified = apk.lastModified();
+        String hash = Utils.getBinaryHash(apk, "sha256");
+
+        ApkHashCache cache = new ApkHashCache(cacheFile);
+        assertEquals(hash, cache.getHash(apk, "sha256"));
+        cache.save();
+        assertTrue(cacheFile.exists());
+
+        // same size and timestamp, so the file is taken to be the same one and not read again
+        FileUtils.writeStringToFile(apk, "other version");
+        assertTrue(apk.setLastModified(lastModified));
+        assertEquals(hash, new ApkHashCache(cacheFile).getHash(apk, "sha256"));
+    }
+
+    @Test
+    public void testChangedFileIsHashedAgain() throws IOException {
+        FileUtils.writeStringToFile(apk, "first version");
+
+        ApkHashCache cache = new ApkHashCache(cacheFile);
+        String first = cache.getHash(apk, "sha256");
+
+        FileUtils.writeStringToFile(apk, "second, longer version");
+        String second = cache.getHash(apk, "sha256");
+        assertNotEquals(first, second);
+        assertEquals(Utils.getBinaryHash(apk, "sha256"), second);
+        assertNotEquals(first, cache.getHash(apk, "md5"));
+    }
+
+    @Test
+    public void testRemovedFilesAreDropped() throws IOException {
+        FileUtils.writeStringToFile(apk, "uninstalled soon");
+
+        ApkHashCache cache = new ApkHashCache(cacheFile);
+        cache.getHash(apk, "sha256");
+        cache.save();
+        assertTrue(FileUtils.readFileToString(cacheFile).contains(apk.getAbsolutePath()));
+
+        assertTrue(apk.delete());
+        cache.save();
+        assertEquals("{}", FileUtils.readFileToString(cacheFile));
+    }
+}
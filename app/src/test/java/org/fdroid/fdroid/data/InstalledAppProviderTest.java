@@ -2,11 +2,15 @@ package org.fdroid.fdroid.data;
 
 import android.app.Application;
 import android.content.ContentValues;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.database.Cursor;
 import android.net.Uri;
+import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Schema.InstalledAppTable.Cols;
 import org.junit.After;
 import org.junit.Before;
@@ -16,11 +20,16 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import static org.fdroid.fdroid.Assert.assertIsInstalledVersionInDb;
 import static org.fdroid.fdroid.Assert.assertResultCount;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -171,6 +180,41 @@ public class InstalledAppProviderTest extends FDroidProviderTest {
 
     }
 
+    @Test
+    public void reconcileInOneBatch() throws IOException {
+        TestUtils.registerContentProvider(ApkProvider.getAuthority(), ApkProvider.class);
+        File apkFile = File.createTempFile("InstalledAppProviderTest", ".apk");
+        FileUtils.writeStringToFile(apkFile, "an installed APK");
+        String hash = Utils.getBinaryHash(apkFile, "sha256");
+
+        InstalledAppTestUtils.install(context, "org.example.uninstalled", 1, "v1");
+        PackageInfo system = createPackageInfo("org.example.system", apkFile, 1199142000000L); // 2008-01-01
+        InstalledAppProviderService.insertAppIntoDb(context, system, "sha256", hash);
+        PackageInfo added = createPackageInfo("org.example.added", apkFile, System.currentTimeMillis());
+        List<PackageInfo> installed = Arrays.asList(system, added);
+
+        assertTrue(InstalledAppProviderService.reconcile(context, installed));
+        Map<String, Long> found = InstalledAppProvider.Helper.all(context);
+        assertEquals(2, found.size());
+        assertTrue(found.containsKey("org.example.system"));
+        assertEquals(hash, InstalledAppProvider.Helper.findByPackageName(context, "org.example.added").getHash());
+
+        // the system app is hashed again, but it is the same APK, so there is nothing to write
+        assertFalse(InstalledAppProviderService.reconcile(context, installed));
+        apkFile.delete();
+    }
+
+    private PackageInfo createPackageInfo(String packageName, File apkFile, long lastUpdateTime) {
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = packageName;
+        packageInfo.versionCode = 1;
+        packageInfo.versionName = "v1";
+        packageInfo.lastUpdateTime = lastUpdateTime;
+        packageInfo.applicationInfo = new ApplicationInfo();
+        packageInfo.applicationInfo.publicSourceDir = apkFile.getAbsolutePath();
+        return packageInfo;
+    }
+
     private ContentValues createContentValues(int versionCode, String versionNumber) {
         return createContentValues(null, versionCode, versionNumber);
     }
@@ -0,0 +1,211 @@
+package org.fdroid.fdroid.installer;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ApkCacheIndexTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private ScheduledExecutorService scheduler;
+    private File dir;
+    private File indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        dir = File.createTempFile("ApkCacheIndexTest", "");
+        dir.delete();
+        dir.mkdir();
+        indexFile = new File(dir, ApkCacheIndex.INDEX_FILE_NAME);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        scheduler.shutdownNow();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private File createApk(String name, int size) throws IOException {
+        File file = new File(dir, name);
+        FileUtils.writeByteArrayToFile(file, new byte[size]);
+        return file;
+    }
+
+    @Test
+    public void testExpiry() throws IOException {
+        File download = createApk("download.apk", 100);
+        File copy = createApk("copy.apk", 100);
+
+        ApkCacheIndex index = new ApkCacheIndex(indexFile, scheduler);
+        index.addDownload(download);
+        index.addCopy(copy, TimeUnit.MINUTES.toMillis(20));
+        assertEquals(2, index.getFileCount());
+        assertEquals(200, index.getTotalBytes());
+
+        long now = System.currentTimeMillis();
+        index.sweep(DAY, now);
+        assertTrue(download.exists());
+        assertTrue(copy.exists());
+
+        index.sweep(DAY, now + TimeUnit.MINUTES.toMillis(21));
+        assertTrue(download.exists());
+        assertFalse(copy.exists());
+
+        index.sweep(DAY, now + DAY + 1);
+        assertFalse(download.exists());
+        assertEquals(0, index.getFileCount());
+        assertEquals(0, index.getTotalBytes());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedAreEvictedFirst() throws IOException, InterruptedException {
+        File first = createApk("first.apk", 400);
+        File second = createApk("second.apk", 400);
+        File third = createApk("third.apk", 400);
+
+        ApkCacheIndex index = new ApkCacheIndex(indexFile, scheduler);
+        index.setMaxBytes(1000);
+        index.addDownload(first);
+        index.addDownload(second);
+        index.addDownload(third);
+        Thread.sleep(10);
+        index.markUsed(first);
+
+        // all of them were used just now, so they might be about to be installed
+        assertEquals(3, index.getFileCount());
+
+        index.sweep(DAY, System.currentTimeMillis() + ApkCacheIndex.EVICTION_GRACE_MILLIS);
+        assertEquals(2, index.getFileCount());
+        assertEquals(800, index.getTotalBytes());
+        assertTrue(first.exists());
+        assertFalse(second.exists() && third.exists());
+    }
+
+    @Test
+    public void testNothingEvictedIsNotSaved() throws Exception {
+        File first = createApk("first.apk", 400);
+        File second = createApk("second.apk", 400);
+        File third = createApk("third.apk", 400);
+
+        ApkCacheIndex index = new ApkCacheIndex(indexFile, scheduler);
+        index.setMaxBytes(1000);
+        index.addDownload(first);
+        index.addDownload(second);
+        index.addDownload(third);
+        assertTrue(index.contains(first));
+        assertFalse(index.contains(new File(dir, "partial.apk")));
+        scheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+        index.save();
+        assertTrue(indexFile.delete());
+
+        // over budget, but all of them are too new to be evicted
+        index.sweep(DAY, System.currentTimeMillis());
+        assertEquals(3, index.getFileCount());
+        assertFalse(indexFile.exists());
+    }
+
+    @Test
+    public void testUnusedStoreEntriesCountTowardsBudget() throws Exception {
+        File storeDir = new File(dir, "apk-store");
+        final File used = createApk("apk-store/used.apk", 400);
+        File unusedOld = createApk("apk-store/unused-old.apk", 300);
+        File unusedNew = createApk("apk-store/unused-new.apk", 300);
+        long now = System.currentTimeMillis();
+        unusedOld.setLastModified(now - 2 * DAY);
+        unusedNew.setLastModified(now + 1000);
+        File first = createApk("first.apk", 300);
+        File second = createApk("second.apk", 300);
+
+        ApkCacheIndex index = new ApkCacheIndex(indexFile, storeDir, scheduler) {
+            @Override
+            int getReferenceCount(File storeEntry) {
+                return storeEntry.equals(used) ? 1 : 0;
+            }
+        };
+        index.setMaxBytes(700);
+        scheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+        index.addDownload(first);
+        index.addDownload(second);
+
+        // the downloads were just used, but the old store entry was not linked to for a while
+        assertFalse(unusedOld.exists());
+        assertEquals(2, index.getFileCount());
+
+        index.sweep(10 * DAY, now + 2000 + ApkCacheIndex.EVICTION_GRACE_MILLIS);
+        assertFalse(first.exists() && second.exists());
+        assertEquals(1, index.getFileCount());
+        assertEquals(300, index.getTotalBytes());
+        assertTrue(unusedNew.exists());
+        assertTrue(used.exists());
+    }
+
+    @Test
+    public void testPendingUpdatesAreKept() throws IOException {
+        File update = createApk("update.apk", 400);
+        File other = createApk("other.apk", 400);
+        File newer = createApk("newer.apk", 400);
+
+        ApkCacheIndex index = new ApkCacheIndex(indexFile, scheduler);
+        index.setPendingUpdates(Collections.singletonList(update));
+        index.addDownload(update);
+        index.addDownload(other);
+        index.addDownload(newer);
+        index.setMaxBytes(1000);
+
+        long now = System.currentTimeMillis();
+        index.sweep(DAY, now + ApkCacheIndex.EVICTION_GRACE_MILLIS);
+        assertTrue(update.exists());
+        assertEquals(2, index.getFileCount());
+
+        // the update is kept past the keep time, the other download is not
+        index.sweep(DAY, now + 2 * DAY);
+        assertTrue(update.exists());
+        assertEquals(1, index.getFileCount());
+
+        index.setPendingUpdates(Collections.<File>emptyList());
+        index.sweep(DAY, now + 2 * DAY);
+        assertFalse(update.exists());
+    }
+
+    @Test
+    public void testIndexIsSaved() throws IOException {
+        File download = createApk("download.apk", 100);
+        File copy = createApk("copy.apk", 100);
+
+        ApkCacheIndex index = new ApkCacheIndex(indexFile, scheduler);
+        index.addDownload(download);
+        index.addCopy(copy, 1000);
+        index.save();
+        assertTrue(indexFile.exists());
+
+        // copies that were due while F-Droid was not running are deleted on the next start
+        ApkCacheIndex reloaded = new ApkCacheIndex(indexFile, scheduler);
+        assertEquals(2, reloaded.getFileCount());
+        reloaded.sweep(DAY, System.currentTimeMillis() + 2000);
+        assertFalse(copy.exists());
+        assertTrue(download.exists());
+        assertEquals(1, new ApkCacheIndex(indexFile, scheduler).getFileCount());
+    }
+}
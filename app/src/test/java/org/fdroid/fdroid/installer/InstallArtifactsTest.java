@@ -0,0 +1,36 @@
+package org.fdroid.fdroid.installer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InstallArtifactsTest {
+
+    private static final String APK = "https://f-droid.org/repo/org.example_1.apk";
+    private static final String MAIN_OBB = "https://f-droid.org/repo/main.1.org.example.obb";
+
+    @Test
+    public void testProgressOfKnownSizes() {
+        InstallArtifacts artifacts = new InstallArtifacts();
+        artifacts.add(APK);
+        artifacts.add(MAIN_OBB);
+        assertArrayEquals(new long[]{0, -1}, artifacts.getProgress());
+
+        artifacts.setProgress(MAIN_OBB, 100, 0);
+        assertArrayEquals(new long[]{100, -1}, artifacts.getProgress());
+
+        // the OBB file does not have a size yet, so only the APK counts
+        artifacts.setProgress(APK, 300, 1000);
+        assertArrayEquals(new long[]{300, 1000}, artifacts.getProgress());
+
+        artifacts.setProgress(MAIN_OBB, 200, 4000);
+        assertArrayEquals(new long[]{500, 5000}, artifacts.getProgress());
+
+        assertFalse(artifacts.finish(APK));
+        assertArrayEquals(new long[]{1200, 5000}, artifacts.getProgress());
+        assertTrue(artifacts.finish(MAIN_OBB));
+        assertArrayEquals(new long[]{5000, 5000}, artifacts.getProgress());
+    }
+}
@@ -0,0 +1,147 @@
+package org.fdroid.fdroid.installer;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InstallHistoryTest {
+
+    private ScheduledExecutorService scheduler;
+    private File dir;
+    private File exportFile;
+
+    @Before
+    public void setUp() throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        dir = File.createTempFile("InstallHistoryTest", "");
+        dir.delete();
+        dir.mkdir();
+        exportFile = new File(dir, "all");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        scheduler.shutdownNow();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private InstallHistory newInstallHistory() {
+        return new InstallHistory(new File(dir, "install_history"), exportFile, scheduler);
+    }
+
+    @Test
+    public void testQueries() throws IOException {
+        InstallHistory history = newInstallHistory();
+        for (int i = 0; i < 100; i++) {
+            String packageName = i % 2 == 0 ? "org.example.even" : "org.example.odd";
+            history.add(1000 + i, packageName, i, Installer.ACTION_INSTALL_STARTED);
+            history.add(1000 + i, packageName, i, Installer.ACTION_INSTALL_COMPLETE);
+        }
+        assertEquals(100, history.getEventCount("org.example.even"));
+        assertEquals(0, history.getEventCount("org.example.none"));
+
+        List<InstallHistory.Event> events = history.getEvents("org.example.odd", 3);
+        assertEquals(3, events.size());
+        assertEquals(1099, events.get(0).timestamp);
+        assertEquals(99, events.get(0).versionCode);
+        assertEquals(Installer.ACTION_INSTALL_COMPLETE, events.get(0).action);
+        assertEquals(Installer.ACTION_INSTALL_STARTED, events.get(1).action);
+        assertEquals(97, events.get(2).versionCode);
+        assertEquals(100, history.getEvents("org.example.odd", Integer.MAX_VALUE).size());
+        assertEquals(0, history.getEvents("org.example.none", 10).size());
+
+        events = history.getEvents(1010, 1013);
+        assertEquals(6, events.size());
+        assertEquals(1010, events.get(0).timestamp);
+        assertEquals("org.example.even", events.get(0).packageName);
+        assertEquals(1012, events.get(5).timestamp);
+        assertEquals(0, history.getEvents(0, 1000).size());
+        assertEquals(200, history.getEvents(0, Long.MAX_VALUE).size());
+
+        String export = FileUtils.readFileToString(exportFile);
+        assertTrue(export.startsWith("1000,org.example.even,0," + Installer.ACTION_INSTALL_STARTED + "\n"));
+        assertEquals(200, export.split("\n").length);
+    }
+
+    @Test
+    public void testHistoryIsKept() throws IOException {
+        InstallHistory history = newInstallHistory();
+        history.add(2000, "org.example.first", 1, Installer.ACTION_INSTALL_COMPLETE);
+        history.add(3000, "org.example.second", 2, Installer.ACTION_UNINSTALL_COMPLETE);
+        history.flush();
+        // the clock was turned back, but the records stay in time order
+        history.add(2500, "org.example.first", 3, Installer.ACTION_INSTALL_COMPLETE);
+        history.flush();
+
+        InstallHistory reloaded = newInstallHistory();
+        assertEquals(3, reloaded.getEventCount());
+        List<InstallHistory.Event> events = reloaded.getEvents("org.example.first", 10);
+        assertEquals(2, events.size());
+        assertEquals(3, events.get(0).versionCode);
+        assertEquals(3000, events.get(0).timestamp);
+        assertEquals(Installer.ACTION_UNINSTALL_COMPLETE,
+                reloaded.getEvents("org.example.second", 10).get(0).action);
+
+        reloaded.add(4000, "org.example.third", 4, Installer.ACTION_INSTALL_INTERRUPTED);
+        assertEquals(1, reloaded.getEvents(4000, 5000).size());
+    }
+
+    @Test
+    public void testUnfinishedFlushIsDropped() throws IOException {
+        InstallHistory history = newInstallHistory();
+        history.add(2000, "org.example.first", 1, Installer.ACTION_INSTALL_COMPLETE);
+        history.flush();
+
+        // as if the app was killed after appending records, but before writing the package list
+        File eventsFile = new File(new File(dir, "install_history"), InstallHistory.EVENTS_FILE_NAME);
+        RandomAccessFile file = new RandomAccessFile(eventsFile, "rw");
+        file.seek(file.length());
+        file.write(new byte[InstallHistory.RECORD_SIZE + 3]);
+        file.close();
+
+        InstallHistory reloaded = newInstallHistory();
+        assertEquals(1, reloaded.getEventCount());
+        reloaded.add(3000, "org.example.second", 2, Installer.ACTION_INSTALL_COMPLETE);
+        List<InstallHistory.Event> events = reloaded.getEvents(0, Long.MAX_VALUE);
+        assertEquals(2, events.size());
+        assertEquals("org.example.second", events.get(1).packageName);
+    }
+
+    @Test
+    public void testExportIsMigrated() throws IOException {
+        String export = "1000,org.example.first,1," + Installer.ACTION_INSTALL_STARTED + "\n"
+                + "1001,org.example.first,1," + Installer.ACTION_INSTALL_COMPLETE + "\n"
+                + "not an event\n"
+                + "1002,org.example.second,abc," + Installer.ACTION_INSTALL_COMPLETE + "\n"
+                + "1003,org.example.second,2," + Installer.ACTION_UNINSTALL_COMPLETE + "\n";
+        FileUtils.writeStringToFile(exportFile, export);
+
+        InstallHistory history = newInstallHistory();
+        assertEquals(3, history.getEventCount());
+        assertEquals(2, history.getEventCount("org.example.first"));
+        List<InstallHistory.Event> events = history.getEvents(0, Long.MAX_VALUE);
+        assertEquals(3, events.size());
+        assertEquals(1003, events.get(2).timestamp);
+        assertEquals(Installer.ACTION_UNINSTALL_COMPLETE, events.get(2).action);
+        // the events are not added to the export again
+        assertEquals(export, FileUtils.readFileToString(exportFile));
+
+        // only copied once
+        history.add(2000, "org.example.third", 3, Installer.ACTION_INSTALL_COMPLETE);
+        history.flush();
+        InstallHistory reloaded = newInstallHistory();
+        assertEquals(4, reloaded.getEventCount());
+        assertEquals(1, reloaded.getEvents("org.example.third", 10).size());
+    }
+}
@@ -0,0 +1,186 @@
+package org.fdroid.fdroid.installer;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.data.Apk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class, sdk = 24)
+@RunWith(RobolectricTestRunner.class)
+public class InstallPipelineTest {
+
+    private ExecutorService prepareExecutor;
+    private InstallPipeline pipeline;
+    private final List<String> installed = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> interrupted = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() {
+        prepareExecutor = Executors.newFixedThreadPool(4);
+        pipeline = new InstallPipeline(RuntimeEnvironment.application, prepareExecutor) {
+            @Override
+            void runAndWait(Runnable install, Uri downloadUri) {
+                install.run();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        prepareExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testInstallsInOrder() throws InterruptedException {
+        // the first APKs take the longest to get ready
+        for (int i = 0; i < 8; i++) {
+            install("app" + i, (8 - i) * 20L, false);
+        }
+        pipeline.awaitIdle();
+        assertEquals(Arrays.asList("app0", "app1", "app2", "app3", "app4", "app5", "app6", "app7"), installed);
+        assertEquals(0, interrupted.size());
+    }
+
+    @Test
+    public void testFailureOnlyInterruptsOneInstall() throws InterruptedException {
+        install("first", 100, false);
+        install("broken", 0, true);
+        install("last", 0, false);
+        pipeline.awaitIdle();
+        assertEquals(Arrays.asList("first", "last"), installed);
+        assertEquals(Arrays.asList("broken"), interrupted);
+    }
+
+    @Test
+    public void testAwaitIdleReturnsForQueuedRequest() throws InterruptedException {
+        final Object blocker = new Object();
+        synchronized (blocker) {
+            pipeline.install(new TestInstaller(RuntimeEnvironment.application, "blocked", 0, false) {
+                @Override
+                Runnable prepareInstall(Uri localApkUri, Uri downloadUri) {
+                    synchronized (blocker) {
+                        return null;
+                    }
+                }
+            }, Uri.parse("file:///blocked.apk"), Uri.parse("https://f-droid.org/blocked.apk"));
+            pipeline.requestQueued();
+            pipeline.awaitIdle();
+            pipeline.requestStarted();
+        }
+        pipeline.awaitIdle();
+        assertEquals(0, installed.size());
+    }
+
+    @Test
+    public void testAwaitDoneWaitsForQueuedRequest() throws InterruptedException {
+        final Object blocker = new Object();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pipeline.awaitDone();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        synchronized (blocker) {
+            pipeline.install(new TestInstaller(RuntimeEnvironment.application, "blocked", 0, false) {
+                @Override
+                Runnable prepareInstall(Uri localApkUri, Uri downloadUri) {
+                    synchronized (blocker) {
+                        return super.prepareInstall(localApkUri, downloadUri);
+                    }
+                }
+            }, Uri.parse("file:///blocked.apk"), Uri.parse("https://f-droid.org/blocked.apk"));
+            // an uninstall is queued, but it has to wait for the install before it
+            pipeline.requestQueued();
+            pipeline.requestStarted();
+            waiter.start();
+            waiter.join(100);
+            assertTrue(waiter.isAlive());
+            assertEquals(0, installed.size());
+        }
+        waiter.join();
+        assertEquals(Arrays.asList("blocked"), installed);
+    }
+
+    private void install(String name, long prepareMillis, boolean fail) {
+        pipeline.install(new TestInstaller(RuntimeEnvironment.application, name, prepareMillis, fail),
+                Uri.parse("file:///" + name + ".apk"), Uri.parse("https://f-droid.org/" + name + ".apk"));
+    }
+
+    private class TestInstaller extends Installer {
+        private final String name;
+        private final long prepareMillis;
+        private final boolean fail;
+
+        TestInstaller(Context context, String name, long prepareMillis, boolean fail) {
+            super(context, new Apk());
+            this.name = name;
+            this.prepareMillis = prepareMillis;
+            this.fail = fail;
+        }
+
+        @Override
+        Runnable prepareInstall(Uri localApkUri, Uri downloadUri) {
+            try {
+                Thread.sleep(prepareMillis);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (fail) {
+                throw new IllegalStateException("could not verify " + name);
+            }
+            return new Runnable() {
+                @Override
+                public void run() {
+                    installed.add(name);
+                }
+            };
+        }
+
+        @Override
+        void sendBroadcastInstall(Uri downloadUri, String action, String errorMessage) {
+            if (Installer.ACTION_INSTALL_INTERRUPTED.equals(action)) {
+                interrupted.add(name);
+            }
+        }
+
+        @Override
+        protected void installPackageInternal(Uri localApkUri, Uri downloadUri) {
+        }
+
+        @Override
+        protected void uninstallPackage() {
+        }
+
+        @Override
+        protected boolean isUnattended() {
+            return true;
+        }
+
+        @Override
+        protected boolean supportsContentUri() {
+            return false;
+        }
+    }
+}
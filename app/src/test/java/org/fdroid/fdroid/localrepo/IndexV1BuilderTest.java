@@ -0,0 +1,132 @@
+package org.fdroid.fdroid.localrepo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.SanitizedFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the {@code index-v1.json} that a swap repo puts together from
+ * each app's {@link LocalRepoManager.IndexFragments} is read back by
+ * {@link IndexV1Updater}'s own {@link ObjectMapper} into the same {@link App}
+ * and {@link Apk} values.
+ */
+@Config(constants = BuildConfig.class, sdk = 24)
+@RunWith(RobolectricTestRunner.class)
+public class IndexV1BuilderTest {
+
+    private static final long REPO_ID = 42;
+
+    private File apkFile;
+
+    @Before
+    public void setUp() throws IOException {
+        Preferences.setup(RuntimeEnvironment.application);
+        apkFile = File.createTempFile("IndexV1BuilderTest", ".apk");
+        FileUtils.writeByteArrayToFile(apkFile, new byte[1234]);
+    }
+
+    @After
+    public void tearDown() {
+        Preferences.clearSingletonForTesting();
+        apkFile.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException, XmlPullParserException {
+        App app = new App();
+        app.packageName = "org.example.swapped";
+        app.name = "Swapped";
+        app.summary = "An app from a swap";
+        app.description = "<p>description</p>";
+        app.icon = App.getIconName(app.packageName, 7);
+        app.added = new Date(1500000000000L);
+        app.lastUpdated = new Date(1500000001000L);
+
+        Apk apk = new Apk();
+        apk.packageName = app.packageName;
+        apk.versionName = "1.2";
+        apk.versionCode = 7;
+        apk.apkName = app.packageName + "_7.apk";
+        apk.hash = "0123456789abcdef";
+        apk.hashType = "sha256";
+        apk.sig = "ABCDEF";
+        apk.minSdkVersion = 14;
+        apk.targetSdkVersion = 25;
+        apk.added = app.added;
+        apk.features = new String[]{"android.hardware.camera"};
+        apk.nativecode = new String[]{"arm64-v8a", "x86"};
+        apk.requestedPermissions = new String[]{"android.permission.INTERNET"};
+        apk.installedFile = SanitizedFile.knownSanitized(apkFile);
+        app.installedApk = apk;
+
+        Map<String, LocalRepoManager.IndexFragments> apps = new HashMap<>();
+        apps.put(app.packageName, new LocalRepoManager.IndexFragments(app));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new LocalRepoManager.IndexV1Builder(output).build(apps);
+
+        ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(REPO_ID);
+        JsonNode index = mapper.readTree(output.toByteArray());
+
+        JsonNode repo = index.get("repo");
+        assertTrue(repo.get("timestamp").asLong() > 1500000000000L);
+        assertTrue(repo.get("name").asText().startsWith(Preferences.get().getLocalRepoName()));
+
+        App parsedApp = mapper.treeToValue(index.get("apps").get(0), App.class);
+        assertEquals(REPO_ID, parsedApp.repoId);
+        assertEquals(app.packageName, parsedApp.packageName);
+        assertEquals(app.name, parsedApp.name);
+        assertEquals(app.summary, parsedApp.summary);
+        assertEquals(app.description, parsedApp.description);
+        assertEquals(app.icon, parsedApp.icon);
+        assertEquals(app.added, parsedApp.added);
+        assertEquals(app.lastUpdated, parsedApp.lastUpdated);
+        assertEquals(apk.versionCode, parsedApp.upstreamVersionCode);
+        assertEquals(Arrays.asList("LocalRepo", Preferences.get().getLocalRepoName()),
+                Arrays.asList(parsedApp.categories));
+
+        JsonNode packages = index.get("packages").get(app.packageName);
+        assertEquals(1, packages.size());
+        Apk parsedApk = mapper.treeToValue(packages.get(0), Apk.class);
+        assertEquals(apk.packageName, parsedApk.packageName);
+        assertEquals(apk.versionName, parsedApk.versionName);
+        assertEquals(apk.versionCode, parsedApk.versionCode);
+        assertEquals(apk.apkName, parsedApk.apkName);
+        assertEquals(apk.hash, parsedApk.hash);
+        assertEquals(apk.hashType, parsedApk.hashType);
+        assertEquals("abcdef", parsedApk.sig);
+        assertEquals(apkFile.length(), parsedApk.size);
+        assertEquals(apk.added, parsedApk.added);
+        assertEquals(apk.minSdkVersion, parsedApk.minSdkVersion);
+        assertEquals(apk.targetSdkVersion, parsedApk.targetSdkVersion);
+        assertEquals(Apk.SDK_VERSION_MAX_VALUE, parsedApk.maxSdkVersion);
+        assertArrayEquals(apk.features, parsedApk.features);
+        assertArrayEquals(apk.nativecode, parsedApk.nativecode);
+        assertArrayEquals(apk.requestedPermissions, parsedApk.requestedPermissions);
+    }
+}
@@ -0,0 +1,81 @@
+package org.fdroid.fdroid.net;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ByteRangesTest {
+
+    private static final long LENGTH = 10000;
+
+    @Test
+    public void testSingleRanges() {
+        assertRanges("bytes=0-499", 0, 499);
+        assertRanges("bytes=500-999", 500, 999);
+        assertRanges("bytes=9500-", 9500, 9999);
+        assertRanges("bytes=9500-20000", 9500, 9999);
+        assertRanges(" bytes=0-0 ", 0, 0);
+    }
+
+    @Test
+    public void testSuffixRanges() {
+        assertRanges("bytes=-500", 9500, 9999);
+        assertRanges("bytes=-1", 9999, 9999);
+        assertRanges("bytes=-20000", 0, 9999);
+    }
+
+    @Test
+    public void testMultipleRanges() {
+        assertRanges("bytes=0-99,500-599", 0, 99, 500, 599);
+        assertRanges("bytes=500-599, 0-99", 0, 99, 500, 599);
+        assertRanges("bytes=0-99,-100", 0, 99, 9900, 9999);
+    }
+
+    @Test
+    public void testOverlappingRangesAreMerged() {
+        assertRanges("bytes=0-99,50-149", 0, 149);
+        assertRanges("bytes=0-99,100-199", 0, 199);
+        assertRanges("bytes=0-,500-599", 0, 9999);
+        assertRanges("bytes=9000-,-500", 9000, 9999);
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        assertTrue(ByteRanges.parse("bytes=10000-", LENGTH).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=20000-30000", LENGTH).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=-0", LENGTH).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=-100", 0).isEmpty());
+        // the satisfiable ones are still sent
+        assertRanges("bytes=20000-,0-9", 0, 9);
+    }
+
+    @Test
+    public void testInvalidIsIgnored() {
+        assertNull(ByteRanges.parse(null, LENGTH));
+        assertNull(ByteRanges.parse("", LENGTH));
+        assertNull(ByteRanges.parse("items=0-5", LENGTH));
+        assertNull(ByteRanges.parse("bytes=5", LENGTH));
+        assertNull(ByteRanges.parse("bytes=-", LENGTH));
+        assertNull(ByteRanges.parse("bytes=500-100", LENGTH));
+        assertNull(ByteRanges.parse("bytes=a-b", LENGTH));
+        assertNull(ByteRanges.parse("bytes=--5", LENGTH));
+        StringBuilder tooMany = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRanges.MAX_RANGES; i++) {
+            tooMany.append(',').append(i * 2).append('-').append(i * 2);
+        }
+        assertNull(ByteRanges.parse(tooMany.toString(), LENGTH));
+    }
+
+    private static void assertRanges(String header, long... expected) {
+        List<long[]> ranges = ByteRanges.parse(header, LENGTH);
+        assertEquals(header, expected.length / 2, ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertArrayEquals(header, new long[]{expected[i * 2], expected[i * 2 + 1]}, ranges.get(i));
+        }
+    }
+}
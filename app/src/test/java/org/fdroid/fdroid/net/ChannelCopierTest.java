@@ -0,0 +1,234 @@
+package org.fdroid.fdroid.net;
+
+import org.fdroid.fdroid.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link ChannelCopier} copies every kind of source that
+ * {@link Downloader} reads from correctly.  {@link #testThroughput()} compares
+ * it with the plain {@code byte[]} loop that {@link Downloader} used before,
+ * it is only run by hand since the numbers vary too much between machines.
+ */
+public class ChannelCopierTest {
+    private static final String TAG = "ChannelCopierTest";
+
+    private static final int DATA_SIZE = 8 * 1024 * 1024;
+
+    private byte[] data;
+    private File sourceFile;
+    private File destFile;
+
+    @Before
+    public void setUp() throws IOException {
+        data = new byte[DATA_SIZE];
+        new Random(DATA_SIZE).nextBytes(data);
+        sourceFile = File.createTempFile("ChannelCopierTest-source", ".bin");
+        destFile = File.createTempFile("ChannelCopierTest-dest", ".bin");
+        FileOutputStream outputStream = new FileOutputStream(sourceFile);
+        outputStream.write(data);
+        outputStream.close();
+    }
+
+    @After
+    public void tearDown() {
+        sourceFile.delete();
+        destFile.delete();
+    }
+
+    @Test
+    public void testLocalFile() throws IOException {
+        copy(new FileInputStream(sourceFile));
+    }
+
+    @Test
+    public void testPipedStream() throws IOException {
+        copy(startPipe());
+    }
+
+    @Test
+    public void testHttpLoopback() throws IOException {
+        ServerSocket serverSocket = startHttpServer();
+        try {
+            URL url = new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/data.bin");
+            copy(url.openConnection().getInputStream());
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    @Ignore("benchmark, only run by hand")
+    @Test
+    public void testThroughput() throws IOException {
+        compare("local file", timeByteArrayLoop(new FileInputStream(sourceFile)),
+                copy(new FileInputStream(sourceFile)));
+        compare("piped stream", timeByteArrayLoop(startPipe()), copy(startPipe()));
+        ServerSocket serverSocket = startHttpServer();
+        try {
+            URL url = new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/data.bin");
+            compare("HTTP loopback", timeByteArrayLoop(url.openConnection().getInputStream()),
+                    copy(url.openConnection().getInputStream()));
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void testResumeAppendsToExistingFile() throws IOException {
+        int half = DATA_SIZE / 2;
+        FileOutputStream outputStream = new FileOutputStream(destFile);
+        outputStream.write(data, 0, half);
+        outputStream.close();
+
+        InputStream input = new FileInputStream(sourceFile);
+        assertEquals(half, input.skip(half));
+        outputStream = new FileOutputStream(destFile, true);
+        ChannelCopier copier = new ChannelCopier(input, outputStream.getChannel(), 8192);
+        while (copier.copyChunk() != -1) {
+            assertTrue(copier.getChunkSize() >= ChannelCopier.MIN_CHUNK_SIZE);
+            assertTrue(copier.getChunkSize() <= ChannelCopier.MAX_CHUNK_SIZE);
+        }
+        copier.close();
+        outputStream.close();
+        input.close();
+        assertDestMatches();
+    }
+
+    /**
+     * @return how long the copy took, in nanoseconds
+     */
+    private long copy(InputStream input) throws IOException {
+        long start = System.nanoTime();
+        FileOutputStream output = new FileOutputStream(destFile);
+        ChannelCopier copier = new ChannelCopier(input, output.getChannel(), 8192);
+        long total = 0;
+        int count;
+        while ((count = copier.copyChunk()) != -1) {
+            total += count;
+        }
+        copier.close();
+        output.close();
+        input.close();
+        long nanos = System.nanoTime() - start;
+        assertEquals(DATA_SIZE, total);
+        assertDestMatches();
+        return nanos;
+    }
+
+    /**
+     * @return how long copying with the {@code byte[]} loop took, in nanoseconds
+     */
+    private long timeByteArrayLoop(InputStream input) throws IOException {
+        long start = System.nanoTime();
+        OutputStream output = new FileOutputStream(destFile);
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            output.write(buffer, 0, count);
+        }
+        output.close();
+        input.close();
+        long nanos = System.nanoTime() - start;
+        assertDestMatches();
+        return nanos;
+    }
+
+    private static void compare(String source, long byteArrayLoopNanos, long copierNanos) {
+        String result = String.format(Locale.ENGLISH, "%s: byte[] loop %.1f MB/s, ChannelCopier %.1f MB/s",
+                source, megabytesPerSecond(byteArrayLoopNanos), megabytesPerSecond(copierNanos));
+        Utils.debugLog(TAG, result);
+        assertTrue(result, copierNanos <= 2 * byteArrayLoopNanos);
+    }
+
+    private static double megabytesPerSecond(long nanos) {
+        return (DATA_SIZE / (1024.0 * 1024.0)) / (nanos / 1e9);
+    }
+
+    private void assertDestMatches() throws IOException {
+        assertEquals(DATA_SIZE, destFile.length());
+        byte[] copied = new byte[DATA_SIZE];
+        FileInputStream input = new FileInputStream(destFile);
+        int offset = 0;
+        int count;
+        while (offset < copied.length && (count = input.read(copied, offset, copied.length - offset)) != -1) {
+            offset += count;
+        }
+        input.close();
+        assertArrayEquals(data, copied);
+    }
+
+    private InputStream startPipe() throws IOException {
+        final PipedOutputStream pipedOutputStream = new PipedOutputStream();
+        PipedInputStream pipedInputStream = new PipedInputStream(pipedOutputStream, 64 * 1024);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int offset = 0; offset < DATA_SIZE; offset += 4096) {
+                        pipedOutputStream.write(data, offset, Math.min(4096, DATA_SIZE - offset));
+                    }
+                    pipedOutputStream.close();
+                } catch (IOException ignored) {
+                    // the copy comes up short, which the test checks
+                }
+            }
+        }.start();
+        return pipedInputStream;
+    }
+
+    /**
+     * A bare bones HTTP server which answers every request with {@link #data}.
+     */
+    private ServerSocket startHttpServer() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        new Thread() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        InputStream request = socket.getInputStream();
+                        byte[] requestBuffer = new byte[4096];
+                        int length = 0;
+                        while (length < 4 || !new String(Arrays.copyOf(requestBuffer, length)).contains("\r\n\r\n")) {
+                            length += request.read(requestBuffer, length, requestBuffer.length - length);
+                        }
+                        OutputStream response = socket.getOutputStream();
+                        response.write(("HTTP/1.1 " + HttpURLConnection.HTTP_OK + " OK\r\n"
+                                + "Content-Length: " + DATA_SIZE + "\r\n"
+                                + "Connection: close\r\n\r\n").getBytes());
+                        response.write(data);
+                        response.close();
+                        socket.close();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        }.start();
+        return serverSocket;
+    }
+}
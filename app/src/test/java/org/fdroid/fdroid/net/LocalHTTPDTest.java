@@ -0,0 +1,382 @@
+package org.fdroid.fdroid.net;
+
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link LocalHTTPD} against many local clients at once, like a swap
+ * event where several phones pull APKs from the same one.
+ */
+@Config(constants = BuildConfig.class, sdk = 24)
+@RunWith(RobolectricTestRunner.class)
+public class LocalHTTPDTest {
+    private static final String TAG = "LocalHTTPDTest";
+
+    private static final int FILE_COUNT = 10;
+    private static final int FILE_SIZE = 256 * 1024;
+    private static final int CLIENTS = 32;
+
+    private File webRoot;
+    private byte[][] files;
+    private LocalHTTPD localHttpd;
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        webRoot = File.createTempFile("LocalHTTPDTest", "");
+        webRoot.delete();
+        webRoot.mkdirs();
+        Random random = new Random(FILE_SIZE);
+        files = new byte[FILE_COUNT][FILE_SIZE];
+        for (int i = 0; i < FILE_COUNT; i++) {
+            random.nextBytes(files[i]);
+            FileUtils.writeByteArrayToFile(new File(webRoot, i + ".apk"), files[i]);
+        }
+
+        localHttpd = new LocalHTTPD(RuntimeEnvironment.application, "127.0.0.1", 0, webRoot, false);
+        localHttpd.start();
+        baseUrl = "http://127.0.0.1:" + localHttpd.getListeningPort() + "/";
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        localHttpd.stop();
+        FileUtils.deleteDirectory(webRoot);
+    }
+
+    @Test
+    public void testKeepAlive() throws IOException {
+        for (int i = 0; i < FILE_COUNT; i++) {
+            assertArrayEquals(files[i], download(baseUrl + i + ".apk"));
+        }
+        assertEquals("all requests from one client share a connection", 1, localHttpd.getTotalConnections());
+    }
+
+    @Test
+    public void testRangeDoesNotLeakIntoNextRequest() throws IOException {
+        byte[] firstHalf = download(baseUrl + "0.apk", 0, FILE_SIZE / 2 - 1);
+        assertArrayEquals(Arrays.copyOf(files[0], FILE_SIZE / 2), firstHalf);
+        assertArrayEquals(files[0], download(baseUrl + "0.apk"));
+        assertEquals(1, localHttpd.getTotalConnections());
+    }
+
+    @Test
+    public void testClientAddressIsKept() throws IOException {
+        final List<String> addresses = new ArrayList<>();
+        localHttpd.stop();
+        localHttpd = new LocalHTTPD(RuntimeEnvironment.application, "127.0.0.1", 0, webRoot, false) {
+            @Override
+            public Response serve(IHTTPSession session) {
+                addresses.add(session.getHeaders().get("remote-addr"));
+                return super.serve(session);
+            }
+        };
+        localHttpd.start();
+        baseUrl = "http://127.0.0.1:" + localHttpd.getListeningPort() + "/";
+
+        download(baseUrl + "0.apk");
+        download(baseUrl + "1.apk");
+        assertEquals(1, localHttpd.getTotalConnections());
+        assertEquals(Arrays.asList("127.0.0.1", "127.0.0.1"), addresses);
+    }
+
+    @Test
+    public void testSuffixRange() throws IOException {
+        HttpURLConnection connection = openWithRange(baseUrl + "1.apk", "bytes=-100");
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, connection.getResponseCode());
+        assertEquals("bytes " + (FILE_SIZE - 100) + "-" + (FILE_SIZE - 1) + "/" + FILE_SIZE,
+                connection.getHeaderField("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(files[1], FILE_SIZE - 100, FILE_SIZE), readAll(connection));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() throws IOException {
+        HttpURLConnection connection = openWithRange(baseUrl + "1.apk", "bytes=" + FILE_SIZE + "-");
+        assertEquals(416, connection.getResponseCode());
+        assertEquals("bytes */" + FILE_SIZE, connection.getHeaderField("Content-Range"));
+    }
+
+    @Test
+    public void testMultipleRanges() throws IOException {
+        HttpURLConnection connection = openWithRange(baseUrl + "2.apk", "bytes=0-9,-10,100-199");
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, connection.getResponseCode());
+        String contentType = connection.getContentType();
+        assertTrue(contentType, contentType.startsWith("multipart/byteranges; boundary="));
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        byte[] body = readAll(connection);
+        assertEquals(connection.getContentLength(), body.length);
+
+        // parts come back in file order, each with its own Content-Range
+        String text = new String(body, "ISO-8859-1");
+        String[] parts = text.split("\r\n--" + boundary);
+        assertEquals(5, parts.length); // leading empty string, three parts, closing "--"
+        long[][] expected = {{0, 9}, {100, 199}, {FILE_SIZE - 10, FILE_SIZE - 1}};
+        for (int i = 0; i < expected.length; i++) {
+            String part = parts[i + 1];
+            assertTrue(part, part.contains("Content-Range: bytes " + expected[i][0] + "-" + expected[i][1]
+                    + "/" + FILE_SIZE + "\r\n"));
+            byte[] data = part.substring(part.indexOf("\r\n\r\n") + 4).getBytes("ISO-8859-1");
+            assertArrayEquals(Arrays.copyOfRange(files[2], (int) expected[i][0], (int) expected[i][1] + 1), data);
+        }
+        assertEquals("--\r\n", parts[4]);
+    }
+
+    @Test
+    public void testIfRange() throws IOException {
+        HttpURLConnection head = (HttpURLConnection) new URL(baseUrl + "3.apk").openConnection();
+        head.setRequestMethod("HEAD");
+        String etag = head.getHeaderField("ETag");
+        assertTrue(etag, etag.startsWith("\"") && etag.endsWith("\""));
+        head.getInputStream().close();
+
+        HttpURLConnection connection = openWithRange(baseUrl + "3.apk", "bytes=1000-");
+        connection.setRequestProperty("If-Range", etag);
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, connection.getResponseCode());
+        assertArrayEquals(Arrays.copyOfRange(files[3], 1000, FILE_SIZE), readAll(connection));
+
+        // a stale validator gets the whole file, so the client starts over
+        connection = openWithRange(baseUrl + "3.apk", "bytes=1000-");
+        connection.setRequestProperty("If-Range", "\"stale\"");
+        assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        assertArrayEquals(files[3], readAll(connection));
+
+        connection = (HttpURLConnection) new URL(baseUrl + "3.apk").openConnection();
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, connection.getResponseCode());
+    }
+
+    /**
+     * Idle kept-alive connections still hold their worker, so the last free
+     * worker is never kept for one, otherwise the next client would have to
+     * wait for an idle connection to time out.
+     */
+    @Test
+    public void testKeepAliveLeavesAWorkerFree() throws IOException {
+        List<Socket> idle = new ArrayList<>();
+        for (int i = 0; i < LocalHTTPD.WORKER_THREADS - 1; i++) {
+            Socket socket = openSocket();
+            assertEquals("keep-alive", request(socket, i));
+            idle.add(socket);
+        }
+        assertEquals(LocalHTTPD.WORKER_THREADS - 1, localHttpd.getActiveConnections());
+
+        for (int i = 0; i < 3; i++) {
+            Socket socket = openSocket();
+            assertEquals("close", request(socket, i));
+            socket.close();
+        }
+        for (Socket socket : idle) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentClients() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int c = 0; c < CLIENTS; c++) {
+            final int offset = c;
+            results.add(clients.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    int downloaded = 0;
+                    for (int i = 0; i < FILE_COUNT; i++) {
+                        int file = (offset + i) % FILE_COUNT;
+                        assertArrayEquals(files[file], download(baseUrl + file + ".apk"));
+                        downloaded++;
+                    }
+                    return downloaded;
+                }
+            }));
+        }
+        int total = 0;
+        for (Future<Integer> result : results) {
+            total += result.get();
+        }
+        clients.shutdown();
+
+        assertEquals(CLIENTS * FILE_COUNT, total);
+        assertTrue(localHttpd.getPeakActiveConnections() <= LocalHTTPD.WORKER_THREADS);
+        assertTrue(localHttpd.getTotalConnections() <= total);
+    }
+
+    /**
+     * Several clients pull a large APK at the same time, each in ranged
+     * segments like a resumed download, while no more than
+     * {@link LocalHTTPD#WORKER_THREADS} connections are served at once.
+     */
+    @Test
+    public void testConcurrentRangedDownloads() throws Exception {
+        downloadRangedConcurrently(LocalHTTPD.WORKER_THREADS * 2, 16 * 1024 * 1024);
+        assertTrue(localHttpd.getPeakActiveConnections() <= LocalHTTPD.WORKER_THREADS);
+    }
+
+    /**
+     * How fast the ranged downloads of {@link #testConcurrentRangedDownloads()}
+     * are sent with sendfile, for more and more clients.  This is only run by
+     * hand, the numbers vary too much between machines.
+     */
+    @Ignore("benchmark, only run by hand")
+    @Test
+    public void testRangedThroughput() throws Exception {
+        int bigSize = 16 * 1024 * 1024;
+        for (int clientCount = 1; clientCount <= LocalHTTPD.WORKER_THREADS * 2; clientCount *= 2) {
+            long nanos = downloadRangedConcurrently(clientCount, bigSize);
+            Utils.debugLog(TAG, String.format(Locale.ENGLISH, "%d clients, %.1f MB/s in total", clientCount,
+                    (double) clientCount * bigSize / (1024.0 * 1024.0) / (nanos / 1e9)));
+        }
+    }
+
+    /**
+     * Have {@code clientCount} clients download the same file of
+     * {@code bigSize} bytes, in four ranged requests each.
+     *
+     * @return how long it took until all of them were done, in nanoseconds
+     */
+    private long downloadRangedConcurrently(int clientCount, final int bigSize) throws Exception {
+        final int segment = bigSize / 4;
+        final byte[] big = new byte[bigSize];
+        new Random(bigSize).nextBytes(big);
+        FileUtils.writeByteArrayToFile(new File(webRoot, "big.apk"), big);
+
+        long start = System.nanoTime();
+        ExecutorService clients = Executors.newFixedThreadPool(clientCount);
+        List<Future<byte[]>> results = new ArrayList<>();
+        for (int c = 0; c < clientCount; c++) {
+            results.add(clients.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    ByteArrayOutputStream whole = new ByteArrayOutputStream(bigSize);
+                    for (int offset = 0; offset < bigSize; offset += segment) {
+                        whole.write(download(baseUrl + "big.apk", offset, offset + segment - 1));
+                    }
+                    return whole.toByteArray();
+                }
+            }));
+        }
+        for (Future<byte[]> result : results) {
+            assertArrayEquals(big, result.get());
+        }
+        long nanos = System.nanoTime() - start;
+        clients.shutdown();
+        return nanos;
+    }
+
+    private static byte[] download(String urlString) throws IOException {
+        return download(urlString, -1, -1);
+    }
+
+    private static byte[] download(String urlString, long start, long end) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(urlString).openConnection();
+        if (start >= 0) {
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+            assertEquals(HttpURLConnection.HTTP_PARTIAL, connection.getResponseCode());
+            assertEquals(end - start + 1, connection.getContentLength());
+        } else {
+            assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        }
+        return readAll(connection);
+    }
+
+    private Socket openSocket() throws IOException {
+        Socket socket = new Socket("127.0.0.1", localHttpd.getListeningPort());
+        socket.setSoTimeout(2000);
+        return socket;
+    }
+
+    /**
+     * Send a request for file {@code file} over {@code socket} and read the
+     * response, checking its body.
+     *
+     * @return the response's {@code Connection} header
+     */
+    private String request(Socket socket, int file) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        output.write(("GET /" + file + ".apk HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes("ASCII"));
+        output.flush();
+
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        String connection = null;
+        int contentLength = -1;
+        String line = readLine(input);
+        assertTrue(line, line.startsWith("HTTP/1.1 200"));
+        while (!(line = readLine(input)).isEmpty()) {
+            String[] header = line.split(":", 2);
+            if ("Connection".equalsIgnoreCase(header[0])) {
+                connection = header[1].trim();
+            } else if ("Content-Length".equalsIgnoreCase(header[0])) {
+                contentLength = Integer.parseInt(header[1].trim());
+            }
+        }
+        byte[] body = new byte[contentLength];
+        input.readFully(body);
+        assertArrayEquals(files[file], body);
+        return connection;
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static HttpURLConnection openWithRange(String urlString, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(urlString).openConnection();
+        connection.setRequestProperty("Range", range);
+        return connection;
+    }
+
+    private static byte[] readAll(HttpURLConnection connection) throws IOException {
+        InputStream input = connection.getInputStream();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(FILE_SIZE);
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            output.write(buffer, 0, count);
+        }
+        // close instead of disconnect, so the connection goes back into the keep-alive pool
+        input.close();
+        return output.toByteArray();
+    }
+}
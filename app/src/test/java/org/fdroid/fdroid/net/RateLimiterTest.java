@@ -0,0 +1,58 @@
+package org.fdroid.fdroid.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testUnlimitedNeverWaits() {
+        RateLimiter limiter = new RateLimiter(RateLimiter.UNLIMITED);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, limiter.take(1024 * 1024));
+        }
+    }
+
+    @Test
+    public void testBurstThenWait() {
+        RateLimiter limiter = new RateLimiter(100 * 1024);
+        // a full bucket lets one second's worth through straight away
+        assertEquals(0, limiter.take(100 * 1024));
+        // then half a second's worth of debt means waiting about half a second
+        long wait = limiter.take(50 * 1024);
+        assertTrue("waited " + wait, wait > 400 && wait <= 500);
+    }
+
+    @Test
+    public void testThrottledCopyRate() throws InterruptedException {
+        long bytesPerSecond = 256 * 1024;
+        RateLimiter limiter = new RateLimiter(bytesPerSecond);
+        limiter.take((int) bytesPerSecond); // empty the bucket first
+        long start = System.nanoTime();
+        long total = 0;
+        while (total < bytesPerSecond / 2) {
+            Thread.sleep(limiter.take(8192));
+            total += 8192;
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 450);
+    }
+
+    @Test
+    public void testPauseAndChangeRate() {
+        RateLimiter limiter = new RateLimiter(1024);
+        assertFalse(limiter.isPaused());
+        limiter.setPaused(true);
+        assertTrue(limiter.isPaused());
+        limiter.setPaused(false);
+        assertFalse(limiter.isPaused());
+
+        limiter.take(10 * 1024);
+        limiter.setBytesPerSecond(RateLimiter.UNLIMITED);
+        assertEquals(RateLimiter.UNLIMITED, limiter.getBytesPerSecond());
+        assertEquals(0, limiter.take(10 * 1024));
+    }
+}
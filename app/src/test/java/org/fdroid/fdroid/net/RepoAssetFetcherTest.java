@@ -0,0 +1,252 @@
+package org.fdroid.fdroid.net;
+
+import android.app.Application;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.net.util.SubnetUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.FDroidProviderTest;
+import org.fdroid.fdroid.data.RepoProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Config(constants = BuildConfig.class, application = Application.class, sdk = 24)
+@RunWith(RobolectricTestRunner.class)
+public class RepoAssetFetcherTest extends FDroidProviderTest {
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger peakActiveRequests = new AtomicInteger();
+    private final List<String> requestedPaths = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch firstRequestReceived = new CountDownLatch(1);
+    private volatile long responseDelayMillis;
+    private ServerSocket serverSocket;
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        TestUtils.registerContentProvider(RepoProvider.getAuthority(), RepoProvider.class);
+        // connect directly, like to a swap peer, rather than through NetCipher
+        FDroidApp.subnetInfo = new SubnetUtils("127.0.0.0/8").getInfo();
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        baseUrl = "http://127.0.0.1:" + serverSocket.getLocalPort() + "/repo/icons/";
+        new Thread() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        serve(serverSocket.accept());
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        }.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        serverSocket.close();
+    }
+
+    @Test
+    public void testConnectionIsReused() throws IOException {
+        RepoAssetFetcher fetcher = RepoAssetFetcher.getInstance();
+        for (int i = 0; i < 10; i++) {
+            String path = "org.example.app" + i + ".png";
+            assertArrayEquals(getBody(path), IOUtils.toByteArray(fetcher.fetch(context, baseUrl + path)));
+        }
+        assertEquals(1, connections.get());
+    }
+
+    @Test
+    public void testErrorKeepsConnection() throws IOException {
+        RepoAssetFetcher fetcher = RepoAssetFetcher.getInstance();
+        try {
+            fetcher.fetch(context, baseUrl + "missing.png");
+            fail("a 404 has to be an IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("404"));
+        }
+        assertArrayEquals(getBody("after.png"), IOUtils.toByteArray(fetcher.fetch(context, baseUrl + "after.png")));
+        assertEquals(1, connections.get());
+    }
+
+    @Test
+    public void testRequestsPerHostAreLimited() throws Exception {
+        responseDelayMillis = 50;
+        final RepoAssetFetcher fetcher = RepoAssetFetcher.getInstance();
+        ExecutorService clients = Executors.newFixedThreadPool(16);
+        List<Future<byte[]>> results = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            final String path = "org.example.concurrent" + i + ".png";
+            results.add(clients.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return IOUtils.toByteArray(fetcher.fetch(context, baseUrl + path));
+                }
+            }));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            assertArrayEquals(getBody("org.example.concurrent" + i + ".png"), results.get(i).get());
+        }
+        clients.shutdown();
+        assertTrue(peakActiveRequests.get() <= RepoAssetFetcher.MAX_CONNECTIONS_PER_HOST);
+        assertTrue(connections.get() <= RepoAssetFetcher.MAX_CONNECTIONS_PER_HOST);
+    }
+
+    @Test
+    public void testSameUrlIsFetchedOnce() throws Exception {
+        List<Future<byte[]>> results = fetchTwiceAtTheSameTime("org.example.same.png");
+        byte[] first = results.get(0).get();
+        byte[] second = results.get(1).get();
+        assertArrayEquals(getBody("org.example.same.png"), first);
+        assertArrayEquals(first, second);
+        assertEquals(1, Collections.frequency(requestedPaths, "org.example.same.png"));
+    }
+
+    @Test
+    public void testErrorReachesAllWaiters() throws Exception {
+        List<Future<byte[]>> results = fetchTwiceAtTheSameTime("missing.png");
+        List<Throwable> errors = new ArrayList<>();
+        for (Future<byte[]> result : results) {
+            try {
+                result.get();
+                fail("a 404 has to be an IOException for every caller");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+                assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("404"));
+                errors.add(e.getCause());
+            }
+        }
+        assertSame(errors.get(0), errors.get(1));
+        assertEquals(1, Collections.frequency(requestedPaths, "missing.png"));
+    }
+
+    /**
+     * Fetch {@code path} from two threads, the second one only once the
+     * server has the first request, and while it is still being answered.
+     */
+    private List<Future<byte[]>> fetchTwiceAtTheSameTime(String path) throws InterruptedException {
+        responseDelayMillis = 500;
+        final RepoAssetFetcher fetcher = RepoAssetFetcher.getInstance();
+        final String url = baseUrl + path;
+        Callable<byte[]> fetch = new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return IOUtils.toByteArray(fetcher.fetch(context, url));
+            }
+        };
+        ExecutorService clients = Executors.newFixedThreadPool(2);
+        List<Future<byte[]>> results = new ArrayList<>();
+        results.add(clients.submit(fetch));
+        assertTrue(firstRequestReceived.await(10, TimeUnit.SECONDS));
+        results.add(clients.submit(fetch));
+        clients.shutdown();
+        return results;
+    }
+
+    private static byte[] getBody(String path) {
+        return ("image data of " + path).getBytes();
+    }
+
+    /**
+     * Serve each request over the connection in its own thread, until the
+     * client closes it.  Every path is an image, except {@code missing.png}.
+     */
+    private void serve(final Socket socket) {
+        connections.incrementAndGet();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    InputStream input = socket.getInputStream();
+                    OutputStream output = socket.getOutputStream();
+                    String requestLine;
+                    while ((requestLine = readHeaders(input)) != null) {
+                        String path = requestLine.split(" ")[1];
+                        path = path.substring(path.lastIndexOf('/') + 1);
+                        requestedPaths.add(path);
+                        firstRequestReceived.countDown();
+                        int active = activeRequests.incrementAndGet();
+                        int peak;
+                        do {
+                            peak = peakActiveRequests.get();
+                        } while (active > peak && !peakActiveRequests.compareAndSet(peak, active));
+                        Thread.sleep(responseDelayMillis);
+                        activeRequests.decrementAndGet();
+
+                        String status = "200 OK";
+                        byte[] body = getBody(path);
+                        if ("missing.png".equals(path)) {
+                            status = "404 Not Found";
+                            body = "not found".getBytes();
+                        }
+                        output.write(("HTTP/1.1 " + status + "\r\nContent-Length: " + body.length
+                                + "\r\nConnection: keep-alive\r\n\r\n").getBytes());
+                        output.write(body);
+                        output.flush();
+                    }
+                    socket.close();
+                } catch (IOException | InterruptedException ignored) {
+                    // the client went away
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * @return the request line, or {@code null} if the connection was closed
+     */
+    private static String readHeaders(InputStream input) throws IOException {
+        String requestLine = null;
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) != -1) {
+            if (c == '\r') {
+                continue;
+            }
+            if (c != '\n') {
+                line.append((char) c);
+            } else if (line.length() == 0) {
+                return requestLine;
+            } else {
+                if (requestLine == null) {
+                    requestLine = line.toString();
+                }
+                line.setLength(0);
+            }
+        }
+        return null;
+    }
+}
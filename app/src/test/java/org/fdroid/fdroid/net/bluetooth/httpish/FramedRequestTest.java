@@ -0,0 +1,161 @@
+package org.fdroid.fdroid.net.bluetooth.httpish;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.fdroid.fdroid.net.bluetooth.BluetoothConnection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link Request} and {@link Response} between two ends of a pair of
+ * pipes, which stand in for the two sides of a {@link BluetoothConnection}.
+ */
+public class FramedRequestTest {
+
+    private static final int PIPE_SIZE = 1024 * 1024;
+
+    private final Map<String, byte[]> files = new HashMap<>();
+
+    private BluetoothConnection client;
+    private BluetoothConnection server;
+    private Thread serverThread;
+
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(PIPE_SIZE);
+        for (int size : new int[]{0, 1, 100, 8192, 300 * 1024}) {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            files.put("/fdroid/repo/" + size + ".bin", bytes);
+        }
+
+        PipedInputStream clientInput = new PipedInputStream(PIPE_SIZE);
+        PipedInputStream serverInput = new PipedInputStream(PIPE_SIZE);
+        client = new PipedBluetoothConnection(clientInput, new PipedOutputStream(serverInput));
+        server = new PipedBluetoothConnection(serverInput, new PipedOutputStream(clientInput));
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        client.closeQuietly();
+        server.closeQuietly();
+        if (serverThread != null) {
+            serverThread.join(10000);
+        }
+    }
+
+    @Test
+    public void testUpgrade() throws IOException {
+        startServer(true);
+        assertTrue(Request.upgrade(client));
+        assertTrue(client.isFramed());
+
+        String path = "/fdroid/repo/100.bin";
+        Response response = Request.createGET(path, client).send();
+        assertEquals(200, response.getStatusCode());
+        assertEquals(100, response.getFileSize());
+        assertArrayEquals(files.get(path), IOUtils.toByteArray(response.toContentStream()));
+
+        response = Request.createGET("/fdroid/repo/missing", client).send();
+        assertEquals(404, response.getStatusCode());
+        IOUtils.toByteArray(response.toContentStream());
+
+        // the connection still lines up after a 404 with a body
+        response = Request.createHEAD(path, client).send();
+        assertEquals(200, response.getStatusCode());
+        assertEquals(100, response.toFileDetails().getFileSize());
+    }
+
+    @Test
+    public void testPipelined() throws IOException {
+        startServer(true);
+        assertTrue(Request.upgrade(client));
+
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            paths.addAll(files.keySet());
+        }
+        List<Request> requests = new ArrayList<>();
+        for (String path : paths) {
+            Request request = Request.createGET(path, client);
+            request.write();
+            requests.add(request);
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            Response response = requests.get(i).readResponse();
+            assertEquals(200, response.getStatusCode());
+            assertArrayEquals(paths.get(i), files.get(paths.get(i)), IOUtils.toByteArray(response.toContentStream()));
+        }
+    }
+
+    /**
+     * A server from before the framed format answers the upgrade request like
+     * any {@code HEAD} for a missing file, and the client stays with text.
+     */
+    @Test
+    public void testOldServer() throws IOException {
+        startServer(false);
+        assertFalse(Request.upgrade(client));
+        assertFalse(client.isFramed());
+
+        for (String path : files.keySet()) {
+            Response response = Request.createGET(path, client).send();
+            assertEquals(200, response.getStatusCode());
+            byte[] expected = files.get(path);
+            InputStream body = new BoundedInputStream(response.toContentStream(), expected.length);
+            assertArrayEquals(path, expected, IOUtils.toByteArray(body));
+        }
+    }
+
+    private void startServer(final boolean supportsFrames) {
+        serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Request request;
+                    while ((request = Request.listenForRequest(server)) != null) {
+                        if (supportsFrames && request.isUpgrade()) {
+                            Response.sendSwitchingProtocols(server);
+                            continue;
+                        }
+                        respond(request).send(server);
+                    }
+                } catch (IOException e) {
+                    // the client closed its end
+                }
+            }
+        };
+        serverThread.start();
+    }
+
+    private Response respond(Request request) {
+        byte[] bytes = files.get(request.getPath());
+        if (bytes == null) {
+            if (request.getMethod().equals(Request.Methods.HEAD)) {
+                return new Response.Builder().setStatusCode(404).build();
+            }
+            return new Response(404, "text/plain", "Error 404, file not found.");
+        }
+        Response.Builder builder = request.getMethod().equals(Request.Methods.HEAD)
+                ? new Response.Builder()
+                : new Response.Builder(new ByteArrayInputStream(bytes));
+        return builder.setFileSize(bytes.length).build();
+    }
+}
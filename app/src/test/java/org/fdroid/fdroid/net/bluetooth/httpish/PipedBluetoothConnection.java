@@ -0,0 +1,37 @@
+package org.fdroid.fdroid.net.bluetooth.httpish;
+
+import org.apache.commons.io.IOUtils;
+import org.fdroid.fdroid.net.bluetooth.BluetoothConnection;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One side of a {@link BluetoothConnection} that runs over a pair of pipes.
+ */
+class PipedBluetoothConnection extends BluetoothConnection {
+    private final InputStream input;
+    private final OutputStream output;
+
+    PipedBluetoothConnection(InputStream input, OutputStream output) {
+        super(null);
+        this.input = input;
+        this.output = output;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    @Override
+    public void closeQuietly() {
+        IOUtils.closeQuietly(input);
+        IOUtils.closeQuietly(output);
+    }
+}
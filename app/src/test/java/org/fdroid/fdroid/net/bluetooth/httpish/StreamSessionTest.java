@@ -0,0 +1,261 @@
+package org.fdroid.fdroid.net.bluetooth.httpish;
+
+import org.apache.commons.io.IOUtils;
+import org.fdroid.fdroid.net.bluetooth.BluetoothConnection;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a {@link StreamSession} against a {@link StreamScheduler} over a pair
+ * of pipes, which stand in for the two sides of a {@link BluetoothConnection}.
+ */
+public class StreamSessionTest {
+
+    private static final int PIPE_SIZE = 64 * 1024;
+    private static final String APK_PATH = "/fdroid/repo/big.apk";
+    private static final String INDEX_PATH = "/fdroid/repo/index-v1.jar";
+    private static final String ICON_PATH = "/fdroid/repo/icons-640/org.example.png";
+
+    private final Map<String, byte[]> files = new HashMap<>();
+
+    private BluetoothConnection client;
+    private BluetoothConnection server;
+    private Thread serverThread;
+    private StreamSession session;
+
+    private void setUp(boolean supportsStreams, long millisPerWrite) throws IOException {
+        Random random = new Random(PIPE_SIZE);
+        files.put(APK_PATH, new byte[4 * 1024 * 1024]);
+        files.put(INDEX_PATH, new byte[20000]);
+        files.put(ICON_PATH, new byte[3000]);
+        files.put("/fdroid/repo/empty", new byte[0]);
+        for (byte[] bytes : files.values()) {
+            random.nextBytes(bytes);
+        }
+
+        PipedInputStream clientInput = new PipedInputStream(PIPE_SIZE);
+        PipedInputStream serverInput = new PipedInputStream(PIPE_SIZE);
+        OutputStream serverOutput = new SlowOutputStream(new PipedOutputStream(clientInput), millisPerWrite);
+        client = new PipedBluetoothConnection(clientInput, new PipedOutputStream(serverInput));
+        server = new PipedBluetoothConnection(serverInput, new BufferedOutputStream(serverOutput));
+        startServer(supportsStreams);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (session != null) {
+            session.close();
+        }
+        client.closeQuietly();
+        server.closeQuietly();
+        serverThread.join(10000);
+    }
+
+    @Test
+    public void testStreams() throws IOException {
+        setUp(true, 0);
+        assertTrue(Request.upgradeToStreams(client));
+        session = new StreamSession("test", client);
+
+        List<String> paths = new ArrayList<>(files.keySet());
+        List<StreamSession.Stream> streams = new ArrayList<>();
+        for (String path : paths) {
+            streams.add(session.open(Request.Methods.GET, path));
+        }
+        StreamSession.Stream missing = session.open(Request.Methods.GET, "/fdroid/repo/missing");
+        StreamSession.Stream head = session.open(Request.Methods.HEAD, APK_PATH);
+
+        // read them in another order than they were asked for
+        for (int i = streams.size() - 1; i >= 0; i--) {
+            Response response = streams.get(i).getResponse();
+            assertEquals(200, response.getStatusCode());
+            byte[] expected = files.get(paths.get(i));
+            assertArrayEquals(paths.get(i), expected, IOUtils.toByteArray(response.toContentStream()));
+            assertEquals(expected.length, streams.get(i).getBytesReceived());
+        }
+
+        assertEquals(404, missing.getResponse().getStatusCode());
+        IOUtils.toByteArray(missing.getResponse().toContentStream());
+
+        Response response = head.getResponse();
+        assertEquals(200, response.getStatusCode());
+        assertEquals(files.get(APK_PATH).length, response.toFileDetails().getFileSize());
+    }
+
+    /**
+     * The index and icons are asked for while the big APK is being sent, and
+     * still arrive long before it is done.
+     */
+    @Test
+    public void testPriority() throws IOException {
+        setUp(true, 2);
+        assertTrue(Request.upgradeToStreams(client));
+        session = new StreamSession("test", client);
+
+        StreamSession.Stream apk = session.open(Request.Methods.GET, APK_PATH);
+        InputStream apkBody = apk.getResponse().toContentStream();
+        assertEquals(files.get(APK_PATH)[0] & 0xff, apkBody.read());
+
+        StreamSession.Stream index = session.open(Request.Methods.GET, INDEX_PATH);
+        StreamSession.Stream icon = session.open(Request.Methods.GET, ICON_PATH);
+        assertArrayEquals(files.get(INDEX_PATH), IOUtils.toByteArray(index.getResponse().toContentStream()));
+        assertArrayEquals(files.get(ICON_PATH), IOUtils.toByteArray(icon.getResponse().toContentStream()));
+        assertTrue(apk.getBytesReceived() < files.get(APK_PATH).length / 2);
+
+        byte[] rest = IOUtils.toByteArray(apkBody);
+        assertEquals(files.get(APK_PATH).length - 1, rest.length);
+        assertTrue(apk.getBytesPerSecond() > 0);
+    }
+
+    /**
+     * A body nobody reads only takes up its window in memory, and does not
+     * hold up the other streams.
+     */
+    @Test
+    public void testUnreadBodyStaysInWindow() throws IOException, InterruptedException {
+        setUp(true, 0);
+        assertTrue(Request.upgradeToStreams(client));
+        session = new StreamSession("test", client);
+
+        StreamSession.Stream apk = session.open(Request.Methods.GET, APK_PATH);
+        InputStream apkBody = apk.getResponse().toContentStream();
+        StreamSession.Stream index = session.open(Request.Methods.GET, INDEX_PATH);
+        assertArrayEquals(files.get(INDEX_PATH), IOUtils.toByteArray(index.getResponse().toContentStream()));
+        Thread.sleep(200);
+        assertEquals(Frames.INITIAL_WINDOW, apk.getBytesReceived());
+
+        assertArrayEquals(files.get(APK_PATH), IOUtils.toByteArray(apkBody));
+    }
+
+    @Test
+    public void testCancel() throws IOException {
+        setUp(true, 1);
+        assertTrue(Request.upgradeToStreams(client));
+        session = new StreamSession("test", client);
+
+        StreamSession.Stream apk = session.open(Request.Methods.GET, APK_PATH);
+        InputStream apkBody = apk.getResponse().toContentStream();
+        apkBody.read(new byte[100]);
+        apk.close();
+        try {
+            IOUtils.toByteArray(apkBody);
+            throw new AssertionError("A cancelled stream should not end normally");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // whatever was still on the way for the cancelled stream is skipped
+        StreamSession.Stream index = session.open(Request.Methods.GET, INDEX_PATH);
+        assertArrayEquals(files.get(INDEX_PATH), IOUtils.toByteArray(index.getResponse().toContentStream()));
+    }
+
+    /**
+     * A server which only knows about plain frames treats the request for
+     * streams like any {@code HEAD} for a missing file.
+     */
+    @Test
+    public void testServerWithoutStreams() throws IOException {
+        setUp(false, 0);
+        assertFalse(Request.upgradeToStreams(client));
+        assertFalse(client.hasStreams());
+        assertTrue(Request.upgrade(client));
+
+        Response response = Request.createGET(INDEX_PATH, client).send();
+        assertEquals(200, response.getStatusCode());
+        assertArrayEquals(files.get(INDEX_PATH), IOUtils.toByteArray(response.toContentStream()));
+    }
+
+    private void startServer(final boolean supportsStreams) {
+        serverThread = new Thread() {
+            @Override
+            public void run() {
+                StreamScheduler scheduler = null;
+                try {
+                    Request request;
+                    while ((request = Request.listenForRequest(server)) != null) {
+                        if (request.isUpgrade()) {
+                            Response.sendSwitchingProtocols(server);
+                        } else if (supportsStreams && request.isStreamsUpgrade()) {
+                            Response.sendSwitchingToStreams(server);
+                            scheduler = new StreamScheduler(server);
+                            scheduler.start();
+                        } else if (scheduler == null) {
+                            respond(request).send(server);
+                        } else if (request.isCancel()) {
+                            scheduler.cancel(request.getStreamId());
+                        } else if (request.isWindowUpdate()) {
+                            scheduler.addWindow(request.getStreamId(), request.getWindowIncrement());
+                        } else {
+                            scheduler.add(request, respond(request));
+                        }
+                    }
+                } catch (IOException e) {
+                    // the client closed its end
+                } finally {
+                    if (scheduler != null) {
+                        scheduler.close();
+                    }
+                }
+            }
+        };
+        serverThread.start();
+    }
+
+    private Response respond(Request request) {
+        byte[] bytes = files.get(request.getPath());
+        if (bytes == null) {
+            if (request.getMethod().equals(Request.Methods.HEAD)) {
+                return new Response.Builder().setStatusCode(404).build();
+            }
+            return new Response(404, "text/plain", "Error 404, file not found.");
+        }
+        Response.Builder builder = request.getMethod().equals(Request.Methods.HEAD)
+                ? new Response.Builder()
+                : new Response.Builder(new ByteArrayInputStream(bytes));
+        return builder.setFileSize(bytes.length).build();
+    }
+
+    /**
+     * Takes a while for each write, like a Bluetooth connection does.
+     */
+    private static class SlowOutputStream extends FilterOutputStream {
+        private final long millisPerWrite;
+
+        SlowOutputStream(OutputStream output, long millisPerWrite) {
+            super(output);
+            this.millisPerWrite = millisPerWrite;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (millisPerWrite > 0) {
+                try {
+                    Thread.sleep(millisPerWrite);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            out.write(buffer, offset, count);
+        }
+    }
+}
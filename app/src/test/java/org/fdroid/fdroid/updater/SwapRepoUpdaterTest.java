@@ -0,0 +1,74 @@
+package org.fdroid.fdroid.updater;
+
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.RepoUpdater;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Repo;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Swap repos are parsed while they download rather than from a saved file,
+ * so the signature is checked on a {@link java.util.jar.JarInputStream}.
+ * The swap peer is a {@code file://} repo here, which goes through the same
+ * {@code updateFromStream()} code as Bluetooth and Wi-Fi peers.
+ */
+@Config(constants = BuildConfig.class, sdk = 24)
+@RunWith(RobolectricTestRunner.class)
+public class SwapRepoUpdaterTest extends MultiRepoUpdaterTest {
+
+    private static final String SIMPLE_INDEX_CERT = "308201ee30820157a0030201020204300d845b300d06092a864886f70d01010b0500302a3110300e060355040b1307462d44726f6964311630140603550403130d70616c6174736368696e6b656e301e170d3134303432373030303633315a170d3431303931323030303633315a302a3110300e060355040b1307462d44726f6964311630140603550403130d70616c6174736368696e6b656e30819f300d06092a864886f70d010101050003818d0030818902818100a439472e4b6d01141bfc94ecfe131c7c728fdda670bb14c57ca60bd1c38a8b8bc0879d22a0a2d0bc0d6fdd4cb98d1d607c2caefbe250a0bd0322aedeb365caf9b236992fac13e6675d3184a6c7c6f07f73410209e399a9da8d5d7512bbd870508eebacff8b57c3852457419434d34701ccbf692267cbc3f42f1c5d1e23762d790203010001a321301f301d0603551d0e041604140b1840691dab909746fde4bfe28207d1cae15786300d06092a864886f70d01010b05000381810062424c928ffd1b6fd419b44daafef01ca982e09341f7077fb865905087aeac882534b3bd679b51fdfb98892cef38b63131c567ed26c9d5d9163afc775ac98ad88c405d211d6187bde0b0d236381cc574ba06ef9080721a92ae5a103a7301b2c397eecc141cc850dd3e123813ebc41c59d31ddbcb6e984168280c53272f6a442b"; // NOCHECKSTYLE LineLength
+
+    @Test(expected = RepoUpdater.SigningException.class)
+    public void testIndexWithoutSignature() throws IOException, RepoUpdater.UpdateException {
+        Repo repo = createSwapRepo("simpleIndexWithoutSignature.jar", "index.jar", SIMPLE_INDEX_CERT);
+        new RepoUpdater(context, repo).update();
+        fail(); // it should never reach here, it should throw a SigningException
+    }
+
+    @Test(expected = RepoUpdater.SigningException.class)
+    public void testIndexWithWrongCert() throws IOException, RepoUpdater.UpdateException {
+        Repo repo = createSwapRepo("simpleIndex.jar", "index.jar", IndexV1UpdaterTest.TESTY_CERT);
+        new RepoUpdater(context, repo).update();
+        fail(); // it should never reach here, it should throw a SigningException
+    }
+
+    @Test(expected = RepoUpdater.SigningException.class)
+    public void testIndexV1WithoutSignature() throws IOException, RepoUpdater.UpdateException {
+        Repo repo = createSwapRepo("testy.at.or.at_no-signature_index-v1.jar", IndexV1Updater.SIGNED_FILE_NAME,
+                IndexV1UpdaterTest.TESTY_CERT);
+        new IndexV1Updater(context, repo).update();
+        fail(); // it should never reach here, it should throw a SigningException
+    }
+
+    @Test(expected = RepoUpdater.SigningException.class)
+    public void testIndexV1WithWrongCert() throws IOException, RepoUpdater.UpdateException {
+        Repo repo = createSwapRepo(IndexV1UpdaterTest.TESTY_JAR, IndexV1Updater.SIGNED_FILE_NAME, SIMPLE_INDEX_CERT);
+        new IndexV1Updater(context, repo).update();
+        fail(); // it should never reach here, it should throw a SigningException
+    }
+
+    /**
+     * @return a swap repo that serves {@code indexResource} as {@code indexFileName}
+     */
+    private Repo createSwapRepo(String indexResource, String indexFileName, String signingCert)
+            throws IOException {
+        File repoDir = File.createTempFile("SwapRepoUpdaterTest", "");
+        repoDir.delete();
+        repoDir.mkdir();
+        FileUtils.moveFile(TestUtils.copyResourceToTempFile(indexResource), new File(repoDir, indexFileName));
+        FileUtils.forceDeleteOnExit(repoDir);
+        Repo repo = createRepo("Swap", "file://" + repoDir.getAbsolutePath(), context, signingCert);
+        repo.isSwap = true;
+        return repo;
+    }
+}